@@ -26,6 +26,7 @@ import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
 import com.android.internal.telephony.SmsConstants;
 import com.android.internal.telephony.SmsMessageBase;
 import com.android.internal.telephony.SmsMessageBase.SubmitPduBase;
+import com.android.internal.telephony.SmsTextEncoder;
 import com.android.internal.telephony.Sms7BitEncodingTranslator;
 
 import java.lang.Math;
@@ -384,8 +385,14 @@ public class SmsMessage {
                     nextPos = pos + Math.min(limit, textLen - pos);
                 } else {
                     // For multi-segment messages, CDMA 7bit equals GSM 7bit encoding (EMS mode).
-                    nextPos = GsmAlphabet.findGsmSeptetLimitIndex(newMsgBody, pos, limit,
-                            ted.languageTable, ted.languageShiftTable);
+                    nextPos = -1;
+                    if (ted.languageTable == 0 && ted.languageShiftTable == 0) {
+                        nextPos = SmsTextEncoder.findSeptetLimitIndex(newMsgBody, pos, limit);
+                    }
+                    if (nextPos < 0) {
+                        nextPos = GsmAlphabet.findGsmSeptetLimitIndex(newMsgBody, pos, limit,
+                                ted.languageTable, ted.languageShiftTable);
+                    }
                 }
             } else {  // Assume unicode.
                 nextPos = pos + Math.min(limit / 2, textLen - pos);
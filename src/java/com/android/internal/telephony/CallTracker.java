@@ -19,6 +19,7 @@ package com.android.internal.telephony;
 import android.os.AsyncResult;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.text.TextUtils;
 import com.android.internal.telephony.CommandException;
@@ -39,13 +40,28 @@ public abstract class CallTracker extends Handler {
 
     static final int POLL_DELAY_MSEC = 250;
 
+    /** How long a poll may go unanswered before it is sent again. */
+    static final int POLL_TIMEOUT_MSEC = 5000;
+
     protected int mPendingOperations;
     protected boolean mNeedsPoll;
     protected Message mLastRelevantPoll;
+    /** Set when the call state changed again while mLastRelevantPoll was in flight. */
+    private boolean mRepollPending;
+    private long mPollStartTime;
     protected ArrayList<Connection> mHandoverConnections = new ArrayList<Connection>();
 
     public CommandsInterface mCi;
 
+    // Poll metrics, for dump
+    private long mPollCount;
+    private long mCoalescedPollCount;
+    private long mSupersededPollCount;
+    private long mTimedOutPollCount;
+    private long mTotalPollLatency;
+    private long mMaxPollLatency;
+    private long mLastPollLatency;
+
     protected boolean mNumberConverted = false;
     private final int VALID_COMPARE_LENGTH   = 3;
 
@@ -68,13 +84,77 @@ public abstract class CallTracker extends Handler {
     protected static final int EVENT_THREE_WAY_DIAL_L2_RESULT_CDMA = 16;
     protected static final int EVENT_THREE_WAY_DIAL_BLANK_FLASH    = 20;
 
+    private final Runnable mPollTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onPollTimeout();
+        }
+    };
+
     protected void pollCallsWhenSafe() {
         mNeedsPoll = true;
 
         if (checkNoOperationsPending()) {
-            mLastRelevantPoll = obtainMessage(EVENT_POLL_CALLS_RESULT);
-            mCi.getCurrentCalls(mLastRelevantPoll);
+            if (mLastRelevantPoll != null) {
+                // The poll in flight may have been answered before this change, so poll once
+                // more when it returns, however many changes come in meanwhile
+                mRepollPending = true;
+                mCoalescedPollCount++;
+                return;
+            }
+            pollCalls();
+        }
+    }
+
+    /**
+     * Send getCurrentCalls() now, replacing any poll in flight.
+     */
+    protected void pollCalls() {
+        mRepollPending = false;
+        mPollStartTime = SystemClock.elapsedRealtime();
+        mLastRelevantPoll = obtainMessage(EVENT_POLL_CALLS_RESULT);
+        removeCallbacks(mPollTimeout);
+        postDelayed(mPollTimeout, POLL_TIMEOUT_MSEC);
+        mCi.getCurrentCalls(mLastRelevantPoll);
+    }
+
+    /**
+     * Called when mLastRelevantPoll has gone unanswered for POLL_TIMEOUT_MSEC. The response
+     * may have been lost, and the changes coalesced onto the poll would then never be polled
+     * for: poll again, ignoring the old response if it does come.
+     */
+    void onPollTimeout() {
+        if (mLastRelevantPoll == null) {
+            return;
+        }
+        log("onPollTimeout: no response after "
+                + (SystemClock.elapsedRealtime() - mPollStartTime) + "ms, polling again");
+        mTimedOutPollCount++;
+        pollCalls();
+    }
+
+    /**
+     * Account for the result of mLastRelevantPoll, which the caller has just cleared. If the
+     * call state changed while the poll was in flight, the result may be stale: poll again
+     * instead of handling it.
+     *
+     * @return true if the caller should handle the result
+     */
+    protected boolean onRelevantPollResult() {
+        removeCallbacks(mPollTimeout);
+        long latency = SystemClock.elapsedRealtime() - mPollStartTime;
+        mPollCount++;
+        mLastPollLatency = latency;
+        mTotalPollLatency += latency;
+        mMaxPollLatency = Math.max(mMaxPollLatency, latency);
+        if (DBG_POLL) log("onRelevantPollResult: latency=" + latency + "ms");
+
+        if (mRepollPending) {
+            mSupersededPollCount++;
+            pollCallsWhenSafe();
+            return false;
         }
+        return true;
     }
 
     protected void
@@ -293,5 +373,11 @@ public abstract class CallTracker extends Handler {
         pw.println(" mPendingOperations=" + mPendingOperations);
         pw.println(" mNeedsPoll=" + mNeedsPoll);
         pw.println(" mLastRelevantPoll=" + mLastRelevantPoll);
+        pw.println(" mRepollPending=" + mRepollPending);
+        pw.println(" polls=" + mPollCount + " coalesced=" + mCoalescedPollCount
+                + " superseded=" + mSupersededPollCount + " timedOut=" + mTimedOutPollCount);
+        pw.println(" pollLatency last=" + mLastPollLatency + "ms avg="
+                + (mPollCount > 0 ? mTotalPollLatency / mPollCount : 0)
+                + "ms max=" + mMaxPollLatency + "ms");
     }
 }
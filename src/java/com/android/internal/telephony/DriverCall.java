@@ -19,6 +19,7 @@ package com.android.internal.telephony;
 import android.telephony.Rlog;
 import java.lang.Comparable;
 import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
 
 /**
  * {@hide}
@@ -143,6 +144,29 @@ public class DriverCall implements Comparable<DriverCall> {
         }
     }
 
+    /**
+     * @return true if <code>dc</code> reports everything this call reports with the same
+     *         values, so a poll returning it again shows no change
+     */
+    public boolean
+    isSameAs(DriverCall dc) {
+        return dc != null
+                && index == dc.index
+                && isMT == dc.isMT
+                && state == dc.state
+                && isMpty == dc.isMpty
+                && TOA == dc.TOA
+                && isVoice == dc.isVoice
+                && isVoicePrivacy == dc.isVoicePrivacy
+                && als == dc.als
+                && numberPresentation == dc.numberPresentation
+                && namePresentation == dc.namePresentation
+                && TextUtils.equals(number, dc.number)
+                && TextUtils.equals(name, dc.name)
+                // UUSInfo has no equals(), so any is taken as a change
+                && uusInfo == null && dc.uusInfo == null;
+    }
+
     //***** Comparable Implementation
 
     /** For sorting by index */
@@ -284,6 +284,29 @@ public abstract class IccPhoneBookInterfaceManager {
         return mRecords;
     }
 
+    /**
+     * Loads the AdnRecords in efid and returns the non-empty ones matching
+     * a tag and a number, without copying the rest of the EF
+     *
+     * throws SecurityException if no READ_CONTACTS permission
+     *
+     * @param efid the EF id of a ADN-like ICC
+     * @param tag adn tag to match, or null or "" to match any
+     * @param phoneNumber adn number to match, or null or "" to match any
+     * @return List of matching AdnRecord
+     */
+    public List<AdnRecord> searchAdnRecordsInEf(int efid, String tag, String phoneNumber) {
+        // Checks the permission and makes sure efid is loaded
+        if (getAdnRecordsInEf(efid) == null) {
+            return null;
+        }
+
+        efid = updateEfForIccType(efid);
+        synchronized(mLock) {
+            return (mAdnCache != null) ? mAdnCache.searchAdn(efid, tag, phoneNumber) : null;
+        }
+    }
+
     protected void checkThread() {
         if (!ALLOW_SIM_OP_IN_UI_THREAD) {
             // Make sure this isn't the UI thread, since it will block
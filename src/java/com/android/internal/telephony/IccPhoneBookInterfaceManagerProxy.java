@@ -63,4 +63,8 @@ public class IccPhoneBookInterfaceManagerProxy {
     public List<AdnRecord> getAdnRecordsInEf(int efid) {
         return mIccPhoneBookInterfaceManager.getAdnRecordsInEf(efid);
     }
+
+    public List<AdnRecord> searchAdnRecordsInEf(int efid, String tag, String phoneNumber) {
+        return mIccPhoneBookInterfaceManager.searchAdnRecordsInEf(efid, tag, phoneNumber);
+    }
 }
@@ -90,24 +90,26 @@ public class IccProvider extends ContentProvider {
             String[] selectionArgs, String sort) {
         if (DBG) log("query");
 
+        String[] filter = parseQuerySelection(selection, selectionArgs);
+
         switch (URL_MATCHER.match(url)) {
             case ADN:
-                return loadFromEf(IccConstants.EF_ADN, SubscriptionManager.getDefaultSubId());
+                return loadFromEf(IccConstants.EF_ADN, SubscriptionManager.getDefaultSubId(), filter);
 
             case ADN_SUB:
-                return loadFromEf(IccConstants.EF_ADN, getRequestSubId(url));
+                return loadFromEf(IccConstants.EF_ADN, getRequestSubId(url), filter);
 
             case FDN:
-                return loadFromEf(IccConstants.EF_FDN, SubscriptionManager.getDefaultSubId());
+                return loadFromEf(IccConstants.EF_FDN, SubscriptionManager.getDefaultSubId(), filter);
 
             case FDN_SUB:
-                return loadFromEf(IccConstants.EF_FDN, getRequestSubId(url));
+                return loadFromEf(IccConstants.EF_FDN, getRequestSubId(url), filter);
 
             case SDN:
-                return loadFromEf(IccConstants.EF_SDN, SubscriptionManager.getDefaultSubId());
+                return loadFromEf(IccConstants.EF_SDN, SubscriptionManager.getDefaultSubId(), filter);
 
             case SDN_SUB:
-                return loadFromEf(IccConstants.EF_SDN, getRequestSubId(url));
+                return loadFromEf(IccConstants.EF_SDN, getRequestSubId(url), filter);
 
             case ADN_ALL:
                 return loadAllSimContacts(IccConstants.EF_ADN);
@@ -130,7 +132,7 @@ public class IccProvider extends ContentProvider {
 
             for (int i = 0; i < subIdCount; i++) {
                 subId = subInfoList.get(i).getSubscriptionId();
-                result[i] = loadFromEf(efType, subId);
+                result[i] = loadFromEf(efType, subId, null);
                 Rlog.i(TAG,"ADN Records loaded for Subscription ::" + subId);
             }
         }
@@ -388,7 +390,58 @@ public class IccProvider extends ContentProvider {
         return 1;
     }
 
-    private MatrixCursor loadFromEf(int efType, int subId) {
+    /**
+     * Parses a query selection of the form "tag='x' AND number='y'"; either
+     * term may be left out and values may be given as selectionArgs.
+     *
+     * @return {tag, number} with null for a missing term, or null if the
+     * selection does not restrict tag or number
+     */
+    private String[] parseQuerySelection(String selection, String[] selectionArgs) {
+        if (TextUtils.isEmpty(selection)) {
+            return null;
+        }
+
+        String tag = null;
+        String number = null;
+        int nextArg = 0;
+
+        for (String param : selection.split("AND")) {
+            String[] pair = param.split("=");
+            if (pair.length != 2) {
+                Rlog.e(TAG, "query: bad selection parameter: " + param);
+                continue;
+            }
+            String key = pair[0].trim();
+            String val = pair[1].trim();
+            if ("?".equals(val)) {
+                if (selectionArgs == null || nextArg >= selectionArgs.length) {
+                    Rlog.e(TAG, "query: missing selection argument for " + key);
+                    continue;
+                }
+                val = selectionArgs[nextArg++];
+            } else {
+                val = normalizeValue(val);
+            }
+
+            if (STR_TAG.equals(key)) {
+                tag = val;
+            } else if (STR_NUMBER.equals(key)) {
+                number = val;
+            }
+        }
+
+        if (TextUtils.isEmpty(tag) && TextUtils.isEmpty(number)) {
+            return null;
+        }
+        return new String[] { tag, number };
+    }
+
+    /**
+     * @param filter {tag, number} to return only matching records, or null
+     * for all of them
+     */
+    private MatrixCursor loadFromEf(int efType, int subId, String[] filter) {
         if (DBG) log("loadFromEf: efType=" + efType + ", subscription=" + subId);
 
         List<AdnRecord> adnRecords = null;
@@ -396,7 +449,13 @@ public class IccProvider extends ContentProvider {
             IIccPhoneBook iccIpb = IIccPhoneBook.Stub.asInterface(
                     ServiceManager.getService("simphonebook"));
             if (iccIpb != null) {
-                adnRecords = iccIpb.getAdnRecordsInEfForSubscriber(subId, efType);
+                if (filter != null) {
+                    // Filtered by the phonebook index; only matches are returned
+                    adnRecords = iccIpb.searchAdnRecordsInEfForSubscriber(subId, efType,
+                            filter[0], filter[1]);
+                } else {
+                    adnRecords = iccIpb.getAdnRecordsInEfForSubscriber(subId, efType);
+                }
             }
         } catch (RemoteException ex) {
             // ignore it
@@ -43,6 +43,8 @@ import com.android.internal.telephony.uicc.UiccController;
 import com.android.internal.telephony.SmsNumberUtils;
 import com.android.internal.util.HexDump;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -584,6 +586,64 @@ public class IccSmsInterfaceManager {
         }
     }
 
+    /**
+     * Enable several ranges of message identifiers for the calling client, with a single
+     * update of the radio configuration rather than one for each range.
+     *
+     * @param startMessageIds the first message identifier of each range
+     * @param endMessageIds the last message identifier of each range
+     * @param ranType SmsManager.CELL_BROADCAST_RAN_TYPE_GSM or CELL_BROADCAST_RAN_TYPE_CDMA
+     * @return true if successful; if not, none of the ranges are enabled
+     */
+    synchronized public boolean enableCellBroadcastRanges(int[] startMessageIds,
+            int[] endMessageIds, int ranType) {
+        if (DBG) log("enableCellBroadcastRanges");
+
+        IntRangeManager rangeManager;
+        if (ranType == SmsManager.CELL_BROADCAST_RAN_TYPE_GSM) {
+            rangeManager = mCellBroadcastRangeManager;
+        } else if (ranType == SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA) {
+            rangeManager = mCdmaBroadcastRangeManager;
+        } else {
+            throw new IllegalArgumentException("Not a supportted RAN Type");
+        }
+        if (startMessageIds.length != endMessageIds.length) {
+            throw new IllegalArgumentException("Start and end message ids don't match");
+        }
+
+        Context context = mPhone.getContext();
+
+        context.enforceCallingPermission(
+                "android.permission.RECEIVE_SMS",
+                "Enabling cell broadcast SMS");
+
+        String client = context.getPackageManager().getNameForUid(
+                Binder.getCallingUid());
+
+        // The ranges are only checked against the radio when the batch is finished
+        rangeManager.startBatch();
+        for (int i = 0; i < startMessageIds.length; i++) {
+            rangeManager.enableRange(startMessageIds[i], endMessageIds[i], client);
+        }
+        if (!rangeManager.finishBatch()) {
+            log("Failed to add " + startMessageIds.length + " cell broadcast subscriptions"
+                    + " from client " + client);
+            return false;
+        }
+
+        if (DBG)
+            log("Added " + startMessageIds.length + " cell broadcast subscriptions"
+                    + " from client " + client);
+
+        if (ranType == SmsManager.CELL_BROADCAST_RAN_TYPE_GSM) {
+            setCellBroadcastActivation(!mCellBroadcastRangeManager.isEmpty());
+        } else {
+            setCdmaBroadcastActivation(!mCdmaBroadcastRangeManager.isEmpty());
+        }
+
+        return true;
+    }
+
     public boolean disableCellBroadcastRange(int startMessageId, int endMessageId, int ranType) {
         if (ranType == SmsManager.CELL_BROADCAST_RAN_TYPE_GSM ) {
             return disableGsmBroadcastRange(startMessageId, endMessageId);
@@ -1067,4 +1127,7 @@ public class IccSmsInterfaceManager {
         return result != null ? result : destAddr;
     }
 
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        mDispatcher.dump(fd, pw, args);
+    }
 }
@@ -30,6 +30,8 @@ import com.android.internal.telephony.cdma.CdmaSMSDispatcher;
 import com.android.internal.telephony.gsm.GsmInboundSmsHandler;
 import com.android.internal.telephony.gsm.GsmSMSDispatcher;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -91,6 +93,13 @@ public final class ImsSMSDispatcher extends SMSDispatcher {
         mCdmaInboundSmsHandler.dispose();
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("ImsSMSDispatcher: mIms=" + mIms + " mImsSmsFormat=" + mImsSmsFormat);
+        mGsmDispatcher.dump(fd, pw, args);
+        mCdmaDispatcher.dump(fd, pw, args);
+    }
+
     /**
      * Handles events coming from the phone stack. Overridden from handler.
      *
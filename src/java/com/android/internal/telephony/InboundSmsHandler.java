@@ -34,8 +34,6 @@ import android.content.SharedPreferences;
 import android.content.pm.UserInfo;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.net.Uri;
@@ -51,7 +49,6 @@ import android.os.UserManager;
 import android.preference.PreferenceManager;
 import android.provider.Telephony;
 import android.provider.Telephony.Sms.Intents;
-import android.service.carrier.CarrierMessagingService;
 import android.service.carrier.ICarrierMessagingCallback;
 import android.service.carrier.ICarrierMessagingService;
 import android.service.carrier.MessagePdu;
@@ -98,11 +95,6 @@ public abstract class InboundSmsHandler extends StateMachine {
     protected static final boolean DBG = true;
     private static final boolean VDBG = false;  // STOPSHIP if true, logs user data
 
-    /** Query projection for checking for duplicate message segments. */
-    private static final String[] PDU_PROJECTION = {
-            "pdu"
-    };
-
     /** Query projection for combining concatenated message segments. */
     private static final String[] PDU_SEQUENCE_PORT_PROJECTION = {
             "pdu",
@@ -158,6 +150,15 @@ public abstract class InboundSmsHandler extends StateMachine {
     /** Special handler for WAP push messages. */
     private final WapPushOverSms mWapPush;
 
+    /** Segments of concatenated messages in the raw table. */
+    private final SmsReassemblyIndex mReassemblyIndex = SmsReassemblyIndex.getInstance();
+
+    /** Writes to the raw table, shared with the handlers of the other phones. */
+    private final SmsRawTableJournal mRawTableJournal;
+
+    /** Finds the carrier or system app to filter messages with. */
+    private final SmsFilterPackageResolver mFilterPackageResolver;
+
     /** Wake lock to ensure device stays awake while dispatching the SMS intents. */
     final PowerManager.WakeLock mWakeLock;
 
@@ -202,7 +203,9 @@ public abstract class InboundSmsHandler extends StateMachine {
         mPhone = phone;
         mCellBroadcastHandler = cellBroadcastHandler;
         mResolver = context.getContentResolver();
+        mRawTableJournal = SmsRawTableJournal.getInstance(mResolver, sRawUri);
         mWapPush = new WapPushOverSms(context);
+        mFilterPackageResolver = new SmsFilterPackageResolver(context, getHandler().getLooper());
 
         boolean smsCapable = mContext.getResources().getBoolean(
                 com.android.internal.R.bool.config_sms_capable);
@@ -243,6 +246,7 @@ public abstract class InboundSmsHandler extends StateMachine {
      */
     @Override
     protected void onQuitting() {
+        mFilterPackageResolver.dispose();
         mWapPush.dispose();
 
         while (mWakeLock.isHeld()) {
@@ -679,54 +683,30 @@ public abstract class InboundSmsHandler extends StateMachine {
             pdus = new byte[][]{tracker.getPdu()};
         } else {
             // multi-part message
-            Cursor cursor = null;
+            SmsReassemblyIndex.Segments segments;
             try {
-                // used by several query selection arguments
-                String address = tracker.getAddress();
-                String refNumber = Integer.toString(tracker.getReferenceNumber());
-                String count = Integer.toString(tracker.getMessageCount());
-
-                // query for all segments and broadcast message if we have all the parts
-                String[] whereArgs = {address, refNumber, count};
-                cursor = mResolver.query(sRawUri, PDU_SEQUENCE_PORT_PROJECTION,
-                        SELECT_BY_REFERENCE, whereArgs, null);
-
-                int cursorCount = cursor.getCount();
-                if (cursorCount < messageCount) {
-                    // Wait for the other message parts to arrive. It's also possible for the last
-                    // segment to arrive before processing the EVENT_BROADCAST_SMS for one of the
-                    // earlier segments. In that case, the broadcast will be sent as soon as all
-                    // segments are in the table, and any later EVENT_BROADCAST_SMS messages will
-                    // get a row count of 0 and return.
-                    return false;
-                }
-
-                // All the parts are in place, deal with them
-                pdus = new byte[messageCount][];
-                while (cursor.moveToNext()) {
-                    // subtract offset to convert sequence to 0-based array index
-                    int index = cursor.getInt(SEQUENCE_COLUMN) - tracker.getIndexOffset();
-
-                    pdus[index] = HexDump.hexStringToByteArray(cursor.getString(PDU_COLUMN));
-
-                    // Read the destination port from the first segment (needed for CDMA WAP PDU).
-                    // It's not a bad idea to prefer the port from the first segment in other cases.
-                    if (index == 0 && !cursor.isNull(DESTINATION_PORT_COLUMN)) {
-                        int port = cursor.getInt(DESTINATION_PORT_COLUMN);
-                        // strip format flags and convert to real port number, or -1
-                        port = InboundSmsTracker.getRealDestPort(port);
-                        if (port != -1) {
-                            destPort = port;
-                        }
-                    }
-                }
+                segments = getSegments(tracker);
             } catch (SQLException e) {
                 loge("Can't access multipart SMS database", e);
                 return false;
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+            }
+
+            if (!segments.isComplete()) {
+                // Wait for the other message parts to arrive. It's also possible for the last
+                // segment to arrive before processing the EVENT_BROADCAST_SMS for one of the
+                // earlier segments. In that case, the broadcast will be sent as soon as all
+                // segments are in the table, and any later EVENT_BROADCAST_SMS messages will
+                // find no segments and return.
+                return false;
+            }
+
+            // All the parts are in place, deal with them
+            pdus = segments.mPdus;
+
+            // Use the destination port from the first segment (needed for CDMA WAP PDU).
+            // It's not a bad idea to prefer the port from the first segment in other cases.
+            if (segments.mFirstDestPort != -1) {
+                destPort = segments.mFirstDestPort;
             }
         }
 
@@ -749,18 +729,13 @@ public abstract class InboundSmsHandler extends StateMachine {
             return (result == Activity.RESULT_OK);
         }
 
-        List<String> carrierPackages = null;
         UiccCard card = UiccController.getInstance().getUiccCard(mPhone.getPhoneId());
-        if (card != null) {
-            carrierPackages = card.getCarrierPackageNamesForIntent(
-                    mContext.getPackageManager(),
-                    new Intent(CarrierMessagingService.SERVICE_INTERFACE));
-        } else {
+        if (card == null) {
             loge("UiccCard not initialized.");
         }
+        List<String> carrierPackages = mFilterPackageResolver.getCarrierPackages(card);
 
-        List<String> systemPackages =
-                getSystemAppForIntent(new Intent(CarrierMessagingService.SERVICE_INTERFACE));
+        List<String> systemPackages = mFilterPackageResolver.getSystemPackages();
 
         if (carrierPackages != null && carrierPackages.size() == 1) {
             log("Found carrier package.");
@@ -783,27 +758,6 @@ public abstract class InboundSmsHandler extends StateMachine {
         return true;
     }
 
-    private List<String> getSystemAppForIntent(Intent intent) {
-        List<String> packages = new ArrayList<String>();
-        PackageManager packageManager = mContext.getPackageManager();
-        List<ResolveInfo> receivers = packageManager.queryIntentServices(intent, 0);
-        String carrierFilterSmsPerm = "android.permission.CARRIER_FILTER_SMS";
-
-        for (ResolveInfo info : receivers) {
-            if (info.serviceInfo == null) {
-                loge("Can't get service information from " + info);
-                continue;
-            }
-            String packageName = info.serviceInfo.packageName;
-                if (packageManager.checkPermission(carrierFilterSmsPerm, packageName) ==
-                        packageManager.PERMISSION_GRANTED) {
-                    packages.add(packageName);
-                    if (DBG) log("getSystemAppForIntent: added package "+ packageName);
-                }
-        }
-        return packages;
-    }
-
     /**
      * Dispatch the intent with the specified permission, appOp, and result receiver, using
      * this state machine's handler thread to run the result receiver.
@@ -856,14 +810,14 @@ public abstract class InboundSmsHandler extends StateMachine {
 
     /**
      * Helper for {@link SmsBroadcastUndelivered} to delete an old message in the raw table.
+     * A delete that fails is retried before the next insert, see {@link SmsRawTableJournal}.
      */
     void deleteFromRawTable(String deleteWhere, String[] deleteWhereArgs) {
-        int rows = mResolver.delete(sRawUri, deleteWhere, deleteWhereArgs);
-        if (rows == 0) {
-            loge("No rows were deleted from raw table!");
-        } else if (DBG) {
-            log("Deleted " + rows + " rows from raw table.");
+        if (SELECT_BY_REFERENCE.equals(deleteWhere)) {
+            mReassemblyIndex.remove(new SmsReassemblyIndex.Key(deleteWhereArgs[0],
+                    Integer.parseInt(deleteWhereArgs[1]), Integer.parseInt(deleteWhereArgs[2])));
         }
+        mRawTableJournal.delete(deleteWhere, deleteWhereArgs);
     }
 
     /**
@@ -926,56 +880,44 @@ public abstract class InboundSmsHandler extends StateMachine {
      */
     private int addTrackerToRawTable(InboundSmsTracker tracker) {
         if (tracker.getMessageCount() != 1) {
-            // check for duplicate message segments
-            Cursor cursor = null;
+            // sequence numbers are 1-based except for CDMA WAP, which is 0-based
+            int sequence = tracker.getSequenceNumber();
+
+            // convert to strings for query
+            String address = tracker.getAddress();
+            String refNumber = Integer.toString(tracker.getReferenceNumber());
+            String count = Integer.toString(tracker.getMessageCount());
+
+            // set the delete selection args for multi-part message
+            String[] deleteWhereArgs = {address, refNumber, count};
+            tracker.setDeleteWhere(SELECT_BY_REFERENCE, deleteWhereArgs);
+
+            // Check for duplicate message segments
+            SmsReassemblyIndex.Segments segments;
             try {
-                // sequence numbers are 1-based except for CDMA WAP, which is 0-based
-                int sequence = tracker.getSequenceNumber();
-
-                // convert to strings for query
-                String address = tracker.getAddress();
-                String refNumber = Integer.toString(tracker.getReferenceNumber());
-                String count = Integer.toString(tracker.getMessageCount());
-
-                String seqNumber = Integer.toString(sequence);
-
-                // set the delete selection args for multi-part message
-                String[] deleteWhereArgs = {address, refNumber, count};
-                tracker.setDeleteWhere(SELECT_BY_REFERENCE, deleteWhereArgs);
-
-                // Check for duplicate message segments
-                cursor = mResolver.query(sRawUri, PDU_PROJECTION,
-                        "address=? AND reference_number=? AND count=? AND sequence=?",
-                        new String[] {address, refNumber, count, seqNumber}, null);
-
-                // moveToNext() returns false if no duplicates were found
-                if (cursor.moveToNext()) {
-                    loge("Discarding duplicate message segment, refNumber=" + refNumber
-                            + " seqNumber=" + seqNumber);
-                    String oldPduString = cursor.getString(PDU_COLUMN);
-                    byte[] pdu = tracker.getPdu();
-                    byte[] oldPdu = HexDump.hexStringToByteArray(oldPduString);
-                    if (!Arrays.equals(oldPdu, tracker.getPdu())) {
-                        loge("Warning: dup message segment PDU of length " + pdu.length
-                                + " is different from existing PDU of length " + oldPdu.length);
-                    }
-                    return Intents.RESULT_SMS_DUPLICATED;   // reject message
-                }
-                cursor.close();
+                segments = getSegments(tracker);
             } catch (SQLException e) {
                 loge("Can't access multipart SMS database", e);
                 return Intents.RESULT_SMS_GENERIC_ERROR;    // reject message
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
+            }
+
+            byte[] oldPdu = segments.getPdu(sequence - tracker.getIndexOffset());
+            if (oldPdu != null) {
+                loge("Discarding duplicate message segment, refNumber=" + refNumber
+                        + " seqNumber=" + sequence);
+                byte[] pdu = tracker.getPdu();
+                if (!Arrays.equals(oldPdu, pdu)) {
+                    loge("Warning: dup message segment PDU of length " + pdu.length
+                            + " is different from existing PDU of length " + oldPdu.length);
                 }
+                return Intents.RESULT_SMS_DUPLICATED;   // reject message
             }
         }
 
         ContentValues values = tracker.getContentValues();
 
         if (VDBG) log("adding content values to raw table: " + values.toString());
-        Uri newUri = mResolver.insert(sRawUri, values);
+        Uri newUri = mRawTableJournal.insert(values);
         if (DBG) log("URI of new row -> " + newUri);
 
         try {
@@ -983,6 +925,8 @@ public abstract class InboundSmsHandler extends StateMachine {
             if (tracker.getMessageCount() == 1) {
                 // set the delete selection args for single-part message
                 tracker.setDeleteWhere(SELECT_BY_ID, new String[]{Long.toString(rowId)});
+            } else {
+                mReassemblyIndex.addSegment(tracker);
             }
             return Intents.RESULT_SMS_HANDLED;
         } catch (Exception e) {
@@ -991,6 +935,55 @@ public abstract class InboundSmsHandler extends StateMachine {
         }
     }
 
+    /**
+     * Get the segments of a multi-part message held in the raw table. They come from the
+     * reassembly index, which only has to load them from the raw table if it dropped the
+     * message or wasn't seeded yet.
+     *
+     * @param tracker a segment of the message
+     * @return the segments in the raw table, not including the tracker unless already added
+     * @throws SQLException if the raw table can't be read
+     */
+    private SmsReassemblyIndex.Segments getSegments(InboundSmsTracker tracker) {
+        SmsReassemblyIndex.Key key = new SmsReassemblyIndex.Key(tracker);
+        SmsReassemblyIndex.Segments segments = mReassemblyIndex.get(key);
+        if (segments != null) {
+            return segments;
+        }
+
+        segments = new SmsReassemblyIndex.Segments(tracker.getMessageCount());
+        mRawTableJournal.flush();
+        Cursor cursor = null;
+        try {
+            String[] whereArgs = {tracker.getAddress(),
+                    Integer.toString(tracker.getReferenceNumber()),
+                    Integer.toString(tracker.getMessageCount())};
+            cursor = mResolver.query(sRawUri, PDU_SEQUENCE_PORT_PROJECTION,
+                    SELECT_BY_REFERENCE, whereArgs, null);
+
+            while (cursor.moveToNext()) {
+                // subtract offset to convert sequence to 0-based array index
+                int index = cursor.getInt(SEQUENCE_COLUMN) - tracker.getIndexOffset();
+                int port = -1;
+                if (!cursor.isNull(DESTINATION_PORT_COLUMN)) {
+                    // strip format flags and convert to real port number, or -1
+                    port = InboundSmsTracker.getRealDestPort(
+                            cursor.getInt(DESTINATION_PORT_COLUMN));
+                }
+                segments.add(index, HexDump.hexStringToByteArray(cursor.getString(PDU_COLUMN)),
+                        port);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        mReassemblyIndex.put(key, segments);
+        if (DBG) log("loaded " + segments.getReceivedCount() + " segments from raw table");
+        return segments;
+    }
+
     /**
      * Returns whether the default message format for the current radio technology is 3GPP2.
      * @return true if the radio technology uses 3GPP2 format by default, false for 3GPP format
@@ -17,7 +17,12 @@
 package com.android.internal.telephony;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Clients can enable reception of SMS-CB messages for specific ranges of
@@ -30,7 +35,9 @@ import java.util.Iterator;
  * Calls to {@link #enableRange} and {@link #disableRange} will perform
  * an incremental update operation if the enabled ranges have changed.
  * A full update operation (i.e. after a radio reset) can be performed
- * by a call to {@link #updateRanges}.
+ * by a call to {@link #updateRanges}. Many ranges can be enabled or disabled
+ * with a single radio update between calls to {@link #startBatch} and
+ * {@link #finishBatch}.
  *
  * Clients are identified by String (the name associated with the User ID
  * of the caller) so that a call to remove a range can be mapped to the
@@ -54,90 +61,50 @@ public abstract class IntRangeManager {
     private class IntRange {
         int mStartId;
         int mEndId;
-        // sorted by earliest start id
+        // sorted by start id, then by end id (see mClientRangeComparator)
         final ArrayList<ClientRange> mClients;
 
         /**
-         * Create a new IntRange with a single client.
+         * Create a new IntRange without clients.
          * @param startId the first id included in the range
          * @param endId the last id included in the range
-         * @param client the client requesting the enabled range
          */
-        IntRange(int startId, int endId, String client) {
+        IntRange(int startId, int endId) {
             mStartId = startId;
             mEndId = endId;
             mClients = new ArrayList<ClientRange>(INITIAL_CLIENTS_ARRAY_SIZE);
-            mClients.add(new ClientRange(startId, endId, client));
         }
 
         /**
-         * Create a new IntRange for an existing ClientRange.
-         * @param clientRange the initial ClientRange to add
+         * Create a copy of an existing IntRange, used to undo a batch.
+         * @param intRange the IntRange to copy
          */
-        IntRange(ClientRange clientRange) {
-            mStartId = clientRange.mStartId;
-            mEndId = clientRange.mEndId;
-            mClients = new ArrayList<ClientRange>(INITIAL_CLIENTS_ARRAY_SIZE);
-            mClients.add(clientRange);
-        }
-
-        /**
-         * Create a new IntRange from an existing IntRange. This is used for
-         * removing a ClientRange, because new IntRanges may need to be created
-         * for any gaps that open up after the ClientRange is removed. A copy
-         * is made of the elements of the original IntRange preceding the element
-         * that is being removed. The following elements will be added to this
-         * IntRange or to a new IntRange when a gap is found.
-         * @param intRange the original IntRange to copy elements from
-         * @param numElements the number of elements to copy from the original
-         */
-        IntRange(IntRange intRange, int numElements) {
+        IntRange(IntRange intRange) {
             mStartId = intRange.mStartId;
             mEndId = intRange.mEndId;
-            mClients = new ArrayList<ClientRange>(intRange.mClients.size());
-            for (int i=0; i < numElements; i++) {
-                mClients.add(intRange.mClients.get(i));
-            }
+            mClients = new ArrayList<ClientRange>(intRange.mClients);
         }
 
         /**
-         * Insert new ClientRange in order by start id, then by end id
-         * <p>If the new ClientRange is known to be sorted before or after the
-         * existing ClientRanges, or at a particular index, it can be added
-         * to the clients array list directly, instead of via this method.
-         * <p>Note that this can be changed from linear to binary search if the
-         * number of clients grows large enough that it would make a difference.
+         * Insert new ClientRange in order by start id, then by end id.
          * @param range the new ClientRange to insert
          */
         void insert(ClientRange range) {
-            int len = mClients.size();
-            int insert = -1;
-            for (int i=0; i < len; i++) {
-                ClientRange nextRange = mClients.get(i);
-                if (range.mStartId <= nextRange.mStartId) {
-                    // ignore duplicate ranges from the same client
-                    if (!range.equals(nextRange)) {
-                        // check if same startId, then order by endId
-                        if (range.mStartId == nextRange.mStartId
-                                && range.mEndId > nextRange.mEndId) {
-                            insert = i + 1;
-                            if (insert < len) {
-                                // there may be more client following with same startId
-                                // new [1, 5] existing [1, 2] [1, 4] [1, 7]
-                                continue;
-                            }
-                            break;
-                        }
-                        mClients.add(i, range);
-                    }
-                    return;
-                }
+            int index = Collections.binarySearch(mClients, range, mClientRangeComparator);
+            if (index < 0) {
+                mClients.add(-index - 1, range);
             }
-            if (insert != -1 && insert < len) {
-                mClients.add(insert, range);
-                return;
+        }
+
+        /**
+         * Remove a ClientRange.
+         * @param range the ClientRange to remove
+         */
+        void remove(ClientRange range) {
+            int index = Collections.binarySearch(mClients, range, mClientRangeComparator);
+            if (index >= 0) {
+                mClients.remove(index);
             }
-            mClients.add(range);    // append to end of list
         }
     }
 
@@ -173,10 +140,37 @@ public abstract class IntRangeManager {
         }
     }
 
+    /** Orders ClientRanges by start id, then by end id, then by client. */
+    private final Comparator<ClientRange> mClientRangeComparator = new Comparator<ClientRange>() {
+        @Override
+        public int compare(ClientRange lhs, ClientRange rhs) {
+            if (lhs.mStartId != rhs.mStartId) {
+                return lhs.mStartId < rhs.mStartId ? -1 : 1;
+            } else if (lhs.mEndId != rhs.mEndId) {
+                return lhs.mEndId < rhs.mEndId ? -1 : 1;
+            }
+            return lhs.mClient.compareTo(rhs.mClient);
+        }
+    };
+
     /**
-     * List of integer ranges, one per client, sorted by start id.
+     * Enabled ranges by start id. The ranges neither overlap nor touch, so the
+     * ranges joined by a new client range are found with a tree lookup.
      */
-    private ArrayList<IntRange> mRanges = new ArrayList<IntRange>();
+    private TreeMap<Integer, IntRange> mRanges = new TreeMap<Integer, IntRange>();
+
+    /** All enabled client ranges, to find duplicate and unknown client ranges. */
+    private HashSet<ClientRange> mClientRanges = new HashSet<ClientRange>();
+
+    /** Nesting depth of the current batch, 0 if there is none. */
+    private int mBatchDepth;
+
+    /** True if the enabled ids have changed since the batch started. */
+    private boolean mBatchChanged;
+
+    /** Copies of mRanges and mClientRanges when the batch started, to undo it. */
+    private TreeMap<Integer, IntRange> mBatchSavedRanges;
+    private HashSet<ClientRange> mBatchSavedClientRanges;
 
     protected IntRangeManager() {}
 
@@ -185,243 +179,75 @@ public abstract class IntRangeManager {
      * if necessary. If {@link #finishUpdate} returns failure,
      * false is returned and the range is not added.
      *
+     * <p>Only the ids in the new range that weren't enabled before are passed
+     * to {@link #tryAddRanges}, as a single range from the first to the last of them.
+     *
      * @param startId the first id included in the range
      * @param endId the last id included in the range
      * @param client the client requesting the enabled range
      * @return true if successful, false otherwise
      */
     public synchronized boolean enableRange(int startId, int endId, String client) {
-        int len = mRanges.size();
+        ClientRange clientRange = new ClientRange(startId, endId, client);
+        if (mClientRanges.contains(clientRange)) {
+            // ignore duplicate ranges from the same client
+            return true;
+        }
 
-        // empty range list: add the initial IntRange
-        if (len == 0) {
-            if (tryAddRanges(startId, endId, true)) {
-                mRanges.add(new IntRange(startId, endId, client));
-                return true;
-            } else {
-                return false;   // failed to update radio
-            }
+        // Find the ranges that overlap or touch the new range, in order. Only the last
+        // range starting at or before startId can reach it. Neighbouring ids are worked
+        // out as longs, as the ids may be anywhere up to Integer.MIN_VALUE or MAX_VALUE.
+        ArrayList<IntRange> joinRanges = new ArrayList<IntRange>();
+        Map.Entry<Integer, IntRange> floor = mRanges.floorEntry(startId);
+        if (floor != null && floor.getValue().mEndId + 1L >= startId) {
+            joinRanges.add(floor.getValue());
+        }
+        if (endId == Integer.MAX_VALUE) {
+            joinRanges.addAll(mRanges.tailMap(startId, false).values());
+        } else {
+            joinRanges.addAll(mRanges.subMap(startId, false, endId + 1, true).values());
         }
 
-        for (int startIndex = 0; startIndex < len; startIndex++) {
-            IntRange range = mRanges.get(startIndex);
-            if ((startId) >= range.mStartId && (endId) <= range.mEndId) {
-                // exact same range:  new [1, 1] existing [1, 1]
-                // range already enclosed in existing: new [3, 3], [1,3]
-                // no radio update necessary.
-                // duplicate "client" check is done in insert, attempt to insert.
-                range.insert(new ClientRange(startId, endId, client));
-                return true;
-            } else if ((startId - 1) == range.mEndId) {
-                // new [3, x] existing [1, 2]  OR new [2, 2] existing [1, 1]
-                // found missing link? check if next range can be joined
-                int newRangeEndId = endId;
-                IntRange nextRange = null;
-                if ((startIndex + 1) < len) {
-                    nextRange = mRanges.get(startIndex + 1);
-                    if ((nextRange.mStartId - 1) <= endId) {
-                        // new [3, x] existing [1, 2] [5, 7] OR  new [2 , 2] existing [1, 1] [3, 5]
-                        if (endId <= nextRange.mEndId) {
-                            // new [3, 6] existing [1, 2] [5, 7]
-                            newRangeEndId = nextRange.mStartId - 1; // need to enable [3, 4]
-                        }
-                    } else {
-                        // mark nextRange to be joined as null.
-                        nextRange = null;
-                    }
-                }
-                if (tryAddRanges(startId, newRangeEndId, true)) {
-                    range.mEndId = endId;
-                    range.insert(new ClientRange(startId, endId, client));
-
-                    // found missing link? check if next range can be joined
-                    if (nextRange != null) {
-                        if (range.mEndId < nextRange.mEndId) {
-                            // new [3, 6] existing [1, 2] [5, 10]
-                            range.mEndId = nextRange.mEndId;
-                        }
-                        range.mClients.addAll(nextRange.mClients);
-                        mRanges.remove(nextRange);
-                    }
-                    return true;
-                } else {
-                    return false;   // failed to update radio
-                }
-            } else if (startId < range.mStartId) {
-                // new [1, x] , existing [5, y]
-                // test if new range completely precedes this range
-                // note that [1, 4] and [5, 6] coalesce to [1, 6]
-                if ((endId + 1) < range.mStartId) {
-                    // new [1, 3] existing [5, 6] non contiguous case
-                    // insert new int range before previous first range
-                    if (tryAddRanges(startId, endId, true)) {
-                        mRanges.add(startIndex, new IntRange(startId, endId, client));
-                        return true;
-                    } else {
-                        return false;   // failed to update radio
-                    }
-                } else if (endId <= range.mEndId) {
-                    // new [1, 4] existing [5, 6]  or  new [1, 1] existing [2, 2]
-                    // extend the start of this range
-                    if (tryAddRanges(startId, range.mStartId - 1, true)) {
-                        range.mStartId = startId;
-                        range.mClients.add(0, new ClientRange(startId, endId, client));
-                        return true;
-                    } else {
-                        return false;   // failed to update radio
-                    }
-                } else {
-                    // find last range that can coalesce into the new combined range
-                    for (int endIndex = startIndex+1; endIndex < len; endIndex++) {
-                        IntRange endRange = mRanges.get(endIndex);
-                        if ((endId + 1) < endRange.mStartId) {
-                            // new [1, 10] existing [2, 3] [14, 15]
-                            // try to add entire new range
-                            if (tryAddRanges(startId, endId, true)) {
-                                range.mStartId = startId;
-                                range.mEndId = endId;
-                                // insert new ClientRange before existing ranges
-                                range.mClients.add(0, new ClientRange(startId, endId, client));
-                                // coalesce range with following ranges up to endIndex-1
-                                // remove each range after adding its elements, so the index
-                                // of the next range to join is always startIndex+1.
-                                // i is the index if no elements were removed: we only care
-                                // about the number of loop iterations, not the value of i.
-                                int joinIndex = startIndex + 1;
-                                for (int i = joinIndex; i < endIndex; i++) {
-                                    // new [1, 10] existing [2, 3] [5, 6] [14, 15]
-                                    IntRange joinRange = mRanges.get(joinIndex);
-                                    range.mClients.addAll(joinRange.mClients);
-                                    mRanges.remove(joinRange);
-                                }
-                                return true;
-                            } else {
-                                return false;   // failed to update radio
-                            }
-                        } else if (endId <= endRange.mEndId) {
-                            // new [1, 10] existing [2, 3] [5, 15]
-                            // add range from start id to start of last overlapping range,
-                            // values from endRange.startId to endId are already enabled
-                            if (tryAddRanges(startId, endRange.mStartId - 1, true)) {
-                                range.mStartId = startId;
-                                range.mEndId = endRange.mEndId;
-                                // insert new ClientRange before existing ranges
-                                range.mClients.add(0, new ClientRange(startId, endId, client));
-                                // coalesce range with following ranges up to endIndex
-                                // remove each range after adding its elements, so the index
-                                // of the next range to join is always startIndex+1.
-                                // i is the index if no elements were removed: we only care
-                                // about the number of loop iterations, not the value of i.
-                                int joinIndex = startIndex + 1;
-                                for (int i = joinIndex; i <= endIndex; i++) {
-                                    IntRange joinRange = mRanges.get(joinIndex);
-                                    range.mClients.addAll(joinRange.mClients);
-                                    mRanges.remove(joinRange);
-                                }
-                                return true;
-                            } else {
-                                return false;   // failed to update radio
-                            }
-                        }
-                    }
-
-                    // new [1, 10] existing [2, 3]
-                    // endId extends past all existing IntRanges: combine them all together
-                    if (tryAddRanges(startId, endId, true)) {
-                        range.mStartId = startId;
-                        range.mEndId = endId;
-                        // insert new ClientRange before existing ranges
-                        range.mClients.add(0, new ClientRange(startId, endId, client));
-                        // coalesce range with following ranges up to len-1
-                        // remove each range after adding its elements, so the index
-                        // of the next range to join is always startIndex+1.
-                        // i is the index if no elements were removed: we only care
-                        // about the number of loop iterations, not the value of i.
-                        int joinIndex = startIndex + 1;
-                        for (int i = joinIndex; i < len; i++) {
-                            // new [1, 10] existing [2, 3] [5, 6]
-                            IntRange joinRange = mRanges.get(joinIndex);
-                            range.mClients.addAll(joinRange.mClients);
-                            mRanges.remove(joinRange);
-                        }
-                        return true;
-                    } else {
-                        return false;   // failed to update radio
-                    }
-                }
-            } else if ((startId + 1) <= range.mEndId) {
-                // new [2, x] existing [1, 4]
-                if (endId <= range.mEndId) {
-                    // new [2, 3] existing [1, 4]
-                    // completely contained in existing range; no radio changes
-                    range.insert(new ClientRange(startId, endId, client));
-                    return true;
-                } else {
-                    // new [2, 5] existing [1, 4]
-                    // find last range that can coalesce into the new combined range
-                    int endIndex = startIndex;
-                    for (int testIndex = startIndex+1; testIndex < len; testIndex++) {
-                        IntRange testRange = mRanges.get(testIndex);
-                        if ((endId + 1) < testRange.mStartId) {
-                            break;
-                        } else {
-                            endIndex = testIndex;
-                        }
-                    }
-                    // no adjacent IntRanges to combine
-                    if (endIndex == startIndex) {
-                        // new [2, 5] existing [1, 4]
-                        // add range from range.endId+1 to endId,
-                        // values from startId to range.endId are already enabled
-                        if (tryAddRanges(range.mEndId + 1, endId, true)) {
-                            range.mEndId = endId;
-                            range.insert(new ClientRange(startId, endId, client));
-                            return true;
-                        } else {
-                            return false;   // failed to update radio
-                        }
-                    }
-                    // get last range to coalesce into start range
-                    IntRange endRange = mRanges.get(endIndex);
-                    // Values from startId to range.endId have already been enabled.
-                    // if endId > endRange.endId, then enable range from range.endId+1 to endId,
-                    // else enable range from range.endId+1 to endRange.startId-1, because
-                    // values from endRange.startId to endId have already been added.
-                    int newRangeEndId = (endId <= endRange.mEndId) ? endRange.mStartId - 1 : endId;
-                    // new [2, 10] existing [1, 4] [7, 8] OR
-                    // new [2, 10] existing [1, 4] [7, 15]
-                    if (tryAddRanges(range.mEndId + 1, newRangeEndId, true)) {
-                        newRangeEndId = (endId <= endRange.mEndId) ? endRange.mEndId : endId;
-                        range.mEndId = newRangeEndId;
-                        // insert new ClientRange in place
-                        range.insert(new ClientRange(startId, endId, client));
-                        // coalesce range with following ranges up to endIndex
-                        // remove each range after adding its elements, so the index
-                        // of the next range to join is always startIndex+1 (joinIndex).
-                        // i is the index if no elements had been removed: we only care
-                        // about the number of loop iterations, not the value of i.
-                        int joinIndex = startIndex + 1;
-                        for (int i = joinIndex; i <= endIndex; i++) {
-                            IntRange joinRange = mRanges.get(joinIndex);
-                            range.mClients.addAll(joinRange.mClients);
-                            mRanges.remove(joinRange);
-                        }
-                        return true;
-                    } else {
-                        return false;   // failed to update radio
-                    }
-                }
+        // new [1, 10] existing [2, 3] [5, 15]: enable [1, 4]
+        // new [2, 10] existing [1, 4] [7, 8]: enable [5, 10]
+        long newStartId = startId;
+        long newEndId = endId;
+        if (!joinRanges.isEmpty()) {
+            IntRange first = joinRanges.get(0);
+            if (first.mStartId <= startId) {
+                newStartId = Math.max(startId, first.mEndId + 1L);
+            }
+            IntRange last = joinRanges.get(joinRanges.size() - 1);
+            if (last.mEndId >= endId) {
+                newEndId = Math.min(endId, last.mStartId - 1L);
             }
         }
 
-        // new [5, 6], existing [1, 3]
-        // append new range after existing IntRanges
-        if (tryAddRanges(startId, endId, true)) {
-            mRanges.add(new IntRange(startId, endId, client));
-            return true;
-        } else {
+        // no radio update necessary if the range is already enclosed in an existing one
+        if (newStartId <= newEndId && !enableIds((int) newStartId, (int) newEndId)) {
             return false;   // failed to update radio
         }
+
+        // coalesce the joined ranges into the first one, or a new one if there are none;
+        // their clients are already sorted relative to each other.
+        IntRange range;
+        if (joinRanges.isEmpty()) {
+            range = new IntRange(startId, endId);
+        } else {
+            range = joinRanges.get(0);
+            mRanges.remove(range.mStartId);
+            for (int i = 1; i < joinRanges.size(); i++) {
+                IntRange joinRange = joinRanges.get(i);
+                mRanges.remove(joinRange.mStartId);
+                range.mClients.addAll(joinRange.mClients);
+            }
+            range.mStartId = Math.min(range.mStartId, startId);
+            range.mEndId = Math.max(joinRanges.get(joinRanges.size() - 1).mEndId, endId);
+        }
+        range.insert(clientRange);
+        mRanges.put(range.mStartId, range);
+        mClientRanges.add(clientRange);
+        return true;
     }
 
     /**
@@ -435,145 +261,133 @@ public abstract class IntRangeManager {
      * @return true if successful, false otherwise
      */
     public synchronized boolean disableRange(int startId, int endId, String client) {
-        int len = mRanges.size();
-
-        for (int i=0; i < len; i++) {
-            IntRange range = mRanges.get(i);
-            if (startId < range.mStartId) {
-                return false;   // not found
-            } else if (endId <= range.mEndId) {
-                // found the IntRange that encloses the client range, if any
-                // search for it in the clients list
-                ArrayList<ClientRange> clients = range.mClients;
-
-                // handle common case of IntRange containing one ClientRange
-                int crLength = clients.size();
-                if (crLength == 1) {
-                    ClientRange cr = clients.get(0);
-                    if (cr.mStartId == startId && cr.mEndId == endId && cr.mClient.equals(client)) {
-                        // mRange contains only what's enabled.
-                        // remove the range from mRange then update the radio
-                        mRanges.remove(i);
-                        if (updateRanges()) {
-                            return true;
-                        } else {
-                            // failed to update radio.  insert back the range
-                            mRanges.add(i, range);
-                            return false;
-                        }
-                    } else {
-                        return false;   // not found
-                    }
-                }
-
-                // several ClientRanges: remove one, potentially splitting into many IntRanges.
-                // Save the original start and end id for the original IntRange
-                // in case the radio update fails and we have to revert it. If the
-                // update succeeds, we remove the client range and insert the new IntRanges.
-                // clients are ordered by startId then by endId, so client with largest endId
-                // can be anywhere.  Need to loop thru to find largestEndId.
-                int largestEndId = Integer.MIN_VALUE;  // largest end identifier found
-                boolean updateStarted = false;
-
-                // crlength >= 2
-                for (int crIndex=0; crIndex < crLength; crIndex++) {
-                    ClientRange cr = clients.get(crIndex);
-                    if (cr.mStartId == startId && cr.mEndId == endId && cr.mClient.equals(client)) {
-                        // found the ClientRange to remove, check if it's the last in the list
-                        if (crIndex == crLength - 1) {
-                            if (range.mEndId == largestEndId) {
-                                // remove [2, 5] from [1, 7] [2, 5]
-                                // no channels to remove from radio; return success
-                                clients.remove(crIndex);
-                                return true;
-                            } else {
-                                // disable the channels at the end and lower the end id
-                                clients.remove(crIndex);
-                                range.mEndId = largestEndId;
-                                if (updateRanges()) {
-                                    return true;
-                                } else {
-                                    clients.add(crIndex, cr);
-                                    range.mEndId = cr.mEndId;
-                                    return false;
-                                }
-                            }
-                        }
-
-                        // copy the IntRange so that we can remove elements and modify the
-                        // start and end id's in the copy, leaving the original unmodified
-                        // until after the radio update succeeds
-                        IntRange rangeCopy = new IntRange(range, crIndex);
-
-                        if (crIndex == 0) {
-                            // removing the first ClientRange, so we may need to increase
-                            // the start id of the IntRange.
-                            // We know there are at least two ClientRanges in the list,
-                            // because check for just one ClientRanges case is already handled
-                            // so clients.get(1) should always succeed.
-                            int nextStartId = clients.get(1).mStartId;
-                            if (nextStartId != range.mStartId) {
-                                updateStarted = true;
-                                rangeCopy.mStartId = nextStartId;
-                            }
-                            // init largestEndId
-                            largestEndId = clients.get(1).mEndId;
-                        }
-
-                        // go through remaining ClientRanges, creating new IntRanges when
-                        // there is a gap in the sequence. After radio update succeeds,
-                        // remove the original IntRange and append newRanges to mRanges.
-                        // Otherwise, leave the original IntRange in mRanges and return false.
-                        ArrayList<IntRange> newRanges = new ArrayList<IntRange>();
-
-                        IntRange currentRange = rangeCopy;
-                        for (int nextIndex = crIndex + 1; nextIndex < crLength; nextIndex++) {
-                            ClientRange nextCr = clients.get(nextIndex);
-                            if (nextCr.mStartId > largestEndId + 1) {
-                                updateStarted = true;
-                                currentRange.mEndId = largestEndId;
-                                newRanges.add(currentRange);
-                                currentRange = new IntRange(nextCr);
-                            } else {
-                                if (currentRange.mEndId < nextCr.mEndId) {
-                                    currentRange.mEndId = nextCr.mEndId;
-                                }
-                                currentRange.mClients.add(nextCr);
-                            }
-                            if (nextCr.mEndId > largestEndId) {
-                                largestEndId = nextCr.mEndId;
-                            }
-                        }
-
-                        // remove any channels between largestEndId and endId
-                        if (largestEndId < endId) {
-                            updateStarted = true;
-                            currentRange.mEndId = largestEndId;
-                        }
-                        newRanges.add(currentRange);
-
-                        // replace the original IntRange with newRanges
-                        mRanges.remove(i);
-                        mRanges.addAll(i, newRanges);
-                        if (updateStarted && !updateRanges()) {
-                            // failed to update radio.  revert back mRange.
-                            mRanges.removeAll(newRanges);
-                            mRanges.add(i, range);
-                            return false;
-                        }
-
-                        return true;
-                    } else {
-                        // not the ClientRange to remove; save highest end ID seen so far
-                        if (cr.mEndId > largestEndId) {
-                            largestEndId = cr.mEndId;
-                        }
-                    }
-                }
+        ClientRange clientRange = new ClientRange(startId, endId, client);
+        if (!mClientRanges.contains(clientRange)) {
+            return false;   // not found
+        }
+
+        // the IntRange enclosing the client range
+        IntRange range = mRanges.floorEntry(startId).getValue();
+
+        // Removing a ClientRange may split the IntRange into several. Build the new
+        // IntRanges from the remaining clients, leaving the original unmodified until
+        // after the radio update succeeds.
+        ArrayList<IntRange> newRanges = new ArrayList<IntRange>();
+        IntRange currentRange = null;
+        for (ClientRange cr : range.mClients) {
+            if (cr.equals(clientRange)) {
+                continue;
+            }
+            if (currentRange == null || cr.mStartId > currentRange.mEndId + 1L) {
+                currentRange = new IntRange(cr.mStartId, cr.mEndId);
+                newRanges.add(currentRange);
+            } else if (cr.mEndId > currentRange.mEndId) {
+                currentRange.mEndId = cr.mEndId;
             }
+            currentRange.mClients.add(cr);
         }
 
-        return false;   // not found
+        // remove [2, 5] from [1, 7] [2, 5]: no channels to remove from radio
+        boolean changed = newRanges.size() != 1
+                || newRanges.get(0).mStartId != range.mStartId
+                || newRanges.get(0).mEndId != range.mEndId;
+
+        mRanges.remove(range.mStartId);
+        for (IntRange newRange : newRanges) {
+            mRanges.put(newRange.mStartId, newRange);
+        }
+        mClientRanges.remove(clientRange);
+
+        if (changed && !disableIds()) {
+            // failed to update radio.  revert back mRanges.
+            for (IntRange newRange : newRanges) {
+                mRanges.remove(newRange.mStartId);
+            }
+            mRanges.put(range.mStartId, range);
+            mClientRanges.add(clientRange);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Start a batch of calls to {@link #enableRange} and {@link #disableRange}.
+     * The radio isn't updated by these calls until the matching call to
+     * {@link #finishBatch}, which performs a single complete update if the
+     * enabled ranges have changed. Batches may be nested.
+     */
+    public synchronized void startBatch() {
+        if (mBatchDepth++ > 0) {
+            return;
+        }
+        mBatchChanged = false;
+        mBatchSavedRanges = new TreeMap<Integer, IntRange>();
+        for (IntRange range : mRanges.values()) {
+            mBatchSavedRanges.put(range.mStartId, new IntRange(range));
+        }
+        mBatchSavedClientRanges = new HashSet<ClientRange>(mClientRanges);
+    }
+
+    /**
+     * Finish a batch started by {@link #startBatch}. If the radio update fails,
+     * all the changes made in the outermost batch are undone.
+     * @return true if successful, false otherwise
+     */
+    public synchronized boolean finishBatch() {
+        if (mBatchDepth == 0) {
+            throw new IllegalStateException("finishBatch called without startBatch");
+        }
+        if (--mBatchDepth > 0) {
+            return true;
+        }
+
+        boolean success = !mBatchChanged || hasSameIds(mBatchSavedRanges) || updateRanges();
+        if (!success) {
+            mRanges = mBatchSavedRanges;
+            mClientRanges = mBatchSavedClientRanges;
+        }
+        mBatchSavedRanges = null;
+        mBatchSavedClientRanges = null;
+        return success;
+    }
+
+    /**
+     * Returns whether the ranges enable the same ids as mRanges.
+     */
+    private boolean hasSameIds(TreeMap<Integer, IntRange> ranges) {
+        if (ranges.size() != mRanges.size()) {
+            return false;
+        }
+        Iterator<IntRange> itr = ranges.values().iterator();
+        for (IntRange range : mRanges.values()) {
+            IntRange other = itr.next();
+            if (range.mStartId != other.mStartId || range.mEndId != other.mEndId) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Update the radio after ids have been enabled, unless in a batch.
+     */
+    private boolean enableIds(int startId, int endId) {
+        if (mBatchDepth > 0) {
+            mBatchChanged = true;
+            return true;
+        }
+        return tryAddRanges(startId, endId, true);
+    }
+
+    /**
+     * Update the radio after ids have been disabled, unless in a batch.
+     */
+    private boolean disableIds() {
+        if (mBatchDepth > 0) {
+            mBatchChanged = true;
+            return true;
+        }
+        return updateRanges();
     }
 
     /**
@@ -582,7 +396,7 @@ public abstract class IntRangeManager {
      * more calls to {@link #addRange}, followed by {@link #finishUpdate}.
      * @return true if successful, false otherwise
      */
-    public boolean updateRanges() {
+    public synchronized boolean updateRanges() {
         startUpdate();
 
         populateAllRanges();
@@ -609,7 +423,7 @@ public abstract class IntRangeManager {
      * Returns whether the list of ranges is completely empty.
      * @return true if there are no enabled ranges
      */
-    public boolean isEmpty() {
+    public synchronized boolean isEmpty() {
         return mRanges.isEmpty();
     }
 
@@ -618,10 +432,8 @@ public abstract class IntRangeManager {
      * Populate all ranges of message identifiers.
      */
     private void populateAllRanges() {
-        Iterator<IntRange> itr = mRanges.iterator();
-        // Populate all ranges from mRanges
-        while (itr.hasNext()) {
-            IntRange currRange = (IntRange) itr.next();
+        // Populate all ranges from mRanges, in order of start id
+        for (IntRange currRange : mRanges.values()) {
             addRange(currRange.mStartId, currRange.mEndId, true);
         }
     }
@@ -631,10 +443,7 @@ public abstract class IntRangeManager {
      * Populate all ranges of message identifiers using clients' ranges.
      */
     private void populateAllClientRanges() {
-        int len = mRanges.size();
-        for (int i = 0; i < len; i++) {
-            IntRange range = mRanges.get(i);
-
+        for (IntRange range : mRanges.values()) {
             int clientLen = range.mClients.size();
             for (int j=0; j < clientLen; j++) {
                 ClientRange nextRange = range.mClients.get(j);
@@ -421,7 +421,7 @@ public abstract class PhoneBase extends Handler implements Phone {
 
         // Initialize device storage and outgoing SMS usage monitors for SMSDispatchers.
         mSmsStorageMonitor = new SmsStorageMonitor(this);
-        mSmsUsageMonitor = new SmsUsageMonitor(context);
+        mSmsUsageMonitor = new SmsUsageMonitor(context, mPhoneId);
         mUiccController = UiccController.getInstance();
         mUiccController.registerForIccChanged(this, EVENT_ICC_CHANGED, null);
 
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+/**
+ * What each call index looked like at the end of the last poll a {@link CallTracker}
+ * handled: the {@link DriverCall} the radio reported and the connection it was applied to,
+ * with that connection's call and state.
+ *
+ * A call the radio reports again unchanged, on a connection nothing has moved or changed the
+ * state of since, would be compared and updated to no effect, so handlePollCalls skips it.
+ * Local operations that change connections without the radio telling us, such as hanging
+ * up or holding before a dial, show up as a different call or state. The trackers also
+ * clear the table whenever they send the radio a command.
+ *
+ * {@hide}
+ */
+public final class PolledCallTable {
+    private final DriverCall[] mCalls;
+    private final Connection[] mConnections;
+    private final Call[] mParents;
+    private final Call.State[] mStates;
+
+    // Metrics, for dump
+    private long mSkippedCount;
+    private long mAppliedCount;
+
+    /**
+     * @param size the number of call indexes the tracker has connections for
+     */
+    public PolledCallTable(int size) {
+        mCalls = new DriverCall[size];
+        mConnections = new Connection[size];
+        mParents = new Call[size];
+        mStates = new Call.State[size];
+    }
+
+    /**
+     * @param i the position of the call in the tracker's connections, its index - 1
+     * @param dc the call the radio reported at that index in this poll
+     * @param conn the tracker's connection at that index
+     * @return true if applying <code>dc</code> to <code>conn</code> would change nothing
+     */
+    public boolean isUnchanged(int i, DriverCall dc, Connection conn) {
+        DriverCall last = mCalls[i];
+        if (last != null && conn != null && mConnections[i] == conn
+                && mParents[i] == conn.getCall() && mStates[i] == conn.getState()
+                && last.isSameAs(dc)) {
+            mSkippedCount++;
+            return true;
+        }
+        mAppliedCount++;
+        return false;
+    }
+
+    /**
+     * Record what an index looks like once a poll has been applied to it.
+     * @param i the position of the call in the tracker's connections
+     * @param dc the call the radio reported, or null if none
+     * @param conn the tracker's connection, or null if none
+     */
+    public void put(int i, DriverCall dc, Connection conn) {
+        if (dc == null || conn == null) {
+            mCalls[i] = null;
+            mConnections[i] = null;
+            mParents[i] = null;
+            mStates[i] = null;
+        } else {
+            mCalls[i] = dc;
+            mConnections[i] = conn;
+            mParents[i] = conn.getCall();
+            mStates[i] = conn.getState();
+        }
+    }
+
+    /** Forget everything, so the next poll is applied in full. */
+    public void clear() {
+        for (int i = 0; i < mCalls.length; i++) {
+            put(i, null, null);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PolledCallTable{skipped=" + mSkippedCount + " applied=" + mAppliedCount + "}";
+    }
+}
@@ -40,6 +40,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.Parcel;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.PowerManager.WakeLock;
 import android.provider.Settings.SettingNotFoundException;
@@ -53,7 +54,6 @@ import android.telephony.SmsMessage;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
-import android.util.SparseArray;
 import android.view.Display;
 
 import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
@@ -78,7 +78,6 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -89,7 +88,7 @@ import java.util.Random;
 /**
  * {@hide}
  */
-class RILRequest {
+class RILRequest implements RILRequestTable.Entry {
     static final String LOG_TAG = "RilRequest";
 
     //***** Class Variables
@@ -107,6 +106,14 @@ class RILRequest {
     Message mResult;
     Parcel mParcel;
     RILRequest mNext;
+    // Elapsed realtime when the request was queued, written to the socket
+    // and after which it is considered timed out
+    long mEnqueueTime;
+    long mSendTime;
+    long mDeadline;
+    // Set while other requests may be coalesced onto this one
+    RILRequestCoalescer mCoalescer;
+    ArrayList<Message> mCoalesced;
 
     /**
      * Retrieves a new RILRequest instance from the pool.
@@ -136,6 +143,10 @@ class RILRequest {
         rr.mRequest = request;
         rr.mResult = result;
         rr.mParcel = Parcel.obtain();
+        // A pooled request still has the times of its last use
+        rr.mEnqueueTime = 0;
+        rr.mSendTime = 0;
+        rr.mDeadline = 0;
 
         if (result != null && result.getTarget() == null) {
             throw new NullPointerException("Message target must not be null");
@@ -160,6 +171,8 @@ class RILRequest {
                 sPool = this;
                 sPoolSize++;
                 mResult = null;
+                mCoalescer = null;
+                mCoalesced = null;
             }
         }
     }
@@ -167,6 +180,53 @@ class RILRequest {
     private RILRequest() {
     }
 
+    /**
+     * Sends the outcome to mResult and a copy of it to every request
+     * coalesced onto this one.
+     */
+    void
+    sendResult(Object ret, Throwable ex) {
+        ArrayList<Message> coalesced = (mCoalescer != null) ? mCoalescer.complete(this) : null;
+
+        if (mResult != null) {
+            AsyncResult.forMessage(mResult, ret, ex);
+            mResult.sendToTarget();
+        }
+
+        if (coalesced != null) {
+            for (Message result : coalesced) {
+                AsyncResult.forMessage(result, RILRequestCoalescer.copyResult(ret), ex);
+                result.sendToTarget();
+            }
+        }
+    }
+
+    /**
+     * Stamps the request as sent and adds it to the outstanding requests.
+     *
+     * This is done before the request is written to the socket, as the response may be
+     * read before the write returns. Adding it to the table publishes the times to the
+     * receiver thread.
+     *
+     * @param now elapsed realtime in ms
+     * @param timeout how long after now the request is considered timed out
+     */
+    void track(RILRequestTable<RILRequest> table, long now, long timeout) {
+        mSendTime = now;
+        mDeadline = now + timeout;
+        table.put(this);
+    }
+
+    @Override
+    public int getSerial() {
+        return mSerial;
+    }
+
+    @Override
+    public long getDeadline() {
+        return mDeadline;
+    }
+
     static void
     resetSerial() {
         // use a random so that on recovery we probably don't mix old requests
@@ -205,10 +265,7 @@ class RILRequest {
             + RIL.requestToString(mRequest)
             + " error: " + ex + " ret=" + RIL.retToString(mRequest, ret));
 
-        if (mResult != null) {
-            AsyncResult.forMessage(mResult, ret, ex);
-            mResult.sendToTarget();
-        }
+        sendResult(ret, ex);
 
         if (mParcel != null) {
             mParcel.recycle();
@@ -249,7 +306,12 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     // until dec'd to 0
     int mWakeLockCount;
 
-    SparseArray<RILRequest> mRequestList = new SparseArray<RILRequest>();
+    RILRequestTable<RILRequest> mRequestList =
+            new RILRequestTable<RILRequest>(REQUEST_TABLE_SLOTS);
+
+    final RILMetrics mMetrics = new RILMetrics();
+
+    final RILRequestCoalescer mCoalescer = new RILRequestCoalescer();
 
     Object     mLastNITZTimeInfo;
 
@@ -267,6 +329,9 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     // match with constant in ril.cpp
     static final int RIL_MAX_COMMAND_BYTES = (8 * 1024);
+    // Requests beyond this many awaiting a response are still tracked, but
+    // outside the lock-free part of mRequestList
+    static final int REQUEST_TABLE_SLOTS = 1024;
     static final int RESPONSE_SOLICITED = 0;
     static final int RESPONSE_UNSOLICITED = 1;
 
@@ -301,8 +366,9 @@ public final class RIL extends BaseCommands implements CommandsInterface {
             super(looper);
         }
 
-        // Only allocated once
-        byte[] dataLength = new byte[4];
+        // Only allocated once; holds the length header and the parcel so
+        // each request goes out with a single write
+        byte[] mFrame = new byte[RILFrameReader.HEADER_BYTES + RIL_MAX_COMMAND_BYTES];
 
         //***** Runnable implementation
         @Override
@@ -332,9 +398,8 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                             return;
                         }
 
-                        synchronized (mRequestList) {
-                            mRequestList.append(rr.mSerial, rr);
-                        }
+                        rr.track(mRequestList, SystemClock.elapsedRealtime(), mWakeLockTimeout);
+                        mCoalescer.seal(rr);
 
                         byte[] data;
 
@@ -349,14 +414,16 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                         }
 
                         // parcel length in big endian
-                        dataLength[0] = dataLength[1] = 0;
-                        dataLength[2] = (byte)((data.length >> 8) & 0xff);
-                        dataLength[3] = (byte)((data.length) & 0xff);
+                        mFrame[0] = mFrame[1] = 0;
+                        mFrame[2] = (byte)((data.length >> 8) & 0xff);
+                        mFrame[3] = (byte)((data.length) & 0xff);
+                        System.arraycopy(data, 0, mFrame, RILFrameReader.HEADER_BYTES,
+                                data.length);
 
                         //Rlog.v(RILJ_LOG_TAG, "writing packet: " + data.length + " bytes");
 
-                        s.getOutputStream().write(dataLength);
-                        s.getOutputStream().write(data);
+                        s.getOutputStream().write(mFrame, 0,
+                                RILFrameReader.HEADER_BYTES + data.length);
                     } catch (IOException ex) {
                         Rlog.e(RILJ_LOG_TAG, "IOException", ex);
                         req = findAndRemoveRequestFromList(rr.mSerial);
@@ -393,17 +460,18 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                     // Note: Keep mRequestList so that delayed response
                     // can still be handled when response finally comes.
 
-                    synchronized (mRequestList) {
-                        if (clearWakeLock()) {
-                            if (RILJ_LOGD) {
-                                int count = mRequestList.size();
-                                Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
-                                        " mRequestList=" + count);
-                                for (int i = 0; i < count; i++) {
-                                    rr = mRequestList.valueAt(i);
-                                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
-                                            + requestToString(rr.mRequest));
-                                }
+                    if (clearWakeLock()) {
+                        if (RILJ_LOGD) {
+                            ArrayList<RILRequest> expired = new ArrayList<RILRequest>();
+                            mRequestList.collectExpired(SystemClock.elapsedRealtime(), expired);
+                            int count = expired.size();
+                            Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
+                                    " mRequestList=" + mRequestList.size() +
+                                    " expired=" + count);
+                            for (int i = 0; i < count; i++) {
+                                rr = expired.get(i);
+                                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
+                                        + requestToString(rr.mRequest));
                             }
                         }
                     }
@@ -412,72 +480,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         }
     }
 
-    /**
-     * Reads in a single RIL message off the wire. A RIL message consists
-     * of a 4-byte little-endian length and a subsequent series of bytes.
-     * The final message (length header omitted) is read into
-     * <code>buffer</code> and the length of the final message (less header)
-     * is returned. A return value of -1 indicates end-of-stream.
-     *
-     * @param is non-null; Stream to read from
-     * @param buffer Buffer to fill in. Must be as large as maximum
-     * message size, or an ArrayOutOfBounds exception will be thrown.
-     * @return Length of message less header, or -1 on end of stream.
-     * @throws IOException
-     */
-    private static int readRilMessage(InputStream is, byte[] buffer)
-            throws IOException {
-        int countRead;
-        int offset;
-        int remaining;
-        int messageLength;
-
-        // First, read in the length of the message
-        offset = 0;
-        remaining = 4;
-        do {
-            countRead = is.read(buffer, offset, remaining);
-
-            if (countRead < 0 ) {
-                Rlog.e(RILJ_LOG_TAG, "Hit EOS reading message length");
-                return -1;
-            }
-
-            offset += countRead;
-            remaining -= countRead;
-        } while (remaining > 0);
-
-        messageLength = ((buffer[0] & 0xff) << 24)
-                | ((buffer[1] & 0xff) << 16)
-                | ((buffer[2] & 0xff) << 8)
-                | (buffer[3] & 0xff);
-
-        // Then, re-use the buffer and read in the message itself
-        offset = 0;
-        remaining = messageLength;
-        do {
-            countRead = is.read(buffer, offset, remaining);
-
-            if (countRead < 0 ) {
-                Rlog.e(RILJ_LOG_TAG, "Hit EOS reading message.  messageLength=" + messageLength
-                        + " remaining=" + remaining);
-                return -1;
-            }
-
-            offset += countRead;
-            remaining -= countRead;
-        } while (remaining > 0);
-
-        return messageLength;
-    }
-
     class RILReceiver implements Runnable {
-        byte[] buffer;
-
-        RILReceiver() {
-            buffer = new byte[RIL_MAX_COMMAND_BYTES];
-        }
-
         @Override
         public void
         run() {
@@ -539,20 +542,22 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
                 int length = 0;
                 try {
-                    InputStream is = mSocket.getInputStream();
+                    RILFrameReader reader = new RILFrameReader(mSocket.getInputStream(),
+                            RIL_MAX_COMMAND_BYTES);
 
                     for (;;) {
                         Parcel p;
 
-                        length = readRilMessage(is, buffer);
-
-                        if (length < 0) {
+                        if (!reader.next()) {
                             // End-of-stream reached
+                            Rlog.e(RILJ_LOG_TAG, "Hit EOS reading message. pending="
+                                    + reader.getPendingBytes());
                             break;
                         }
+                        length = reader.getMessageLength();
 
                         p = Parcel.obtain();
-                        p.unmarshall(buffer, 0, length);
+                        p.unmarshall(reader.getBuffer(), reader.getMessageOffset(), length);
                         p.setDataPosition(0);
 
                         //Rlog.v(RILJ_LOG_TAG, "Read packet: " + length + " bytes");
@@ -884,10 +889,13 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     @Override
     public void
     getCurrentCalls (Message result) {
+        if (mCoalescer.join(RIL_REQUEST_GET_CURRENT_CALLS, result)) return;
+
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_CURRENT_CALLS, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
+        mCoalescer.register(rr);
         send(rr);
     }
 
@@ -900,10 +908,13 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     @Override
     public void
     getDataCallList(Message result) {
+        if (mCoalescer.join(RIL_REQUEST_DATA_CALL_LIST, result)) return;
+
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_DATA_CALL_LIST, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
+        mCoalescer.register(rr);
         send(rr);
     }
 
@@ -1170,44 +1181,56 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     @Override
     public void
     getSignalStrength (Message result) {
+        if (mCoalescer.join(RIL_REQUEST_SIGNAL_STRENGTH, result)) return;
+
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_SIGNAL_STRENGTH, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
+        mCoalescer.register(rr);
         send(rr);
     }
 
     @Override
     public void
     getVoiceRegistrationState (Message result) {
+        if (mCoalescer.join(RIL_REQUEST_VOICE_REGISTRATION_STATE, result)) return;
+
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_VOICE_REGISTRATION_STATE, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
+        mCoalescer.register(rr);
         send(rr);
     }
 
     @Override
     public void
     getDataRegistrationState (Message result) {
+        if (mCoalescer.join(RIL_REQUEST_DATA_REGISTRATION_STATE, result)) return;
+
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_DATA_REGISTRATION_STATE, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
+        mCoalescer.register(rr);
         send(rr);
     }
 
     @Override
     public void
     getOperator(Message result) {
+        if (mCoalescer.join(RIL_REQUEST_OPERATOR, result)) return;
+
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_OPERATOR, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
+        mCoalescer.register(rr);
         send(rr);
     }
 
@@ -2334,6 +2357,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         }
 
         msg = mSender.obtainMessage(EVENT_SEND, rr);
+        rr.mEnqueueTime = SystemClock.elapsedRealtime();
 
         acquireWakeLock();
 
@@ -2364,38 +2388,31 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      */
     private void clearRequestList(int error, boolean loggable) {
         RILRequest rr;
-        synchronized (mRequestList) {
-            int count = mRequestList.size();
-            if (RILJ_LOGD && loggable) {
-                Rlog.d(RILJ_LOG_TAG, "clearRequestList " +
-                        " mWakeLockCount=" + mWakeLockCount +
-                        " mRequestList=" + count);
-            }
+        ArrayList<RILRequest> removed = new ArrayList<RILRequest>();
+        mRequestList.removeAll(removed);
+
+        int count = removed.size();
+        if (RILJ_LOGD && loggable) {
+            Rlog.d(RILJ_LOG_TAG, "clearRequestList " +
+                    " mWakeLockCount=" + mWakeLockCount +
+                    " mRequestList=" + count);
+        }
 
-            for (int i = 0; i < count ; i++) {
-                rr = mRequestList.valueAt(i);
-                if (RILJ_LOGD && loggable) {
-                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] " +
-                            requestToString(rr.mRequest));
-                }
-                rr.onError(error, null);
-                rr.release();
-                decrementWakeLock();
+        for (int i = 0; i < count ; i++) {
+            rr = removed.get(i);
+            if (RILJ_LOGD && loggable) {
+                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] " +
+                        requestToString(rr.mRequest));
             }
-            mRequestList.clear();
+            mMetrics.recordUnanswered(rr.mRequest);
+            rr.onError(error, null);
+            rr.release();
+            decrementWakeLock();
         }
     }
 
     private RILRequest findAndRemoveRequestFromList(int serial) {
-        RILRequest rr = null;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-            if (rr != null) {
-                mRequestList.remove(serial);
-            }
-        }
-
-        return rr;
+        return mRequestList.remove(serial);
     }
 
     private RILRequest
@@ -2416,6 +2433,9 @@ public final class RIL extends BaseCommands implements CommandsInterface {
             return null;
         }
 
+        mMetrics.record(rr.mRequest, rr.mEnqueueTime, rr.mSendTime,
+                SystemClock.elapsedRealtime(), rr.mDeadline, error);
+
         Object ret = null;
 
         if (error == 0 || p.dataAvail() > 0) {
@@ -2574,10 +2594,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                         + requestToString(rr.mRequest)
                         + " exception, possible invalid RIL response", tr);
 
-                if (rr.mResult != null) {
-                    AsyncResult.forMessage(rr.mResult, null, tr);
-                    rr.mResult.sendToTarget();
-                }
+                rr.sendResult(null, tr);
                 return rr;
             }
         }
@@ -2629,10 +2646,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
             if (RILJ_LOGD) riljLog(rr.serialString() + "< " + requestToString(rr.mRequest)
                     + " " + retToString(rr.mRequest, ret));
 
-            if (rr.mResult != null) {
-                AsyncResult.forMessage(rr.mResult, ret, null);
-                rr.mResult.sendToTarget();
-            }
+            rr.sendResult(ret, null);
         }
         return rr;
     }
@@ -4498,19 +4512,23 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         pw.println(" mReceiver=" + mReceiver);
         pw.println(" mWakeLock=" + mWakeLock);
         pw.println(" mWakeLockTimeout=" + mWakeLockTimeout);
-        synchronized (mRequestList) {
-            synchronized (mWakeLock) {
-                pw.println(" mWakeLockCount=" + mWakeLockCount);
-            }
-            int count = mRequestList.size();
-            pw.println(" mRequestList count=" + count);
-            for (int i = 0; i < count; i++) {
-                RILRequest rr = mRequestList.valueAt(i);
-                pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
-            }
+        synchronized (mWakeLock) {
+            pw.println(" mWakeLockCount=" + mWakeLockCount);
+        }
+        ArrayList<RILRequest> outstanding = new ArrayList<RILRequest>();
+        mRequestList.snapshot(outstanding);
+        int count = outstanding.size();
+        long now = SystemClock.elapsedRealtime();
+        pw.println(" mRequestList count=" + count);
+        for (int i = 0; i < count; i++) {
+            RILRequest rr = outstanding.get(i);
+            pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest)
+                    + (rr.mDeadline <= now ? " (timed out)" : ""));
         }
         pw.println(" mLastNITZTimeInfo=" + mLastNITZTimeInfo);
         pw.println(" mTestingEmergencyCall=" + mTestingEmergencyCall.get());
+        mMetrics.dump(pw);
+        mCoalescer.dump(pw);
     }
 
     /**
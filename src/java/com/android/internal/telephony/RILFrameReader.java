@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads RIL messages off the rild socket. A RIL message consists of a
+ * 4-byte big-endian length and a subsequent series of bytes.
+ *
+ * All reads go into a single buffer that is allocated once and sized to
+ * hold more than one maximal message, so a burst of small unsolicited
+ * responses is pulled off the socket with one read instead of two reads
+ * per message. Each message is exposed as a slice of that buffer; the
+ * slice is only valid until the next call to {@link #next}.
+ *
+ * {@hide}
+ */
+public class RILFrameReader {
+    static final int HEADER_BYTES = 4;
+
+    private final InputStream mInput;
+    private final int mMaxMessageBytes;
+    private final byte[] mBuffer;
+
+    // Start of the bytes not yet handed out and end of the valid bytes
+    private int mReadPos;
+    private int mFillPos;
+
+    private int mMessageOffset;
+    private int mMessageLength;
+
+    /**
+     * @param is non-null; Stream to read from
+     * @param maxMessageBytes largest message (less header) that may be read
+     */
+    public RILFrameReader(InputStream is, int maxMessageBytes) {
+        mInput = is;
+        mMaxMessageBytes = maxMessageBytes;
+        mBuffer = new byte[2 * (maxMessageBytes + HEADER_BYTES)];
+    }
+
+    /**
+     * Advances to the next message on the stream, reading from the stream
+     * only if the buffer does not already hold the complete message.
+     *
+     * @return false on end of stream
+     * @throws IOException if the stream fails or the length header is invalid
+     */
+    public boolean next() throws IOException {
+        if (!fill(HEADER_BYTES)) {
+            return false;
+        }
+
+        int messageLength = ((mBuffer[mReadPos] & 0xff) << 24)
+                | ((mBuffer[mReadPos + 1] & 0xff) << 16)
+                | ((mBuffer[mReadPos + 2] & 0xff) << 8)
+                | (mBuffer[mReadPos + 3] & 0xff);
+
+        if (messageLength < 0 || messageLength > mMaxMessageBytes) {
+            throw new IOException("Invalid RIL message length " + messageLength);
+        }
+
+        if (!fill(HEADER_BYTES + messageLength)) {
+            return false;
+        }
+
+        mMessageOffset = mReadPos + HEADER_BYTES;
+        mMessageLength = messageLength;
+        mReadPos += HEADER_BYTES + messageLength;
+        return true;
+    }
+
+    /** @return the buffer backing the current message */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /** @return offset of the current message (less header) in {@link #getBuffer} */
+    public int getMessageOffset() {
+        return mMessageOffset;
+    }
+
+    /** @return length of the current message (less header) */
+    public int getMessageLength() {
+        return mMessageLength;
+    }
+
+    /** @return number of bytes read from the stream but not yet returned */
+    public int getPendingBytes() {
+        return mFillPos - mReadPos;
+    }
+
+    /**
+     * Makes sure at least <code>needed</code> unconsumed bytes are buffered,
+     * moving the unconsumed tail to the front of the buffer if it would
+     * not fit otherwise.
+     */
+    private boolean fill(int needed) throws IOException {
+        if (mFillPos - mReadPos >= needed) {
+            return true;
+        }
+
+        if (mReadPos + needed > mBuffer.length) {
+            int pending = mFillPos - mReadPos;
+            System.arraycopy(mBuffer, mReadPos, mBuffer, 0, pending);
+            mReadPos = 0;
+            mFillPos = pending;
+        }
+
+        while (mFillPos - mReadPos < needed) {
+            int countRead = mInput.read(mBuffer, mFillPos, mBuffer.length - mFillPos);
+            if (countRead < 0) {
+                return false;
+            }
+            mFillPos += countRead;
+        }
+        return true;
+    }
+}
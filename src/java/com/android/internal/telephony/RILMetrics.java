@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Per request type latency statistics for solicited RIL requests.
+ *
+ * Each request is split into two phases: the time from being queued by
+ * the framework until it is written to the rild socket (time spent in the
+ * Java layer) and the time from the socket write until the response is
+ * read (time spent in rild, the vendor RIL and the modem). Both phases are
+ * recorded in fixed size log-linear histograms, so memory does not grow
+ * with the number of requests.
+ *
+ * {@hide}
+ */
+public class RILMetrics {
+    // Histograms resolve values to 1/SUB_BUCKETS of their power of two
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values at or above 2^MAX_VALUE_BITS ms (about two minutes) share the last bucket
+    private static final int MAX_VALUE_BITS = 17;
+    private static final int BUCKETS = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    // RIL_Errno values above this are counted together
+    private static final int MAX_TRACKED_ERRNO = 63;
+
+    /**
+     * Histogram of millisecond latencies.
+     */
+    public static class Histogram {
+        private final int[] mCounts = new int[BUCKETS];
+        private long mCount;
+        private long mMax;
+
+        public void record(long valueMs) {
+            if (valueMs < 0) valueMs = 0;
+            mCounts[bucketFor(valueMs)]++;
+            mCount++;
+            if (valueMs > mMax) mMax = valueMs;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return lower bound of the bucket holding the given percentile,
+         * or 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0) return 0;
+            long target = (long) Math.ceil(mCount * percentile / 100.0);
+            if (target < 1) target = 1;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts[i];
+                if (seen >= target) {
+                    return Math.min(valueFor(i), mMax);
+                }
+            }
+            return mMax;
+        }
+
+        static int bucketFor(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int msb = 63 - Long.numberOfLeadingZeros(value);
+            if (msb >= MAX_VALUE_BITS) return BUCKETS - 1;
+            int sub = (int) (value >> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long valueFor(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int msb = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            int sub = bucket % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub)) << (msb - SUB_BUCKET_BITS);
+        }
+    }
+
+    /**
+     * Statistics for one RIL_REQUEST_* type.
+     */
+    public static class RequestStats {
+        final int mRequest;
+        final Histogram mQueueLatency = new Histogram();
+        final Histogram mRadioLatency = new Histogram();
+        int mLateResponses;
+        int mUnanswered;
+        final int[] mErrors = new int[MAX_TRACKED_ERRNO + 1];
+
+        RequestStats(int request) {
+            mRequest = request;
+        }
+
+        public Histogram getQueueLatency() {
+            return mQueueLatency;
+        }
+
+        public Histogram getRadioLatency() {
+            return mRadioLatency;
+        }
+
+        /** @return number of responses read after the request's deadline */
+        public int getLateResponses() {
+            return mLateResponses;
+        }
+
+        /** @return number of requests failed without ever getting a response */
+        public int getUnanswered() {
+            return mUnanswered;
+        }
+
+        /** @return number of responses with the given RIL_Errno */
+        public int getErrorCount(int error) {
+            return mErrors[Math.min(Math.max(error, 0), MAX_TRACKED_ERRNO)];
+        }
+    }
+
+    // Indexed by request type; RIL_REQUEST_* values are small and dense
+    private RequestStats[] mStats = new RequestStats[160];
+
+    /**
+     * Records a completed request. All times are elapsed realtime in ms.
+     *
+     * @param request RIL_REQUEST_*
+     * @param enqueueTime when the request was queued for sending
+     * @param sendTime when the request was written to the socket
+     * @param responseTime when the response was read
+     * @param deadline when the request was considered timed out
+     * @param error RIL_Errno of the response
+     */
+    public synchronized void record(int request, long enqueueTime, long sendTime,
+            long responseTime, long deadline, int error) {
+        RequestStats stats = getOrCreate(request);
+        if (stats == null) return;
+
+        stats.mQueueLatency.record(sendTime - enqueueTime);
+        stats.mRadioLatency.record(responseTime - sendTime);
+        if (responseTime > deadline) {
+            stats.mLateResponses++;
+        }
+        stats.mErrors[Math.min(Math.max(error, 0), MAX_TRACKED_ERRNO)]++;
+    }
+
+    /**
+     * Records a request that was failed without a response ever being read, as when
+     * the outstanding requests are cleared on losing the rild socket.
+     *
+     * @param request RIL_REQUEST_*
+     */
+    public synchronized void recordUnanswered(int request) {
+        RequestStats stats = getOrCreate(request);
+        if (stats == null) return;
+
+        stats.mUnanswered++;
+    }
+
+    /**
+     * @return statistics for the given request type or null if none was recorded
+     */
+    public synchronized RequestStats getStats(int request) {
+        return (request >= 0 && request < mStats.length) ? mStats[request] : null;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(mStats, null);
+    }
+
+    private RequestStats getOrCreate(int request) {
+        if (request < 0) return null;
+        if (request >= mStats.length) {
+            // RIL_REQUEST_* values beyond the table are unexpected but
+            // should not be dropped; grow once to fit.
+            mStats = Arrays.copyOf(mStats, request + 1);
+        }
+        RequestStats stats = mStats[request];
+        if (stats == null) {
+            stats = new RequestStats(request);
+            mStats[request] = stats;
+        }
+        return stats;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println(" RIL request latency (ms): queue=framework to socket, radio=socket to"
+                + " response");
+        for (RequestStats stats : mStats) {
+            if (stats == null) continue;
+            Histogram queue = stats.mQueueLatency;
+            Histogram radio = stats.mRadioLatency;
+            StringBuilder sb = new StringBuilder();
+            sb.append("  ").append(RIL.requestToString(stats.mRequest))
+                    .append(" count=").append(radio.getCount())
+                    .append(" queue p50=").append(queue.getPercentile(50))
+                    .append(" p99=").append(queue.getPercentile(99))
+                    .append(" max=").append(queue.getMax())
+                    .append(" radio p50=").append(radio.getPercentile(50))
+                    .append(" p99=").append(radio.getPercentile(99))
+                    .append(" max=").append(radio.getMax())
+                    .append(" late=").append(stats.mLateResponses)
+                    .append(" unanswered=").append(stats.mUnanswered);
+            for (int i = 1; i <= MAX_TRACKED_ERRNO; i++) {
+                if (stats.mErrors[i] != 0) {
+                    sb.append(" err").append(i).append('=').append(stats.mErrors[i]);
+                }
+            }
+            pw.println(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.os.Message;
+import android.os.SystemProperties;
+import android.telephony.Rlog;
+import android.telephony.SignalStrength;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Shares one modem round trip between identical read-only RIL requests.
+ *
+ * While a coalescable request is still waiting in the sender queue, later
+ * requests of the same type are attached to it instead of being queued
+ * themselves, and receive the same response. Once the request has been
+ * written to the socket it no longer accepts followers: the modem may
+ * already have answered it, and a caller asking afterwards may be reacting
+ * to a change the answer does not reflect yet.
+ *
+ * Followers receive copies of the result, as callers modify some results
+ * in place (SignalStrength, the strings of OPERATOR). Only the top level
+ * of a list is copied; its elements are shared and must be left alone.
+ *
+ * {@hide}
+ */
+class RILRequestCoalescer {
+    /**
+     * Comma separated RIL_REQUEST_* numbers that may be coalesced, or "none".
+     * The default set is used when the property is not set.
+     */
+    static final String PROPERTY_COALESCED_REQUESTS = "ro.ril.coalesced_requests";
+
+    private static final int[] DEFAULT_COALESCED_REQUESTS = {
+        RIL_REQUEST_GET_CURRENT_CALLS,
+        RIL_REQUEST_SIGNAL_STRENGTH,
+        RIL_REQUEST_VOICE_REGISTRATION_STATE,
+        RIL_REQUEST_DATA_REGISTRATION_STATE,
+        RIL_REQUEST_OPERATOR,
+        RIL_REQUEST_DATA_CALL_LIST,
+    };
+
+    private final SparseBooleanArray mCoalescable = new SparseBooleanArray();
+    // Request type to the queued request that followers attach to
+    private final SparseArray<RILRequest> mPending = new SparseArray<RILRequest>();
+    private int mCoalescedCount;
+
+    RILRequestCoalescer() {
+        this(SystemProperties.get(PROPERTY_COALESCED_REQUESTS, ""));
+    }
+
+    /**
+     * @param prop the value of {@link #PROPERTY_COALESCED_REQUESTS}
+     */
+    RILRequestCoalescer(String prop) {
+        if (prop.length() == 0) {
+            for (int request : DEFAULT_COALESCED_REQUESTS) {
+                mCoalescable.put(request, true);
+            }
+        } else if (!"none".equals(prop)) {
+            for (String request : prop.split(",")) {
+                try {
+                    mCoalescable.put(Integer.parseInt(request.trim()), true);
+                } catch (NumberFormatException e) {
+                    Rlog.e(RIL.RILJ_LOG_TAG, "Invalid " + PROPERTY_COALESCED_REQUESTS + " entry: "
+                            + request);
+                }
+            }
+        }
+    }
+
+    boolean isCoalescable(int request) {
+        return mCoalescable.get(request);
+    }
+
+    /**
+     * Attaches <code>result</code> to a queued request of the same type.
+     *
+     * @return true if the caller must not send its own request
+     */
+    synchronized boolean join(int request, Message result) {
+        RILRequest leader = mPending.get(request);
+        if (leader == null) {
+            return false;
+        }
+        if (result != null) {
+            if (leader.mCoalesced == null) {
+                leader.mCoalesced = new ArrayList<Message>();
+            }
+            leader.mCoalesced.add(result);
+        }
+        mCoalescedCount++;
+        if (RIL.RILJ_LOGD) {
+            Rlog.d(RIL.RILJ_LOG_TAG, leader.serialString() + "> " + RIL.requestToString(request)
+                    + " [coalesced]");
+        }
+        return true;
+    }
+
+    /**
+     * Makes <code>rr</code> accept followers until it is written to the socket.
+     */
+    synchronized void register(RILRequest rr) {
+        if (isCoalescable(rr.mRequest)) {
+            mPending.put(rr.mRequest, rr);
+            rr.mCoalescer = this;
+        }
+    }
+
+    /**
+     * Stops <code>rr</code> from accepting followers; called before it is
+     * written to the socket.
+     */
+    synchronized void seal(RILRequest rr) {
+        if (mPending.get(rr.mRequest) == rr) {
+            mPending.remove(rr.mRequest);
+        }
+    }
+
+    /**
+     * Detaches <code>rr</code> once its result is known.
+     *
+     * @return the results waiting on <code>rr</code>, or null if there are none
+     */
+    synchronized ArrayList<Message> complete(RILRequest rr) {
+        seal(rr);
+        ArrayList<Message> coalesced = rr.mCoalesced;
+        rr.mCoalesced = null;
+        rr.mCoalescer = null;
+        return coalesced;
+    }
+
+    /**
+     * Copies a result for a follower, so that no two callers share an object
+     * one of them may modify.
+     */
+    static Object copyResult(Object result) {
+        if (result instanceof SignalStrength) {
+            return new SignalStrength((SignalStrength) result);
+        } else if (result instanceof String[]) {
+            return ((String[]) result).clone();
+        } else if (result instanceof int[]) {
+            return ((int[]) result).clone();
+        } else if (result instanceof ArrayList) {
+            return new ArrayList<Object>((ArrayList<?>) result);
+        }
+        return result;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" mCoalescedCount=" + mCoalescedCount);
+        pw.print(" coalescable requests:");
+        for (int i = 0; i < mCoalescable.size(); i++) {
+            pw.print(" " + RIL.requestToString(mCoalescable.keyAt(i)));
+        }
+        pw.println();
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table of outstanding requests keyed by serial number. Looking up and
+ * removing an entry is lock-free; adding one takes a lock, which only the
+ * sender thread normally holds.
+ *
+ * The table uses open addressing with linear probing over a fixed number
+ * of slots. Serials are handed out sequentially, so consecutive requests
+ * land in consecutive slots and a lookup normally touches a single slot.
+ * Removed entries leave a tombstone behind rather than an empty slot, so
+ * a probe sequence is never broken by a concurrent removal; tombstones
+ * are reused by later insertions, and once they make up a quarter of the
+ * slots those no entry's probe sequence passes through are emptied again.
+ *
+ * There is no limit on the number of entries: when every slot is taken,
+ * further entries are kept in an overflow map under the lock until they
+ * are removed.
+ *
+ * Each entry carries a deadline so callers can find requests that have
+ * waited too long without stopping the sender and receiver threads.
+ *
+ * {@hide}
+ */
+public class RILRequestTable<E extends RILRequestTable.Entry> {
+    /** An entry stored in the table. */
+    public interface Entry {
+        /** @return the serial number identifying this entry */
+        int getSerial();
+
+        /** @return elapsed realtime in ms after which this entry is timed out */
+        long getDeadline();
+    }
+
+    private static final Object TOMBSTONE = new Object();
+
+    private final AtomicReferenceArray<Object> mSlots;
+    private final int mMask;
+    private final AtomicInteger mSize = new AtomicInteger();
+    private final AtomicInteger mTombstones = new AtomicInteger();
+
+    /** Guards adding to the slots, emptying tombstones and mOverflow */
+    private final Object mLock = new Object();
+    private final HashMap<Integer, E> mOverflow = new HashMap<Integer, E>();
+    private final AtomicInteger mOverflowSize = new AtomicInteger();
+    private int mPurgeThreshold;
+
+    /**
+     * @param capacity number of entries held in slots, rounded up to a power
+     * of two
+     */
+    public RILRequestTable(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mSlots = new AtomicReferenceArray<Object>(slots);
+        mMask = slots - 1;
+        mPurgeThreshold = slots / 4;
+    }
+
+    /**
+     * Adds an entry to the table.
+     */
+    public void put(E entry) {
+        synchronized (mLock) {
+            if (mTombstones.get() >= mPurgeThreshold) {
+                purgeTombstones();
+                // If live entries keep most tombstones in place, wait for as
+                // many again before trying once more
+                mPurgeThreshold = mTombstones.get() + (mMask + 1) / 4;
+            }
+
+            int start = entry.getSerial() & mMask;
+            for (int i = 0; i <= mMask; i++) {
+                int index = (start + i) & mMask;
+                // Only the lock holder fills a slot or empties a tombstone, so
+                // an empty slot or tombstone stays one until it is set here
+                Object cur = mSlots.get(index);
+                if (cur == null || cur == TOMBSTONE) {
+                    mSlots.set(index, entry);
+                    if (cur == TOMBSTONE) {
+                        mTombstones.decrementAndGet();
+                    }
+                    mSize.incrementAndGet();
+                    return;
+                }
+            }
+
+            mOverflow.put(entry.getSerial(), entry);
+            mOverflowSize.incrementAndGet();
+            mSize.incrementAndGet();
+        }
+    }
+
+    /**
+     * Empties the tombstones that no entry's probe sequence passes through.
+     * Entries removed meanwhile only make this more cautious than needed.
+     * Must be called with mLock held.
+     */
+    @SuppressWarnings("unchecked")
+    private void purgeTombstones() {
+        boolean[] crossed = new boolean[mMask + 1];
+        for (int index = 0; index <= mMask; index++) {
+            Object cur = mSlots.get(index);
+            if (cur != null && cur != TOMBSTONE) {
+                for (int i = ((E) cur).getSerial() & mMask; i != index; i = (i + 1) & mMask) {
+                    crossed[i] = true;
+                }
+            }
+        }
+
+        int purged = 0;
+        for (int index = 0; index <= mMask; index++) {
+            if (!crossed[index] && mSlots.compareAndSet(index, TOMBSTONE, null)) {
+                purged++;
+            }
+        }
+        mTombstones.addAndGet(-purged);
+    }
+
+    /**
+     * Removes the entry with the given serial.
+     *
+     * @return the removed entry, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public E remove(int serial) {
+        int start = serial & mMask;
+        for (int i = 0; i <= mMask; i++) {
+            int index = (start + i) & mMask;
+            Object cur = mSlots.get(index);
+            if (cur == null) {
+                // Empty, so the serial cannot be further along the probe sequence
+                break;
+            }
+            if (cur != TOMBSTONE && ((E) cur).getSerial() == serial) {
+                if (mSlots.compareAndSet(index, cur, TOMBSTONE)) {
+                    mTombstones.incrementAndGet();
+                    mSize.decrementAndGet();
+                    return (E) cur;
+                }
+                // Somebody else removed it first
+                return null;
+            }
+        }
+
+        if (mOverflowSize.get() == 0) {
+            return null;
+        }
+        synchronized (mLock) {
+            E entry = mOverflow.remove(serial);
+            if (entry != null) {
+                mOverflowSize.decrementAndGet();
+                mSize.decrementAndGet();
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Removes every entry from the table.
+     *
+     * @param out receives the removed entries
+     */
+    @SuppressWarnings("unchecked")
+    public void removeAll(ArrayList<E> out) {
+        for (int index = 0; index <= mMask; index++) {
+            Object cur = mSlots.get(index);
+            if (cur != null && cur != TOMBSTONE && mSlots.compareAndSet(index, cur, TOMBSTONE)) {
+                mTombstones.incrementAndGet();
+                mSize.decrementAndGet();
+                out.add((E) cur);
+            }
+        }
+        synchronized (mLock) {
+            out.addAll(mOverflow.values());
+            mSize.addAndGet(-mOverflow.size());
+            mOverflow.clear();
+            mOverflowSize.set(0);
+        }
+    }
+
+    /**
+     * Collects the entries currently in the table without removing them.
+     * Entries added or removed while this runs may or may not be included.
+     *
+     * @param out receives the entries
+     */
+    @SuppressWarnings("unchecked")
+    public void snapshot(ArrayList<E> out) {
+        for (int index = 0; index <= mMask; index++) {
+            Object cur = mSlots.get(index);
+            if (cur != null && cur != TOMBSTONE) {
+                out.add((E) cur);
+            }
+        }
+        if (mOverflowSize.get() != 0) {
+            synchronized (mLock) {
+                out.addAll(mOverflow.values());
+            }
+        }
+    }
+
+    /**
+     * Collects the entries whose deadline has passed without removing them.
+     *
+     * @param now current elapsed realtime in ms
+     * @param out receives the timed out entries
+     */
+    @SuppressWarnings("unchecked")
+    public void collectExpired(long now, ArrayList<E> out) {
+        for (int index = 0; index <= mMask; index++) {
+            Object cur = mSlots.get(index);
+            if (cur != null && cur != TOMBSTONE && ((E) cur).getDeadline() <= now) {
+                out.add((E) cur);
+            }
+        }
+        if (mOverflowSize.get() != 0) {
+            synchronized (mLock) {
+                for (E entry : mOverflow.values()) {
+                    if (entry.getDeadline() <= now) {
+                        out.add(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    /** @return the number of entries in the table */
+    public int size() {
+        return mSize.get();
+    }
+
+    /** @return the number of entries the slots hold; more are kept in the overflow map */
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /** @return the number of tombstones in the slots, for tests */
+    int tombstones() {
+        return mTombstones.get();
+    }
+}
@@ -68,6 +68,8 @@ import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
 import com.android.internal.telephony.uicc.UiccCard;
 import com.android.internal.telephony.uicc.UiccController;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -165,6 +167,9 @@ public abstract class SMSDispatcher extends Handler {
     /** Number of outgoing SmsTrackers waiting for user confirmation. */
     private int mPendingTrackerCount;
 
+    /** Outgoing SmsTrackers waiting for or holding a slot on the radio. */
+    private final SmsSendQueue mSendQueue;
+
     /* Flags indicating whether the current device allows sms service */
     protected boolean mSmsCapable = true;
     protected boolean mSmsSendDisabled;
@@ -188,6 +193,7 @@ public abstract class SMSDispatcher extends Handler {
         mCi = phone.mCi;
         mUsageMonitor = usageMonitor;
         mTelephonyManager = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+        mSendQueue = new SmsSendQueue(this);
         mSettingsObserver = new SettingsObserver(this, mPremiumSmsRule, mContext);
         mContext.getContentResolver().registerContentObserver(Settings.Global.getUriFor(
                 Settings.Global.SMS_SHORT_CODE_RULE), false, mSettingsObserver);
@@ -229,6 +235,16 @@ public abstract class SMSDispatcher extends Handler {
     /** Unregister for incoming SMS events. */
     public void dispose() {
         mContext.getContentResolver().unregisterContentObserver(mSettingsObserver);
+        for (SmsTracker tracker : mSendQueue.clear()) {
+            tracker.onFailed(mContext, RESULT_ERROR_GENERIC_FAILURE, 0/*errorCode*/);
+        }
+    }
+
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("SMSDispatcher: format=" + getFormat());
+        pw.println(" mPendingTrackerCount=" + mPendingTrackerCount);
+        pw.println(" deliveryPendingList.size()=" + deliveryPendingList.size());
+        mSendQueue.dump(pw);
     }
 
     /**
@@ -300,12 +316,8 @@ public abstract class SMSDispatcher extends Handler {
             if (tracker.isMultipart()) {
                 sendMultipartSms(tracker);
             } else {
-                if (mPendingTrackerCount > 1) {
-                    tracker.mExpectMore = true;
-                } else {
-                    tracker.mExpectMore = false;
-                }
-                sendSms(tracker);
+                // the user is waiting for this one
+                enqueueSms(tracker, SmsSendQueue.PRIORITY_HIGH);
             }
             mPendingTrackerCount--;
             break;
@@ -983,7 +995,20 @@ public abstract class SMSDispatcher extends Handler {
                 return;
             }
 
-            sendSms(tracker);
+            enqueueSms(tracker, SmsSendQueue.PRIORITY_NORMAL);
+        }
+    }
+
+    /**
+     * Queue an SMS for {@link #sendSms}, failing it with RESULT_ERROR_LIMIT_EXCEEDED if too
+     * many are waiting already.
+     *
+     * @param tracker holds the SMS message to send
+     * @param priority one of the SmsSendQueue.PRIORITY_* values
+     */
+    private void enqueueSms(SmsTracker tracker, int priority) {
+        if (!mSendQueue.enqueue(tracker, priority)) {
+            tracker.onFailed(mContext, RESULT_ERROR_LIMIT_EXCEEDED, 0/*errorCode*/);
         }
     }
 
@@ -1304,7 +1329,12 @@ public abstract class SMSDispatcher extends Handler {
         // If this is a text message (instead of data message)
         private boolean mIsText;
 
-        private SmsTracker(HashMap<String, Object> data, PendingIntent sentIntent,
+        // Queue holding a radio slot for this message until it is sent or has failed
+        volatile SmsSendQueue mSendQueue;
+        // When the message was handed to the radio by mSendQueue
+        long mSubmitTime;
+
+        SmsTracker(HashMap<String, Object> data, PendingIntent sentIntent,
                 PendingIntent deliveryIntent, PackageInfo appInfo, String destAddr, String format,
                 AtomicInteger unsentPartCount, AtomicBoolean anyPartFailed, Uri messageUri,
                 SmsHeader smsHeader, boolean isExpectMore, String fullMessageText, int subId,
@@ -1336,6 +1366,21 @@ public abstract class SMSDispatcher extends Handler {
             return mData.containsKey("parts");
         }
 
+        /**
+         * Returns whether this tracker and another one hold parts of the same multi-part SMS.
+         */
+        boolean isPartOfSameMessage(SmsTracker other) {
+            return mUnsentPartCount != null && mUnsentPartCount == other.mUnsentPartCount;
+        }
+
+        /** Let the next message have the radio slot of this one, if it holds one. */
+        private void releaseSendSlot() {
+            SmsSendQueue sendQueue = mSendQueue;
+            if (sendQueue != null) {
+                sendQueue.onComplete(this);
+            }
+        }
+
         /**
          * Update the status of this message if we persisted it
          */
@@ -1486,6 +1531,7 @@ public abstract class SMSDispatcher extends Handler {
                     Rlog.e(TAG, "Failed to send result");
                 }
             }
+            releaseSendSlot();
         }
 
         /**
@@ -1523,6 +1569,7 @@ public abstract class SMSDispatcher extends Handler {
                     Rlog.e(TAG, "Failed to send result");
                 }
             }
+            releaseSendSlot();
         }
     }
 
@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * The short code patterns of a country compiled into one digit automaton, so a destination is
+ * classified in a single pass over its digits instead of running up to four regexes.
+ *
+ * Only the regex subset used by the short code XML is understood: digits, <code>\d</code>,
+ * digit classes such as <code>[2-46-9]</code>, groups, alternation and the greedy quantifiers.
+ * {@link #compile} returns null for anything else, and the caller keeps using the regexes.
+ * Since every pattern it accepts only matches digits, a destination with any other character
+ * is never a short code, as with the regexes.
+ *
+ * Immutable once compiled, so it may be used from any thread without locking.
+ */
+final class ShortCodeClassifier {
+    /** Most automaton states built before giving up on compiling the patterns. */
+    private static final int MAX_STATES = 2048;
+
+    /** Most copies of a group made to expand a counted quantifier such as {n,m}. */
+    private static final int MAX_REPEAT = 32;
+
+    private static final int ALL_DIGITS = 0x3ff;
+    private static final int DEAD = -1;
+
+    /** Next state by state * 10 + digit, or DEAD. */
+    private final int[] mTransitions;
+
+    /** Category of the destinations ending in each state. */
+    private final int[] mCategories;
+
+    private ShortCodeClassifier(int[] transitions, int[] categories) {
+        mTransitions = transitions;
+        mCategories = categories;
+    }
+
+    /**
+     * Compile the patterns of a country; any of them may be null.
+     * @return the classifier, or null if a pattern uses syntax not supported here
+     */
+    static ShortCodeClassifier compile(String shortCodeRegex, String premiumShortCodeRegex,
+            String freeShortCodeRegex, String standardShortCodeRegex) {
+        // In the order of precedence of SmsUsageMonitor.ShortCodePatternMatcher
+        String[] regexes = { freeShortCodeRegex, standardShortCodeRegex, premiumShortCodeRegex,
+                shortCodeRegex };
+        int[] categories = { SmsUsageMonitor.CATEGORY_FREE_SHORT_CODE,
+                SmsUsageMonitor.CATEGORY_STANDARD_SHORT_CODE,
+                SmsUsageMonitor.CATEGORY_PREMIUM_SHORT_CODE,
+                SmsUsageMonitor.CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE };
+
+        Nfa nfa = new Nfa();
+        NfaState start = nfa.newState();
+        for (int i = 0; i < regexes.length; i++) {
+            if (regexes[i] == null) {
+                continue;
+            }
+            Node node = new Parser(regexes[i]).parse();
+            if (node == null) {
+                return null;
+            }
+            Fragment f = nfa.build(node);
+            if (f == null) {
+                return null;
+            }
+            start.mEpsilon.add(f.mStart);
+            f.mEnd.mPriority = i;
+        }
+        return nfa.toDfa(start, categories);
+    }
+
+    /**
+     * Classify a destination address.
+     * @return one of the SmsUsageMonitor.CATEGORY_* values other than the generic rule
+     */
+    int getNumberCategory(String phoneNumber) {
+        int state = 0;
+        for (int i = 0, n = phoneNumber.length(); i < n; i++) {
+            int digit = phoneNumber.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return SmsUsageMonitor.CATEGORY_NOT_SHORT_CODE;
+            }
+            state = mTransitions[state * 10 + digit];
+            if (state == DEAD) {
+                return SmsUsageMonitor.CATEGORY_NOT_SHORT_CODE;
+            }
+        }
+        return mCategories[state];
+    }
+
+    /** Get the number of automaton states. */
+    int getStateCount() {
+        return mCategories.length;
+    }
+
+    /** Parsed pattern: a digit set, a sequence, an alternation or a repetition. */
+    private static final class Node {
+        static final int SET = 0;
+        static final int SEQUENCE = 1;
+        static final int ALTERNATION = 2;
+        static final int REPEAT = 3;
+
+        final int mType;
+        /** Digits matched by a SET, bit 0 for '0'. */
+        int mDigits;
+        final ArrayList<Node> mChildren = new ArrayList<Node>();
+        int mMin;
+        /** Most repetitions, or -1 for no limit. */
+        int mMax;
+
+        Node(int type) {
+            mType = type;
+        }
+    }
+
+    /**
+     * Recursive descent parser for the supported regex subset.
+     * Returns null from {@link #parse} if the pattern is outside of it.
+     */
+    private static final class Parser {
+        private final String mRegex;
+        private int mPos;
+        private boolean mUnsupported;
+
+        Parser(String regex) {
+            mRegex = regex;
+        }
+
+        Node parse() {
+            Node node = parseAlternation();
+            if (mUnsupported || mPos != mRegex.length()) {
+                return null;
+            }
+            return node;
+        }
+
+        private boolean peek(char c) {
+            return mPos < mRegex.length() && mRegex.charAt(mPos) == c;
+        }
+
+        private Node parseAlternation() {
+            Node first = parseSequence();
+            if (!peek('|')) {
+                return first;
+            }
+            Node alternation = new Node(Node.ALTERNATION);
+            alternation.mChildren.add(first);
+            while (peek('|')) {
+                mPos++;
+                alternation.mChildren.add(parseSequence());
+            }
+            return alternation;
+        }
+
+        private Node parseSequence() {
+            Node sequence = new Node(Node.SEQUENCE);
+            while (!mUnsupported && mPos < mRegex.length() && !peek('|') && !peek(')')) {
+                Node atom = parseAtom();
+                if (atom != null) {
+                    sequence.mChildren.add(parseQuantifier(atom));
+                }
+            }
+            return sequence;
+        }
+
+        private Node parseAtom() {
+            char c = mRegex.charAt(mPos++);
+            if (c >= '0' && c <= '9') {
+                return newSet(1 << (c - '0'));
+            } else if (c == '\\') {
+                if (peek('d')) {
+                    mPos++;
+                    return newSet(ALL_DIGITS);
+                }
+            } else if (c == '[') {
+                return parseClass();
+            } else if (c == '(') {
+                if (peek('?')) {
+                    // only non-capturing groups; lookaround and flags are not supported
+                    if (mRegex.startsWith("?:", mPos)) {
+                        mPos += 2;
+                    } else {
+                        mUnsupported = true;
+                        return null;
+                    }
+                }
+                Node group = parseAlternation();
+                if (peek(')')) {
+                    mPos++;
+                    return group;
+                }
+            }
+            mUnsupported = true;
+            return null;
+        }
+
+        private Node parseClass() {
+            int digits = 0;
+            while (mPos < mRegex.length()) {
+                char c = mRegex.charAt(mPos++);
+                if (c == ']' && digits != 0) {
+                    return newSet(digits);
+                } else if (c == '\\' && peek('d')) {
+                    mPos++;
+                    digits |= ALL_DIGITS;
+                } else if (c >= '0' && c <= '9') {
+                    int last = c;
+                    if (peek('-') && mPos + 1 < mRegex.length()
+                            && mRegex.charAt(mPos + 1) != ']') {
+                        last = mRegex.charAt(mPos + 1);
+                        mPos += 2;
+                        if (last < c || last > '9') {
+                            break;
+                        }
+                    }
+                    for (int d = c; d <= last; d++) {
+                        digits |= 1 << (d - '0');
+                    }
+                } else {
+                    // negation, other characters and nested classes
+                    break;
+                }
+            }
+            mUnsupported = true;
+            return null;
+        }
+
+        private Node parseQuantifier(Node atom) {
+            int min;
+            int max;
+            if (peek('?')) {
+                min = 0;
+                max = 1;
+                mPos++;
+            } else if (peek('*')) {
+                min = 0;
+                max = -1;
+                mPos++;
+            } else if (peek('+')) {
+                min = 1;
+                max = -1;
+                mPos++;
+            } else if (peek('{')) {
+                int close = mRegex.indexOf('}', mPos);
+                if (close < 0) {
+                    mUnsupported = true;
+                    return atom;
+                }
+                String bounds = mRegex.substring(mPos + 1, close);
+                int comma = bounds.indexOf(',');
+                try {
+                    if (comma < 0) {
+                        min = max = Integer.parseInt(bounds);
+                    } else {
+                        min = Integer.parseInt(bounds.substring(0, comma));
+                        max = (comma == bounds.length() - 1) ? -1
+                                : Integer.parseInt(bounds.substring(comma + 1));
+                    }
+                } catch (NumberFormatException e) {
+                    mUnsupported = true;
+                    return atom;
+                }
+                if (min < 0 || min > MAX_REPEAT || max > MAX_REPEAT
+                        || (max >= 0 && max < min)) {
+                    mUnsupported = true;
+                    return atom;
+                }
+                mPos = close + 1;
+            } else {
+                return atom;
+            }
+            // possessive quantifiers change what matches; lazy ones don't but are not used
+            if (peek('?') || peek('+')) {
+                mUnsupported = true;
+                return atom;
+            }
+            Node repeat = new Node(Node.REPEAT);
+            repeat.mChildren.add(atom);
+            repeat.mMin = min;
+            repeat.mMax = max;
+            return repeat;
+        }
+
+        private static Node newSet(int digits) {
+            Node set = new Node(Node.SET);
+            set.mDigits = digits;
+            return set;
+        }
+    }
+
+    private static final class NfaState {
+        final int mId;
+        /** Digits leading to mNext. */
+        int mDigits;
+        NfaState mNext;
+        final ArrayList<NfaState> mEpsilon = new ArrayList<NfaState>(2);
+        /** Index of the pattern this state accepts, or -1. */
+        int mPriority = -1;
+
+        NfaState(int id) {
+            mId = id;
+        }
+    }
+
+    private static final class Fragment {
+        final NfaState mStart;
+        final NfaState mEnd;
+
+        Fragment(NfaState start, NfaState end) {
+            mStart = start;
+            mEnd = end;
+        }
+    }
+
+    /** Thompson construction of the patterns, then subset construction of the automaton. */
+    private static final class Nfa {
+        private final ArrayList<NfaState> mStates = new ArrayList<NfaState>();
+
+        NfaState newState() {
+            NfaState state = new NfaState(mStates.size());
+            mStates.add(state);
+            return state;
+        }
+
+        /** @return the fragment matching the node, or null if it grows too large */
+        Fragment build(Node node) {
+            if (mStates.size() > MAX_STATES * 4) {
+                return null;
+            }
+            NfaState start = newState();
+            NfaState end = newState();
+            switch (node.mType) {
+                case Node.SET:
+                    start.mDigits = node.mDigits;
+                    start.mNext = end;
+                    break;
+
+                case Node.SEQUENCE: {
+                    NfaState last = start;
+                    for (Node child : node.mChildren) {
+                        Fragment f = build(child);
+                        if (f == null) return null;
+                        last.mEpsilon.add(f.mStart);
+                        last = f.mEnd;
+                    }
+                    last.mEpsilon.add(end);
+                    break;
+                }
+
+                case Node.ALTERNATION:
+                    for (Node child : node.mChildren) {
+                        Fragment f = build(child);
+                        if (f == null) return null;
+                        start.mEpsilon.add(f.mStart);
+                        f.mEnd.mEpsilon.add(end);
+                    }
+                    break;
+
+                case Node.REPEAT: {
+                    Node child = node.mChildren.get(0);
+                    NfaState last = start;
+                    for (int i = 0; i < node.mMin; i++) {
+                        Fragment f = build(child);
+                        if (f == null) return null;
+                        last.mEpsilon.add(f.mStart);
+                        last = f.mEnd;
+                    }
+                    if (node.mMax < 0) {
+                        Fragment f = build(child);
+                        if (f == null) return null;
+                        last.mEpsilon.add(f.mStart);
+                        f.mEnd.mEpsilon.add(f.mStart);
+                        f.mEnd.mEpsilon.add(end);
+                    } else {
+                        for (int i = node.mMin; i < node.mMax; i++) {
+                            Fragment f = build(child);
+                            if (f == null) return null;
+                            last.mEpsilon.add(end);
+                            last.mEpsilon.add(f.mStart);
+                            last = f.mEnd;
+                        }
+                    }
+                    last.mEpsilon.add(end);
+                    break;
+                }
+            }
+            return new Fragment(start, end);
+        }
+
+        ShortCodeClassifier toDfa(NfaState start, int[] categories) {
+            HashMap<BitSet, Integer> ids = new HashMap<BitSet, Integer>();
+            ArrayList<BitSet> sets = new ArrayList<BitSet>();
+            int[] transitions = new int[10 * 16];
+
+            BitSet initial = new BitSet(mStates.size());
+            addClosure(initial, start);
+            ids.put(initial, 0);
+            sets.add(initial);
+
+            for (int s = 0; s < sets.size(); s++) {
+                BitSet set = sets.get(s);
+                if ((s + 1) * 10 > transitions.length) {
+                    int[] grown = new int[transitions.length * 2];
+                    System.arraycopy(transitions, 0, grown, 0, transitions.length);
+                    transitions = grown;
+                }
+                for (int digit = 0; digit < 10; digit++) {
+                    BitSet next = new BitSet(mStates.size());
+                    for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                        NfaState state = mStates.get(i);
+                        if ((state.mDigits & (1 << digit)) != 0) {
+                            addClosure(next, state.mNext);
+                        }
+                    }
+                    if (next.isEmpty()) {
+                        transitions[s * 10 + digit] = DEAD;
+                        continue;
+                    }
+                    Integer id = ids.get(next);
+                    if (id == null) {
+                        if (sets.size() == MAX_STATES) {
+                            return null;
+                        }
+                        id = sets.size();
+                        ids.put(next, id);
+                        sets.add(next);
+                    }
+                    transitions[s * 10 + digit] = id;
+                }
+            }
+
+            int[] stateCategories = new int[sets.size()];
+            for (int s = 0; s < sets.size(); s++) {
+                int priority = categories.length;
+                BitSet set = sets.get(s);
+                for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                    int p = mStates.get(i).mPriority;
+                    if (p >= 0 && p < priority) {
+                        priority = p;
+                    }
+                }
+                stateCategories[s] = (priority < categories.length) ? categories[priority]
+                        : SmsUsageMonitor.CATEGORY_NOT_SHORT_CODE;
+            }
+
+            int[] trimmed = new int[sets.size() * 10];
+            System.arraycopy(transitions, 0, trimmed, 0, trimmed.length);
+            return new ShortCodeClassifier(trimmed, stateCategories);
+        }
+
+        /** Add a state and those reached from it by epsilon moves. */
+        private void addClosure(BitSet set, NfaState state) {
+            if (set.get(state.mId)) {
+                return;
+            }
+            set.set(state.mId);
+            ArrayDeque<NfaState> pending = new ArrayDeque<NfaState>();
+            pending.add(state);
+            while (!pending.isEmpty()) {
+                for (NfaState next : pending.poll().mEpsilon) {
+                    if (!set.get(next.mId)) {
+                        set.set(next.mId);
+                        pending.add(next);
+                    }
+                }
+            }
+        }
+    }
+}
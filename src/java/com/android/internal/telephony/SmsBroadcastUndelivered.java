@@ -27,6 +27,7 @@ import android.telephony.Rlog;
 import com.android.internal.telephony.cdma.CdmaInboundSmsHandler;
 import com.android.internal.telephony.gsm.GsmInboundSmsHandler;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 
@@ -99,6 +100,10 @@ public class SmsBroadcastUndelivered implements Runnable {
         HashMap<SmsReferenceKey, Integer> multiPartReceivedCount =
                 new HashMap<SmsReferenceKey, Integer>(4);
         HashSet<SmsReferenceKey> oldMultiPartMessages = new HashSet<SmsReferenceKey>(4);
+        ArrayList<InboundSmsTracker> multiPartSegments = new ArrayList<InboundSmsTracker>();
+        SmsReassemblyIndex index = SmsReassemblyIndex.getInstance();
+        // The handlers of another phone may already be changing the index
+        int generation = index.getGeneration();
         Cursor cursor = null;
         try {
             cursor = mResolver.query(sRawUri, PDU_PENDING_MESSAGE_PROJECTION, null, null, null);
@@ -121,6 +126,7 @@ public class SmsBroadcastUndelivered implements Runnable {
                     // deliver single-part message
                     broadcastSms(tracker);
                 } else {
+                    multiPartSegments.add(tracker);
                     SmsReferenceKey reference = new SmsReferenceKey(tracker);
                     Integer receivedCount = multiPartReceivedCount.get(reference);
                     if (receivedCount == null) {
@@ -149,6 +155,11 @@ public class SmsBroadcastUndelivered implements Runnable {
             for (SmsReferenceKey message : oldMultiPartMessages) {
                 int rows = mResolver.delete(sRawUri, InboundSmsHandler.SELECT_BY_REFERENCE,
                         message.getDeleteWhereArgs());
+                for (int i = multiPartSegments.size() - 1; i >= 0; i--) {
+                    if (message.equals(new SmsReferenceKey(multiPartSegments.get(i)))) {
+                        multiPartSegments.remove(i);
+                    }
+                }
                 if (rows == 0) {
                     Rlog.e(TAG, "No rows were deleted from raw table!");
                 } else if (DBG) {
@@ -156,6 +167,18 @@ public class SmsBroadcastUndelivered implements Runnable {
                             + message.mMessageCount + " part message");
                 }
             }
+
+            // The remaining segments stay in the raw table until their messages are complete
+            // and broadcast; from now on the inbound handlers find them in memory, unless the
+            // index changed while the table was read.
+            if (!index.seed(multiPartSegments, generation) && DBG) {
+                Rlog.d(TAG, "raw table changed while scanning, not seeding index");
+            }
+            // Only now, so the scan's own deletes don't count as changes to the index
+            for (SmsReferenceKey message : oldMultiPartMessages) {
+                index.remove(new SmsReassemblyIndex.Key(message.mAddress,
+                        message.mReferenceNumber, message.mMessageCount));
+            }
         } catch (SQLException e) {
             Rlog.e(TAG, "error reading pending SMS messages", e);
         } finally {
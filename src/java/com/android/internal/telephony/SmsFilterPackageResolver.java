@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.service.carrier.CarrierMessagingService;
+import android.telephony.Rlog;
+
+import com.android.internal.telephony.uicc.UiccCard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the carrier and system apps that may filter inbound SMS, caching the result so the
+ * package manager and the carrier privilege rules are not consulted for every message.
+ *
+ * The cache is dropped when a package is added, removed, replaced or changed, when the apps on
+ * external storage come or go, when the carrier privilege rules of the card are (re)loaded and
+ * when the card itself changes.
+ *
+ * Must be used on the thread of the looper it was created with.
+ */
+final class SmsFilterPackageResolver extends Handler {
+    private static final String TAG = "SmsFilterPackageResolver";
+    private static final boolean DBG = InboundSmsHandler.DBG;
+
+    private static final String CARRIER_FILTER_SMS_PERMISSION =
+            "android.permission.CARRIER_FILTER_SMS";
+
+    private static final int EVENT_CARRIER_PRIVILEGE_RULES_LOADED = 1;
+
+    private final Context mContext;
+    private final Intent mFilterIntent = new Intent(CarrierMessagingService.SERVICE_INTERFACE);
+
+    /** Card mCarrierPackages was resolved with; registered for privilege rule loads. */
+    private UiccCard mUiccCard;
+    private List<String> mCarrierPackages;
+    private List<String> mSystemPackages;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (DBG) Rlog.d(TAG, "packages changed: " + intent.getAction());
+            mCarrierPackages = null;
+            mSystemPackages = null;
+        }
+    };
+
+    SmsFilterPackageResolver(Context context, Looper looper) {
+        super(looper);
+        mContext = context;
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, filter, null, this);
+
+        filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        mContext.registerReceiver(mPackageReceiver, filter, null, this);
+    }
+
+    void dispose() {
+        mContext.unregisterReceiver(mPackageReceiver);
+        if (mUiccCard != null) {
+            mUiccCard.unregisterForCarrierPrivilegeRulesLoaded(this);
+            mUiccCard = null;
+        }
+    }
+
+    /**
+     * Get the carrier apps with carrier privileges that implement
+     * {@link CarrierMessagingService}.
+     *
+     * @param card the current card
+     * @return the package names, or null if they can't be determined (yet)
+     */
+    List<String> getCarrierPackages(UiccCard card) {
+        if (card != mUiccCard) {
+            if (mUiccCard != null) {
+                mUiccCard.unregisterForCarrierPrivilegeRulesLoaded(this);
+            }
+            mUiccCard = card;
+            mCarrierPackages = null;
+            if (card != null) {
+                card.registerForCarrierPrivilegeRulesLoaded(this,
+                        EVENT_CARRIER_PRIVILEGE_RULES_LOADED, null);
+            }
+        }
+        if (card == null) {
+            return null;
+        }
+
+        if (mCarrierPackages == null) {
+            List<String> packages = card.getCarrierPackageNamesForIntent(
+                    mContext.getPackageManager(), mFilterIntent);
+            // null means the rules aren't usable yet; ask again next time
+            if (packages != null) {
+                mCarrierPackages = Collections.unmodifiableList(packages);
+            }
+            return packages;
+        }
+        return mCarrierPackages;
+    }
+
+    /**
+     * Get the apps holding the CARRIER_FILTER_SMS permission that implement
+     * {@link CarrierMessagingService}.
+     */
+    List<String> getSystemPackages() {
+        if (mSystemPackages == null) {
+            mSystemPackages = Collections.unmodifiableList(getSystemAppForIntent(mFilterIntent));
+        }
+        return mSystemPackages;
+    }
+
+    private List<String> getSystemAppForIntent(Intent intent) {
+        List<String> packages = new ArrayList<String>();
+        PackageManager packageManager = mContext.getPackageManager();
+        List<ResolveInfo> receivers = packageManager.queryIntentServices(intent, 0);
+
+        for (ResolveInfo info : receivers) {
+            if (info.serviceInfo == null) {
+                Rlog.e(TAG, "Can't get service information from " + info);
+                continue;
+            }
+            String packageName = info.serviceInfo.packageName;
+            if (packageManager.checkPermission(CARRIER_FILTER_SMS_PERMISSION, packageName) ==
+                    PackageManager.PERMISSION_GRANTED) {
+                packages.add(packageName);
+                if (DBG) Rlog.d(TAG, "getSystemAppForIntent: added package " + packageName);
+            }
+        }
+        return packages;
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+        switch (msg.what) {
+            case EVENT_CARRIER_PRIVILEGE_RULES_LOADED:
+                if (DBG) Rlog.d(TAG, "carrier privilege rules loaded");
+                mCarrierPackages = null;
+                break;
+            default:
+                Rlog.e(TAG, "Unknown Event " + msg.what);
+        }
+    }
+}
@@ -118,7 +118,19 @@ public class SmsHeader {
      * @return SmsHeader object
      */
     public static SmsHeader fromByteArray(byte[] data) {
-        ByteArrayInputStream inStream = new ByteArrayInputStream(data);
+        return fromByteArray(data, 0, data.length);
+    }
+
+    /**
+     * Create structured SmsHeader object from part of a byte array, such as the user data
+     * header at the start of a user data payload, without copying it out first.
+     * @param data an array holding the user data header bytes
+     * @param offset the index of the first header byte
+     * @param length the number of header bytes
+     * @return SmsHeader object
+     */
+    public static SmsHeader fromByteArray(byte[] data, int offset, int length) {
+        ByteArrayInputStream inStream = new ByteArrayInputStream(data, offset, length);
         SmsHeader smsHeader = new SmsHeader();
         while (inStream.available() > 0) {
             /**
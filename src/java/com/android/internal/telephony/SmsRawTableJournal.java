@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.net.Uri;
+import android.telephony.Rlog;
+
+import java.util.ArrayList;
+
+/**
+ * Writes inbound SMS to the raw table. It guarantees that:
+ * <ul>
+ * <li>a row returned by {@link #insert} has been committed by the provider, so the SMS may be
+ * acknowledged to the SMSC;
+ * <li>the rows of a delivered message have been deleted when {@link #delete} returns, which is
+ * when its broadcast completes, unless the delete failed;
+ * <li>a failed delete is retried before the next insert and before the raw table is queried,
+ * and no row is inserted while one is still failing.
+ * </ul>
+ *
+ * Inserts are not grouped: the radio does not deliver the next SMS until the previous one is
+ * acknowledged, and the acknowledgement waits for the insert, so there is never a second one
+ * to commit with it. Deletes are not held back either, as that would widen the window in
+ * which a crash makes a delivered message be broadcast again at boot. Only failed deletes are
+ * combined, into one statement per {@link #MAX_PENDING_DELETES}. Each statement is committed
+ * on its own, without relying on the provider to apply several operations atomically.
+ *
+ * There is one journal for the process, shared by the inbound SMS handlers of all phones as
+ * the raw table is: a delete failed by one handler must be retried before another handler
+ * inserts a segment the delete would also select.
+ *
+ * The methods may be called on any thread.
+ */
+final class SmsRawTableJournal {
+    private static final String TAG = "SmsRawTableJournal";
+    private static final boolean DBG = InboundSmsHandler.DBG;
+
+    /**
+     * Most deletes combined into one statement; each takes up to three of the 999 arguments
+     * SQLite allows.
+     */
+    static final int MAX_PENDING_DELETES = 32;
+
+    private static SmsRawTableJournal sInstance;
+
+    private final ContentResolver mResolver;
+    private final Uri mRawUri;
+
+    // Selections and arguments of the deletes not yet committed, in order
+    private final ArrayList<String> mPendingWheres = new ArrayList<String>();
+    private final ArrayList<String[]> mPendingWhereArgs = new ArrayList<String[]>();
+
+    /**
+     * Get the journal of the raw table, creating it with the given arguments the first time.
+     */
+    static synchronized SmsRawTableJournal getInstance(ContentResolver resolver, Uri rawUri) {
+        if (sInstance == null) {
+            sInstance = new SmsRawTableJournal(resolver, rawUri);
+        }
+        return sInstance;
+    }
+
+    SmsRawTableJournal(ContentResolver resolver, Uri rawUri) {
+        mResolver = resolver;
+        mRawUri = rawUri;
+    }
+
+    /**
+     * Insert a row, after retrying the failed deletes. Deletes must go first: one may select
+     * a message with the same reference as the new row.
+     *
+     * @return the URI of the new row, or null on failure
+     */
+    synchronized Uri insert(ContentValues values) {
+        flush();
+        if (!mPendingWheres.isEmpty()) {
+            Rlog.e(TAG, "Not inserting while " + mPendingWheres.size()
+                    + " raw table deletes are failing");
+            return null;
+        }
+        return mResolver.insert(mRawUri, values);
+    }
+
+    /**
+     * Delete the rows of a delivered message, keeping the delete to retry if it fails.
+     */
+    synchronized void delete(String where, String[] whereArgs) {
+        mPendingWheres.add(where);
+        mPendingWhereArgs.add(whereArgs);
+        flush();
+    }
+
+    /**
+     * Commit the pending deletes. Must be called before the raw table is queried, so the query
+     * doesn't see rows that have already been deleted as far as the caller is concerned.
+     */
+    synchronized void flush() {
+        while (!mPendingWheres.isEmpty()) {
+            int count = Math.min(mPendingWheres.size(), MAX_PENDING_DELETES);
+            StringBuilder where = new StringBuilder();
+            ArrayList<String> whereArgs = new ArrayList<String>();
+            buildPendingSelection(count, where, whereArgs);
+            try {
+                logDeleted(mResolver.delete(mRawUri, where.toString(),
+                        whereArgs.toArray(new String[whereArgs.size()])));
+            } catch (SQLException e) {
+                // Kept for the next delete, flush or insert
+                Rlog.e(TAG, "Can't delete from raw table", e);
+                return;
+            }
+            mPendingWheres.subList(0, count).clear();
+            mPendingWhereArgs.subList(0, count).clear();
+        }
+    }
+
+    /** @return the number of failed deletes waiting to be retried */
+    synchronized int getPendingCount() {
+        return mPendingWheres.size();
+    }
+
+    /** Combine the first pending deletes into one selection. */
+    private void buildPendingSelection(int count, StringBuilder where,
+            ArrayList<String> whereArgs) {
+        for (int i = 0; i < count; i++) {
+            if (count == 1) {
+                where.append(mPendingWheres.get(i));
+            } else {
+                if (i > 0) {
+                    where.append(" OR ");
+                }
+                where.append('(').append(mPendingWheres.get(i)).append(')');
+            }
+            String[] args = mPendingWhereArgs.get(i);
+            if (args != null) {
+                for (String arg : args) {
+                    whereArgs.add(arg);
+                }
+            }
+        }
+    }
+
+    private void logDeleted(int rows) {
+        if (rows == 0) {
+            Rlog.e(TAG, "No rows were deleted from raw table!");
+        } else if (DBG) {
+            Rlog.d(TAG, "Deleted " + rows + " rows from raw table.");
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory index of the concatenated SMS segments held in the raw table, so that duplicate
+ * segments and complete messages are found without querying the SMS provider for every
+ * segment. The raw table stays the record of the segments across a crash or reboot; the index
+ * is seeded from it by {@link SmsBroadcastUndelivered} at boot and kept in step with every
+ * insert and delete made by {@link InboundSmsHandler}.
+ *
+ * A message is identified by address, reference number and segment count, as in
+ * {@link InboundSmsHandler#SELECT_BY_REFERENCE}. The index either knows all the raw table rows
+ * of a message or doesn't know the message at all; {@link #get} returns null in the latter case
+ * and the caller must load the rows from the raw table and {@link #put} them.
+ *
+ * The index is shared by all inbound handlers since they share the raw table.
+ */
+final class SmsReassemblyIndex {
+    /** Most messages kept; the oldest is dropped when another one is added. */
+    private static final int MAX_MESSAGES = 128;
+
+    /** Most dropped messages remembered before the index stops assuming it knows all rows. */
+    private static final int MAX_DROPPED = 1024;
+
+    private static SmsReassemblyIndex sInstance;
+
+    /** Identifies the segments of one concatenated message. */
+    static final class Key {
+        final String mAddress;
+        final int mReferenceNumber;
+        final int mMessageCount;
+
+        Key(String address, int referenceNumber, int messageCount) {
+            mAddress = address;
+            mReferenceNumber = referenceNumber;
+            mMessageCount = messageCount;
+        }
+
+        Key(InboundSmsTracker tracker) {
+            this(tracker.getAddress(), tracker.getReferenceNumber(), tracker.getMessageCount());
+        }
+
+        @Override
+        public int hashCode() {
+            return ((mReferenceNumber * 31) + mMessageCount) * 31
+                    + (mAddress != null ? mAddress.hashCode() : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Key) {
+                Key other = (Key) o;
+                return (other.mAddress == null ? mAddress == null
+                                : other.mAddress.equals(mAddress))
+                        && (other.mReferenceNumber == mReferenceNumber)
+                        && (other.mMessageCount == mMessageCount);
+            }
+            return false;
+        }
+    }
+
+    /** The segments of one message held in the raw table. */
+    static final class Segments {
+        /** PDUs by 0-based segment index; null for segments not received. */
+        final byte[][] mPdus;
+
+        /** Segment indexes present in the raw table. */
+        final BitSet mReceived;
+
+        /** Destination port of the first segment, or -1. */
+        int mFirstDestPort = -1;
+
+        Segments(int messageCount) {
+            mPdus = new byte[messageCount][];
+            mReceived = new BitSet(messageCount);
+        }
+
+        private Segments(Segments other) {
+            mPdus = other.mPdus.clone();
+            mReceived = (BitSet) other.mReceived.clone();
+            mFirstDestPort = other.mFirstDestPort;
+        }
+
+        /**
+         * Record a segment.
+         * @param index the 0-based segment index
+         * @param pdu the segment PDU
+         * @param destPort the real destination port of the segment, or -1
+         */
+        void add(int index, byte[] pdu, int destPort) {
+            if (index < 0 || index >= mPdus.length) {
+                return;
+            }
+            mPdus[index] = pdu;
+            mReceived.set(index);
+            if (index == 0) {
+                mFirstDestPort = destPort;
+            }
+        }
+
+        /** Get the PDU of a segment, or null if it hasn't been received. */
+        byte[] getPdu(int index) {
+            return (index < 0 || index >= mPdus.length) ? null : mPdus[index];
+        }
+
+        /** Get the number of segments received. */
+        int getReceivedCount() {
+            return mReceived.cardinality();
+        }
+
+        boolean isComplete() {
+            return mReceived.cardinality() == mPdus.length;
+        }
+    }
+
+    /** Messages known to the index, oldest first. */
+    private final LinkedHashMap<Key, Segments> mMessages = new LinkedHashMap<Key, Segments>();
+
+    /** Messages dropped from mMessages which may still have rows in the raw table. */
+    private final HashSet<Key> mDropped = new HashSet<Key>();
+
+    /** True if the raw table has no rows for messages missing from mMessages and mDropped. */
+    private boolean mKnowsAll;
+
+    /** Count of changes made to the index, to tell whether a raw table snapshot is current. */
+    private int mGeneration;
+
+    static synchronized SmsReassemblyIndex getInstance() {
+        if (sInstance == null) {
+            sInstance = new SmsReassemblyIndex();
+        }
+        return sInstance;
+    }
+
+    SmsReassemblyIndex() {
+    }
+
+    /** Get the count of changes made so far, to pass to {@link #seed}. */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Add the multi-part segments found in the raw table at boot. Only the first call has an
+     * effect; the index then knows every message in the raw table.
+     *
+     * The segments are ignored if the index has changed since the raw table was read, since
+     * they may then be stale. The index goes on loading messages from the raw table as they
+     * are needed instead.
+     *
+     * @param segments the trackers of all multi-part segments in the raw table
+     * @param generation the value of {@link #getGeneration} before the raw table was read
+     * @return true if the index now knows every message in the raw table
+     */
+    synchronized boolean seed(List<InboundSmsTracker> segments, int generation) {
+        if (mKnowsAll) {
+            return true;
+        }
+        if (generation != mGeneration) {
+            return false;
+        }
+        for (InboundSmsTracker tracker : segments) {
+            Key key = new Key(tracker);
+            // Merge with what has been loaded from the raw table in the meantime
+            Segments message = mMessages.get(key);
+            if (message == null) {
+                message = new Segments(tracker.getMessageCount());
+                putMessage(key, message);
+            }
+            message.add(tracker.getSequenceNumber() - tracker.getIndexOffset(),
+                    tracker.getPdu(), tracker.getDestPort());
+        }
+        mKnowsAll = true;
+        return true;
+    }
+
+    /**
+     * Get the segments of a message held in the raw table.
+     * @return a copy of the segments, empty if the raw table has none, or null if the index
+     *         doesn't know the message
+     */
+    synchronized Segments get(Key key) {
+        Segments message = mMessages.get(key);
+        if (message != null) {
+            return new Segments(message);
+        }
+        if (mKnowsAll && !mDropped.contains(key)) {
+            return new Segments(key.mMessageCount);
+        }
+        return null;
+    }
+
+    /**
+     * Set the segments of a message, as loaded from the raw table after {@link #get} returned
+     * null.
+     */
+    synchronized void put(Key key, Segments message) {
+        mGeneration++;
+        mDropped.remove(key);
+        putMessage(key, new Segments(message));
+    }
+
+    /**
+     * Record a segment just inserted into the raw table. Ignored if the index doesn't know
+     * the message, since the other rows of the message are then unknown too.
+     */
+    synchronized void addSegment(InboundSmsTracker tracker) {
+        mGeneration++;
+        Key key = new Key(tracker);
+        Segments message = mMessages.get(key);
+        if (message == null) {
+            if (!mKnowsAll || mDropped.contains(key)) {
+                return;
+            }
+            message = new Segments(tracker.getMessageCount());
+            putMessage(key, message);
+        }
+        message.add(tracker.getSequenceNumber() - tracker.getIndexOffset(), tracker.getPdu(),
+                tracker.getDestPort());
+    }
+
+    /**
+     * Forget a message whose rows have been deleted from the raw table.
+     */
+    synchronized void remove(Key key) {
+        mGeneration++;
+        mMessages.remove(key);
+        mDropped.remove(key);
+    }
+
+    private void putMessage(Key key, Segments message) {
+        mMessages.put(key, message);
+        if (mMessages.size() <= MAX_MESSAGES) {
+            return;
+        }
+
+        // Drop the oldest message; its rows stay in the raw table and are loaded from there
+        // if another segment arrives.
+        Iterator<Map.Entry<Key, Segments>> it = mMessages.entrySet().iterator();
+        Key oldest = it.next().getKey();
+        it.remove();
+        if (mKnowsAll) {
+            if (mDropped.size() < MAX_DROPPED) {
+                mDropped.add(oldest);
+            } else {
+                mKnowsAll = false;
+                mDropped.clear();
+            }
+        }
+    }
+}
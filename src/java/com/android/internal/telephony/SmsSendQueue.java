@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.telephony.Rlog;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Schedules the outgoing SMS of one {@link SMSDispatcher}, and so of one subscription, onto
+ * the radio.
+ *
+ * Up to {@link #PROPERTY_MAX_IN_FLIGHT} messages are submitted at a time; a message holds its
+ * slot until it is sent or has finally failed, including while it waits to be retried. The
+ * others wait in a bounded queue, higher priority first and in order within a priority. When
+ * the queue is full a message is refused at once, so the caller learns to back off through
+ * the sent intent instead of the messages piling up.
+ *
+ * The parts of a multipart message are submitted back to back, ahead of anything queued in
+ * the meantime, and every message submitted while others are waiting is marked as expecting
+ * more so the radio keeps the link open between them.
+ *
+ * Messages may be queued and completed on any thread; they are submitted on whichever thread
+ * drains the queue, one thread at a time so the submission order is kept.
+ */
+final class SmsSendQueue {
+    private static final String TAG = "SmsSendQueue";
+    private static final boolean DBG = false;
+
+    /** Most messages submitted to the radio at a time; at least 1 and at most 8. */
+    static final String PROPERTY_MAX_IN_FLIGHT = "persist.radio.sms_mo_max_in_flight";
+
+    /** Most messages waiting for a slot before new ones are refused. */
+    static final String PROPERTY_QUEUE_LIMIT = "persist.radio.sms_mo_queue_limit";
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    private static final int MAX_IN_FLIGHT_LIMIT = 8;
+    private static final int DEFAULT_QUEUE_LIMIT = 128;
+
+    /** Messages the user has confirmed and is waiting for. */
+    static final int PRIORITY_HIGH = 0;
+    /** Everything else. */
+    static final int PRIORITY_NORMAL = 1;
+
+    /** Submits a message to the radio. */
+    interface Sender {
+        void sendSms(SmsTracker tracker);
+    }
+
+    private static final class Entry {
+        final SmsTracker mTracker;
+        final long mQueuedTime;
+        /** False for the parts of a multipart message other than the last. */
+        final boolean mLastPart;
+
+        Entry(SmsTracker tracker, long queuedTime) {
+            mTracker = tracker;
+            mQueuedTime = queuedTime;
+            mLastPart = !tracker.mExpectMore;
+        }
+    }
+
+    private final Sender mSender;
+    private final int mMaxInFlight;
+    private final int mQueueLimit;
+
+    /** Waiting messages by priority. */
+    private final ArrayDeque<Entry>[] mQueues;
+    private int mQueued;
+    private int mInFlight;
+
+    /** True while a thread is submitting messages; others leave the queue to it. */
+    private boolean mDraining;
+
+    /** A part of the multipart message being submitted, until its last part is. */
+    private SmsTracker mCurrentMultipart;
+
+    // Metrics, for dump
+    private long mQueuedCount;
+    private long mRejectedCount;
+    private long mCompletedCount;
+    private int mMaxQueued;
+    private long mTotalQueueTime;
+    private long mMaxQueueTime;
+    private long mTotalSendTime;
+    private long mMaxSendTime;
+
+    SmsSendQueue(SMSDispatcher dispatcher) {
+        this(dispatcher,
+                SystemProperties.getInt(PROPERTY_MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT),
+                SystemProperties.getInt(PROPERTY_QUEUE_LIMIT, DEFAULT_QUEUE_LIMIT));
+    }
+
+    SmsSendQueue(final SMSDispatcher dispatcher, int maxInFlight, int queueLimit) {
+        this(new Sender() {
+            @Override
+            public void sendSms(SmsTracker tracker) {
+                dispatcher.sendSms(tracker);
+            }
+        }, maxInFlight, queueLimit);
+    }
+
+    @SuppressWarnings("unchecked")
+    SmsSendQueue(Sender sender, int maxInFlight, int queueLimit) {
+        mSender = sender;
+        mMaxInFlight = Math.max(1, Math.min(maxInFlight, MAX_IN_FLIGHT_LIMIT));
+        mQueueLimit = Math.max(0, queueLimit);
+        mQueues = new ArrayDeque[] { new ArrayDeque<Entry>(), new ArrayDeque<Entry>() };
+    }
+
+    /**
+     * Queue a message for the radio, submitting it at once if a slot is free.
+     * @param tracker the message
+     * @param priority {@link #PRIORITY_HIGH} or {@link #PRIORITY_NORMAL}
+     * @return false if the queue is full and the message was refused; the caller fails it
+     */
+    boolean enqueue(SmsTracker tracker, int priority) {
+        synchronized (this) {
+            if (mQueued >= mQueueLimit && mInFlight >= mMaxInFlight) {
+                mRejectedCount++;
+                Rlog.e(TAG, "Queue full: " + mQueued + " waiting, " + mInFlight + " in flight");
+                return false;
+            }
+            mQueues[priority].add(new Entry(tracker, SystemClock.elapsedRealtime()));
+            mQueued++;
+            mQueuedCount++;
+            mMaxQueued = Math.max(mMaxQueued, mQueued);
+        }
+        drain();
+        return true;
+    }
+
+    /**
+     * Release the slot of a message that has been sent or has finally failed, and submit the
+     * next one. Called through {@link SmsTracker#onSent} and {@link SmsTracker#onFailed}.
+     */
+    void onComplete(SmsTracker tracker) {
+        synchronized (this) {
+            if (tracker.mSendQueue != this) {
+                return;
+            }
+            tracker.mSendQueue = null;
+            mInFlight--;
+            mCompletedCount++;
+            long sendTime = SystemClock.elapsedRealtime() - tracker.mSubmitTime;
+            mTotalSendTime += sendTime;
+            mMaxSendTime = Math.max(mMaxSendTime, sendTime);
+        }
+        drain();
+    }
+
+    /**
+     * Take the waiting messages out of the queue, for the caller to fail them.
+     */
+    synchronized SmsTracker[] clear() {
+        SmsTracker[] trackers = new SmsTracker[mQueued];
+        int i = 0;
+        for (ArrayDeque<Entry> queue : mQueues) {
+            for (Entry entry : queue) {
+                trackers[i++] = entry.mTracker;
+            }
+            queue.clear();
+        }
+        mQueued = 0;
+        mCurrentMultipart = null;
+        return trackers;
+    }
+
+    /** Get the number of messages waiting for a slot. */
+    synchronized int getQueuedCount() {
+        return mQueued;
+    }
+
+    /** Get the number of messages submitted to the radio and not yet complete. */
+    synchronized int getInFlightCount() {
+        return mInFlight;
+    }
+
+    private void drain() {
+        synchronized (this) {
+            if (mDraining) {
+                return;
+            }
+            mDraining = true;
+        }
+        try {
+            while (true) {
+                SmsTracker tracker;
+                synchronized (this) {
+                    Entry entry = (mInFlight < mMaxInFlight) ? poll() : null;
+                    if (entry == null) {
+                        mDraining = false;
+                        return;
+                    }
+                    tracker = entry.mTracker;
+                    mQueued--;
+                    mInFlight++;
+                    long now = SystemClock.elapsedRealtime();
+                    long queueTime = now - entry.mQueuedTime;
+                    mTotalQueueTime += queueTime;
+                    mMaxQueueTime = Math.max(mMaxQueueTime, queueTime);
+                    tracker.mSubmitTime = now;
+                    tracker.mSendQueue = this;
+                    mCurrentMultipart = entry.mLastPart ? null : tracker;
+                    if (mQueued > 0) {
+                        tracker.mExpectMore = true;
+                    }
+                }
+                if (DBG) Rlog.d(TAG, "Submitting, expectMore=" + tracker.mExpectMore);
+                // May complete, and so re-enter onComplete, before returning
+                mSender.sendSms(tracker);
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                mDraining = false;
+            }
+            throw e;
+        }
+    }
+
+    /** Take the next message: the next part of the current multipart one, if queued. */
+    private Entry poll() {
+        if (mCurrentMultipart != null) {
+            for (ArrayDeque<Entry> queue : mQueues) {
+                Iterator<Entry> it = queue.iterator();
+                while (it.hasNext()) {
+                    Entry entry = it.next();
+                    if (entry.mTracker.isPartOfSameMessage(mCurrentMultipart)) {
+                        it.remove();
+                        return entry;
+                    }
+                }
+            }
+            // The other parts are still being checked or waiting for the user
+            mCurrentMultipart = null;
+        }
+        for (ArrayDeque<Entry> queue : mQueues) {
+            Entry entry = queue.poll();
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" SmsSendQueue: maxInFlight=" + mMaxInFlight + " queueLimit=" + mQueueLimit);
+        pw.println("  queued=" + mQueued + " inFlight=" + mInFlight + " maxQueued=" + mMaxQueued);
+        pw.println("  totalQueued=" + mQueuedCount + " rejected=" + mRejectedCount
+                + " completed=" + mCompletedCount);
+        long submitted = mQueuedCount - mQueued;
+        pw.println("  queueTime avg=" + (submitted > 0 ? mTotalQueueTime / submitted : 0)
+                + "ms max=" + mMaxQueueTime + "ms");
+        pw.println("  sendTime avg=" + (mCompletedCount > 0 ? mTotalSendTime / mCompletedCount : 0)
+                + "ms max=" + mMaxSendTime + "ms");
+    }
+}
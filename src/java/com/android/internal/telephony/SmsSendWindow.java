@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+/**
+ * The send times of the SMS an app sent in the current check period of
+ * {@link SmsUsageMonitor}, kept in a ring of at most the allowed number of timestamps.
+ * Nothing older is ever needed: once the ring is full, no SMS can be sent until the oldest
+ * timestamp expires. The ring starts small and doubles as needed, as the allowed number is
+ * sometimes set very high to do away with the limit.
+ *
+ * Not thread-safe; {@link SmsUsageMonitor} synchronizes on the instance.
+ */
+final class SmsSendWindow {
+    private static final int INITIAL_CAPACITY = 8;
+
+    /** The most send times held. */
+    private final int mMaxAllowed;
+    /** Send times, oldest at mFirst. */
+    private long[] mStamps;
+    private int mFirst;
+    private int mCount;
+
+    /** Set when the window has been dropped from the monitor and must not be used. */
+    private boolean mRemoved;
+
+    /**
+     * @param maxAllowed the number of SMS allowed in the check period
+     */
+    SmsSendWindow(int maxAllowed) {
+        mMaxAllowed = Math.max(maxAllowed, 0);
+        mStamps = new long[Math.min(mMaxAllowed, INITIAL_CAPACITY)];
+    }
+
+    /**
+     * Record SMS sent at <code>now</code> if they are under the limit.
+     * @param now the current time
+     * @param beginCheckPeriod the start of the check period; older timestamps are dropped
+     * @param smsWaiting the number of SMS to send
+     * @return true if the SMS may be sent, false if they would exceed the limit
+     */
+    boolean tryAdd(long now, long beginCheckPeriod, int smsWaiting) {
+        expire(beginCheckPeriod);
+        if (smsWaiting > mMaxAllowed - mCount) {
+            return false;
+        }
+        for (int i = 0; i < smsWaiting; i++) {
+            add(now);
+        }
+        return true;
+    }
+
+    /**
+     * Append a send time, dropping the oldest one if the ring is full.
+     */
+    void add(long stamp) {
+        if (mMaxAllowed == 0) {
+            return;
+        }
+        if (mCount == mStamps.length) {
+            if (mStamps.length < mMaxAllowed) {
+                grow();
+            } else {
+                mFirst = next(mFirst);
+                mCount--;
+            }
+        }
+        int last = mFirst + mCount;
+        if (last >= mStamps.length) {
+            last -= mStamps.length;
+        }
+        mStamps[last] = stamp;
+        mCount++;
+    }
+
+    /**
+     * Drop the send times before <code>beginCheckPeriod</code>.
+     */
+    void expire(long beginCheckPeriod) {
+        while (mCount > 0 && mStamps[mFirst] < beginCheckPeriod) {
+            mFirst = next(mFirst);
+            mCount--;
+        }
+    }
+
+    /** Get the number of send times held. */
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * Get a send time.
+     * @param index 0 for the oldest
+     */
+    long get(int index) {
+        int i = mFirst + index;
+        return mStamps[i >= mStamps.length ? i - mStamps.length : i];
+    }
+
+    /** Get the latest send time, or Long.MIN_VALUE if there is none. */
+    long getNewest() {
+        return mCount == 0 ? Long.MIN_VALUE : get(mCount - 1);
+    }
+
+    boolean isRemoved() {
+        return mRemoved;
+    }
+
+    void setRemoved() {
+        mRemoved = true;
+    }
+
+    /** Double the ring, up to mMaxAllowed, keeping the send times in order. */
+    private void grow() {
+        int capacity = (int) Math.min((long) mStamps.length * 2, mMaxAllowed);
+        long[] stamps = new long[capacity];
+        for (int i = 0; i < mCount; i++) {
+            stamps[i] = get(i);
+        }
+        mStamps = stamps;
+        mFirst = 0;
+    }
+
+    private int next(int index) {
+        return (index + 1 == mStamps.length) ? 0 : index + 1;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
+
+import java.util.Arrays;
+
+/**
+ * Allocation-free counting, fragmenting and encoding of SMS text, for the common case of text
+ * made of characters of the GSM 7 bit default alphabet basic table, and for UCS-2.
+ *
+ * Such text is encoded with the default tables whatever national language tables are
+ * enabled, since no other table needs fewer septets or a shorter header, so it is counted and
+ * packed here in a single pass over the characters into buffers supplied by the caller. For
+ * any other text the 7 bit methods return -1 and the caller uses {@link GsmAlphabet}, which
+ * picks the best national language tables.
+ *
+ * {@hide}
+ */
+public final class SmsTextEncoder {
+    /** Most septets in a TP-User-Data-Length. */
+    private static final int MAX_SEPTETS = 255;
+
+    private static final int NOT_BASIC = -1;
+
+    /** UCS-2 code unit replacing an unpaired surrogate, as String.getBytes("utf-16be") does. */
+    private static final char REPLACEMENT_CHAR = '\uFFFD';
+
+    private SmsTextEncoder() {
+    }
+
+    /** Septet of each char below 0x400 in the default alphabet basic table, or NOT_BASIC. */
+    private static final class BasicTable {
+        static final byte[] SEPTETS = new byte[0x400];
+
+        static {
+            for (int c = 0; c < SEPTETS.length; c++) {
+                int septet = GsmAlphabet.charToGsm((char) c);
+                // unknown chars are mapped to space, extension table chars to the escape
+                if (septet == GsmAlphabet.GSM_EXTENDED_ESCAPE || (septet == ' ' && c != ' ')) {
+                    septet = NOT_BASIC;
+                }
+                SEPTETS[c] = (byte) septet;
+            }
+        }
+    }
+
+    private static int toBasicSeptet(char c) {
+        return (c < BasicTable.SEPTETS.length) ? BasicTable.SEPTETS[c] : NOT_BASIC;
+    }
+
+    /**
+     * Count the septets of text in the default alphabet basic table, one per character.
+     * @return the number of septets, or -1 if the text has other characters
+     */
+    public static int countSeptets(CharSequence s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (toBasicSeptet(s.charAt(i)) == NOT_BASIC) {
+                return -1;
+            }
+        }
+        return end - start;
+    }
+
+    /**
+     * Fill in the details of a message of <code>septets</code> septets encoded with the
+     * default tables, as {@link GsmAlphabet#countGsmSeptets} would.
+     */
+    public static void fill7BitDetails(TextEncodingDetails ted, int septets) {
+        ted.codeUnitSize = SmsConstants.ENCODING_7BIT;
+        ted.codeUnitCount = septets;
+        ted.languageTable = 0;
+        ted.languageShiftTable = 0;
+        if (septets > SmsConstants.MAX_USER_DATA_SEPTETS) {
+            ted.msgCount = (septets + (SmsConstants.MAX_USER_DATA_SEPTETS_WITH_HEADER - 1))
+                    / SmsConstants.MAX_USER_DATA_SEPTETS_WITH_HEADER;
+            ted.codeUnitsRemaining = (ted.msgCount
+                    * SmsConstants.MAX_USER_DATA_SEPTETS_WITH_HEADER) - septets;
+        } else {
+            ted.msgCount = 1;
+            ted.codeUnitsRemaining = SmsConstants.MAX_USER_DATA_SEPTETS - septets;
+        }
+    }
+
+    /**
+     * Find the end of the next fragment of text in the default alphabet basic table.
+     * @param s the text
+     * @param start the index of the first character of the fragment
+     * @param limit the most septets in the fragment
+     * @return the index after the last character of the fragment, or -1 if a character
+     *         within the limit is not in the basic table
+     */
+    public static int findSeptetLimitIndex(CharSequence s, int start, int limit) {
+        int end = Math.min(s.length(), start + limit);
+        for (int i = start; i < end; i++) {
+            if (toBasicSeptet(s.charAt(i)) == NOT_BASIC) {
+                return -1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Get the length of the packed user data written by {@link #encode7BitPacked}.
+     * @param septets the number of septets of the text
+     * @param header the user data header, or null
+     */
+    public static int get7BitPackedLength(int septets, byte[] header) {
+        return 1 + ((getHeaderSeptets(header) + septets) * 7 + 7) / 8;
+    }
+
+    /**
+     * Encode text in the default alphabet basic table as 7 bit packed user data: the length
+     * in septets, then the header with its length if there is one, then the text, as
+     * {@link GsmAlphabet#stringToGsm7BitPackedWithHeader} does for the default tables.
+     *
+     * @param s the text
+     * @param start the index of the first character to encode
+     * @param end the index after the last character to encode
+     * @param header the user data header, or null
+     * @param out the buffer to write to, with room for {@link #get7BitPackedLength} bytes
+     * @param offset the index in <code>out</code> to write the length at
+     * @return the number of bytes written, or -1 if the text has characters not in the basic
+     *         table or is too long, in which case the content of <code>out</code> is undefined
+     */
+    public static int encode7BitPacked(CharSequence s, int start, int end, byte[] header,
+            byte[] out, int offset) {
+        int headerSeptets = getHeaderSeptets(header);
+        int septets = headerSeptets + (end - start);
+        if (septets > MAX_SEPTETS) {
+            return -1;
+        }
+        int length = 1 + (septets * 7 + 7) / 8;
+        if (packSeptets(s, start, end, headerSeptets, out, offset + 1) < 0) {
+            return -1;
+        }
+        out[offset] = (byte) septets;
+        if (header != null && header.length > 0) {
+            out[offset + 1] = (byte) header.length;
+            System.arraycopy(header, 0, out, offset + 2, header.length);
+        }
+        return length;
+    }
+
+    /**
+     * Pack text in the default alphabet basic table, least significant bit first, starting
+     * <code>septetOffset</code> septets into <code>out</code>. The bytes from
+     * <code>offset</code> up to the last one written are cleared first.
+     *
+     * @return the number of septets written including the offset, or -1 if the text has
+     *         characters not in the basic table
+     */
+    public static int packSeptets(CharSequence s, int start, int end, int septetOffset,
+            byte[] out, int offset) {
+        int septets = septetOffset + (end - start);
+        Arrays.fill(out, offset, offset + (septets * 7 + 7) / 8, (byte) 0);
+        int bitOffset = septetOffset * 7;
+        for (int i = start; i < end; i++, bitOffset += 7) {
+            int septet = toBasicSeptet(s.charAt(i));
+            if (septet == NOT_BASIC) {
+                return -1;
+            }
+            int index = offset + (bitOffset >> 3);
+            int shift = bitOffset & 7;
+            out[index] |= (byte) (septet << shift);
+            if (shift > 1) {
+                out[index + 1] = (byte) (septet >> (8 - shift));
+            }
+        }
+        return septets;
+    }
+
+    /**
+     * Get the length of the user data written by {@link #encodeUcs2}.
+     * @param chars the number of characters of the text
+     * @param header the user data header, or null
+     */
+    public static int getUcs2Length(int chars, byte[] header) {
+        return 1 + (header != null ? header.length + 1 : 0) + chars * 2;
+    }
+
+    /**
+     * Encode text as UCS-2 user data: the length in bytes, then the header with its length if
+     * there is one, then the text big endian.
+     *
+     * @param s the text
+     * @param start the index of the first character to encode
+     * @param end the index after the last character to encode
+     * @param header the user data header, or null
+     * @param out the buffer to write to, with room for {@link #getUcs2Length} bytes
+     * @param offset the index in <code>out</code> to write the length at
+     * @return the number of bytes written
+     */
+    public static int encodeUcs2(CharSequence s, int start, int end, byte[] header,
+            byte[] out, int offset) {
+        int index = offset + 1;
+        if (header != null) {
+            out[index++] = (byte) header.length;
+            System.arraycopy(header, 0, out, index, header.length);
+            index += header.length;
+        }
+        index = writeUtf16(s, start, end, out, index);
+        out[offset] = (byte) (index - offset - 1);
+        return index - offset;
+    }
+
+    /**
+     * Write text big endian, two bytes per character.
+     * @return the index in <code>out</code> after the last byte written
+     */
+    public static int writeUtf16(CharSequence s, int start, int end, byte[] out, int offset) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (Character.isHighSurrogate(c)) {
+                if (i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    out[offset++] = (byte) (c >> 8);
+                    out[offset++] = (byte) c;
+                    c = s.charAt(++i);
+                } else {
+                    c = REPLACEMENT_CHAR;
+                }
+            } else if (Character.isLowSurrogate(c)) {
+                c = REPLACEMENT_CHAR;
+            }
+            out[offset++] = (byte) (c >> 8);
+            out[offset++] = (byte) c;
+        }
+        return offset;
+    }
+
+    /** Septets taken by the header and its length octet, including the fill bits. */
+    private static int getHeaderSeptets(byte[] header) {
+        if (header == null || header.length == 0) {
+            return 0;
+        }
+        return ((header.length + 1) * 8 + 6) / 7;
+    }
+}
@@ -24,8 +24,10 @@ import android.content.res.XmlResourceParser;
 import android.database.ContentObserver;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.telephony.PhoneNumberUtils;
@@ -46,10 +48,10 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.regex.Pattern;
 
@@ -110,17 +112,22 @@ public class SmsUsageMonitor {
     private final int mCheckPeriod;
     private final int mMaxAllowed;
 
-    private final HashMap<String, ArrayList<Long>> mSmsStamp =
-            new HashMap<String, ArrayList<Long>>();
+    /** SMS sent by each app in the check period; each window is guarded by itself. */
+    private final ConcurrentHashMap<String, SmsSendWindow> mSmsStamp =
+            new ConcurrentHashMap<String, SmsSendWindow>();
+
+    /** Time after which {@link #removeExpiredTimestamps} looks for idle apps again. */
+    private final AtomicLong mNextExpiryTime = new AtomicLong();
 
     /** Context for retrieving regexes from XML resource. */
     private final Context mContext;
 
-    /** Country code for the cached short code pattern matcher. */
-    private String mCurrentCountry;
-
-    /** Cached short code pattern matcher for {@link #mCurrentCountry}. */
-    private ShortCodePatternMatcher mCurrentPatternMatcher;
+    /**
+     * Short code pattern matchers loaded so far by country code, {@link #NO_PATTERNS} for the
+     * countries without patterns. Cleared when the pattern file changes.
+     */
+    private final ConcurrentHashMap<String, ShortCodePatternMatcher> mPatternMatchers =
+            new ConcurrentHashMap<String, ShortCodePatternMatcher>();
 
     /** Notice when the enabled setting changes - can be changed through gservices */
     private final AtomicBoolean mCheckEnabled = new AtomicBoolean(true);
@@ -131,8 +138,11 @@ public class SmsUsageMonitor {
     /** File holding the patterns */
     private final File mPatternFile = new File(SHORT_CODE_PATH);
 
-    /** Last modified time for pattern file */
-    private long mPatternFileLastModified = 0;
+    /** Last modified time for pattern file; written with mPatternMatchers locked */
+    private volatile long mPatternFileLastModified = 0;
+
+    /** Last country checked, whose patterns are used while the country is unknown. */
+    private volatile String mLastCountryIso;
 
     /** Directory for per-app SMS permission XML file. */
     private static final String SMS_POLICY_FILE_DIRECTORY = "/data/misc/sms";
@@ -180,9 +190,49 @@ public class SmsUsageMonitor {
     private static final String ATTR_PACKAGE_SMS_POLICY = "sms-policy";
 
     /**
-     * SMS short code regex pattern matcher for a specific country.
+     * Set to true to keep the SMS sent by each app in a file, so that the limit survives a
+     * restart of the phone process.
+     */
+    static final String PROPERTY_PERSIST_USAGE = "persist.radio.sms_usage_persist";
+
+    /**
+     * SMS usage file name, followed by the phone id and ".xml". Each phone has its own monitor
+     * and so its own file.
+     */
+    private static final String SMS_USAGE_FILE_PREFIX = "sms_usage_";
+
+    /** Delay before SMS usage is written, so a burst of SMS is written once. */
+    private static final int SMS_USAGE_WRITE_DELAY = 5000;      // 5 seconds
+
+    /** XML tag for root element of SMS usage. */
+    private static final String TAG_SMS_USAGE_BODY = "sms-usage";
+
+    /** XML attribute for the package's send times in the check period, oldest first. */
+    private static final String ATTR_PACKAGE_SEND_TIMES = "send-times";
+
+    /** SMS usage file, or null if usage is not persisted. */
+    private AtomicFile mUsageFile;
+
+    /** Handler writing the SMS usage file. */
+    private Handler mUsageWriter;
+
+    /** True if a write of the SMS usage file has been scheduled. */
+    private final AtomicBoolean mUsageWritePending = new AtomicBoolean(false);
+
+    private final Runnable mWriteUsageRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mUsageWritePending.set(false);
+            writeSmsUsage();
+        }
+    };
+
+    /**
+     * SMS short code pattern matcher for a specific country. The regexes are compiled into a
+     * {@link ShortCodeClassifier} when they allow it and only used directly otherwise.
      */
-    private static final class ShortCodePatternMatcher {
+    static final class ShortCodePatternMatcher {
+        private final ShortCodeClassifier mClassifier;
         private final Pattern mShortCodePattern;
         private final Pattern mPremiumShortCodePattern;
         private final Pattern mFreeShortCodePattern;
@@ -197,9 +247,22 @@ public class SmsUsageMonitor {
                     Pattern.compile(freeShortCodeRegex) : null);
             mStandardShortCodePattern = (standardShortCodeRegex != null ?
                     Pattern.compile(standardShortCodeRegex) : null);
+            mClassifier = ShortCodeClassifier.compile(shortCodeRegex, premiumShortCodeRegex,
+                    freeShortCodeRegex, standardShortCodeRegex);
+            if (mClassifier == null) {
+                Rlog.w(TAG, "Can't compile short code patterns, using regex matching");
+            }
         }
 
         int getNumberCategory(String phoneNumber) {
+            if (mClassifier != null) {
+                return mClassifier.getNumberCategory(phoneNumber);
+            }
+            return getNumberCategoryByRegex(phoneNumber);
+        }
+
+        /** Classify with the regexes, whether or not they could be compiled. */
+        int getNumberCategoryByRegex(String phoneNumber) {
             if (mFreeShortCodePattern != null && mFreeShortCodePattern.matcher(phoneNumber)
                     .matches()) {
                 return CATEGORY_FREE_SHORT_CODE;
@@ -217,8 +280,16 @@ public class SmsUsageMonitor {
             }
             return CATEGORY_NOT_SHORT_CODE;
         }
+
+        boolean isCompiled() {
+            return mClassifier != null;
+        }
     }
 
+    /** Placeholder in {@link #mPatternMatchers} for a country without patterns. */
+    private static final ShortCodePatternMatcher NO_PATTERNS =
+            new ShortCodePatternMatcher(null, null, null, null);
+
     /**
      * Observe the secure setting for enable flag
      */
@@ -250,10 +321,19 @@ public class SmsUsageMonitor {
     }
 
     /**
-     * Create SMS usage monitor.
+     * Create SMS usage monitor for the first phone.
      * @param context the context to use to load resources and get TelephonyManager service
      */
     public SmsUsageMonitor(Context context) {
+        this(context, 0);
+    }
+
+    /**
+     * Create SMS usage monitor.
+     * @param context the context to use to load resources and get TelephonyManager service
+     * @param phoneId the phone whose SMS are counted, used to name the SMS usage file
+     */
+    public SmsUsageMonitor(Context context, int phoneId) {
         mContext = context;
         ContentResolver resolver = context.getContentResolver();
 
@@ -268,6 +348,15 @@ public class SmsUsageMonitor {
         mSettingsObserverHandler = new SettingsObserverHandler(mContext, mCheckEnabled);
 
         loadPremiumSmsPolicyDb();
+
+        if (SystemProperties.getBoolean(PROPERTY_PERSIST_USAGE, false)) {
+            mUsageFile = new AtomicFile(new File(new File(SMS_POLICY_FILE_DIRECTORY),
+                    SMS_USAGE_FILE_PREFIX + phoneId + ".xml"));
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            mUsageWriter = new Handler(thread.getLooper());
+            loadSmsUsage();
+        }
     }
 
     /**
@@ -288,7 +377,6 @@ public class SmsUsageMonitor {
         } catch (XmlPullParserException e) {
             Rlog.e(TAG, "XML parser exception reading short code pattern file", e);
         } finally {
-            mPatternFileLastModified = mPatternFile.lastModified();
             if (patternReader != null) {
                 try {
                     patternReader.close();
@@ -348,6 +436,10 @@ public class SmsUsageMonitor {
     /** Clear the SMS application list for disposal. */
     void dispose() {
         mSmsStamp.clear();
+        if (mUsageWriter != null) {
+            mUsageWriter.removeCallbacks(mWriteUsageRunnable);
+            mUsageWriter.getLooper().quitSafely();
+        }
     }
 
     /**
@@ -361,16 +453,25 @@ public class SmsUsageMonitor {
      *  of new sms messages
      */
     public boolean check(String appName, int smsWaiting) {
-        synchronized (mSmsStamp) {
-            removeExpiredTimestamps();
-
-            ArrayList<Long> sentList = mSmsStamp.get(appName);
-            if (sentList == null) {
-                sentList = new ArrayList<Long>();
-                mSmsStamp.put(appName, sentList);
+        long ct = System.currentTimeMillis();
+        removeExpiredTimestamps(ct);
+
+        while (true) {
+            SmsSendWindow sent = mSmsStamp.get(appName);
+            if (sent == null) {
+                sent = new SmsSendWindow(mMaxAllowed);
+                SmsSendWindow old = mSmsStamp.putIfAbsent(appName, sent);
+                if (old != null) {
+                    sent = old;
+                }
+            }
+            synchronized (sent) {
+                // dropped by removeExpiredTimestamps in the meantime: start a new window
+                if (sent.isRemoved()) {
+                    continue;
+                }
+                return isUnderLimit(sent, ct, smsWaiting);
             }
-
-            return isUnderLimit(sentList, smsWaiting);
         }
     }
 
@@ -389,44 +490,75 @@ public class SmsUsageMonitor {
      *  {@link #CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE}, or {@link #CATEGORY_PREMIUM_SHORT_CODE}.
      */
     public int checkDestination(String destAddress, String countryIso) {
-        synchronized (mSettingsObserverHandler) {
-            // always allow emergency numbers
-            if (PhoneNumberUtils.isEmergencyNumber(destAddress, countryIso)) {
-                if (DBG) Rlog.d(TAG, "isEmergencyNumber");
-                return CATEGORY_NOT_SHORT_CODE;
-            }
-            // always allow if the feature is disabled
-            if (!mCheckEnabled.get()) {
-                if (DBG) Rlog.e(TAG, "check disabled");
+        // always allow emergency numbers
+        if (PhoneNumberUtils.isEmergencyNumber(destAddress, countryIso)) {
+            if (DBG) Rlog.d(TAG, "isEmergencyNumber");
+            return CATEGORY_NOT_SHORT_CODE;
+        }
+        // always allow if the feature is disabled
+        if (!mCheckEnabled.get()) {
+            if (DBG) Rlog.e(TAG, "check disabled");
+            return CATEGORY_NOT_SHORT_CODE;
+        }
+
+        ShortCodePatternMatcher patternMatcher = getPatternMatcher(countryIso);
+        if (patternMatcher != null) {
+            return patternMatcher.getNumberCategory(destAddress);
+        } else {
+            // Generic rule: numbers of 5 digits or less are considered potential short codes
+            Rlog.e(TAG, "No patterns for \"" + countryIso + "\": using generic short code rule");
+            if (destAddress.length() <= 5) {
+                return CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
+            } else {
                 return CATEGORY_NOT_SHORT_CODE;
             }
+        }
+    }
 
-            if (countryIso != null) {
-                if (mCurrentCountry == null || !countryIso.equals(mCurrentCountry) ||
-                        mPatternFile.lastModified() != mPatternFileLastModified) {
+    /**
+     * Get the short code pattern matcher for a country, loading it from the pattern file or
+     * the resource the first time and again after the pattern file changed.
+     * @param countryIso the country code, or null if unknown to use the last country checked
+     * @return the pattern matcher, or null if there are no patterns for the country
+     */
+    ShortCodePatternMatcher getPatternMatcher(String countryIso) {
+        if (countryIso == null) {
+            countryIso = mLastCountryIso;
+            if (countryIso == null) {
+                return null;
+            }
+        } else {
+            mLastCountryIso = countryIso;
+        }
+        long lastModified = mPatternFile.lastModified();
+        ShortCodePatternMatcher patternMatcher = null;
+        if (lastModified == mPatternFileLastModified) {
+            patternMatcher = mPatternMatchers.get(countryIso);
+        }
+        if (patternMatcher == null) {
+            // Loaded under the lock so concurrent checks don't parse the patterns again
+            synchronized (mPatternMatchers) {
+                if (lastModified != mPatternFileLastModified) {
+                    mPatternMatchers.clear();
+                    mPatternFileLastModified = lastModified;
+                }
+                patternMatcher = mPatternMatchers.get(countryIso);
+                if (patternMatcher == null) {
                     if (mPatternFile.exists()) {
                         if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
-                        mCurrentPatternMatcher = getPatternMatcherFromFile(countryIso);
+                        patternMatcher = getPatternMatcherFromFile(countryIso);
                     } else {
                         if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
-                        mCurrentPatternMatcher = getPatternMatcherFromResource(countryIso);
+                        patternMatcher = getPatternMatcherFromResource(countryIso);
                     }
-                    mCurrentCountry = countryIso;
-                }
-            }
-
-            if (mCurrentPatternMatcher != null) {
-                return mCurrentPatternMatcher.getNumberCategory(destAddress);
-            } else {
-                // Generic rule: numbers of 5 digits or less are considered potential short codes
-                Rlog.e(TAG, "No patterns for \"" + countryIso + "\": using generic short code rule");
-                if (destAddress.length() <= 5) {
-                    return CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
-                } else {
-                    return CATEGORY_NOT_SHORT_CODE;
+                    if (patternMatcher == null) {
+                        patternMatcher = NO_PATTERNS;
+                    }
+                    mPatternMatchers.put(countryIso, patternMatcher);
                 }
             }
         }
+        return (patternMatcher != NO_PATTERNS) ? patternMatcher : null;
     }
 
     /**
@@ -607,42 +739,157 @@ public class SmsUsageMonitor {
 
     /**
      * Remove keys containing only old timestamps. This can happen if an SMS app is used
-     * to send messages and then uninstalled.
+     * to send messages and then uninstalled. Done at most once per check period, so that
+     * a check doesn't have to look at every app.
      */
-    private void removeExpiredTimestamps() {
-        long beginCheckPeriod = System.currentTimeMillis() - mCheckPeriod;
+    private void removeExpiredTimestamps(long ct) {
+        long next = mNextExpiryTime.get();
+        // a clock set back by more than a check period is caught up at once
+        if ((ct < next && next - ct <= mCheckPeriod)
+                || !mNextExpiryTime.compareAndSet(next, ct + mCheckPeriod)) {
+            return;
+        }
 
-        synchronized (mSmsStamp) {
-            Iterator<Map.Entry<String, ArrayList<Long>>> iter = mSmsStamp.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<String, ArrayList<Long>> entry = iter.next();
-                ArrayList<Long> oldList = entry.getValue();
-                if (oldList.isEmpty() || oldList.get(oldList.size() - 1) < beginCheckPeriod) {
-                    iter.remove();
+        long beginCheckPeriod = ct - mCheckPeriod;
+        for (Map.Entry<String, SmsSendWindow> entry : mSmsStamp.entrySet()) {
+            SmsSendWindow sent = entry.getValue();
+            synchronized (sent) {
+                if (sent.getNewest() < beginCheckPeriod) {
+                    sent.setRemoved();
+                    mSmsStamp.remove(entry.getKey(), sent);
                 }
             }
         }
     }
 
-    private boolean isUnderLimit(ArrayList<Long> sent, int smsWaiting) {
-        Long ct = System.currentTimeMillis();
-        long beginCheckPeriod = ct - mCheckPeriod;
-
+    private boolean isUnderLimit(SmsSendWindow sent, long ct, int smsWaiting) {
         if (VDBG) log("SMS send size=" + sent.size() + " time=" + ct);
 
-        while (!sent.isEmpty() && sent.get(0) < beginCheckPeriod) {
-            sent.remove(0);
-        }
-
-        if ((sent.size() + smsWaiting) <= mMaxAllowed) {
-            for (int i = 0; i < smsWaiting; i++ ) {
-                sent.add(ct);
+        if (sent.tryAdd(ct, ct - mCheckPeriod, smsWaiting)) {
+            if (smsWaiting > 0) {
+                scheduleSmsUsageWrite();
             }
             return true;
         }
         return false;
     }
 
+    /**
+     * Load the SMS sent by each app in the check period from the SMS usage file.
+     */
+    private void loadSmsUsage() {
+        long beginCheckPeriod = System.currentTimeMillis() - mCheckPeriod;
+        FileInputStream infile = null;
+        try {
+            infile = mUsageFile.openRead();
+            final XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(infile, null);
+
+            XmlUtils.beginDocument(parser, TAG_SMS_USAGE_BODY);
+
+            while (true) {
+                XmlUtils.nextElement(parser);
+
+                String element = parser.getName();
+                if (element == null) break;
+
+                if (element.equals(TAG_PACKAGE)) {
+                    String packageName = parser.getAttributeValue(null, ATTR_PACKAGE_NAME);
+                    String sendTimes = parser.getAttributeValue(null, ATTR_PACKAGE_SEND_TIMES);
+                    if (packageName == null || sendTimes == null) {
+                        Rlog.e(TAG, "Error: missing SMS usage attribute");
+                        continue;
+                    }
+                    SmsSendWindow sent = new SmsSendWindow(mMaxAllowed);
+                    for (String sendTime : sendTimes.split(",")) {
+                        long stamp = Long.parseLong(sendTime);
+                        if (stamp >= beginCheckPeriod) {
+                            sent.add(stamp);
+                        }
+                    }
+                    if (sent.size() > 0) {
+                        mSmsStamp.put(packageName, sent);
+                    }
+                } else {
+                    Rlog.e(TAG, "Error: skipping unknown XML tag " + element);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // No data yet
+        } catch (IOException e) {
+            Rlog.e(TAG, "Unable to read SMS usage", e);
+        } catch (NumberFormatException e) {
+            Rlog.e(TAG, "Unable to parse SMS usage", e);
+        } catch (XmlPullParserException e) {
+            Rlog.e(TAG, "Unable to parse SMS usage", e);
+        } finally {
+            if (infile != null) {
+                try {
+                    infile.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void scheduleSmsUsageWrite() {
+        if (mUsageWriter != null && mUsageWritePending.compareAndSet(false, true)) {
+            mUsageWriter.postDelayed(mWriteUsageRunnable, SMS_USAGE_WRITE_DELAY);
+        }
+    }
+
+    /**
+     * Persist the SMS sent by each app in the check period to the SMS usage file.
+     * Called on the usage writer thread.
+     */
+    private void writeSmsUsage() {
+        long beginCheckPeriod = System.currentTimeMillis() - mCheckPeriod;
+        FileOutputStream outfile = null;
+        try {
+            outfile = mUsageFile.startWrite();
+
+            XmlSerializer out = new FastXmlSerializer();
+            out.setOutput(outfile, "utf-8");
+
+            out.startDocument(null, true);
+
+            out.startTag(null, TAG_SMS_USAGE_BODY);
+
+            StringBuilder sendTimes = new StringBuilder();
+            for (Map.Entry<String, SmsSendWindow> entry : mSmsStamp.entrySet()) {
+                SmsSendWindow sent = entry.getValue();
+                sendTimes.setLength(0);
+                synchronized (sent) {
+                    for (int i = 0; i < sent.size(); i++) {
+                        long stamp = sent.get(i);
+                        if (stamp >= beginCheckPeriod) {
+                            if (sendTimes.length() > 0) {
+                                sendTimes.append(',');
+                            }
+                            sendTimes.append(stamp);
+                        }
+                    }
+                }
+                if (sendTimes.length() > 0) {
+                    out.startTag(null, TAG_PACKAGE);
+                    out.attribute(null, ATTR_PACKAGE_NAME, entry.getKey());
+                    out.attribute(null, ATTR_PACKAGE_SEND_TIMES, sendTimes.toString());
+                    out.endTag(null, TAG_PACKAGE);
+                }
+            }
+
+            out.endTag(null, TAG_SMS_USAGE_BODY);
+            out.endDocument();
+
+            mUsageFile.finishWrite(outfile);
+        } catch (IOException e) {
+            Rlog.e(TAG, "Unable to write SMS usage", e);
+            if (outfile != null) {
+                mUsageFile.failWrite(outfile);
+            }
+        }
+    }
+
     private static void log(String msg) {
         Rlog.d(TAG, msg);
     }
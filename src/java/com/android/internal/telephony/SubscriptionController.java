@@ -21,6 +21,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -44,14 +45,10 @@ import com.android.internal.telephony.IccCardConstants.State;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.Set;
 
 /**
  * SubscriptionController to provide an inter-process communication to
@@ -124,13 +121,25 @@ public class SubscriptionController extends ISub.Stub {
     protected TelephonyManager mTelephonyManager;
     protected CallManager mCM;
 
-    // FIXME: Does not allow for multiple subs in a slot and change to SparseArray
-    private static HashMap<Integer, Integer> mSlotIdxToSubId = new HashMap<Integer, Integer>();
-    private static int mDefaultFallbackSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+    // FIXME: Does not allow for multiple subs in a slot
+    // Slot to subId map and default subIds. Replaced whole under sSubIndexLock on every change,
+    // read without locking.
+    private static volatile SubscriptionIndex sSubIndex = SubscriptionIndex.EMPTY;
+    private static final Object sSubIndexLock = new Object();
     private static int mDefaultPhoneId = SubscriptionManager.DEFAULT_PHONE_INDEX;
 
+    private boolean mIsVoiceCapable;
+
     private int[] colorArr;
 
+    // The active records, rebuilt on the first read after a writer changes the database
+    private final Object mSnapshotLock = new Object();
+    private final Object mSnapshotBuildLock = new Object();
+    private long mSnapshotGeneration; // guarded by mSnapshotLock
+    private volatile SubscriptionInfoSnapshot mActiveSnapshot;
+    // The blank icon of the records, decoded once
+    private volatile Bitmap mSubInfoIcon;
+
     public static SubscriptionController init(Phone phone) {
         synchronized (SubscriptionController.class) {
             if (sInstance == null) {
@@ -167,6 +176,8 @@ public class SubscriptionController extends ISub.Stub {
         mCM = CallManager.getInstance();
         mTelephonyManager = TelephonyManager.from(mContext);
 
+        initDefaultSubIds();
+
         if(ServiceManager.getService("isub") == null) {
                 ServiceManager.addService("isub", this);
         }
@@ -175,12 +186,13 @@ public class SubscriptionController extends ISub.Stub {
     }
 
     private boolean isSubInfoReady() {
-        return mSlotIdxToSubId.size() > 0;
+        return sSubIndex.size() > 0;
     }
 
     private SubscriptionController(Phone phone) {
         mContext = phone.getContext();
         mCM = CallManager.getInstance();
+        initDefaultSubIds();
 
         if(ServiceManager.getService("isub") == null) {
                 ServiceManager.addService("isub", this);
@@ -189,6 +201,49 @@ public class SubscriptionController extends ISub.Stub {
         if (DBG) logdl("[SubscriptionController] init by Phone");
     }
 
+    /**
+     * Load the default subIds from Settings into the index, and reload them whenever they
+     * change there, so the getters need not read Settings.
+     */
+    private void initDefaultSubIds() {
+        mIsVoiceCapable = mContext.getResources().getBoolean(
+                com.android.internal.R.bool.config_voice_capable);
+
+        // No handler: reloading is cheap and safe on any thread
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                reloadDefaultSubIds();
+            }
+        };
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.registerContentObserver(Settings.Global.getUriFor(
+                Settings.Global.MULTI_SIM_VOICE_CALL_SUBSCRIPTION), false, observer);
+        resolver.registerContentObserver(Settings.Global.getUriFor(
+                Settings.Global.MULTI_SIM_DATA_CALL_SUBSCRIPTION), false, observer);
+        resolver.registerContentObserver(Settings.Global.getUriFor(
+                Settings.Global.MULTI_SIM_SMS_SUBSCRIPTION), false, observer);
+        reloadDefaultSubIds();
+    }
+
+    private void reloadDefaultSubIds() {
+        ContentResolver resolver = mContext.getContentResolver();
+        synchronized (sSubIndexLock) {
+            SubscriptionIndex index = sSubIndex;
+            sSubIndex = index.withDefaults(
+                    Settings.Global.getInt(resolver,
+                            Settings.Global.MULTI_SIM_VOICE_CALL_SUBSCRIPTION,
+                            SubscriptionManager.INVALID_SUBSCRIPTION_ID),
+                    Settings.Global.getInt(resolver,
+                            Settings.Global.MULTI_SIM_DATA_CALL_SUBSCRIPTION,
+                            SubscriptionManager.INVALID_SUBSCRIPTION_ID),
+                    Settings.Global.getInt(resolver,
+                            Settings.Global.MULTI_SIM_SMS_SUBSCRIPTION,
+                            SubscriptionManager.INVALID_SUBSCRIPTION_ID),
+                    index.mDefaultFallbackSubId);
+        }
+    }
+
     /**
      * Make sure the caller has the READ_PHONE_STATE permission.
      *
@@ -223,6 +278,8 @@ public class SubscriptionController extends ISub.Stub {
      }
 
      public void notifySubscriptionInfoChanged() {
+         // Whoever called has already written the database
+         invalidateActiveSubInfoCache();
          if (!checkNotifyPermission("notifySubscriptionInfoChanged")) {
              return;
          }
@@ -245,6 +302,14 @@ public class SubscriptionController extends ISub.Stub {
      * @return the query result of desired SubInfoRecord
      */
     private SubscriptionInfo getSubInfoRecord(Cursor cursor) {
+        return withCurrentNumberAndCountry(readSubInfoRecord(cursor));
+    }
+
+    /**
+     * New SubInfoRecord instance holding only what the database holds: the number from the
+     * database and no country ISO.
+     */
+    private SubscriptionInfo readSubInfoRecord(Cursor cursor) {
         int id = cursor.getInt(cursor.getColumnIndexOrThrow(
                 SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID));
         String iccId = cursor.getString(cursor.getColumnIndexOrThrow(
@@ -263,30 +328,61 @@ public class SubscriptionController extends ISub.Stub {
                 SubscriptionManager.NUMBER));
         int dataRoaming = cursor.getInt(cursor.getColumnIndexOrThrow(
                 SubscriptionManager.DATA_ROAMING));
-        // Get the blank bitmap for this SubInfoRecord
-        Bitmap iconBitmap = BitmapFactory.decodeResource(mContext.getResources(),
-                com.android.internal.R.drawable.ic_sim_card_multi_24px_clr);
         int mcc = cursor.getInt(cursor.getColumnIndexOrThrow(
                 SubscriptionManager.MCC));
         int mnc = cursor.getInt(cursor.getColumnIndexOrThrow(
                 SubscriptionManager.MNC));
-        // FIXME: consider stick this into database too
-        String countryIso = getSubscriptionCountryIso(id);
 
         if (DBG) {
             logd("[getSubInfoRecord] id:" + id + " iccid:" + iccId + " simSlotIndex:" + simSlotIndex
                 + " displayName:" + displayName + " nameSource:" + nameSource
                 + " iconTint:" + iconTint + " dataRoaming:" + dataRoaming
-                + " mcc:" + mcc + " mnc:" + mnc + " countIso:" + countryIso);
+                + " mcc:" + mcc + " mnc:" + mnc);
         }
 
+        return new SubscriptionInfo(id, iccId, simSlotIndex, displayName, carrierName,
+                nameSource, iconTint, number, dataRoaming, getSubInfoIcon(), mcc, mnc, null);
+    }
+
+    /**
+     * Copy a record read from the database, adding the current country ISO and line 1
+     * number. Neither is in the database, and both change without it being written.
+     *
+     * @param si the record as read by readSubInfoRecord, or null
+     * @return the copy, or null if si is null
+     */
+    private SubscriptionInfo withCurrentNumberAndCountry(SubscriptionInfo si) {
+        if (si == null) {
+            return null;
+        }
+        int id = si.getSubscriptionId();
+        // FIXME: consider stick this into database too
+        String countryIso = getSubscriptionCountryIso(id);
+        if (DBG) logd("[withCurrentNumberAndCountry] id:" + id + " countIso:" + countryIso);
+
+        String number = si.getNumber();
         String line1Number = mTelephonyManager.getLine1NumberForSubscriber(id);
         if (!TextUtils.isEmpty(line1Number) && !line1Number.equals(number)) {
             logd("Line1Number is different: " + line1Number);
             number = line1Number;
         }
-        return new SubscriptionInfo(id, iccId, simSlotIndex, displayName, carrierName,
-                nameSource, iconTint, number, dataRoaming, iconBitmap, mcc, mnc, countryIso);
+        return new SubscriptionInfo(id, si.getIccId(), si.getSimSlotIndex(),
+                si.getDisplayName(), si.getCarrierName(), si.getNameSource(), si.getIconTint(),
+                number, si.getDataRoaming(), getSubInfoIcon(), si.getMcc(), si.getMnc(),
+                countryIso);
+    }
+
+    /**
+     * Get the blank bitmap for the SubInfoRecords.
+     */
+    private Bitmap getSubInfoIcon() {
+        Bitmap icon = mSubInfoIcon;
+        if (icon == null) {
+            icon = BitmapFactory.decodeResource(mContext.getResources(),
+                    com.android.internal.R.drawable.ic_sim_card_multi_24px_clr);
+            mSubInfoIcon = icon;
+        }
+        return icon;
     }
 
     /**
@@ -310,6 +406,19 @@ public class SubscriptionController extends ISub.Stub {
      * @return Array list of queried result from database
      */
      private List<SubscriptionInfo> getSubInfo(String selection, Object queryKey) {
+        return getSubInfo(selection, queryKey, true);
+    }
+
+    /**
+     * Query SubInfoRecord(s) from subinfo database
+     * @param selection A filter declaring which rows to return
+     * @param queryKey query key content
+     * @param current true to add the current country ISO and line 1 number to the records,
+     *        false for records holding only what the database holds
+     * @return Array list of queried result from database
+     */
+    private List<SubscriptionInfo> getSubInfo(String selection, Object queryKey,
+            boolean current) {
         if (DBG) logd("selection:" + selection + " " + queryKey);
         String[] selectionArgs = null;
         if (queryKey != null) {
@@ -321,7 +430,8 @@ public class SubscriptionController extends ISub.Stub {
         try {
             if (cursor != null) {
                 while (cursor.moveToNext()) {
-                    SubscriptionInfo subInfo = getSubInfoRecord(cursor);
+                    SubscriptionInfo subInfo = current
+                            ? getSubInfoRecord(cursor) : readSubInfoRecord(cursor);
                     if (subInfo != null)
                     {
                         if (subList == null)
@@ -343,6 +453,56 @@ public class SubscriptionController extends ISub.Stub {
         return subList;
     }
 
+    /**
+     * Drop the cached active SubscriptionInfo records, after the subinfo database or the
+     * slot to subId map has been written. The next read queries the database again.
+     */
+    void invalidateActiveSubInfoCache() {
+        synchronized (mSnapshotLock) {
+            mSnapshotGeneration++;
+            mActiveSnapshot = null;
+        }
+    }
+
+    /**
+     * Get the active SubscriptionInfo records, querying the database only if it has been
+     * written since they were last read. Callers check the permission of their caller first.
+     */
+    private SubscriptionInfoSnapshot getActiveSubInfoSnapshot() {
+        SubscriptionInfoSnapshot snapshot = mActiveSnapshot;
+        if (snapshot != null) {
+            return snapshot;
+        }
+        // One query at a time, so a burst of readers after a change shares it
+        synchronized (mSnapshotBuildLock) {
+            snapshot = mActiveSnapshot;
+            if (snapshot != null) {
+                return snapshot;
+            }
+            long generation;
+            synchronized (mSnapshotLock) {
+                generation = mSnapshotGeneration;
+            }
+            // The records must not depend on which caller happened to read them first
+            final long token = Binder.clearCallingIdentity();
+            try {
+                snapshot = new SubscriptionInfoSnapshot(generation,
+                        getSubInfo(SubscriptionManager.SIM_SLOT_INDEX + ">=0", null, false));
+            } finally {
+                Binder.restoreCallingIdentity(token);
+            }
+            synchronized (mSnapshotLock) {
+                // Keep it only if nothing was written while it was read
+                if (generation == mSnapshotGeneration) {
+                    mActiveSnapshot = snapshot;
+                }
+            }
+            if (DBG) logd("[getActiveSubInfoSnapshot] generation=" + generation
+                    + " size=" + snapshot.size());
+            return snapshot;
+        }
+    }
+
     /**
      * Find unused color to be set for new SubInfoRecord
      * @return RGB integer value of color
@@ -378,20 +538,14 @@ public class SubscriptionController extends ISub.Stub {
     public SubscriptionInfo getActiveSubscriptionInfo(int subId) {
         enforceSubscriptionPermission();
 
-        List<SubscriptionInfo> subList = getActiveSubscriptionInfoList();
-        if (subList != null) {
-            for (SubscriptionInfo si : subList) {
-                if (si.getSubscriptionId() == subId) {
-                    if (DBG) logd("[getActiveSubInfoForSubscriber]+ subId=" + subId + " subInfo=" + si);
-                    return si;
-                }
-            }
-        }
-        if (DBG) {
-            logd("[getActiveSubInfoForSubscriber]- subId=" + subId
-                    + " subList=" + subList + " subInfo=null");
+        if (!isSubInfoReady()) {
+            if (DBG) logd("[getActiveSubInfoForSubscriber]- subId=" + subId + " not ready");
+            return null;
         }
-        return null;
+        SubscriptionInfo si = withCurrentNumberAndCountry(
+                getActiveSubInfoSnapshot().getBySubId(subId));
+        if (DBG) logd("[getActiveSubInfoForSubscriber]+ subId=" + subId + " subInfo=" + si);
+        return si;
     }
 
     /**
@@ -403,20 +557,14 @@ public class SubscriptionController extends ISub.Stub {
     public SubscriptionInfo getActiveSubscriptionInfoForIccId(String iccId) {
         enforceSubscriptionPermission();
 
-        List<SubscriptionInfo> subList = getActiveSubscriptionInfoList();
-        if (subList != null) {
-            for (SubscriptionInfo si : subList) {
-                if (si.getIccId() == iccId) {
-                    if (DBG) logd("[getActiveSubInfoUsingIccId]+ iccId=" + iccId + " subInfo=" + si);
-                    return si;
-                }
-            }
-        }
-        if (DBG) {
-            logd("[getActiveSubInfoUsingIccId]+ iccId=" + iccId
-                    + " subList=" + subList + " subInfo=null");
+        if (!isSubInfoReady()) {
+            if (DBG) logd("[getActiveSubInfoUsingIccId]- iccId=" + iccId + " not ready");
+            return null;
         }
-        return null;
+        SubscriptionInfo si = withCurrentNumberAndCountry(
+                getActiveSubInfoSnapshot().getByIccId(iccId));
+        if (DBG) logd("[getActiveSubInfoUsingIccId]+ iccId=" + iccId + " subInfo=" + si);
+        return si;
     }
 
     /**
@@ -428,27 +576,17 @@ public class SubscriptionController extends ISub.Stub {
     public SubscriptionInfo getActiveSubscriptionInfoForSimSlotIndex(int slotIdx) {
         enforceSubscriptionPermission();
 
-        List<SubscriptionInfo> subList = getActiveSubscriptionInfoList();
-        if (subList != null) {
-            for (SubscriptionInfo si : subList) {
-                if (si.getSimSlotIndex() == slotIdx) {
-                    if (DBG) {
-                        logd("[getActiveSubscriptionInfoForSimSlotIndex]+ slotIdx=" + slotIdx
-                            + " subId=" + si);
-                    }
-                    return si;
-                }
-            }
-            if (DBG) {
-                logd("[getActiveSubscriptionInfoForSimSlotIndex]+ slotIdx=" + slotIdx
-                    + " subId=null");
-            }
-        } else {
-            if (DBG) {
-                logd("[getActiveSubscriptionInfoForSimSlotIndex]+ subList=null");
-            }
+        if (!isSubInfoReady()) {
+            if (DBG) logd("[getActiveSubscriptionInfoForSimSlotIndex]+ not ready");
+            return null;
+        }
+        SubscriptionInfo si = withCurrentNumberAndCountry(
+                getActiveSubInfoSnapshot().getBySimSlotIndex(slotIdx));
+        if (DBG) {
+            logd("[getActiveSubscriptionInfoForSimSlotIndex]+ slotIdx=" + slotIdx
+                + " subId=" + si);
         }
-        return null;
+        return si;
     }
 
     /**
@@ -488,22 +626,11 @@ public class SubscriptionController extends ISub.Stub {
             return subList;
         }
 
-        subList = getSubInfo(SubscriptionManager.SIM_SLOT_INDEX + ">=0", null);
+        subList = getActiveSubInfoSnapshot().getList();
         if (subList != null) {
-            // FIXME: Unnecessary when an insertion sort is used!
-            Collections.sort(subList, new Comparator<SubscriptionInfo>() {
-                @Override
-                public int compare(SubscriptionInfo arg0, SubscriptionInfo arg1) {
-                    // Primary sort key on SimSlotIndex
-                    int flag = arg0.getSimSlotIndex() - arg1.getSimSlotIndex();
-                    if (flag == 0) {
-                        // Secondary sort on SubscriptionId
-                        return arg0.getSubscriptionId() - arg1.getSubscriptionId();
-                    }
-                    return flag;
-                }
-            });
-
+            for (int i = 0; i < subList.size(); i++) {
+                subList.set(i, withCurrentNumberAndCountry(subList.get(i)));
+            }
             if (DBG) logdl("[getActiveSubInfoList]- " + subList.size() + " infos return");
         } else {
             if (DBG) logdl("[getActiveSubInfoList]- no info return");
@@ -519,13 +646,14 @@ public class SubscriptionController extends ISub.Stub {
     @Override
     public int getActiveSubInfoCount() {
         if (DBG) logd("[getActiveSubInfoCount]+");
-        List<SubscriptionInfo> records = getActiveSubscriptionInfoList();
-        if (records == null) {
+        enforceSubscriptionPermission();
+        if (!isSubInfoReady()) {
             if (DBG) logd("[getActiveSubInfoCount] records null");
             return 0;
         }
-        if (DBG) logd("[getActiveSubInfoCount]- count: " + records.size());
-        return records.size();
+        int count = getActiveSubInfoSnapshot().size();
+        if (DBG) logd("[getActiveSubInfoCount]- count: " + count);
+        return count;
     }
 
     /**
@@ -655,23 +783,28 @@ public class SubscriptionController extends ISub.Stub {
                 do {
                     int subId = cursor.getInt(cursor.getColumnIndexOrThrow(
                             SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID));
-                    // If mSlotIdToSubIdMap already has a valid subId for a slotId/phoneId,
+                    // If sSubIndex already has a valid subId for a slotId/phoneId,
                     // do not add another subId for same slotId/phoneId.
-                    Integer currentSubId = mSlotIdxToSubId.get(slotId);
-                    if (currentSubId == null
-                            || !SubscriptionManager.isValidSubscriptionId(currentSubId)) {
-                        // TODO While two subs active, if user deactivats first
-                        // one, need to update the default subId with second one.
-
-                        // FIXME: Currently we assume phoneId == slotId which in the future
-                        // may not be true, for instance with multiple subs per slot.
-                        // But is true at the moment.
-                        mSlotIdxToSubId.put(slotId, subId);
+                    boolean added;
+                    synchronized (sSubIndexLock) {
+                        added = !SubscriptionManager.isValidSubscriptionId(
+                                sSubIndex.getSubId(slotId));
+                        if (added) {
+                            // TODO While two subs active, if user deactivats first
+                            // one, need to update the default subId with second one.
+
+                            // FIXME: Currently we assume phoneId == slotId which in the future
+                            // may not be true, for instance with multiple subs per slot.
+                            // But is true at the moment.
+                            sSubIndex = sSubIndex.withSlot(slotId, subId);
+                        }
+                    }
+                    if (added) {
                         int subIdCountMax = getActiveSubInfoCountMax();
                         int defaultSubId = getDefaultSubId();
                         if (DBG) {
                             logdl("[addSubInfoRecord]"
-                                + " mSlotIdxToSubId.size=" + mSlotIdxToSubId.size()
+                                + " sSubIndex.size=" + sSubIndex.size()
                                 + " slotId=" + slotId + " subId=" + subId
                                 + " defaultSubId=" + defaultSubId + " simCount=" + subIdCountMax);
                         }
@@ -705,10 +838,12 @@ public class SubscriptionController extends ISub.Stub {
             }
         }
 
+        invalidateActiveSubInfoCache();
+
         // Once the records are loaded, notify DcTracker
         updateAllDataConnectionTrackers();
 
-        if (DBG) logdl("[addSubInfoRecord]- info size=" + mSlotIdxToSubId.size());
+        if (DBG) logdl("[addSubInfoRecord]- info size=" + sSubIndex.size());
         return 0;
     }
 
@@ -951,27 +1086,20 @@ public class SubscriptionController extends ISub.Stub {
             return SubscriptionManager.INVALID_SIM_SLOT_INDEX;
         }
 
-        int size = mSlotIdxToSubId.size();
-
-        if (size == 0)
+        SubscriptionIndex index = sSubIndex;
+        if (index.size() == 0)
         {
             if (DBG) logd("[getSlotId]- size == 0, return SIM_NOT_INSERTED instead");
             return SubscriptionManager.SIM_NOT_INSERTED;
         }
 
-        for (Entry<Integer, Integer> entry: mSlotIdxToSubId.entrySet()) {
-            int sim = entry.getKey();
-            int sub = entry.getValue();
-
-            if (subId == sub)
-            {
-                if (VDBG) logv("[getSlotId]- return = " + sim);
-                return sim;
-            }
+        int sim = index.getSlotId(subId);
+        if (sim == SubscriptionManager.INVALID_SIM_SLOT_INDEX) {
+            if (DBG) logd("[getSlotId]- return fail");
+        } else {
+            if (VDBG) logv("[getSlotId]- return = " + sim);
         }
-
-        if (DBG) logd("[getSlotId]- return fail");
-        return SubscriptionManager.INVALID_SIM_SLOT_INDEX;
+        return sim;
     }
 
     /**
@@ -1000,33 +1128,19 @@ public class SubscriptionController extends ISub.Stub {
         }
 
         // Check if we've got any SubscriptionInfo records using slotIdToSubId as a surrogate.
-        int size = mSlotIdxToSubId.size();
-        if (size == 0) {
+        SubscriptionIndex index = sSubIndex;
+        if (index.size() == 0) {
             if (DBG) {
-                logd("[getSubId]- mSlotIdToSubIdMap.size == 0, return DummySubIds slotIdx="
+                logd("[getSubId]- sSubIndex.size == 0, return DummySubIds slotIdx="
                         + slotIdx);
             }
             return getDummySubIds(slotIdx);
         }
 
-        // Create an array of subIds that are in this slot?
-        ArrayList<Integer> subIds = new ArrayList<Integer>();
-        for (Entry<Integer, Integer> entry: mSlotIdxToSubId.entrySet()) {
-            int slot = entry.getKey();
-            int sub = entry.getValue();
-            if (slotIdx == slot) {
-                subIds.add(sub);
-            }
-        }
-
-        // Convert ArrayList to array
-        int numSubIds = subIds.size();
-        if (numSubIds > 0) {
-            int[] subIdArr = new int[numSubIds];
-            for (int i = 0; i < numSubIds; i++) {
-                subIdArr[i] = subIds.get(i);
-            }
-            if (VDBG) logd("[getSubId]- subIdArr=" + subIdArr);
+        // The subIds that are in this slot, shared by all callers
+        int[] subIdArr = index.getSubIds(slotIdx);
+        if (subIdArr != null) {
+            if (VDBG) logd("[getSubId]- subIdArr=" + Arrays.toString(subIdArr));
             return subIdArr;
         } else {
             if (DBG) logd("[getSubId]- numSubIds == 0, return DummySubIds slotIdx=" + slotIdx);
@@ -1052,22 +1166,18 @@ public class SubscriptionController extends ISub.Stub {
             return SubscriptionManager.INVALID_PHONE_INDEX;
         }
 
-        int size = mSlotIdxToSubId.size();
-        if (size == 0) {
+        SubscriptionIndex index = sSubIndex;
+        if (index.size() == 0) {
             phoneId = mDefaultPhoneId;
             if (DBG) logdl("[getPhoneId]- no sims, returning default phoneId=" + phoneId);
             return phoneId;
         }
 
         // FIXME: Assumes phoneId == slotId
-        for (Entry<Integer, Integer> entry: mSlotIdxToSubId.entrySet()) {
-            int sim = entry.getKey();
-            int sub = entry.getValue();
-
-            if (subId == sub) {
-                if (VDBG) logdl("[getPhoneId]- found subId=" + subId + " phoneId=" + sim);
-                return sim;
-            }
+        int sim = index.getSlotId(subId);
+        if (sim != SubscriptionManager.INVALID_SIM_SLOT_INDEX) {
+            if (VDBG) logdl("[getPhoneId]- found subId=" + subId + " phoneId=" + sim);
+            return sim;
         }
 
         phoneId = mDefaultPhoneId;
@@ -1107,14 +1217,20 @@ public class SubscriptionController extends ISub.Stub {
         enforceSubscriptionPermission();
         if (DBG) logd("[clearSubInfo]+");
 
-        int size = mSlotIdxToSubId.size();
+        int size;
+        synchronized (sSubIndexLock) {
+            size = sSubIndex.size();
+            if (size > 0) {
+                sSubIndex = sSubIndex.withoutSlots();
+            }
+        }
 
         if (size == 0) {
             if (DBG) logdl("[clearSubInfo]- no simInfo size=" + size);
             return 0;
         }
 
-        mSlotIdxToSubId.clear();
+        invalidateActiveSubInfoCache();
         if (DBG) logdl("[clearSubInfo]- clear size=" + size);
         return size;
     }
@@ -1153,17 +1269,17 @@ public class SubscriptionController extends ISub.Stub {
     @Override
     public int getDefaultSubId() {
         int subId;
-        boolean isVoiceCapable = mContext.getResources().getBoolean(
-                com.android.internal.R.bool.config_voice_capable);
-        if (isVoiceCapable) {
-            subId = getDefaultVoiceSubId();
+        // One index for all the reads, so they agree with each other
+        SubscriptionIndex index = sSubIndex;
+        if (mIsVoiceCapable) {
+            subId = index.mDefaultVoiceSubId;
             if (VDBG) logdl("[getDefaultSubId] isVoiceCapable subId=" + subId);
         } else {
-            subId = getDefaultDataSubId();
+            subId = index.mDefaultDataSubId;
             if (VDBG) logdl("[getDefaultSubId] NOT VoiceCapable subId=" + subId);
         }
-        if ( ! isActiveSubId(subId)) {
-            subId = mDefaultFallbackSubId;
+        if (!SubscriptionManager.isValidSubscriptionId(subId) || !index.containsSubId(subId)) {
+            subId = index.mDefaultFallbackSubId;
             if (VDBG) logdl("[getDefaultSubId] NOT active use fall back subId=" + subId);
         }
         if (VDBG) logv("[getDefaultSubId]- value = " + subId);
@@ -1178,6 +1294,7 @@ public class SubscriptionController extends ISub.Stub {
         if (DBG) logdl("[setDefaultSmsSubId] subId=" + subId);
         Settings.Global.putInt(mContext.getContentResolver(),
                 Settings.Global.MULTI_SIM_SMS_SUBSCRIPTION, subId);
+        reloadDefaultSubIds();
         broadcastDefaultSmsSubIdChanged(subId);
     }
 
@@ -1192,9 +1309,7 @@ public class SubscriptionController extends ISub.Stub {
 
     @Override
     public int getDefaultSmsSubId() {
-        int subId = Settings.Global.getInt(mContext.getContentResolver(),
-                Settings.Global.MULTI_SIM_SMS_SUBSCRIPTION,
-                SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+        int subId = sSubIndex.mDefaultSmsSubId;
         if (VDBG) logd("[getDefaultSmsSubId] subId=" + subId);
         return subId;
     }
@@ -1207,6 +1322,7 @@ public class SubscriptionController extends ISub.Stub {
         if (DBG) logdl("[setDefaultVoiceSubId] subId=" + subId);
         Settings.Global.putInt(mContext.getContentResolver(),
                 Settings.Global.MULTI_SIM_VOICE_CALL_SUBSCRIPTION, subId);
+        reloadDefaultSubIds();
         broadcastDefaultVoiceSubIdChanged(subId);
     }
 
@@ -1221,18 +1337,14 @@ public class SubscriptionController extends ISub.Stub {
 
     @Override
     public int getDefaultVoiceSubId() {
-        int subId = Settings.Global.getInt(mContext.getContentResolver(),
-                Settings.Global.MULTI_SIM_VOICE_CALL_SUBSCRIPTION,
-                SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+        int subId = sSubIndex.mDefaultVoiceSubId;
         if (VDBG) logd("[getDefaultVoiceSubId] subId=" + subId);
         return subId;
     }
 
     @Override
     public int getDefaultDataSubId() {
-        int subId = Settings.Global.getInt(mContext.getContentResolver(),
-                Settings.Global.MULTI_SIM_DATA_CALL_SUBSCRIPTION,
-                SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+        int subId = sSubIndex.mDefaultDataSubId;
         if (VDBG) logd("[getDefaultDataSubId] subId= " + subId);
         return subId;
     }
@@ -1276,6 +1388,7 @@ public class SubscriptionController extends ISub.Stub {
 
         Settings.Global.putInt(mContext.getContentResolver(),
                 Settings.Global.MULTI_SIM_DATA_CALL_SUBSCRIPTION, subId);
+        reloadDefaultSubIds();
         broadcastDefaultDataSubIdChanged(subId);
     }
 
@@ -1312,7 +1425,11 @@ public class SubscriptionController extends ISub.Stub {
             if (phoneId >= 0 && (phoneId < mTelephonyManager.getPhoneCount()
                     || mTelephonyManager.getSimCount() == 1)) {
                 if (DBG) logdl("[setDefaultFallbackSubId] set mDefaultFallbackSubId=" + subId);
-                mDefaultFallbackSubId = subId;
+                synchronized (sSubIndexLock) {
+                    SubscriptionIndex index = sSubIndex;
+                    sSubIndex = index.withDefaults(index.mDefaultVoiceSubId,
+                            index.mDefaultDataSubId, index.mDefaultSmsSubId, subId);
+                }
                 // Update MCC MNC device configuration information
                 String defaultMccMnc = mTelephonyManager.getSimOperatorNumericForPhone(phoneId);
                 MccTable.updateMccMncConfiguration(mContext, defaultMccMnc, false);
@@ -1453,35 +1570,17 @@ public class SubscriptionController extends ISub.Stub {
      */
     @Override
     public int[] getActiveSubIdList() {
-        Set<Entry<Integer, Integer>> simInfoSet = mSlotIdxToSubId.entrySet();
-        if (DBG) logdl("[getActiveSubIdList] simInfoSet=" + simInfoSet);
-
-        int[] subIdArr = new int[simInfoSet.size()];
-        int i = 0;
-        for (Entry<Integer, Integer> entry: simInfoSet) {
-            int sub = entry.getValue();
-            subIdArr[i] = sub;
-            i++;
-        }
+        // Shared by all callers
+        int[] subIdArr = sSubIndex.getSubIdList();
+        if (DBG) logdl("[getActiveSubIdList] subIdArr=" + Arrays.toString(subIdArr));
 
         if (DBG) logdl("[getActiveSubIdList] X subIdArr.length=" + subIdArr.length);
         return subIdArr;
     }
 
     private boolean isActiveSubId(int subId) {
-        boolean retVal = false;
-
-        if (SubscriptionManager.isValidSubscriptionId(subId)) {
-            Set<Entry<Integer, Integer>> simInfoSet = mSlotIdxToSubId.entrySet();
-            if (VDBG) logdl("[isActiveSubId] simInfoSet=" + simInfoSet);
-
-            for (Entry<Integer, Integer> entry: simInfoSet) {
-                if (subId == entry.getValue()) {
-                    retVal = true;
-                    break;
-                }
-            }
-        }
+        boolean retVal = SubscriptionManager.isValidSubscriptionId(subId)
+                && sSubIndex.containsSubId(subId);
 
         if (VDBG) logdl("[isActiveSubId]- " + retVal);
         return retVal;
@@ -1553,9 +1652,14 @@ public class SubscriptionController extends ISub.Stub {
                     .from(mContext).getDefaultSmsPhoneId());
             pw.flush();
 
-            for (Entry<Integer, Integer> entry : mSlotIdxToSubId.entrySet()) {
-                pw.println(" mSlotIdToSubIdMap[" + entry.getKey() + "]: subId=" + entry.getValue());
+            SubscriptionIndex index = sSubIndex;
+            for (int subId : index.getSubIdList()) {
+                pw.println(" sSubIndex[" + index.getSlotId(subId) + "]: subId=" + subId);
             }
+            pw.println(" sSubIndex=" + index);
+            SubscriptionInfoSnapshot snapshot = mActiveSnapshot;
+            pw.println(" mActiveSnapshot generation=" + (snapshot != null
+                    ? Long.toString(snapshot.getGeneration()) : "none"));
             pw.flush();
             pw.println("++++++++++++++++++++++++++++++++");
 
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.SubscriptionManager;
+
+import java.util.Arrays;
+
+/**
+ * The mapping between SIM slots and active subscription ids, and the default subscription ids,
+ * as {@link SubscriptionController} answers its lookups from.
+ *
+ * There is one subscription per slot, and the phone id of a slot is the slot index. The
+ * slots are kept in ascending order in an int array with the subscription id of each in a
+ * parallel array; with a handful of slots a scan of these is as fast as any map and boxes
+ * nothing. Instances are immutable: every change makes a new one, which the controller
+ * publishes through a volatile field, so lookups neither lock nor allocate.
+ *
+ * The arrays returned by {@link #getSubIds} and {@link #getSubIdList} are shared and must not
+ * be modified.
+ */
+final class SubscriptionIndex {
+    private static final int[] EMPTY_INTS = new int[0];
+
+    static final SubscriptionIndex EMPTY = new SubscriptionIndex(EMPTY_INTS, EMPTY_INTS,
+            SubscriptionManager.INVALID_SUBSCRIPTION_ID,
+            SubscriptionManager.INVALID_SUBSCRIPTION_ID,
+            SubscriptionManager.INVALID_SUBSCRIPTION_ID,
+            SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+
+    /** Slots holding an active subscription, ascending. */
+    private final int[] mSlots;
+    /** The subscription id in each of mSlots. */
+    private final int[] mSubIds;
+    /** The subscription ids in each of mSlots, as returned by getSubIds. */
+    private final int[][] mSubIdsBySlot;
+
+    final int mDefaultVoiceSubId;
+    final int mDefaultDataSubId;
+    final int mDefaultSmsSubId;
+    /** The subscription used when the preferred default is not active. */
+    final int mDefaultFallbackSubId;
+
+    private SubscriptionIndex(int[] slots, int[] subIds, int defaultVoiceSubId,
+            int defaultDataSubId, int defaultSmsSubId, int defaultFallbackSubId) {
+        mSlots = slots;
+        mSubIds = subIds;
+        mSubIdsBySlot = new int[subIds.length][];
+        for (int i = 0; i < subIds.length; i++) {
+            mSubIdsBySlot[i] = new int[] { subIds[i] };
+        }
+        mDefaultVoiceSubId = defaultVoiceSubId;
+        mDefaultDataSubId = defaultDataSubId;
+        mDefaultSmsSubId = defaultSmsSubId;
+        mDefaultFallbackSubId = defaultFallbackSubId;
+    }
+
+    /** Get the number of slots holding an active subscription. */
+    int size() {
+        return mSlots.length;
+    }
+
+    private int indexOfSlot(int slotIdx) {
+        for (int i = 0; i < mSlots.length; i++) {
+            if (mSlots[i] == slotIdx) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOfSubId(int subId) {
+        for (int i = 0; i < mSubIds.length; i++) {
+            if (mSubIds[i] == subId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Get the subscription id in a slot, or INVALID_SUBSCRIPTION_ID if there is none. */
+    int getSubId(int slotIdx) {
+        int i = indexOfSlot(slotIdx);
+        return (i >= 0) ? mSubIds[i] : SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+    }
+
+    /** Get the subscription ids in a slot, or null if there are none. */
+    int[] getSubIds(int slotIdx) {
+        int i = indexOfSlot(slotIdx);
+        return (i >= 0) ? mSubIdsBySlot[i] : null;
+    }
+
+    /**
+     * Get the slot, and so the phone id, of a subscription; the lowest one should the
+     * subscription be in several.
+     * @return the slot, or INVALID_SIM_SLOT_INDEX if the subscription is not active
+     */
+    int getSlotId(int subId) {
+        int i = indexOfSubId(subId);
+        return (i >= 0) ? mSlots[i] : SubscriptionManager.INVALID_SIM_SLOT_INDEX;
+    }
+
+    boolean containsSubId(int subId) {
+        return indexOfSubId(subId) >= 0;
+    }
+
+    /** Get the active subscription ids in slot order. */
+    int[] getSubIdList() {
+        return mSubIds;
+    }
+
+    /** Get a copy with <code>subId</code> in slot <code>slotIdx</code>. */
+    SubscriptionIndex withSlot(int slotIdx, int subId) {
+        int i = indexOfSlot(slotIdx);
+        int[] slots;
+        int[] subIds;
+        if (i >= 0) {
+            slots = mSlots;
+            subIds = mSubIds.clone();
+        } else {
+            // Insert keeping the slots ascending
+            i = 0;
+            while (i < mSlots.length && mSlots[i] < slotIdx) {
+                i++;
+            }
+            slots = insert(mSlots, i, slotIdx);
+            subIds = insert(mSubIds, i, subId);
+        }
+        subIds[i] = subId;
+        return new SubscriptionIndex(slots, subIds, mDefaultVoiceSubId, mDefaultDataSubId,
+                mDefaultSmsSubId, mDefaultFallbackSubId);
+    }
+
+    /** Get a copy with no slots, keeping the defaults. */
+    SubscriptionIndex withoutSlots() {
+        return new SubscriptionIndex(EMPTY_INTS, EMPTY_INTS, mDefaultVoiceSubId,
+                mDefaultDataSubId, mDefaultSmsSubId, mDefaultFallbackSubId);
+    }
+
+    /** Get a copy with other default subscription ids, sharing the slots. */
+    SubscriptionIndex withDefaults(int defaultVoiceSubId, int defaultDataSubId,
+            int defaultSmsSubId, int defaultFallbackSubId) {
+        return new SubscriptionIndex(mSlots, mSubIds, defaultVoiceSubId, defaultDataSubId,
+                defaultSmsSubId, defaultFallbackSubId);
+    }
+
+    private static int[] insert(int[] array, int index, int value) {
+        int[] result = new int[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "SubscriptionIndex{slots=" + Arrays.toString(mSlots)
+                + " subIds=" + Arrays.toString(mSubIds)
+                + " defaultVoice=" + mDefaultVoiceSubId
+                + " defaultData=" + mDefaultDataSubId
+                + " defaultSms=" + mDefaultSmsSubId
+                + " defaultFallback=" + mDefaultFallbackSubId + "}";
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.SubscriptionInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The active subscription records read from the subinfo database at one point, as
+ * {@link SubscriptionController} serves them until a writer changes the database. The records
+ * hold only what the database holds: the country ISO and the line 1 number change without it
+ * being written, so the controller adds their current values to each record it returns.
+ *
+ * The records are sorted by SIM slot index then by subscription id, and indexed by
+ * subscription id, ICCID and SIM slot index. Where several records share an ICCID or a slot,
+ * the index holds the first of them in that order, the one a scan of the list would find.
+ *
+ * Immutable, so it may be read on any thread without locking.
+ */
+final class SubscriptionInfoSnapshot {
+    /** Primary sort key on SimSlotIndex, secondary sort on SubscriptionId. */
+    private static final Comparator<SubscriptionInfo> ORDER = new Comparator<SubscriptionInfo>() {
+        @Override
+        public int compare(SubscriptionInfo arg0, SubscriptionInfo arg1) {
+            int flag = arg0.getSimSlotIndex() - arg1.getSimSlotIndex();
+            if (flag == 0) {
+                return arg0.getSubscriptionId() - arg1.getSubscriptionId();
+            }
+            return flag;
+        }
+    };
+
+    private final long mGeneration;
+    private final List<SubscriptionInfo> mList;
+    private final HashMap<Integer, SubscriptionInfo> mBySubId;
+    private final HashMap<String, SubscriptionInfo> mByIccId;
+    private final HashMap<Integer, SubscriptionInfo> mBySlot;
+
+    /**
+     * @param generation the generation of the database the records were read at
+     * @param records the records, in any order, or null if there are none
+     */
+    SubscriptionInfoSnapshot(long generation, List<SubscriptionInfo> records) {
+        mGeneration = generation;
+        ArrayList<SubscriptionInfo> list = (records != null)
+                ? new ArrayList<SubscriptionInfo>(records) : new ArrayList<SubscriptionInfo>(0);
+        Collections.sort(list, ORDER);
+        mList = Collections.unmodifiableList(list);
+
+        mBySubId = new HashMap<Integer, SubscriptionInfo>(list.size() * 2);
+        mByIccId = new HashMap<String, SubscriptionInfo>(list.size() * 2);
+        mBySlot = new HashMap<Integer, SubscriptionInfo>(list.size() * 2);
+        for (SubscriptionInfo si : list) {
+            putIfAbsent(mBySubId, si.getSubscriptionId(), si);
+            if (si.getIccId() != null) {
+                putIfAbsent(mByIccId, si.getIccId(), si);
+            }
+            putIfAbsent(mBySlot, si.getSimSlotIndex(), si);
+        }
+    }
+
+    private static <K> void putIfAbsent(HashMap<K, SubscriptionInfo> map, K key,
+            SubscriptionInfo si) {
+        if (!map.containsKey(key)) {
+            map.put(key, si);
+        }
+    }
+
+    /** Get the generation of the database the records were read at. */
+    long getGeneration() {
+        return mGeneration;
+    }
+
+    /** Get the number of records. */
+    int size() {
+        return mList.size();
+    }
+
+    /**
+     * Get the records in order, in a new list the caller may change.
+     * @return the records, or null if there are none
+     */
+    List<SubscriptionInfo> getList() {
+        return mList.isEmpty() ? null : new ArrayList<SubscriptionInfo>(mList);
+    }
+
+    /** Get the record with the subscription id, or null. */
+    SubscriptionInfo getBySubId(int subId) {
+        return mBySubId.get(subId);
+    }
+
+    /** Get the first record with the ICCID, or null. */
+    SubscriptionInfo getByIccId(String iccId) {
+        return (iccId != null) ? mByIccId.get(iccId) : null;
+    }
+
+    /** Get the first record in the SIM slot, or null. */
+    SubscriptionInfo getBySimSlotIndex(int slotIdx) {
+        return mBySlot.get(slotIdx);
+    }
+}
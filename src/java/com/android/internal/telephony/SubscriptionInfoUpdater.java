@@ -344,6 +344,8 @@ public class SubscriptionInfoUpdater extends Handler {
                         SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID
                         + "=" + Long.toString(subId), null);
             }
+            // Written behind SubscriptionController's back, so drop what it has cached
+            SubscriptionController.getInstance().invalidateActiveSubInfoCache();
 
             /* Update preferred network type and network selection mode on SIM change.
              * Storing last subId in SharedPreference for now to detect SIM change. */
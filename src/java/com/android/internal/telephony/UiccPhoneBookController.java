@@ -130,6 +130,20 @@ public class UiccPhoneBookController extends IIccPhoneBook.Stub {
         }
     }
 
+    @Override
+    public List<AdnRecord> searchAdnRecordsInEfForSubscriber(int subId, int efid,
+            String tag, String phoneNumber) throws android.os.RemoteException {
+        IccPhoneBookInterfaceManagerProxy iccPbkIntMgrProxy =
+                             getIccPhoneBookInterfaceManagerProxy(subId);
+        if (iccPbkIntMgrProxy != null) {
+            return iccPbkIntMgrProxy.searchAdnRecordsInEf(efid, tag, phoneNumber);
+        } else {
+            Rlog.e(TAG,"searchAdnRecordsInEf iccPbkIntMgrProxy is" +
+                      "null for Subscription:"+subId);
+            return null;
+        }
+    }
+
     /**
      * get phone book interface manager proxy object based on subscription.
      **/
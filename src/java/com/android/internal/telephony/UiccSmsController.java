@@ -192,6 +192,23 @@ public class UiccSmsController extends ISms.Stub {
         return false;
     }
 
+    /**
+     * Enable several ranges of cell broadcast message identifiers with one radio update.
+     * @see IccSmsInterfaceManager#enableCellBroadcastRanges
+     */
+    public boolean enableCellBroadcastRangesForSubscriber(int subId, int[] startMessageIds,
+            int[] endMessageIds, int ranType) {
+        IccSmsInterfaceManager iccSmsIntMgr = getIccSmsInterfaceManager(subId);
+        if (iccSmsIntMgr != null ) {
+            return iccSmsIntMgr.enableCellBroadcastRanges(startMessageIds, endMessageIds,
+                    ranType);
+        } else {
+            Rlog.e(LOG_TAG,"enableCellBroadcastRanges iccSmsIntMgr is null for" +
+                          " Subscription: " + subId);
+        }
+        return false;
+    }
+
     public boolean disableCellBroadcast(int messageIdentifier, int ranType)
             throws android.os.RemoteException {
         return disableCellBroadcastForSubscriber(getPreferredSmsSubscription(), messageIdentifier,
@@ -39,6 +39,7 @@ import com.android.internal.telephony.DriverCall;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneBase;
 import com.android.internal.telephony.PhoneConstants;
+import com.android.internal.telephony.PolledCallTable;
 import com.android.internal.telephony.TelephonyProperties;
 import com.android.internal.telephony.imsphone.ImsPhone;
 import com.android.internal.telephony.imsphone.ImsPhoneConnection;
@@ -67,6 +68,8 @@ public final class CdmaCallTracker extends CallTracker {
     //***** Instance Variables
 
     CdmaConnection mConnections[] = new CdmaConnection[MAX_CONNECTIONS];
+    // What mConnections looked like after the last poll
+    PolledCallTable mPolledCalls = new PolledCallTable(MAX_CONNECTIONS);
     RegistrantList mVoiceCallEndedRegistrants = new RegistrantList();
     RegistrantList mVoiceCallStartedRegistrants = new RegistrantList();
     RegistrantList mCallWaitingRegistrants =  new RegistrantList();
@@ -275,6 +278,7 @@ public final class CdmaCallTracker extends CallTracker {
             // Attach the new connection to foregroundCall
             mPendingMO = new CdmaConnection(mPhone.getContext(),
                                 checkForTestEmergencyNumber(dialString), this, mForegroundCall);
+            mPolledCalls.clear();
             // Some network need a empty flash before sending the normal one
             m3WayCallFlashDelay = mPhone.getContext().getResources()
                     .getInteger(com.android.internal.R.integer.config_cdma_3waycall_flash_delay);
@@ -335,6 +339,7 @@ public final class CdmaCallTracker extends CallTracker {
             // For CDMA networks which do not support this the user would just hear a beep
             // from the network. For CDMA networks which do support it will put the other
             // party on hold.
+            mPolledCalls.clear();
             mCi.sendCDMAFeatureCode("", obtainMessage(EVENT_SWITCH_RESULT));
         }
     }
@@ -435,6 +440,8 @@ public final class CdmaCallTracker extends CallTracker {
         mPendingOperations++;
         mLastRelevantPoll = null;
         mNeedsPoll = true;
+        // The command may change connections before the next poll shows it
+        mPolledCalls.clear();
 
         if (DBG_POLL) log("obtainCompleteMessage: pendingOperations=" +
                 mPendingOperations + ", needsPoll=" + mNeedsPoll);
@@ -450,8 +457,7 @@ public final class CdmaCallTracker extends CallTracker {
                 mPendingOperations + ", needsPoll=" + mNeedsPoll);
 
         if (mPendingOperations == 0 && mNeedsPoll) {
-            mLastRelevantPoll = obtainMessage(EVENT_POLL_CALLS_RESULT);
-            mCi.getCurrentCalls(mLastRelevantPoll);
+            pollCalls();
         } else if (mPendingOperations < 0) {
             // this should never happen
             Rlog.e(LOG_TAG,"CdmaCallTracker.pendingOperations < 0");
@@ -570,6 +576,7 @@ public final class CdmaCallTracker extends CallTracker {
 
                         // Do not continue processing this poll
                         // Wait for hangup and repoll
+                        mPolledCalls.clear();
                         return;
                     }
                 } else {
@@ -647,13 +654,15 @@ public final class CdmaCallTracker extends CallTracker {
                         // continue to use the call info from conn, and only take a log.
                         Rlog.e(LOG_TAG,"Error in RIL, Phantom call appeared " + dc);
                     }
-                } else {
+                } else if (!mPolledCalls.isUnchanged(i, dc, conn)) {
                     boolean changed;
                     changed = conn.update(dc);
                     hasNonHangupStateChanged = hasNonHangupStateChanged || changed;
                 }
             }
 
+            mPolledCalls.put(i, dc, mConnections[i]);
+
             if (REPEAT_POLLING) {
                 if (dc != null) {
                     // FIXME with RIL, we should not need this anymore
@@ -927,6 +936,7 @@ public final class CdmaCallTracker extends CallTracker {
     }
 
     private void flashAndSetGenericTrue() {
+        mPolledCalls.clear();
         mCi.sendCDMAFeatureCode("", obtainMessage(EVENT_SWITCH_RESULT));
 
         // Set generic to true because in CDMA it is not known what
@@ -989,7 +999,9 @@ public final class CdmaCallTracker extends CallTracker {
                             "handle EVENT_POLL_CALL_RESULT: set needsPoll=F");
                     mNeedsPoll = false;
                     mLastRelevantPoll = null;
-                    handlePollCalls((AsyncResult)msg.obj);
+                    if (onRelevantPollResult()) {
+                        handlePollCalls((AsyncResult)msg.obj);
+                    }
                 }
             }
             break;
@@ -1197,6 +1209,7 @@ public final class CdmaCallTracker extends CallTracker {
         pw.println(" mVoiceCallEndedRegistrants=" + mVoiceCallEndedRegistrants);
         pw.println(" mVoiceCallStartedRegistrants=" + mVoiceCallStartedRegistrants);
         pw.println(" mCallWaitingRegistrants=" + mCallWaitingRegistrants);
+        pw.println(" mPolledCalls=" + mPolledCalls);
         pw.println("droppedDuringPoll: size=" + mDroppedDuringPoll.size());
         for(int i = 0; i < mDroppedDuringPoll.size(); i++) {
             pw.printf( " mDroppedDuringPoll[%d]=%s\n", i, mDroppedDuringPoll.get(i));
@@ -727,7 +727,13 @@ public class SmsMessage extends SmsMessageBase {
             }
             return;
         }
-        mBearerData = BearerData.decode(mEnvelope.bearerData);
+        if (mBearerData == null) {
+            // The envelope never changes, so a message parsed when created and again when
+            // dispatched decodes its bearer data once. SCPT messages only need the program data.
+            int subparamMask = (mEnvelope.teleService == SmsEnvelope.TELESERVICE_SCPT)
+                    ? BearerData.SUBPARAMS_SCPT : BearerData.SUBPARAMS_ALL;
+            mBearerData = BearerData.decode(mEnvelope.bearerData, 0, subparamMask);
+        }
         if (Rlog.isLoggable(LOGGABLE_TAG, Log.VERBOSE)) {
             Rlog.d(LOG_TAG, "MT raw BearerData = '" +
                       HexDump.toHexString(mEnvelope.bearerData) + "'");
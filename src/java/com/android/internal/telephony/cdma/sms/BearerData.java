@@ -26,11 +26,14 @@ import android.telephony.Rlog;
 import com.android.internal.telephony.GsmAlphabet;
 import com.android.internal.telephony.SmsConstants;
 import com.android.internal.telephony.SmsHeader;
+import com.android.internal.telephony.SmsTextEncoder;
 import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
 import com.android.internal.telephony.uicc.IccUtils;
 import com.android.internal.util.BitwiseInputStream;
 import com.android.internal.util.BitwiseOutputStream;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.TimeZone;
 
@@ -73,6 +76,19 @@ public final class BearerData {
     // All other values after this are reserved.
     private final static byte SUBPARAM_ID_LAST_DEFINED                    = 0x17;
 
+    /**
+     * Masks of subparameters for {@link #decode(byte[], int, int)}, by identifier bit.
+     */
+    public static final int SUBPARAMS_ALL = 0xFFFFFFFF;
+
+    /**
+     * The subparameters of a Service Category Programming Teleservice message: its program
+     * data, and what is needed to handle it as an incoming SMS. Any user data is not decoded.
+     */
+    public static final int SUBPARAMS_SCPT = (1 << SUBPARAM_MESSAGE_IDENTIFIER)
+            | (1 << SUBPARAM_MESSAGE_CENTER_TIME_STAMP)
+            | (1 << SUBPARAM_SERVICE_CATEGORY_PROGRAM_DATA);
+
     /**
      * Supported message types for CDMA SMS messages
      * (See 3GPP2 C.S0015-B, v2.0, table 4.5.1-1)
@@ -453,11 +469,24 @@ public final class BearerData {
         outStream.skip(3);
     }
 
+    /**
+     * Same as UserData.charToAscii, which maps the printable chars to themselves, without
+     * the lookup.
+     * @return the 7-bit ASCII code of the char, or -1 if it has none
+     */
+    private static int charToAscii(char c) {
+        if ((c >= UserData.ASCII_MAP_BASE_INDEX && c <= UserData.ASCII_MAP_MAX_INDEX)
+                || c == '\n' || c == '\r') {
+            return c;
+        }
+        return -1;
+    }
+
     private static int countAsciiSeptets(CharSequence msg, boolean force) {
         int msgLen = msg.length();
         if (force) return msgLen;
         for (int i = 0; i < msgLen; i++) {
-            if (UserData.charToAscii.get(msg.charAt(i), -1) == -1) {
+            if (charToAscii(msg.charAt(i)) == -1) {
                 return -1;
             }
         }
@@ -522,35 +551,33 @@ public final class BearerData {
     private static byte[] encode7bitAscii(String msg, boolean force)
         throws CodingException
     {
-        try {
-            BitwiseOutputStream outStream = new BitwiseOutputStream(msg.length());
-            int msgLen = msg.length();
-            for (int i = 0; i < msgLen; i++) {
-                int charCode = UserData.charToAscii.get(msg.charAt(i), -1);
-                if (charCode == -1) {
-                    if (force) {
-                        outStream.write(7, UserData.UNENCODABLE_7_BIT_CHAR);
-                    } else {
-                        throw new CodingException("cannot ASCII encode (" + msg.charAt(i) + ")");
-                    }
+        int msgLen = msg.length();
+        byte[] result = new byte[((msgLen * 7) + 7) / 8];
+        for (int i = 0, bitOffset = 0; i < msgLen; i++, bitOffset += 7) {
+            int charCode = charToAscii(msg.charAt(i));
+            if (charCode == -1) {
+                if (force) {
+                    charCode = UserData.UNENCODABLE_7_BIT_CHAR;
                 } else {
-                    outStream.write(7, charCode);
+                    throw new CodingException("cannot ASCII encode (" + msg.charAt(i) + ")");
                 }
             }
-            return outStream.toByteArray();
-        } catch (BitwiseOutputStream.AccessException ex) {
-            throw new CodingException("7bit ASCII encode failed: " + ex);
+            // Most significant bit first, as BitwiseOutputStream writes, in at most two bytes
+            int index = bitOffset >>> 3;
+            int shift = 9 - (bitOffset & 7);
+            int word = charCode << shift;
+            result[index] |= (byte) (word >>> 8);
+            if (shift < 8) {
+                result[index + 1] |= (byte) word;
+            }
         }
+        return result;
     }
 
-    private static byte[] encodeUtf16(String msg)
-        throws CodingException
-    {
-        try {
-            return msg.getBytes("utf-16be");
-        } catch (java.io.UnsupportedEncodingException ex) {
-            throw new CodingException("UTF-16 encode failed: " + ex);
-        }
+    private static byte[] encodeUtf16(String msg) {
+        byte[] result = new byte[msg.length() * 2];
+        SmsTextEncoder.writeUtf16(msg, 0, msg.length(), result, 0);
+        return result;
     }
 
     private static class Gsm7bitCodingResult {
@@ -578,8 +605,16 @@ public final class BearerData {
              * stringToGsm7BitPacked, and potentially directly support
              * access to the main bitwise stream from encode/decode.
              */
-            byte[] fullData = GsmAlphabet.stringToGsm7BitPacked(msg, septetOffset, !force, 0, 0);
             Gsm7bitCodingResult result = new Gsm7bitCodingResult();
+            int septets = septetOffset + msg.length();
+            if (septets <= 255 && SmsTextEncoder.countSeptets(msg, 0, msg.length()) >= 0) {
+                // Default alphabet basic table only: pack it straight into the result
+                result.data = new byte[(septets * 7 + 7) / 8];
+                result.septets = SmsTextEncoder.packSeptets(msg, 0, msg.length(), septetOffset,
+                        result.data, 0);
+                return result;
+            }
+            byte[] fullData = GsmAlphabet.stringToGsm7BitPacked(msg, septetOffset, !force, 0, 0);
             result.data = new byte[fullData.length - 1];
             System.arraycopy(fullData, 1, result.data, 0, fullData.length - 1);
             result.septets = fullData[0] & 0x00FF;
@@ -603,20 +638,18 @@ public final class BearerData {
         System.arraycopy(udhData, 0, uData.payload, 1, udhData.length);
     }
 
-    private static void encode16bitEms(UserData uData, byte[] udhData)
-        throws CodingException
-    {
-        byte[] payload = encodeUtf16(uData.payloadStr);
+    private static void encode16bitEms(UserData uData, byte[] udhData) {
+        String msg = uData.payloadStr;
         int udhBytes = udhData.length + 1;  // Add length octet.
         int udhCodeUnits = (udhBytes + 1) / 2;
-        int payloadCodeUnits = payload.length / 2;
+        int payloadCodeUnits = msg.length();
         uData.msgEncoding = UserData.ENCODING_UNICODE_16;
         uData.msgEncodingSet = true;
         uData.numFields = udhCodeUnits + payloadCodeUnits;
         uData.payload = new byte[uData.numFields * 2];
         uData.payload[0] = (byte)udhData.length;
         System.arraycopy(udhData, 0, uData.payload, 1, udhData.length);
-        System.arraycopy(payload, 0, uData.payload, udhBytes, payload.length);
+        SmsTextEncoder.writeUtf16(msg, 0, msg.length(), uData.payload, udhBytes);
     }
 
     private static void encodeEmsUserDataPayload(UserData uData)
@@ -1017,6 +1050,22 @@ public final class BearerData {
         return decodeSuccess;
     }
 
+    /**
+     * Skip a subparameter the caller did not ask for, after checking its length.
+     */
+    private static boolean skipSubparam(BitwiseInputStream inStream, int subparamId)
+        throws BitwiseInputStream.AccessException, CodingException
+    {
+        int subparamLen = inStream.read(8); // SUBPARAM_LEN
+        int paramBits = subparamLen * 8;
+        if (paramBits > inStream.available()) {
+            throw new CodingException("bearer data subparameter " + subparamId
+                    + " had invalid SUBPARAM_LEN " + subparamLen);
+        }
+        inStream.skip(paramBits);
+        return true;
+    }
+
     private static boolean decodeUserData(BearerData bData, BitwiseInputStream inStream)
         throws BitwiseInputStream.AccessException
     {
@@ -1041,7 +1090,7 @@ public final class BearerData {
     private static String decodeUtf8(byte[] data, int offset, int numFields)
         throws CodingException
     {
-        return decodeCharset(data, offset, numFields, 1, "UTF-8");
+        return decodeCharset(data, offset, numFields, 1, StandardCharsets.UTF_8);
     }
 
     private static String decodeUtf16(byte[] data, int offset, int numFields)
@@ -1050,11 +1099,11 @@ public final class BearerData {
         // Subtract header and possible padding byte (at end) from num fields.
         int padding = offset % 2;
         numFields -= (offset + padding) / 2;
-        return decodeCharset(data, offset, numFields, 2, "utf-16be");
+        return decodeCharset(data, offset, numFields, 2, StandardCharsets.UTF_16BE);
     }
 
     private static String decodeCharset(byte[] data, int offset, int numFields, int width,
-            String charset) throws CodingException
+            Charset charset) throws CodingException
     {
         if (numFields < 0 || (numFields * width + offset) > data.length) {
             // Try to decode the max number of characters in payload
@@ -1068,44 +1117,42 @@ public final class BearerData {
                     + maxNumFields);
             numFields = maxNumFields;
         }
-        try {
-            return new String(data, offset, numFields * width, charset);
-        } catch (java.io.UnsupportedEncodingException ex) {
-            throw new CodingException(charset + " decode failed: " + ex);
-        }
+        return new String(data, offset, numFields * width, charset);
     }
 
     private static String decode7bitAscii(byte[] data, int offset, int numFields)
         throws CodingException
     {
-        try {
-            offset *= 8;
-            StringBuffer strBuf = new StringBuffer(numFields);
-            BitwiseInputStream inStream = new BitwiseInputStream(data);
-            int wantedBits = (offset * 8) + (numFields * 7);
-            if (inStream.available() < wantedBits) {
-                throw new CodingException("insufficient data (wanted " + wantedBits +
-                                          " bits, but only have " + inStream.available() + ")");
+        offset *= 8;
+        int availableBits = data.length * 8;
+        int wantedBits = (offset * 8) + (numFields * 7);
+        if (availableBits < wantedBits) {
+            throw new CodingException("insufficient data (wanted " + wantedBits +
+                                      " bits, but only have " + availableBits + ")");
+        }
+        // Decode straight into the chars of the result, without a bit stream or buffer
+        char[] chars = new char[numFields];
+        for (int i = 0, bitOffset = offset; i < numFields; i++, bitOffset += 7) {
+            // Most significant bit first, in at most two bytes
+            int index = bitOffset >>> 3;
+            int word = (data[index] & 0xFF) << 8;
+            if (index + 1 < data.length) {
+                word |= data[index + 1] & 0xFF;
             }
-            inStream.skip(offset);
-            for (int i = 0; i < numFields; i++) {
-                int charCode = inStream.read(7);
-                if ((charCode >= UserData.ASCII_MAP_BASE_INDEX) &&
-                        (charCode <= UserData.ASCII_MAP_MAX_INDEX)) {
-                    strBuf.append(UserData.ASCII_MAP[charCode - UserData.ASCII_MAP_BASE_INDEX]);
-                } else if (charCode == UserData.ASCII_NL_INDEX) {
-                    strBuf.append('\n');
-                } else if (charCode == UserData.ASCII_CR_INDEX) {
-                    strBuf.append('\r');
-                } else {
-                    /* For other charCodes, they are unprintable, and so simply use SPACE. */
-                    strBuf.append(' ');
-                }
+            int charCode = (word >>> (9 - (bitOffset & 7))) & 0x7F;
+            if ((charCode >= UserData.ASCII_MAP_BASE_INDEX) &&
+                    (charCode <= UserData.ASCII_MAP_MAX_INDEX)) {
+                chars[i] = UserData.ASCII_MAP[charCode - UserData.ASCII_MAP_BASE_INDEX];
+            } else if (charCode == UserData.ASCII_NL_INDEX) {
+                chars[i] = '\n';
+            } else if (charCode == UserData.ASCII_CR_INDEX) {
+                chars[i] = '\r';
+            } else {
+                /* For other charCodes, they are unprintable, and so simply use SPACE. */
+                chars[i] = ' ';
             }
-            return strBuf.toString();
-        } catch (BitwiseInputStream.AccessException ex) {
-            throw new CodingException("7bit ASCII decode failed: " + ex);
         }
+        return new String(chars);
     }
 
     private static String decode7bitGsm(byte[] data, int offset, int numFields)
@@ -1127,13 +1174,31 @@ public final class BearerData {
     private static String decodeLatin(byte[] data, int offset, int numFields)
         throws CodingException
     {
-        return decodeCharset(data, offset, numFields, 1, "ISO-8859-1");
+        return decodeCharset(data, offset, numFields, 1, StandardCharsets.ISO_8859_1);
     }
 
     private static String decodeShiftJis(byte[] data, int offset, int numFields)
         throws CodingException
     {
-        return decodeCharset(data, offset, numFields, 1, "Shift_JIS");
+        if (ShiftJis.CHARSET == null) {
+            throw new CodingException("Shift_JIS decode failed: unsupported charset");
+        }
+        return decodeCharset(data, offset, numFields, 1, ShiftJis.CHARSET);
+    }
+
+    /** Shift_JIS, looked up once, or null if the platform does not support it. */
+    private static final class ShiftJis {
+        static final Charset CHARSET;
+
+        static {
+            Charset charset = null;
+            try {
+                charset = Charset.forName("Shift_JIS");
+            } catch (IllegalArgumentException ex) {
+                Rlog.e(LOG_TAG, "Shift_JIS not supported: " + ex);
+            }
+            CHARSET = charset;
+        }
     }
 
     private static void decodeUserDataPayload(UserData userData, boolean hasUserDataHeader)
@@ -1143,9 +1208,7 @@ public final class BearerData {
         if (hasUserDataHeader) {
             int udhLen = userData.payload[0] & 0x00FF;
             offset += udhLen + 1;
-            byte[] headerData = new byte[udhLen];
-            System.arraycopy(userData.payload, 1, headerData, 0, udhLen);
-            userData.userDataHeader = SmsHeader.fromByteArray(headerData);
+            userData.userDataHeader = SmsHeader.fromByteArray(userData.payload, 1, udhLen);
         }
         switch (userData.msgEncoding) {
         case UserData.ENCODING_OCTET:
@@ -1158,12 +1221,14 @@ public final class BearerData {
             // Strip off any padding bytes, meaning any differences between the length of the
             // array and the target length specified by numFields.  This is to avoid any
             // confusion by code elsewhere that only considers the payload array length.
-            byte[] payload = new byte[userData.numFields];
-            int copyLen = userData.numFields < userData.payload.length
-                    ? userData.numFields : userData.payload.length;
+            if (userData.numFields != userData.payload.length) {
+                byte[] payload = new byte[userData.numFields];
+                int copyLen = userData.numFields < userData.payload.length
+                        ? userData.numFields : userData.payload.length;
 
-            System.arraycopy(userData.payload, 0, payload, 0, copyLen);
-            userData.payload = payload;
+                System.arraycopy(userData.payload, 0, payload, 0, copyLen);
+                userData.payload = payload;
+            }
 
             if (!decodingtypeUTF8) {
                 // There are many devices in the market that send 8bit text sms (latin encoded) as
@@ -1906,6 +1971,70 @@ public final class BearerData {
      * @return an instance of BearerData.
      */
     public static BearerData decode(byte[] smsData, int serviceCategory) {
+        return decode(smsData, serviceCategory, SUBPARAMS_ALL);
+    }
+
+    /**
+     * Decode one subparameter, whose identifier has been read.
+     */
+    private static boolean decodeSubparam(BearerData bData, BitwiseInputStream inStream,
+            int subparamId) throws BitwiseInputStream.AccessException, CodingException {
+        switch (subparamId) {
+        case SUBPARAM_MESSAGE_IDENTIFIER:
+            return decodeMessageId(bData, inStream);
+        case SUBPARAM_USER_DATA:
+            return decodeUserData(bData, inStream);
+        case SUBPARAM_USER_RESPONSE_CODE:
+            return decodeUserResponseCode(bData, inStream);
+        case SUBPARAM_REPLY_OPTION:
+            return decodeReplyOption(bData, inStream);
+        case SUBPARAM_NUMBER_OF_MESSAGES:
+            return decodeMsgCount(bData, inStream);
+        case SUBPARAM_CALLBACK_NUMBER:
+            return decodeCallbackNumber(bData, inStream);
+        case SUBPARAM_MESSAGE_STATUS:
+            return decodeMsgStatus(bData, inStream);
+        case SUBPARAM_MESSAGE_CENTER_TIME_STAMP:
+            return decodeMsgCenterTimeStamp(bData, inStream);
+        case SUBPARAM_VALIDITY_PERIOD_ABSOLUTE:
+            return decodeValidityAbs(bData, inStream);
+        case SUBPARAM_VALIDITY_PERIOD_RELATIVE:
+            return decodeValidityRel(bData, inStream);
+        case SUBPARAM_DEFERRED_DELIVERY_TIME_ABSOLUTE:
+            return decodeDeferredDeliveryAbs(bData, inStream);
+        case SUBPARAM_DEFERRED_DELIVERY_TIME_RELATIVE:
+            return decodeDeferredDeliveryRel(bData, inStream);
+        case SUBPARAM_PRIVACY_INDICATOR:
+            return decodePrivacyIndicator(bData, inStream);
+        case SUBPARAM_LANGUAGE_INDICATOR:
+            return decodeLanguageIndicator(bData, inStream);
+        case SUBPARAM_MESSAGE_DISPLAY_MODE:
+            return decodeDisplayMode(bData, inStream);
+        case SUBPARAM_PRIORITY_INDICATOR:
+            return decodePriorityIndicator(bData, inStream);
+        case SUBPARAM_ALERT_ON_MESSAGE_DELIVERY:
+            return decodeMsgDeliveryAlert(bData, inStream);
+        case SUBPARAM_MESSAGE_DEPOSIT_INDEX:
+            return decodeDepositIndex(bData, inStream);
+        case SUBPARAM_SERVICE_CATEGORY_PROGRAM_DATA:
+            return decodeServiceCategoryProgramData(bData, inStream);
+        default:
+            return decodeReserved(bData, inStream, subparamId);
+        }
+    }
+
+    /**
+     * Create BearerData object from serialized representation, decoding only some of the
+     * subparameters. The others are checked for a valid length and skipped, and their fields
+     * keep their default values. MESSAGE_IDENTIFIER is always decoded.
+     *
+     * @param smsData byte array of raw encoded SMS bearer data.
+     * @param serviceCategory the envelope service category (for CMAS alert handling)
+     * @param subparamMask the subparameters to decode, such as {@link #SUBPARAMS_SCPT}
+     * @return an instance of BearerData.
+     */
+    public static BearerData decode(byte[] smsData, int serviceCategory, int subparamMask) {
+        subparamMask |= 1 << SUBPARAM_MESSAGE_IDENTIFIER;
         try {
             BitwiseInputStream inStream = new BitwiseInputStream(smsData);
             BearerData bData = new BearerData();
@@ -1926,66 +2055,11 @@ public final class BearerData {
                                               subparamId + ")");
                 }
                 boolean decodeSuccess;
-                switch (subparamId) {
-                case SUBPARAM_MESSAGE_IDENTIFIER:
-                    decodeSuccess = decodeMessageId(bData, inStream);
-                    break;
-                case SUBPARAM_USER_DATA:
-                    decodeSuccess = decodeUserData(bData, inStream);
-                    break;
-                case SUBPARAM_USER_RESPONSE_CODE:
-                    decodeSuccess = decodeUserResponseCode(bData, inStream);
-                    break;
-                case SUBPARAM_REPLY_OPTION:
-                    decodeSuccess = decodeReplyOption(bData, inStream);
-                    break;
-                case SUBPARAM_NUMBER_OF_MESSAGES:
-                    decodeSuccess = decodeMsgCount(bData, inStream);
-                    break;
-                case SUBPARAM_CALLBACK_NUMBER:
-                    decodeSuccess = decodeCallbackNumber(bData, inStream);
-                    break;
-                case SUBPARAM_MESSAGE_STATUS:
-                    decodeSuccess = decodeMsgStatus(bData, inStream);
-                    break;
-                case SUBPARAM_MESSAGE_CENTER_TIME_STAMP:
-                    decodeSuccess = decodeMsgCenterTimeStamp(bData, inStream);
-                    break;
-                case SUBPARAM_VALIDITY_PERIOD_ABSOLUTE:
-                    decodeSuccess = decodeValidityAbs(bData, inStream);
-                    break;
-                case SUBPARAM_VALIDITY_PERIOD_RELATIVE:
-                    decodeSuccess = decodeValidityRel(bData, inStream);
-                    break;
-                case SUBPARAM_DEFERRED_DELIVERY_TIME_ABSOLUTE:
-                    decodeSuccess = decodeDeferredDeliveryAbs(bData, inStream);
-                    break;
-                case SUBPARAM_DEFERRED_DELIVERY_TIME_RELATIVE:
-                    decodeSuccess = decodeDeferredDeliveryRel(bData, inStream);
-                    break;
-                case SUBPARAM_PRIVACY_INDICATOR:
-                    decodeSuccess = decodePrivacyIndicator(bData, inStream);
-                    break;
-                case SUBPARAM_LANGUAGE_INDICATOR:
-                    decodeSuccess = decodeLanguageIndicator(bData, inStream);
-                    break;
-                case SUBPARAM_MESSAGE_DISPLAY_MODE:
-                    decodeSuccess = decodeDisplayMode(bData, inStream);
-                    break;
-                case SUBPARAM_PRIORITY_INDICATOR:
-                    decodeSuccess = decodePriorityIndicator(bData, inStream);
-                    break;
-                case SUBPARAM_ALERT_ON_MESSAGE_DELIVERY:
-                    decodeSuccess = decodeMsgDeliveryAlert(bData, inStream);
-                    break;
-                case SUBPARAM_MESSAGE_DEPOSIT_INDEX:
-                    decodeSuccess = decodeDepositIndex(bData, inStream);
-                    break;
-                case SUBPARAM_SERVICE_CATEGORY_PROGRAM_DATA:
-                    decodeSuccess = decodeServiceCategoryProgramData(bData, inStream);
-                    break;
-                default:
-                    decodeSuccess = decodeReserved(bData, inStream, subparamId);
+                if ((subparamMask & subparamIdBit) == 0
+                        && subparamId <= SUBPARAM_ID_LAST_DEFINED) {
+                    decodeSuccess = skipSubparam(inStream, subparamId);
+                } else {
+                    decodeSuccess = decodeSubparam(bData, inStream, subparamId);
                 }
                 if (decodeSuccess &&
                         (subparamId >= SUBPARAM_MESSAGE_IDENTIFIER &&
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The APNs that can be used for each APN type and radio technology, worked out once when
+ * {@link DcTracker} loads the APN list rather than by scanning the list for each request.
+ *
+ * For each APN type the tracker serves there are the APNs that can handle it, in list order,
+ * for each radio technology some of them are restricted to, and for any other technology.
+ * Instances are immutable; the tracker makes a new one whenever it reloads the list.
+ */
+final class ApnIndex {
+    private static final ApnSetting[] NO_APNS = new ApnSetting[0];
+
+    static final ApnIndex EMPTY = new ApnIndex(new ArrayList<ApnSetting>(),
+            new ArrayList<String>());
+
+    /** The APNs that can handle one APN type. */
+    private static final class TypeEntry {
+        /** The distinct non-zero bearers of the APNs. */
+        final int[] mBearers;
+        /** The APNs usable with each of mBearers. */
+        final ApnSetting[][] mApnsByBearer;
+        /** The APNs usable with any other radio technology, those with no bearer. */
+        final ApnSetting[] mAnyBearerApns;
+
+        TypeEntry(ArrayList<ApnSetting> apns) {
+            ArrayList<Integer> bearers = new ArrayList<Integer>();
+            for (ApnSetting apn : apns) {
+                if (apn.bearer != 0 && !bearers.contains(apn.bearer)) {
+                    bearers.add(apn.bearer);
+                }
+            }
+            mBearers = new int[bearers.size()];
+            mApnsByBearer = new ApnSetting[bearers.size()][];
+            for (int i = 0; i < mBearers.length; i++) {
+                mBearers[i] = bearers.get(i);
+                mApnsByBearer[i] = filter(apns, mBearers[i]);
+            }
+            mAnyBearerApns = filter(apns, 0);
+        }
+
+        ApnSetting[] getApns(int radioTech) {
+            for (int i = 0; i < mBearers.length; i++) {
+                if (mBearers[i] == radioTech) {
+                    return mApnsByBearer[i];
+                }
+            }
+            return mAnyBearerApns;
+        }
+
+        boolean isEmpty() {
+            return mBearers.length == 0 && mAnyBearerApns.length == 0;
+        }
+    }
+
+    private final ArrayList<ApnSetting> mApns;
+    private final HashMap<String, TypeEntry> mByType = new HashMap<String, TypeEntry>();
+
+    /**
+     * @param apns all the APNs, in order of preference; not modified afterwards
+     * @param types the APN types to work out the APNs of ahead of time
+     */
+    ApnIndex(List<ApnSetting> apns, Collection<String> types) {
+        mApns = new ArrayList<ApnSetting>(apns);
+        for (String type : types) {
+            mByType.put(type, new TypeEntry(scan(mApns, type)));
+        }
+    }
+
+    /** @return true if any APN can handle <code>type</code>, whatever the radio technology */
+    boolean canHandleType(String type) {
+        TypeEntry entry = mByType.get(type);
+        if (entry != null) {
+            return !entry.isEmpty();
+        }
+        for (ApnSetting apn : mApns) {
+            if (apn.canHandleType(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the APNs that can handle an APN type with a radio technology: those that can handle
+     * the type with that technology as their bearer or with no bearer, in list order.
+     *
+     * @return a new list, which the caller may modify
+     */
+    ArrayList<ApnSetting> getApns(String type, int radioTech) {
+        TypeEntry entry = mByType.get(type);
+        ArrayList<ApnSetting> result;
+        if (entry != null) {
+            ApnSetting[] apns = entry.getApns(radioTech);
+            result = new ArrayList<ApnSetting>(apns.length);
+            for (ApnSetting apn : apns) {
+                result.add(apn);
+            }
+        } else {
+            // Not a type the tracker serves: nothing worked out for it
+            result = new ArrayList<ApnSetting>();
+            for (ApnSetting apn : scan(mApns, type)) {
+                if (apn.bearer == 0 || apn.bearer == radioTech) {
+                    result.add(apn);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** @return the number of APNs */
+    int size() {
+        return mApns.size();
+    }
+
+    private static ArrayList<ApnSetting> scan(ArrayList<ApnSetting> apns, String type) {
+        ArrayList<ApnSetting> result = new ArrayList<ApnSetting>();
+        for (ApnSetting apn : apns) {
+            if (apn.canHandleType(type)) {
+                result.add(apn);
+            }
+        }
+        return result;
+    }
+
+    /** Get the APNs usable with a bearer, or with no bearer if 0. */
+    private static ApnSetting[] filter(ArrayList<ApnSetting> apns, int bearer) {
+        ArrayList<ApnSetting> result = new ArrayList<ApnSetting>();
+        for (ApnSetting apn : apns) {
+            if (apn.bearer == 0 || apn.bearer == bearer) {
+                result.add(apn);
+            }
+        }
+        return result.isEmpty() ? NO_APNS : result.toArray(new ApnSetting[result.size()]);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ApnIndex{apns=").append(mApns.size());
+        for (String type : mByType.keySet()) {
+            TypeEntry entry = mByType.get(type);
+            sb.append(' ').append(type).append('=').append(entry.mAnyBearerApns.length);
+            for (int i = 0; i < entry.mBearers.length; i++) {
+                sb.append('/').append(entry.mBearers[i]).append(':')
+                        .append(entry.mApnsByBearer[i].length);
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
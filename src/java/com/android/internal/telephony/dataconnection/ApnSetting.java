@@ -30,8 +30,8 @@ import java.util.Locale;
  */
 public class ApnSetting {
 
-    static final String V2_FORMAT_REGEX = "^\\[ApnSettingV2\\]\\s*";
-    static final String V3_FORMAT_REGEX = "^\\[ApnSettingV3\\]\\s*";
+    static final String V2_FORMAT_PREFIX = "[ApnSettingV2]";
+    static final String V3_FORMAT_PREFIX = "[ApnSettingV3]";
 
     public final String carrier;
     public final String apn;
@@ -155,18 +155,24 @@ public class ApnSetting {
         if (data == null) return null;
 
         int version;
-        // matches() operates on the whole string, so append .* to the regex.
-        if (data.matches(V3_FORMAT_REGEX + ".*")) {
+        int start = 0;
+        if (data.startsWith(V3_FORMAT_PREFIX)) {
             version = 3;
-            data = data.replaceFirst(V3_FORMAT_REGEX, "");
-        } else if (data.matches(V2_FORMAT_REGEX + ".*")) {
+            start = V3_FORMAT_PREFIX.length();
+        } else if (data.startsWith(V2_FORMAT_PREFIX)) {
             version = 2;
-            data = data.replaceFirst(V2_FORMAT_REGEX, "");
+            start = V2_FORMAT_PREFIX.length();
         } else {
             version = 1;
         }
+        if (start > 0) {
+            while (start < data.length() && isWhitespace(data.charAt(start))) {
+                start++;
+            }
+            data = data.substring(start);
+        }
 
-        String[] a = data.split("\\s*,\\s*");
+        String[] a = split(data, ',');
         if (a.length < 14) {
             return null;
         }
@@ -201,7 +207,7 @@ public class ApnSetting {
             if (a.length < 18) {
                 return null;
             }
-            typeArray = a[13].split("\\s*\\|\\s*");
+            typeArray = split(a[13], '|');
             protocol = a[14];
             roamingProtocol = a[15];
             carrierEnabled = Boolean.parseBoolean(a[16]);
@@ -252,7 +258,7 @@ public class ApnSetting {
         if (TextUtils.isEmpty(data)) {
             return retVal;
         }
-        String[] apnStrings = data.split("\\s*;\\s*");
+        String[] apnStrings = split(data, ';');
         for (String apnString : apnStrings) {
             ApnSetting apn = fromString(apnString);
             if (apn != null) {
@@ -262,6 +268,50 @@ public class ApnSetting {
         return retVal;
     }
 
+    /**
+     * Split a string at a separator, dropping the whitespace on either side of each separator
+     * and any empty strings at the end. This gives what String.split() does with the pattern
+     * \s*&lt;separator&gt;\s*, without compiling and running a regular expression.
+     */
+    static String[] split(String data, char separator) {
+        int next = data.indexOf(separator);
+        if (next < 0) {
+            return new String[] { data };
+        }
+        ArrayList<String> result = new ArrayList<String>();
+        int start = 0;
+        while (true) {
+            int end = (next >= 0) ? next : data.length();
+            int begin = start;
+            if (begin > 0) {
+                while (begin < end && isWhitespace(data.charAt(begin))) {
+                    begin++;
+                }
+            }
+            if (next >= 0) {
+                while (end > begin && isWhitespace(data.charAt(end - 1))) {
+                    end--;
+                }
+            }
+            result.add(data.substring(begin, end));
+            if (next < 0) {
+                break;
+            }
+            start = next + 1;
+            next = data.indexOf(separator, start);
+        }
+        int size = result.size();
+        while (size > 0 && result.get(size - 1).isEmpty()) {
+            size--;
+        }
+        return result.subList(0, size).toArray(new String[size]);
+    }
+
+    /** Whether a character is one that \s matches in a regular expression. */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\013' || c == '\f' || c == '\r';
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
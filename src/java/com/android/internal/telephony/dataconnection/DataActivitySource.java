@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+/**
+ * Where {@link DcTrackerBase} gets the packet counts it polls to show data activity and
+ * to detect data stalls. Stall detection only uses {@link TrafficStatsActivitySource}.
+ *
+ * The counts only need to keep increasing while a source is in use: the tracker works with
+ * the difference between two reads from the same source.
+ */
+interface DataActivitySource {
+    /**
+     * Set the network interfaces of the active data connections.
+     * Sources that count all mobile traffic without being told the interfaces ignore this.
+     *
+     * @param ifaces the interface names; not modified once passed
+     */
+    void setInterfaces(String[] ifaces);
+
+    /**
+     * Read the current counts, for {@link #getTxPackets} and {@link #getRxPackets}.
+     *
+     * @return false if they could not be read, leaving the counts from the last read
+     */
+    boolean update();
+
+    /** @return packets sent as of the last successful {@link #update}, or -1 if none */
+    long getTxPackets();
+
+    /** @return packets received as of the last successful {@link #update}, or -1 if none */
+    long getRxPackets();
+}
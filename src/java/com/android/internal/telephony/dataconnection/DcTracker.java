@@ -612,14 +612,7 @@ public final class DcTracker extends DcTrackerBase {
             return true;
         }
 
-        if (mAllApnSettings != null) {
-            for (ApnSetting apn : mAllApnSettings) {
-                if (apn.canHandleType(type)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return mApnIndex.canHandleType(type);
     }
 
     /**
@@ -784,9 +777,9 @@ public final class DcTracker extends DcTrackerBase {
 
     private void setupDataOnConnectableApns(String reason, RetryFailures retryFailures) {
         if (DBG) log("setupDataOnConnectableApns: " + reason);
-        ArrayList<ApnSetting> waitingApns = null;
 
         for (ApnContext apnContext : mPrioritySortedApnContexts) {
+            ArrayList<ApnSetting> waitingApns = null;
             if (DBG) log("setupDataOnConnectableApns: apnContext " + apnContext);
             if (apnContext.getState() == DctConstants.State.FAILED) {
                 if (retryFailures == RetryFailures.ALWAYS) {
@@ -2271,6 +2264,8 @@ public final class DcTracker extends DcTrackerBase {
 
         dedupeApnSettings();
 
+        mApnIndex = new ApnIndex(mAllApnSettings, mApnContexts.keySet());
+
         if (mAllApnSettings.isEmpty()) {
             if (DBG) log("createAllApnList: No APN found for carrier: " + operator);
             mPreferredApn = null;
@@ -2284,7 +2279,10 @@ public final class DcTracker extends DcTrackerBase {
             }
             if (DBG) log("createAllApnList: mPreferredApn=" + mPreferredApn);
         }
-        if (DBG) log("createAllApnList: X mAllApnSettings=" + mAllApnSettings);
+        if (DBG) {
+            log("createAllApnList: X mAllApnSettings=" + mAllApnSettings
+                    + " mApnIndex=" + mApnIndex);
+        }
 
         setDataProfilesAsNeeded();
     }
@@ -2491,26 +2489,7 @@ public final class DcTracker extends DcTrackerBase {
             }
         }
         if (mAllApnSettings != null) {
-            if (DBG) log("buildWaitingApns: mAllApnSettings=" + mAllApnSettings);
-            for (ApnSetting apn : mAllApnSettings) {
-                if (DBG) log("buildWaitingApns: apn=" + apn);
-                if (apn.canHandleType(requestedApnType)) {
-                    if (apn.bearer == 0 || apn.bearer == radioTech) {
-                        if (DBG) log("buildWaitingApns: adding apn=" + apn.toString());
-                        apnList.add(apn);
-                    } else {
-                        if (DBG) {
-                            log("buildWaitingApns: bearer:" + apn.bearer + " != "
-                                    + "radioTech:" + radioTech);
-                        }
-                    }
-                } else {
-                if (DBG) {
-                    log("buildWaitingApns: couldn't handle requesedApnType="
-                            + requestedApnType);
-                }
-            }
-            }
+            apnList = mApnIndex.getApns(requestedApnType, radioTech);
         } else {
             loge("mAllApnSettings is empty!");
         }
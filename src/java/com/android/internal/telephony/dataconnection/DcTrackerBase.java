@@ -29,7 +29,6 @@ import android.net.ConnectivityManager;
 import android.net.LinkProperties;
 import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
-import android.net.TrafficStats;
 import android.net.wifi.WifiManager;
 import android.os.AsyncResult;
 import android.os.Build;
@@ -63,6 +62,7 @@ import com.android.internal.util.ArrayUtils;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
@@ -144,6 +144,14 @@ public abstract class DcTrackerBase extends Handler {
     protected static final int POLL_NETSTAT_MILLIS = 1000;
     // 10 min. default polling interval when screen is off.
     protected static final int POLL_NETSTAT_SCREEN_OFF_MILLIS = 1000*60*10;
+    // Polls seeing no traffic before the polling interval starts doubling with each one
+    protected static final int POLL_NETSTAT_IDLE_POLLS_BEFORE_BACKOFF = 4;
+    // 1 min. default longest polling interval when screen is on but there is no traffic.
+    protected static final int POLL_NETSTAT_IDLE_MAX_MILLIS = 1000*60;
+    // system property that can override the above value
+    protected static final String NETSTAT_IDLE_MAX_PROP_NAME = "persist.radio.netstat_idle_max_ms";
+    // system property that, when false, has packets counted by TrafficStats only
+    protected static final String NETSTAT_PROCFS_PROP_NAME = "persist.radio.netstat_procfs";
     // 2 min for round trip time
     protected static final int POLL_LONGEST_RTT = 120 * 1000;
     // Default sent packets without ack which triggers initial recovery steps
@@ -202,6 +210,27 @@ public abstract class DcTrackerBase extends Handler {
     protected long mRxPkts;
     protected int mNetStatPollPeriod;
     protected boolean mNetStatPollEnabled = false;
+    // Number of polls in a row that saw no packets sent or received
+    protected int mNetStatIdlePolls;
+
+    // Where the packet counts polled for data activity come from, see
+    // selectDataActivitySource(). Stall detection always uses mTrafficStatsSource: the kernel
+    // counters include packets such as router advertisements, multicast, ICMP and UDP,
+    // any of which arriving would hide a stalled TCP connection.
+    private final ProcNetDevActivitySource mProcNetDevSource = new ProcNetDevActivitySource();
+    private final DataActivitySource mTrafficStatsSource = new TrafficStatsActivitySource();
+    protected DataActivitySource mActivitySource = mTrafficStatsSource;
+    // The interfaces mActivitySource was counting when chosen
+    private String[] mActivityInterfaces;
+
+    // The watchdog settings, kept up to date by mWatchdogSettingsObserver
+    private int mNetStatPollMillis = POLL_NETSTAT_MILLIS;
+    private int mNetStatScreenOffPollMillis = POLL_NETSTAT_SCREEN_OFF_MILLIS;
+    private int mNetStatIdleMaxPollMillis = POLL_NETSTAT_IDLE_MAX_MILLIS;
+    private int mHangWatchdogTrigger = NUMBER_SENT_PACKETS_OF_HANG;
+    private int mDataStallAggressiveDelayMs = DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS_DEFAULT;
+    private int mDataStallNonAggressiveDelayMs =
+            DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS_DEFAULT;
 
     protected TxRxSum mDataStallTxRxSum = new TxRxSum(0, 0);
     // Used to track stale data stall alarms.
@@ -275,6 +304,9 @@ public abstract class DcTrackerBase extends Handler {
     /** allApns holds all apns */
     protected ArrayList<ApnSetting> mAllApnSettings = null;
 
+    /** the apns of mAllApnSettings for each apn type and radio technology */
+    protected ApnIndex mApnIndex = ApnIndex.EMPTY;
+
     /** preferred apn */
     protected ApnSetting mPreferredApn = null;
 
@@ -371,12 +403,10 @@ public abstract class DcTrackerBase extends Handler {
             updateDataActivity();
 
             if (mIsScreenOn) {
-                mNetStatPollPeriod = Settings.Global.getInt(mResolver,
-                        Settings.Global.PDP_WATCHDOG_POLL_INTERVAL_MS, POLL_NETSTAT_MILLIS);
+                mNetStatPollPeriod = getNetStatPollPeriod(mNetStatPollMillis, mNetStatIdlePolls,
+                        mNetStatIdleMaxPollMillis);
             } else {
-                mNetStatPollPeriod = Settings.Global.getInt(mResolver,
-                        Settings.Global.PDP_WATCHDOG_LONG_POLL_INTERVAL_MS,
-                        POLL_NETSTAT_SCREEN_OFF_MILLIS);
+                mNetStatPollPeriod = mNetStatScreenOffPollMillis;
             }
 
             if (mNetStatPollEnabled) {
@@ -441,6 +471,72 @@ public abstract class DcTrackerBase extends Handler {
     }
     private DataRoamingSettingObserver mDataRoamingSettingObserver;
 
+    private static final String[] WATCHDOG_SETTINGS = {
+        Settings.Global.PDP_WATCHDOG_POLL_INTERVAL_MS,
+        Settings.Global.PDP_WATCHDOG_LONG_POLL_INTERVAL_MS,
+        Settings.Global.PDP_WATCHDOG_TRIGGER_PACKET_COUNT,
+        Settings.Global.DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS,
+        Settings.Global.DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS,
+    };
+
+    private final ContentObserver mWatchdogSettingsObserver = new ContentObserver(this) {
+        @Override
+        public void onChange(boolean selfChange) {
+            loadWatchdogSettings();
+        }
+    };
+
+    /**
+     * Read the watchdog settings, so polling and the data stall alarm need not read them
+     * each time. Called again by mWatchdogSettingsObserver when any of them change.
+     */
+    private void loadWatchdogSettings() {
+        mNetStatPollMillis = Settings.Global.getInt(mResolver,
+                Settings.Global.PDP_WATCHDOG_POLL_INTERVAL_MS, POLL_NETSTAT_MILLIS);
+        mNetStatScreenOffPollMillis = Settings.Global.getInt(mResolver,
+                Settings.Global.PDP_WATCHDOG_LONG_POLL_INTERVAL_MS,
+                POLL_NETSTAT_SCREEN_OFF_MILLIS);
+        mNetStatIdleMaxPollMillis = SystemProperties.getInt(NETSTAT_IDLE_MAX_PROP_NAME,
+                POLL_NETSTAT_IDLE_MAX_MILLIS);
+        mHangWatchdogTrigger = Settings.Global.getInt(mResolver,
+                Settings.Global.PDP_WATCHDOG_TRIGGER_PACKET_COUNT,
+                NUMBER_SENT_PACKETS_OF_HANG);
+        mDataStallAggressiveDelayMs = Settings.Global.getInt(mResolver,
+                Settings.Global.DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS,
+                DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
+        mDataStallNonAggressiveDelayMs = Settings.Global.getInt(mResolver,
+                Settings.Global.DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS,
+                DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
+        if (DBG) {
+            log("loadWatchdogSettings: poll=" + mNetStatPollMillis
+                    + " screenOffPoll=" + mNetStatScreenOffPollMillis
+                    + " idleMaxPoll=" + mNetStatIdleMaxPollMillis
+                    + " hangTrigger=" + mHangWatchdogTrigger
+                    + " stallDelay=" + mDataStallAggressiveDelayMs
+                    + "/" + mDataStallNonAggressiveDelayMs);
+        }
+    }
+
+    /**
+     * Get the period to poll the packet counts at while the screen is on. That is the
+     * configured period while there is traffic, doubling with each poll that sees none once
+     * there have been a few, up to the longest period allowed.
+     *
+     * @param pollMillis the configured polling period
+     * @param idlePolls the number of polls in a row that saw no traffic
+     * @param idleMaxMillis the longest polling period while there is no traffic
+     */
+    static int getNetStatPollPeriod(int pollMillis, int idlePolls, int idleMaxMillis) {
+        int doublings = idlePolls - POLL_NETSTAT_IDLE_POLLS_BEFORE_BACKOFF;
+        if (doublings <= 0 || pollMillis <= 0 || pollMillis >= idleMaxMillis) {
+            return pollMillis;
+        }
+        if (doublings >= 31) {
+            return idleMaxMillis;
+        }
+        return (int) Math.min((long) pollMillis << doublings, idleMaxMillis);
+    }
+
     /**
      * The Initial MaxRetry sent to a DataConnection as a parameter
      * to DataConnectionAc.bringUp. This value can be defined at compile
@@ -465,7 +561,8 @@ public abstract class DcTrackerBase extends Handler {
      * Maintain the sum of transmit and receive packets.
      *
      * The packet counts are initialized and reset to -1 and
-     * remain -1 until they can be updated.
+     * remain -1 until they can be updated. They are updated with the
+     * mobile TCP packet counts from TrafficStats.
      */
     public class TxRxSum {
         public long txPkts;
@@ -496,8 +593,9 @@ public abstract class DcTrackerBase extends Handler {
         }
 
         public void updateTxRxSum() {
-            this.txPkts = TrafficStats.getMobileTcpTxPackets();
-            this.rxPkts = TrafficStats.getMobileTcpRxPackets();
+            mTrafficStatsSource.update();
+            this.txPkts = mTrafficStatsSource.getTxPackets();
+            this.rxPkts = mTrafficStatsSource.getRxPackets();
         }
     }
 
@@ -584,6 +682,11 @@ public abstract class DcTrackerBase extends Handler {
         mPhone = phone;
         if (DBG) log("DCT.constructor");
         mResolver = mPhone.getContext().getContentResolver();
+        for (String name : WATCHDOG_SETTINGS) {
+            mResolver.registerContentObserver(Settings.Global.getUriFor(name), false,
+                    mWatchdogSettingsObserver);
+        }
+        loadWatchdogSettings();
         mUiccController = UiccController.getInstance();
         mUiccController.registerForIccChanged(this, DctConstants.EVENT_ICC_CHANGED, null);
         mAlarmManager =
@@ -640,6 +743,8 @@ public abstract class DcTrackerBase extends Handler {
         if (mDataRoamingSettingObserver != null) {
             mDataRoamingSettingObserver.unregister();
         }
+        mResolver.unregisterContentObserver(mWatchdogSettingsObserver);
+        mProcNetDevSource.close();
         mSubscriptionManager
                 .removeOnSubscriptionsChangedListener(mOnSubscriptionsChangedListener);
         mDcc.dispose();
@@ -1502,12 +1607,17 @@ public abstract class DcTrackerBase extends Handler {
     protected void resetPollStats() {
         mTxPkts = -1;
         mRxPkts = -1;
-        mNetStatPollPeriod = POLL_NETSTAT_MILLIS;
+        mNetStatPollPeriod = mNetStatPollMillis;
+        mNetStatIdlePolls = 0;
     }
 
     protected abstract DctConstants.State getOverallState();
 
     void startNetStatPoll() {
+        if (getOverallState() == DctConstants.State.CONNECTED) {
+            // Connections may have come or gone since the last start
+            selectDataActivitySource();
+        }
         if (getOverallState() == DctConstants.State.CONNECTED
                 && mNetStatPollEnabled == false) {
             if (DBG) {
@@ -1535,6 +1645,72 @@ public abstract class DcTrackerBase extends Handler {
         }
     }
 
+    /**
+     * Choose where packet counts come from: the kernel's counters for the interfaces of the
+     * data connections if they can be read, and TrafficStats otherwise.
+     */
+    private void selectDataActivitySource() {
+        DataActivitySource source = mTrafficStatsSource;
+        String[] ifaces = null;
+        if (SystemProperties.getBoolean(NETSTAT_PROCFS_PROP_NAME, true)) {
+            ifaces = getDataInterfaces();
+            mProcNetDevSource.setInterfaces(ifaces);
+            if (mProcNetDevSource.update()) {
+                source = mProcNetDevSource;
+            }
+        }
+        if (source != mActivitySource || (source == mProcNetDevSource
+                && !Arrays.equals(ifaces, mActivityInterfaces))) {
+            setDataActivitySource(source, ifaces);
+        }
+    }
+
+    private void setDataActivitySource(DataActivitySource source, String[] ifaces) {
+        if (DBG) log("setDataActivitySource: " + source);
+        mActivitySource = source;
+        mActivityInterfaces = ifaces;
+        // Counts from another source, or of other interfaces, cannot be compared to the new
+        mTxPkts = -1;
+        mRxPkts = -1;
+        if (source != mProcNetDevSource) {
+            mProcNetDevSource.close();
+        }
+    }
+
+    /**
+     * Read the packet counts from mActivitySource, falling back to TrafficStats should it
+     * fail.
+     *
+     * @return false if there are no counts to use
+     */
+    private boolean updateDataActivitySource() {
+        if (mActivitySource.update()) {
+            return true;
+        }
+        if (mActivitySource == mTrafficStatsSource) {
+            return false;
+        }
+        log("updateDataActivitySource: no counts from " + mActivitySource
+                + ", using TrafficStats");
+        setDataActivitySource(mTrafficStatsSource, null);
+        return mActivitySource.update();
+    }
+
+    /** Get the names of the interfaces of the data connections, sorted. */
+    private String[] getDataInterfaces() {
+        ArrayList<String> ifaces = new ArrayList<String>();
+        for (DcAsyncChannel dcac : mDataConnectionAcHashMap.values()) {
+            LinkProperties lp = dcac.getLinkPropertiesSync();
+            String iface = (lp != null) ? lp.getInterfaceName() : null;
+            if (iface != null && !ifaces.contains(iface)) {
+                ifaces.add(iface);
+            }
+        }
+        String[] result = ifaces.toArray(new String[ifaces.size()]);
+        Arrays.sort(result);
+        return result;
+    }
+
     public void sendStartNetStatPoll(DctConstants.Activity activity) {
         Message msg = obtainMessage(DctConstants.CMD_NET_STAT_POLL);
         msg.arg1 = DctConstants.ENABLED;
@@ -1566,22 +1742,32 @@ public abstract class DcTrackerBase extends Handler {
 
         DctConstants.Activity newActivity;
 
-        TxRxSum preTxRxSum = new TxRxSum(mTxPkts, mRxPkts);
-        TxRxSum curTxRxSum = new TxRxSum();
-        curTxRxSum.updateTxRxSum();
-        mTxPkts = curTxRxSum.txPkts;
-        mRxPkts = curTxRxSum.rxPkts;
+        if (!updateDataActivitySource()) {
+            if (VDBG) log("updateDataActivity: no packet counts");
+            return;
+        }
+        // Taken after the update, which resets them should the source change
+        long preTxPkts = mTxPkts;
+        long preRxPkts = mRxPkts;
+        mTxPkts = mActivitySource.getTxPackets();
+        mRxPkts = mActivitySource.getRxPackets();
 
         if (VDBG) {
-            log("updateDataActivity: curTxRxSum=" + curTxRxSum + " preTxRxSum=" + preTxRxSum);
+            log("updateDataActivity: txPkts=" + mTxPkts + " rxPkts=" + mRxPkts
+                    + " preTxPkts=" + preTxPkts + " preRxPkts=" + preRxPkts);
         }
 
-        if (mNetStatPollEnabled && (preTxRxSum.txPkts > 0 || preTxRxSum.rxPkts > 0)) {
-            sent = mTxPkts - preTxRxSum.txPkts;
-            received = mRxPkts - preTxRxSum.rxPkts;
+        if (mNetStatPollEnabled && (preTxPkts > 0 || preRxPkts > 0)) {
+            sent = mTxPkts - preTxPkts;
+            received = mRxPkts - preRxPkts;
 
             if (VDBG)
                 log("updateDataActivity: sent=" + sent + " received=" + received);
+            if (sent > 0 || received > 0) {
+                mNetStatIdlePolls = 0;
+            } else {
+                mNetStatIdlePolls++;
+            }
             if (sent > 0 && received > 0) {
                 newActivity = DctConstants.Activity.DATAINANDOUT;
             } else if (sent > 0 && received == 0) {
@@ -1693,16 +1879,17 @@ public abstract class DcTrackerBase extends Handler {
     private void updateDataStallInfo() {
         long sent, received;
 
-        TxRxSum preTxRxSum = new TxRxSum(mDataStallTxRxSum);
+        long preTxPkts = mDataStallTxRxSum.txPkts;
+        long preRxPkts = mDataStallTxRxSum.rxPkts;
         mDataStallTxRxSum.updateTxRxSum();
 
         if (VDBG_STALL) {
             log("updateDataStallInfo: mDataStallTxRxSum=" + mDataStallTxRxSum +
-                    " preTxRxSum=" + preTxRxSum);
+                    " preTxPkts=" + preTxPkts + " preRxPkts=" + preRxPkts);
         }
 
-        sent = mDataStallTxRxSum.txPkts - preTxRxSum.txPkts;
-        received = mDataStallTxRxSum.rxPkts - preTxRxSum.rxPkts;
+        sent = mDataStallTxRxSum.txPkts - preTxPkts;
+        received = mDataStallTxRxSum.rxPkts - preRxPkts;
 
         if (RADIO_TESTS) {
             if (SystemProperties.getBoolean("radio.test.data.stall", false)) {
@@ -1742,9 +1929,7 @@ public abstract class DcTrackerBase extends Handler {
         }
         updateDataStallInfo();
 
-        int hangWatchdogTrigger = Settings.Global.getInt(mResolver,
-                Settings.Global.PDP_WATCHDOG_TRIGGER_PACKET_COUNT,
-                NUMBER_SENT_PACKETS_OF_HANG);
+        int hangWatchdogTrigger = mHangWatchdogTrigger;
 
         boolean suspectedStall = DATA_STALL_NOT_SUSPECTED;
         if (mSentSinceLastRecv >= hangWatchdogTrigger) {
@@ -1770,13 +1955,9 @@ public abstract class DcTrackerBase extends Handler {
             // If screen is on or data stall is currently suspected, set the alarm
             // with an aggresive timeout.
             if (mIsScreenOn || suspectedStall || RecoveryAction.isAggressiveRecovery(nextAction)) {
-                delayInMs = Settings.Global.getInt(mResolver,
-                        Settings.Global.DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS,
-                        DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
+                delayInMs = mDataStallAggressiveDelayMs;
             } else {
-                delayInMs = Settings.Global.getInt(mResolver,
-                        Settings.Global.DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS,
-                        DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
+                delayInMs = mDataStallNonAggressiveDelayMs;
             }
 
             mDataStallAlarmTag += 1;
@@ -1993,6 +2174,14 @@ public abstract class DcTrackerBase extends Handler {
         pw.println(" mRxPkts=" + mRxPkts);
         pw.println(" mNetStatPollPeriod=" + mNetStatPollPeriod);
         pw.println(" mNetStatPollEnabled=" + mNetStatPollEnabled);
+        pw.println(" mNetStatIdlePolls=" + mNetStatIdlePolls);
+        pw.println(" mActivitySource=" + mActivitySource);
+        pw.println(" mNetStatPollMillis=" + mNetStatPollMillis
+                + " mNetStatScreenOffPollMillis=" + mNetStatScreenOffPollMillis
+                + " mNetStatIdleMaxPollMillis=" + mNetStatIdleMaxPollMillis);
+        pw.println(" mHangWatchdogTrigger=" + mHangWatchdogTrigger
+                + " mDataStallAggressiveDelayMs=" + mDataStallAggressiveDelayMs
+                + " mDataStallNonAggressiveDelayMs=" + mDataStallNonAggressiveDelayMs);
         pw.println(" mDataStallTxRxSum=" + mDataStallTxRxSum);
         pw.println(" mDataStallAlarmTag=" + mDataStallAlarmTag);
         pw.println(" mDataStallDetectionEanbled=" + mDataStallDetectionEnabled);
@@ -2062,6 +2251,7 @@ public abstract class DcTrackerBase extends Handler {
         } else {
             pw.println(" mAllApnSettings=null");
         }
+        pw.println(" mApnIndex=" + mApnIndex);
         pw.println(" mPreferredApn=" + mPreferredApn);
         pw.println(" mIsPsRestricted=" + mIsPsRestricted);
         pw.println(" mIsDisposed=" + mIsDisposed);
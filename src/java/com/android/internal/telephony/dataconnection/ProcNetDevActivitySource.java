@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.telephony.Rlog;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Packet counts of the data connection interfaces, read from the kernel's per interface
+ * counters in /proc/net/dev.
+ *
+ * The file is kept open and read again from the start into a reused buffer, and the lines of
+ * the interfaces are found and their numbers parsed in place, so a read allocates nothing
+ * and needs no call into the network stats service. The counts are of all packets, not only
+ * TCP ones as {@link TrafficStatsActivitySource} gives, so they are only used to show data
+ * activity: incoming packets such as router advertisements would hide a TCP stall.
+ */
+final class ProcNetDevActivitySource implements DataActivitySource {
+    private static final String LOG_TAG = "ProcNetDevActivitySource";
+
+    static final String PROC_NET_DEV = "/proc/net/dev";
+
+    // Fields after the "name:" of an interface's line, counting from 0
+    private static final int RX_PACKETS_FIELD = 1;
+    private static final int TX_PACKETS_FIELD = 9;
+
+    private static final String[] NO_INTERFACES = new String[0];
+
+    private final String mPath;
+    private RandomAccessFile mFile;
+    private byte[] mBuffer = new byte[4096];
+    private final long[] mCounts = new long[2];
+
+    private String[] mInterfaces = NO_INTERFACES;
+    private long mTxPackets = -1;
+    private long mRxPackets = -1;
+
+    ProcNetDevActivitySource() {
+        this(PROC_NET_DEV);
+    }
+
+    /** @param path the file to read, in the format of /proc/net/dev */
+    ProcNetDevActivitySource(String path) {
+        mPath = path;
+    }
+
+    @Override
+    public void setInterfaces(String[] ifaces) {
+        mInterfaces = (ifaces != null) ? ifaces : NO_INTERFACES;
+    }
+
+    /** @return true if there are interfaces to count */
+    boolean hasInterfaces() {
+        return mInterfaces.length > 0;
+    }
+
+    /**
+     * @return false if the file could not be read or none of the interfaces are in it
+     */
+    @Override
+    public boolean update() {
+        if (mInterfaces.length == 0) {
+            return false;
+        }
+        int length;
+        try {
+            length = read();
+        } catch (IOException e) {
+            Rlog.w(LOG_TAG, "update: cannot read " + mPath + " " + e);
+            close();
+            return false;
+        }
+        if (!parse(mBuffer, length, mInterfaces, mCounts)) {
+            return false;
+        }
+        mTxPackets = mCounts[0];
+        mRxPackets = mCounts[1];
+        return true;
+    }
+
+    /** Close the file, until the next {@link #update}. */
+    void close() {
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                // Nothing more to do with it
+            }
+            mFile = null;
+        }
+    }
+
+    private int read() throws IOException {
+        if (mFile == null) {
+            mFile = new RandomAccessFile(mPath, "r");
+        }
+        // Reading from the start again has the kernel generate the file afresh
+        mFile.seek(0);
+        int length = 0;
+        while (true) {
+            if (length == mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, length * 2);
+            }
+            int count = mFile.read(mBuffer, length, mBuffer.length - length);
+            if (count < 0) {
+                return length;
+            }
+            length += count;
+        }
+    }
+
+    /**
+     * Sum the packet counts of some interfaces in the contents of /proc/net/dev.
+     *
+     * @param buf the contents of the file
+     * @param length the number of bytes of <code>buf</code> in use
+     * @param ifaces the names of the interfaces to count
+     * @param counts set to the packets sent and the packets received
+     * @return false if none of the interfaces were found, leaving <code>counts</code> as it was
+     */
+    static boolean parse(byte[] buf, int length, String[] ifaces, long[] counts) {
+        long txPackets = 0;
+        long rxPackets = 0;
+        boolean found = false;
+
+        int pos = 0;
+        while (pos < length) {
+            int end = pos;
+            int colon = -1;
+            while (end < length && buf[end] != '\n') {
+                if (colon < 0 && buf[end] == ':') {
+                    colon = end;
+                }
+                end++;
+            }
+            // The header lines have no colon
+            if (colon > 0) {
+                int start = skipSpaces(buf, pos, colon);
+                if (isInterface(buf, start, colon, ifaces)) {
+                    long rx = -1;
+                    long tx = -1;
+                    int i = colon + 1;
+                    for (int field = 0; field <= TX_PACKETS_FIELD; field++) {
+                        i = skipSpaces(buf, i, end);
+                        if (i == end || buf[i] < '0' || buf[i] > '9') {
+                            break;
+                        }
+                        long value = 0;
+                        while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+                            value = value * 10 + (buf[i] - '0');
+                            i++;
+                        }
+                        if (field == RX_PACKETS_FIELD) {
+                            rx = value;
+                        } else if (field == TX_PACKETS_FIELD) {
+                            tx = value;
+                        }
+                    }
+                    if (tx >= 0) {
+                        txPackets += tx;
+                        rxPackets += rx;
+                        found = true;
+                    }
+                }
+            }
+            pos = end + 1;
+        }
+
+        if (found) {
+            counts[0] = txPackets;
+            counts[1] = rxPackets;
+        }
+        return found;
+    }
+
+    private static int skipSpaces(byte[] buf, int pos, int end) {
+        while (pos < end && (buf[pos] == ' ' || buf[pos] == '\t')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isInterface(byte[] buf, int start, int end, String[] ifaces) {
+        for (String iface : ifaces) {
+            if (iface.length() != end - start) {
+                continue;
+            }
+            int i = 0;
+            while (i < iface.length() && iface.charAt(i) == (buf[start + i] & 0xff)) {
+                i++;
+            }
+            if (i == iface.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long getTxPackets() {
+        return mTxPackets;
+    }
+
+    @Override
+    public long getRxPackets() {
+        return mRxPackets;
+    }
+
+    @Override
+    public String toString() {
+        return "ProcNetDevActivitySource{ifaces=" + Arrays.toString(mInterfaces)
+                + " tx=" + mTxPackets + " rx=" + mRxPackets + "}";
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.net.TrafficStats;
+
+/**
+ * Mobile TCP packet counts from {@link TrafficStats}, which finds the mobile interfaces
+ * itself. Used for data activity where {@link ProcNetDevActivitySource} cannot read its
+ * counters, and always for stall detection, which must not see other traffic.
+ */
+final class TrafficStatsActivitySource implements DataActivitySource {
+    private long mTxPackets = -1;
+    private long mRxPackets = -1;
+
+    @Override
+    public void setInterfaces(String[] ifaces) {
+    }
+
+    @Override
+    public boolean update() {
+        mTxPackets = TrafficStats.getMobileTcpTxPackets();
+        mRxPackets = TrafficStats.getMobileTcpRxPackets();
+        return true;
+    }
+
+    @Override
+    public long getTxPackets() {
+        return mTxPackets;
+    }
+
+    @Override
+    public long getRxPackets() {
+        return mRxPackets;
+    }
+
+    @Override
+    public String toString() {
+        return "TrafficStatsActivitySource";
+    }
+}
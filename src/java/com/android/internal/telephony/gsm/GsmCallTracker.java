@@ -40,6 +40,7 @@ import com.android.internal.telephony.EventLogTags;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneBase;
 import com.android.internal.telephony.PhoneConstants;
+import com.android.internal.telephony.PolledCallTable;
 import com.android.internal.telephony.TelephonyProperties;
 import com.android.internal.telephony.UUSInfo;
 import com.android.internal.telephony.gsm.CallFailCause;
@@ -70,6 +71,8 @@ public final class GsmCallTracker extends CallTracker {
 
     //***** Instance Variables
     GsmConnection mConnections[] = new GsmConnection[MAX_CONNECTIONS];
+    // What mConnections looked like after the last poll
+    PolledCallTable mPolledCalls = new PolledCallTable(MAX_CONNECTIONS);
     RegistrantList mVoiceCallEndedRegistrants = new RegistrantList();
     RegistrantList mVoiceCallStartedRegistrants = new RegistrantList();
 
@@ -367,6 +370,8 @@ public final class GsmCallTracker extends CallTracker {
         mPendingOperations++;
         mLastRelevantPoll = null;
         mNeedsPoll = true;
+        // The command may change connections before the next poll shows it
+        mPolledCalls.clear();
 
         if (DBG_POLL) log("obtainCompleteMessage: pendingOperations=" +
                 mPendingOperations + ", needsPoll=" + mNeedsPoll);
@@ -382,8 +387,7 @@ public final class GsmCallTracker extends CallTracker {
                 mPendingOperations + ", needsPoll=" + mNeedsPoll);
 
         if (mPendingOperations == 0 && mNeedsPoll) {
-            mLastRelevantPoll = obtainMessage(EVENT_POLL_CALLS_RESULT);
-            mCi.getCurrentCalls(mLastRelevantPoll);
+            pollCalls();
         } else if (mPendingOperations < 0) {
             // this should never happen
             Rlog.e(LOG_TAG,"GsmCallTracker.pendingOperations < 0");
@@ -490,6 +494,7 @@ public final class GsmCallTracker extends CallTracker {
 
                         // Do not continue processing this poll
                         // Wait for hangup and repoll
+                        mPolledCalls.clear();
                         return;
                     }
                 } else {
@@ -539,6 +544,8 @@ public final class GsmCallTracker extends CallTracker {
                 // Dropped connections are removed from the CallTracker
                 // list but kept in the GsmCall list
                 mConnections[i] = null;
+            } else if (conn != null && dc != null && mPolledCalls.isUnchanged(i, dc, conn)) {
+                // Reported as it was last time: nothing to compare or update
             } else if (conn != null && dc != null && !conn.compareTo(dc)) {
                 // Connection in CLCC response does not match what
                 // we were tracking. Assume dropped call and new call
@@ -556,6 +563,8 @@ public final class GsmCallTracker extends CallTracker {
                 hasNonHangupStateChanged = hasNonHangupStateChanged || changed;
             }
 
+            mPolledCalls.put(i, dc, mConnections[i]);
+
             if (REPEAT_POLLING) {
                 if (dc != null) {
                     // FIXME with RIL, we should not need this anymore
@@ -885,7 +894,9 @@ public final class GsmCallTracker extends CallTracker {
                             "handle EVENT_POLL_CALL_RESULT: set needsPoll=F");
                     mNeedsPoll = false;
                     mLastRelevantPoll = null;
-                    handlePollCalls((AsyncResult)msg.obj);
+                    if (onRelevantPollResult()) {
+                        handlePollCalls((AsyncResult)msg.obj);
+                    }
                 }
             break;
 
@@ -978,6 +989,7 @@ public final class GsmCallTracker extends CallTracker {
         }
         pw.println(" mVoiceCallEndedRegistrants=" + mVoiceCallEndedRegistrants);
         pw.println(" mVoiceCallStartedRegistrants=" + mVoiceCallStartedRegistrants);
+        pw.println(" mPolledCalls=" + mPolledCalls);
         pw.println(" mDroppedDuringPoll: size=" + mDroppedDuringPoll.size());
         for(int i = 0; i < mDroppedDuringPoll.size(); i++) {
             pw.printf( "  mDroppedDuringPoll[%d]=%s\n", i, mDroppedDuringPoll.get(i));
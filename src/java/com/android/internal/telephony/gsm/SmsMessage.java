@@ -28,6 +28,7 @@ import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
 import com.android.internal.telephony.uicc.IccUtils;
 import com.android.internal.telephony.SmsHeader;
 import com.android.internal.telephony.SmsMessageBase;
+import com.android.internal.telephony.SmsTextEncoder;
 import com.android.internal.telephony.Sms7BitEncodingTranslator;
 
 import java.io.ByteArrayOutputStream;
@@ -282,30 +283,15 @@ public class SmsMessage extends SmsMessageBase {
         byte[] userData;
         try {
             if (encoding == ENCODING_7BIT) {
-                userData = GsmAlphabet.stringToGsm7BitPackedWithHeader(message, header,
-                        languageTable, languageShiftTable);
+                userData = encode7bit(message, header, languageTable, languageShiftTable);
             } else { //assume UCS-2
-                try {
-                    userData = encodeUCS2(message, header);
-                } catch(UnsupportedEncodingException uex) {
-                    Rlog.e(LOG_TAG,
-                            "Implausible UnsupportedEncodingException ",
-                            uex);
-                    return null;
-                }
+                userData = encodeUCS2(message, header);
             }
         } catch (EncodeException ex) {
             // Encoding to the 7-bit alphabet failed. Let's see if we can
             // send it as a UCS-2 encoded message
-            try {
-                userData = encodeUCS2(message, header);
-                encoding = ENCODING_16BIT;
-            } catch(UnsupportedEncodingException uex) {
-                Rlog.e(LOG_TAG,
-                        "Implausible UnsupportedEncodingException ",
-                        uex);
-                return null;
-            }
+            userData = encodeUCS2(message, header);
+            encoding = ENCODING_16BIT;
         }
 
         if (encoding == ENCODING_7BIT) {
@@ -340,31 +326,38 @@ public class SmsMessage extends SmsMessageBase {
         return ret;
     }
 
+    /**
+     * Packs header and 7-bit encoded message. Includes TP-UDL & TP-UDHL if necessary.
+     * Text in the default alphabet basic table is packed in one pass straight into the
+     * result; anything else goes through GsmAlphabet.
+     *
+     * @return encoded message as 7-bit packed septets
+     * @throws EncodeException if the message cannot be encoded with the given tables
+     */
+    private static byte[] encode7bit(String message, byte[] header, int languageTable,
+            int languageShiftTable) throws EncodeException {
+        if (languageTable == 0 && languageShiftTable == 0) {
+            int septets = SmsTextEncoder.countSeptets(message, 0, message.length());
+            if (septets >= 0) {
+                byte[] ret = new byte[SmsTextEncoder.get7BitPackedLength(septets, header)];
+                if (SmsTextEncoder.encode7BitPacked(message, 0, message.length(), header,
+                        ret, 0) >= 0) {
+                    return ret;
+                }
+            }
+        }
+        return GsmAlphabet.stringToGsm7BitPackedWithHeader(message, header,
+                languageTable, languageShiftTable);
+    }
+
     /**
      * Packs header and UCS-2 encoded message. Includes TP-UDL & TP-UDHL if necessary
      *
      * @return encoded message as UCS2
-     * @throws UnsupportedEncodingException
      */
-    private static byte[] encodeUCS2(String message, byte[] header)
-        throws UnsupportedEncodingException {
-        byte[] userData, textPart;
-        textPart = message.getBytes("utf-16be");
-
-        if (header != null) {
-            // Need 1 byte for UDHL
-            userData = new byte[header.length + textPart.length + 1];
-
-            userData[0] = (byte)header.length;
-            System.arraycopy(header, 0, userData, 1, header.length);
-            System.arraycopy(textPart, 0, userData, header.length + 1, textPart.length);
-        }
-        else {
-            userData = textPart;
-        }
-        byte[] ret = new byte[userData.length+1];
-        ret[0] = (byte) (userData.length & 0xff );
-        System.arraycopy(userData, 0, ret, 1, userData.length);
+    private static byte[] encodeUCS2(String message, byte[] header) {
+        byte[] ret = new byte[SmsTextEncoder.getUcs2Length(message.length(), header)];
+        SmsTextEncoder.encodeUcs2(message, 0, message.length(), header, ret, 0);
         return ret;
     }
 
@@ -793,7 +786,15 @@ public class SmsMessage extends SmsMessageBase {
         if (TextUtils.isEmpty(newMsgBody)) {
             newMsgBody = msgBody;
         }
-        TextEncodingDetails ted = GsmAlphabet.countGsmSeptets(newMsgBody, use7bitOnly);
+        TextEncodingDetails ted;
+        int septets = SmsTextEncoder.countSeptets(newMsgBody, 0, newMsgBody.length());
+        if (septets >= 0) {
+            // Only default alphabet basic table chars, which no other table can improve on
+            ted = new TextEncodingDetails();
+            SmsTextEncoder.fill7BitDetails(ted, septets);
+        } else {
+            ted = GsmAlphabet.countGsmSeptets(newMsgBody, use7bitOnly);
+        }
         if (ted == null) {
             ted = new TextEncodingDetails();
             int octets = newMsgBody.length() * 2;
@@ -24,7 +24,6 @@ import android.util.SparseArray;
 import com.android.internal.telephony.gsm.UsimPhoneBookManager;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 
 /**
  * {@hide}
@@ -39,6 +38,9 @@ public final class AdnRecordCache extends Handler implements IccConstants {
     SparseArray<ArrayList<AdnRecord>> mAdnLikeFiles
         = new SparseArray<ArrayList<AdnRecord>>();
 
+    // Indexes over mAdnLikeFiles and the USIM phonebook, built on first search
+    SparseArray<AdnRecordIndex> mAdnLikeIndexes = new SparseArray<AdnRecordIndex>();
+
     // People waiting for ADN-like files to be loaded
     SparseArray<ArrayList<Message>> mAdnLikeWaiters
         = new SparseArray<ArrayList<Message>>();
@@ -67,6 +69,7 @@ public final class AdnRecordCache extends Handler implements IccConstants {
      */
     public void reset() {
         mAdnLikeFiles.clear();
+        mAdnLikeIndexes.clear();
         mUsimPhoneBookManager.reset();
 
         clearWaiters();
@@ -101,6 +104,38 @@ public final class AdnRecordCache extends Handler implements IccConstants {
         return mAdnLikeFiles.get(efid);
     }
 
+    /**
+     * Returns the index over the records of efid, building it if needed.
+     */
+    private AdnRecordIndex getIndex(int efid, ArrayList<AdnRecord> records) {
+        AdnRecordIndex index = mAdnLikeIndexes.get(efid);
+        if (index == null) {
+            index = new AdnRecordIndex(records);
+            mAdnLikeIndexes.put(efid, index);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the non-empty records of an ADN-like EF that match a tag and a
+     * number, in EF order; see {@link AdnRecordIndex#search}.
+     *
+     * @param efid EF_ADN, EF_FDN, EF_SDN or EF_PBR
+     * @return the matching records, or null if efid has not been loaded
+     */
+    public ArrayList<AdnRecord> searchAdn(int efid, String tag, String number) {
+        ArrayList<AdnRecord> records;
+        if (efid == EF_PBR) {
+            records = mUsimPhoneBookManager.loadEfFilesFromUsim();
+        } else {
+            records = getRecordsIfLoaded(efid);
+        }
+        if (records == null) {
+            return null;
+        }
+        return getIndex(efid, records).search(tag, number);
+    }
+
     /**
      * Returns extension ef associated with ADN-like EF or -1 if
      * we don't know.
@@ -197,15 +232,7 @@ public final class AdnRecordCache extends Handler implements IccConstants {
             return;
         }
 
-        int index = -1;
-        int count = 1;
-        for (Iterator<AdnRecord> it = oldAdnList.iterator(); it.hasNext(); ) {
-            if (oldAdn.isEqual(it.next())) {
-                index = count;
-                break;
-            }
-            count++;
-        }
+        int index = getIndex(efid, oldAdnList).find(oldAdn);
 
         if (index == -1) {
             sendErrorResponse(response, "Adn record don't exist for " + oldAdn);
@@ -336,6 +363,7 @@ public final class AdnRecordCache extends Handler implements IccConstants {
 
                 if (ar.exception == null) {
                     mAdnLikeFiles.put(efid, (ArrayList<AdnRecord>) ar.result);
+                    mAdnLikeIndexes.remove(efid);
                 }
                 notifyWaiters(waiters, ar);
                 break;
@@ -346,8 +374,15 @@ public final class AdnRecordCache extends Handler implements IccConstants {
                 AdnRecord adn = (AdnRecord) (ar.userObj);
 
                 if (ar.exception == null) {
-                    mAdnLikeFiles.get(efid).set(index - 1, adn);
+                    AdnRecordIndex adnIndex = mAdnLikeIndexes.get(efid);
+                    if (adnIndex != null) {
+                        adnIndex.set(index, adn);
+                    } else {
+                        mAdnLikeFiles.get(efid).set(index - 1, adn);
+                    }
+                    // The USIM phonebook list is rebuilt on next use
                     mUsimPhoneBookManager.invalidateCache();
+                    mAdnLikeIndexes.remove(EF_PBR);
                 }
 
                 Message response = mUserWriteResponse.get(efid);
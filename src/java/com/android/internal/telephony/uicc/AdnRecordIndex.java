@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Index over the records of an ADN-like EF, so a record can be found by
+ * alpha tag or number without comparing it against every record.
+ *
+ * Records are indexed by alpha tag and by number with separators removed,
+ * and empty records are kept in a bitmap so the first free record is found
+ * directly. Matches are still confirmed with {@link AdnRecord#isEqual}, so
+ * lookups return exactly what a scan of the list would.
+ *
+ * The index is built over the record list of the EF and must be told of
+ * every change to it; replace records through {@link #set} only.
+ *
+ * {@hide}
+ */
+public class AdnRecordIndex {
+    private final List<AdnRecord> mRecords;
+    // Values are 0-based positions in mRecords, in ascending order
+    private final HashMap<String, ArrayList<Integer>> mByTag =
+            new HashMap<String, ArrayList<Integer>>();
+    private final HashMap<String, ArrayList<Integer>> mByNumber =
+            new HashMap<String, ArrayList<Integer>>();
+    private final BitSet mFree = new BitSet();
+
+    public AdnRecordIndex(List<AdnRecord> records) {
+        mRecords = records;
+        for (int i = 0; i < records.size(); i++) {
+            add(i, records.get(i));
+        }
+    }
+
+    /**
+     * @return the 1-based position of the first record equal to
+     * <code>adn</code>, or -1 if there is none. An empty <code>adn</code>
+     * finds the first free record.
+     */
+    public synchronized int find(AdnRecord adn) {
+        if (adn.isEmpty()) {
+            int free = mFree.nextSetBit(0);
+            return (free < 0) ? -1 : free + 1;
+        }
+
+        ArrayList<Integer> candidates;
+        String number = normalizeNumber(adn.getNumber());
+        if (number.length() > 0) {
+            candidates = mByNumber.get(number);
+        } else if (!TextUtils.isEmpty(adn.getAlphaTag())) {
+            candidates = mByTag.get(adn.getAlphaTag());
+        } else {
+            // Only emails set; such records are not indexed
+            for (int i = 0; i < mRecords.size(); i++) {
+                AdnRecord record = mRecords.get(i);
+                if (record != null && adn.isEqual(record)) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        if (candidates != null) {
+            for (int i = 0; i < candidates.size(); i++) {
+                int pos = candidates.get(i);
+                if (adn.isEqual(mRecords.get(pos))) {
+                    return pos + 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the non-empty records matching a tag and a number, in EF order.
+     * Numbers are compared without separators.
+     *
+     * @param tag alpha tag to match, or null or empty to match any
+     * @param number number to match, or null or empty to match any
+     */
+    public synchronized ArrayList<AdnRecord> search(String tag, String number) {
+        ArrayList<AdnRecord> result = new ArrayList<AdnRecord>();
+        boolean anyTag = TextUtils.isEmpty(tag);
+        boolean anyNumber = TextUtils.isEmpty(number);
+
+        if (anyTag && anyNumber) {
+            for (int i = 0; i < mRecords.size(); i++) {
+                AdnRecord record = mRecords.get(i);
+                if (record != null && !record.isEmpty()) {
+                    result.add(record);
+                }
+            }
+            return result;
+        }
+
+        ArrayList<Integer> candidates = anyNumber ? mByTag.get(tag)
+                : mByNumber.get(normalizeNumber(number));
+        if (candidates != null) {
+            for (int i = 0; i < candidates.size(); i++) {
+                AdnRecord record = mRecords.get(candidates.get(i));
+                if (anyTag || tag.equals(record.getAlphaTag())) {
+                    result.add(record);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replaces a record in the list and in the index.
+     *
+     * @param recordNumber 1-based position of the record
+     */
+    public synchronized void set(int recordNumber, AdnRecord adn) {
+        int pos = recordNumber - 1;
+        remove(pos, mRecords.get(pos));
+        mRecords.set(pos, adn);
+        add(pos, adn);
+    }
+
+    /** @return the number of empty records */
+    public synchronized int getFreeCount() {
+        return mFree.cardinality();
+    }
+
+    private void add(int pos, AdnRecord record) {
+        if (record == null) {
+            return;
+        }
+        if (record.isEmpty()) {
+            mFree.set(pos);
+            return;
+        }
+        String tag = record.getAlphaTag();
+        if (!TextUtils.isEmpty(tag)) {
+            addPosition(mByTag, tag, pos);
+        }
+        String number = normalizeNumber(record.getNumber());
+        if (number.length() > 0) {
+            addPosition(mByNumber, number, pos);
+        }
+    }
+
+    private void remove(int pos, AdnRecord record) {
+        if (record == null) {
+            return;
+        }
+        if (record.isEmpty()) {
+            mFree.clear(pos);
+            return;
+        }
+        String tag = record.getAlphaTag();
+        if (!TextUtils.isEmpty(tag)) {
+            removePosition(mByTag, tag, pos);
+        }
+        String number = normalizeNumber(record.getNumber());
+        if (number.length() > 0) {
+            removePosition(mByNumber, number, pos);
+        }
+    }
+
+    private static void addPosition(HashMap<String, ArrayList<Integer>> map, String key,
+            int pos) {
+        ArrayList<Integer> positions = map.get(key);
+        if (positions == null) {
+            positions = new ArrayList<Integer>(1);
+            map.put(key, positions);
+        }
+        int i = Collections.binarySearch(positions, pos);
+        if (i < 0) {
+            positions.add(-i - 1, pos);
+        }
+    }
+
+    private static void removePosition(HashMap<String, ArrayList<Integer>> map, String key,
+            int pos) {
+        ArrayList<Integer> positions = map.get(key);
+        if (positions == null) {
+            return;
+        }
+        int i = Collections.binarySearch(positions, pos);
+        if (i >= 0) {
+            positions.remove(i);
+        }
+        if (positions.isEmpty()) {
+            map.remove(key);
+        }
+    }
+
+    private static String normalizeNumber(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return "";
+        }
+        return PhoneNumberUtils.stripSeparators(number);
+    }
+}
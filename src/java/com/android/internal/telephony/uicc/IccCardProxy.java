@@ -85,6 +85,7 @@ public class IccCardProxy extends Handler implements IccCard {
     private static final int EVENT_IMSI_READY = 8;
     private static final int EVENT_NETWORK_LOCKED = 9;
     private static final int EVENT_CDMA_SUBSCRIPTION_SOURCE_CHANGED = 11;
+    private static final int EVENT_CRITICAL_RECORDS_LOADED = 12;
 
     private static final int EVENT_ICC_RECORD_EVENTS = 500;
     private static final int EVENT_SUBSCRIPTION_ACTIVATED = 501;
@@ -253,26 +254,13 @@ public class IccCardProxy extends Handler implements IccCard {
             case EVENT_APP_READY:
                 setExternalState(State.READY);
                 break;
+            case EVENT_CRITICAL_RECORDS_LOADED:
+                // The IMSI and MNC length are known, so publish the MCC/MNC
+                // without waiting for the remaining records
+                updateSimOperator("EVENT_CRITICAL_RECORDS_LOADED");
+                break;
             case EVENT_RECORDS_LOADED:
-                // Update the MCC/MNC.
-                if (mIccRecords != null) {
-                    String operator = mIccRecords.getOperatorNumeric();
-                    log("operator=" + operator + " mPhoneId=" + mPhoneId);
-
-                    if (operator != null) {
-                        log("update icc_operator_numeric=" + operator);
-                        mTelephonyManager.setSimOperatorNumericForPhone(mPhoneId, operator);
-                        String countryCode = operator.substring(0,3);
-                        if (countryCode != null) {
-                            mTelephonyManager.setSimCountryIsoForPhone(mPhoneId,
-                                    MccTable.countryCodeForMcc(Integer.parseInt(countryCode)));
-                        } else {
-                            loge("EVENT_RECORDS_LOADED Country code is null");
-                        }
-                    } else {
-                        loge("EVENT_RECORDS_LOADED Operator name is null");
-                    }
-                }
+                updateSimOperator("EVENT_RECORDS_LOADED");
                 if (mUiccCard != null && !mUiccCard.areCarrierPriviligeRulesLoaded()) {
                     mUiccCard.registerForCarrierPrivilegeRulesLoaded(
                         this, EVENT_CARRIER_PRIVILIGES_LOADED, null);
@@ -336,6 +324,31 @@ public class IccCardProxy extends Handler implements IccCard {
         updateStateProperty();
     }
 
+    /**
+     * Publishes the MCC/MNC of the records and the country they belong to.
+     */
+    private void updateSimOperator(String event) {
+        if (mIccRecords == null) {
+            return;
+        }
+        String operator = mIccRecords.getOperatorNumeric();
+        log("operator=" + operator + " mPhoneId=" + mPhoneId);
+
+        if (operator != null) {
+            log("update icc_operator_numeric=" + operator);
+            mTelephonyManager.setSimOperatorNumericForPhone(mPhoneId, operator);
+            String countryCode = operator.substring(0,3);
+            if (countryCode != null) {
+                mTelephonyManager.setSimCountryIsoForPhone(mPhoneId,
+                        MccTable.countryCodeForMcc(Integer.parseInt(countryCode)));
+            } else {
+                loge(event + " Country code is null");
+            }
+        } else {
+            loge(event + " Operator name is null");
+        }
+    }
+
     private void onRecordsLoaded() {
         broadcastInternalIccStateChangedIntent(IccCardConstants.INTENT_VALUE_ICC_LOADED, null);
     }
@@ -439,6 +452,8 @@ public class IccCardProxy extends Handler implements IccCard {
         }
         if (mIccRecords != null) {
             mIccRecords.registerForImsiReady(this, EVENT_IMSI_READY, null);
+            mIccRecords.registerForCriticalRecordsLoaded(this, EVENT_CRITICAL_RECORDS_LOADED,
+                    null);
             mIccRecords.registerForRecordsLoaded(this, EVENT_RECORDS_LOADED, null);
             mIccRecords.registerForRecordsEvents(this, EVENT_ICC_RECORD_EVENTS, null);
         }
@@ -450,6 +465,7 @@ public class IccCardProxy extends Handler implements IccCard {
         if (mUiccApplication != null) mUiccApplication.unregisterForLocked(this);
         if (mUiccApplication != null) mUiccApplication.unregisterForNetworkLocked(this);
         if (mIccRecords != null) mIccRecords.unregisterForImsiReady(this);
+        if (mIccRecords != null) mIccRecords.unregisterForCriticalRecordsLoaded(this);
         if (mIccRecords != null) mIccRecords.unregisterForRecordsLoaded(this);
         if (mIccRecords != null) mIccRecords.unregisterForRecordsEvents(this);
     }
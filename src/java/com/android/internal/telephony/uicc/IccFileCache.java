@@ -0,0 +1,723 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemProperties;
+import android.telephony.Rlog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of elementary file contents, keyed by ICCID, AID, EF id
+ * and record number. The ICCID is only kept as a SHA-256 hash; the EFs that
+ * identify the subscriber are never passed in, see
+ * {@link IccFileHandler#isCacheable}.
+ *
+ * Entries live in memory and are mirrored to an append-only log in the
+ * phone process' files directory, so the files read from a card on one
+ * boot can be served from flash on the next one. Every change is a single
+ * appended record carrying its length and CRC32; appends are synced once
+ * the writes queued with them are done. Loading stops at the first record
+ * that is cut short or fails its CRC, and the log is then rewritten from
+ * what was read before it.
+ *
+ * The log is also rewritten from memory once it has grown well beyond the
+ * live entries. The new log is written and synced to a temporary file which
+ * is then renamed over the old one, so a crash while rewriting leaves the
+ * old log, with every record appended to it, in place.
+ *
+ * The log is loaded on the writer thread, so creating the cache doesn't
+ * hold up the phone process starting; until it has been loaded the cache
+ * is empty. Changes made meanwhile take precedence over what is loaded.
+ *
+ * The cache does not decide whether an entry is still current; that is up
+ * to {@link IccFileHandler}, which verifies entries against the card and
+ * drops them on REFRESH.
+ *
+ * {@hide}
+ */
+public class IccFileCache {
+    private static final String LOG_TAG = "IccFileCache";
+    private static final boolean DBG = false;
+
+    /** Set to false to disable the cache. */
+    static final String PROPERTY_ENABLED = "persist.radio.icc_file_cache";
+    static final String FILE_NAME = "icc_file_cache";
+
+    private static final int MAGIC = 0x49434346;  // "ICCF"
+    private static final int VERSION = 2;
+
+    // Record framing: a 2 byte length ahead of the record and a CRC32 after it
+    private static final int RECORD_OVERHEAD = 2 + 4;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE_FILE = 2;
+    private static final int OP_REMOVE_APP = 3;
+
+    // Files larger than this are not worth the flash space
+    private static final int MAX_DATA_BYTES = 4096;
+    // The log is rewritten once it is this many times the size of the live entries
+    private static final int COMPACT_RATIO = 4;
+    private static final int MIN_COMPACT_BYTES = 16 * 1024;
+
+    private static final Object sLock = new Object();
+    private static IccFileCache sInstance;
+
+    private static class Key {
+        // SHA-256 of the ICCID, in hex
+        final String mIccId;
+        final String mAid;
+        final int mEfid;
+        final int mRecordNum;
+
+        Key(String iccId, String aid, int efid, int recordNum) {
+            mIccId = iccId;
+            mAid = (aid == null) ? "" : aid;
+            mEfid = efid;
+            mRecordNum = recordNum;
+        }
+
+        boolean matches(String iccId, String aid) {
+            return (iccId == null || mIccId.equals(iccId)) && mAid.equals(aid);
+        }
+
+        /** @return bytes taken by a put of this key with no data in the log */
+        int getLogSize() {
+            return RECORD_OVERHEAD + 1 + 2 + mIccId.length() + 2 + mAid.length() + 2 + 2 + 2;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return mEfid == k.mEfid && mRecordNum == k.mRecordNum && mIccId.equals(k.mIccId)
+                    && mAid.equals(k.mAid);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((mIccId.hashCode() * 31 + mAid.hashCode()) * 31 + mEfid) * 31 + mRecordNum;
+        }
+    }
+
+    /** EFs removed from the cache before it was loaded; efid -1 for a whole application. */
+    private static class Removal {
+        final String mIccId;
+        final String mAid;
+        final int mEfid;
+
+        Removal(String iccId, String aid, int efid) {
+            mIccId = iccId;
+            mAid = aid;
+            mEfid = efid;
+        }
+
+        boolean matches(Key key) {
+            return key.matches(mIccId, mAid) && (mEfid == -1 || key.mEfid == mEfid);
+        }
+    }
+
+    private final File mFile;
+    // A rewritten log is renamed over mFile once complete
+    private final File mNewFile;
+    private final Handler mWriter;
+    // Guarded by this
+    private final HashMap<Key, byte[]> mEntries = new HashMap<Key, byte[]>();
+    private int mLiveBytes;
+    private boolean mLoaded;
+    private ArrayList<Removal> mEarlyRemovals = new ArrayList<Removal>();
+    private int mHits;
+    private int mMisses;
+    // The last ICCID hashed and its hash
+    private String mLastIccId;
+    private String mLastIccIdHash;
+
+    // Only touched on the writer thread
+    private FileOutputStream mOutFile;
+    private DataOutputStream mOut;
+    private int mLogBytes;
+    private boolean mSyncPending;
+
+    private final Runnable mSyncLog = new Runnable() {
+        @Override
+        public void run() {
+            mSyncPending = false;
+            syncLog();
+        }
+    };
+
+    /**
+     * Creates the cache unless disabled by {@link #PROPERTY_ENABLED}. Must be
+     * called once from the phone process before any {@link IccFileHandler}
+     * is created.
+     */
+    public static IccFileCache make(Context context) {
+        synchronized (sLock) {
+            if (sInstance == null && SystemProperties.getBoolean(PROPERTY_ENABLED, true)) {
+                sInstance = new IccFileCache(new File(context.getFilesDir(), FILE_NAME));
+            }
+            return sInstance;
+        }
+    }
+
+    /** @return the cache, or null if it is disabled */
+    public static IccFileCache getInstance() {
+        synchronized (sLock) {
+            return sInstance;
+        }
+    }
+
+    IccFileCache(File file) {
+        mFile = file;
+        mNewFile = new File(file.getPath() + ".new");
+        HandlerThread thread = new HandlerThread(LOG_TAG);
+        thread.start();
+        mWriter = new Handler(thread.getLooper());
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Waits until the log has been loaded and the changes made so far have
+     * been written to it.
+     *
+     * @return false if that took longer than <code>timeoutMs</code>
+     */
+    boolean waitForWrites(long timeoutMs) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Closes the log and stops the writer thread once the pending writes are done. */
+    void close() {
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                closeLog();
+                mWriter.getLooper().quit();
+            }
+        });
+    }
+
+    /**
+     * @param recordNum 1-based record number, or 0 for a transparent EF
+     * @return a copy of the cached contents, or null if there are none or the
+     *         cache hasn't been loaded yet
+     */
+    public synchronized byte[] get(String iccId, String aid, int efid, int recordNum) {
+        String hash = hashIccId(iccId);
+        byte[] data = (mLoaded && hash != null)
+                ? mEntries.get(new Key(hash, aid, efid, recordNum)) : null;
+        if (data == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return data.clone();
+    }
+
+    /**
+     * Stores a copy of <code>data</code>. Nothing is written if the contents
+     * are already cached.
+     *
+     * @param recordNum 1-based record number, or 0 for a transparent EF
+     */
+    public void put(String iccId, String aid, int efid, int recordNum, byte[] data) {
+        if (data == null || data.length > MAX_DATA_BYTES) {
+            return;
+        }
+        final byte[] copy = data.clone();
+        final Key key;
+        synchronized (this) {
+            String hash = hashIccId(iccId);
+            if (hash == null) {
+                return;
+            }
+            key = new Key(hash, aid, efid, recordNum);
+            byte[] old = mEntries.put(key, copy);
+            if (Arrays.equals(old, copy)) {
+                return;
+            }
+            if (old != null) mLiveBytes -= key.getLogSize() + old.length;
+            mLiveBytes += key.getLogSize() + copy.length;
+        }
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                appendPut(key, copy);
+            }
+        });
+    }
+
+    /**
+     * Drops every record of an EF.
+     *
+     * @param iccId card to drop the EF for, or null for every card
+     */
+    public void remove(String iccId, final String aid, final int efid) {
+        final String hash = removeEntries(iccId, aid, efid);
+        if (hash == null) {
+            return;
+        }
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                appendRemove(OP_REMOVE_FILE, hash, aid, efid);
+            }
+        });
+    }
+
+    /**
+     * Drops every EF of an application.
+     *
+     * @param iccId card to drop the application for, or null for every card
+     */
+    public void removeAll(String iccId, final String aid) {
+        final String hash = removeEntries(iccId, aid, -1);
+        if (hash == null) {
+            return;
+        }
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                appendRemove(OP_REMOVE_APP, hash, aid, 0);
+            }
+        });
+    }
+
+    /**
+     * @param iccId null for any card
+     * @param efid -1 for any EF
+     * @return the ICCID hash to log the removal with, the empty string for
+     *         any card, or null if nothing was removed and nothing may have
+     *         been as the cache has been loaded
+     */
+    private synchronized String removeEntries(String iccId, String aid, int efid) {
+        if (aid == null) aid = "";
+        String hash = null;
+        if (iccId != null) {
+            hash = hashIccId(iccId);
+            if (hash == null) {
+                return null;
+            }
+        }
+        int removedBytes = removeEntries(mEntries, hash, aid, efid);
+        mLiveBytes -= removedBytes;
+        if (!mLoaded) {
+            // Whatever the log holds for the EF must not be loaded
+            mEarlyRemovals.add(new Removal(hash, aid, efid));
+        } else if (removedBytes == 0) {
+            return null;
+        }
+        // A null ICCID matches every card; it is logged as the empty string
+        return (hash == null) ? "" : hash;
+    }
+
+    /**
+     * Hashes an ICCID so the cache doesn't keep the identifier itself.
+     * Must be called with the lock held.
+     *
+     * @return the SHA-256 of the ICCID in hex, or null if it can't be hashed
+     */
+    private String hashIccId(String iccId) {
+        if (iccId == null) {
+            return null;
+        }
+        if (!iccId.equals(mLastIccId)) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                mLastIccIdHash = IccUtils.bytesToHexString(md.digest(iccId.getBytes()));
+                mLastIccId = iccId;
+            } catch (NoSuchAlgorithmException e) {
+                loge("Can't hash ICCID: " + e);
+                return null;
+            }
+        }
+        return mLastIccIdHash;
+    }
+
+    /** @return the log bytes taken by the entries removed, 0 if there were none */
+    private static int removeEntries(HashMap<Key, byte[]> entries, String iccId, String aid,
+            int efid) {
+        int removedBytes = 0;
+        Iterator<Map.Entry<Key, byte[]>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, byte[]> entry = it.next();
+            Key key = entry.getKey();
+            if (key.matches(iccId, aid) && (efid == -1 || key.mEfid == efid)) {
+                removedBytes += key.getLogSize() + entry.getValue().length;
+                it.remove();
+            }
+        }
+        return removedBytes;
+    }
+
+    private static int getLiveBytes(HashMap<Key, byte[]> entries) {
+        int bytes = 0;
+        for (Map.Entry<Key, byte[]> entry : entries.entrySet()) {
+            bytes += entry.getKey().getLogSize() + entry.getValue().length;
+        }
+        return bytes;
+    }
+
+    //***** Log, only touched on the writer thread
+
+    private void load() {
+        HashMap<Key, byte[]> loaded = new HashMap<Key, byte[]>();
+        DataInputStream in = null;
+        boolean rewrite = false;
+        // Left behind by a rewrite that didn't complete; the log is intact
+        mNewFile.delete();
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                loge("Discarding cache with unknown format");
+                rewrite = true;
+            } else {
+                mLogBytes = 8;
+                readRecords(in, loaded);
+            }
+        } catch (FileNotFoundException e) {
+            // First boot, nothing cached yet
+        } catch (EOFException e) {
+            // Appending after a torn record would corrupt everything that follows
+            loge("Discarding truncated cache record");
+            rewrite = true;
+        } catch (CorruptRecordException e) {
+            loge("Discarding cache from corrupt record: " + e.getMessage());
+            rewrite = true;
+        } catch (IOException e) {
+            loge("Failed to read cache: " + e);
+            rewrite = true;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        if (DBG) log("Loaded " + loaded.size() + " entries from " + mLogBytes + " bytes");
+
+        synchronized (this) {
+            // Changes made while loading are newer than the log
+            for (Map.Entry<Key, byte[]> entry : loaded.entrySet()) {
+                Key key = entry.getKey();
+                if (!mEntries.containsKey(key) && !isRemovedEarly(key)) {
+                    mEntries.put(key, entry.getValue());
+                }
+            }
+            mLiveBytes = getLiveBytes(mEntries);
+            mEarlyRemovals = null;
+            mLoaded = true;
+        }
+        if (rewrite) {
+            compact();
+        }
+    }
+
+    private boolean isRemovedEarly(Key key) {
+        for (Removal removal : mEarlyRemovals) {
+            if (removal.matches(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** A record that fails its CRC or can't be parsed. */
+    private static class CorruptRecordException extends IOException {
+        CorruptRecordException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Reads records up to the end of the log, applying each one to
+     * <code>entries</code> once its CRC has been checked.
+     *
+     * @throws EOFException if the last record was cut short
+     * @throws CorruptRecordException at the first record that is corrupt;
+     *         the records before it have been applied
+     */
+    private void readRecords(DataInputStream in, HashMap<Key, byte[]> entries)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        int high;
+        while ((high = in.read()) != -1) {
+            byte[] record = new byte[(high << 8) | in.readUnsignedByte()];
+            in.readFully(record);
+            crc.reset();
+            crc.update(record, 0, record.length);
+            if (in.readInt() != (int) crc.getValue()) {
+                throw new CorruptRecordException("CRC mismatch");
+            }
+            try {
+                applyRecord(new DataInputStream(new ByteArrayInputStream(record)), entries);
+            } catch (EOFException e) {
+                throw new CorruptRecordException("short record");
+            }
+            mLogBytes += RECORD_OVERHEAD + record.length;
+        }
+    }
+
+    private static void applyRecord(DataInputStream in, HashMap<Key, byte[]> entries)
+            throws IOException {
+        int op = in.readUnsignedByte();
+        String iccId = in.readUTF();
+        String aid = in.readUTF();
+        // Removals stored with an empty ICCID apply to every card
+        String removeIccId = (iccId.length() == 0) ? null : iccId;
+        switch (op) {
+            case OP_PUT:
+                Key key = new Key(iccId, aid, in.readUnsignedShort(), in.readUnsignedShort());
+                byte[] data = new byte[in.readUnsignedShort()];
+                in.readFully(data);
+                entries.put(key, data);
+                break;
+            case OP_REMOVE_FILE:
+                removeEntries(entries, removeIccId, aid, in.readUnsignedShort());
+                break;
+            case OP_REMOVE_APP:
+                removeEntries(entries, removeIccId, aid, -1);
+                break;
+            default:
+                throw new CorruptRecordException("unknown record " + op);
+        }
+    }
+
+    private static byte[] encodePut(Key key, byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                key.getLogSize() - RECORD_OVERHEAD + data.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(OP_PUT);
+        out.writeUTF(key.mIccId);
+        out.writeUTF(key.mAid);
+        out.writeShort(key.mEfid);
+        out.writeShort(key.mRecordNum);
+        out.writeShort(data.length);
+        out.write(data);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeRemove(int op, String iccId, String aid, int efid)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(op);
+        out.writeUTF(iccId);
+        out.writeUTF(aid);
+        if (op == OP_REMOVE_FILE) {
+            out.writeShort(efid);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** @return the bytes written */
+    private static int writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        out.writeShort(record.length);
+        out.write(record);
+        out.writeInt((int) crc.getValue());
+        return RECORD_OVERHEAD + record.length;
+    }
+
+    private void appendPut(Key key, byte[] data) {
+        try {
+            append(encodePut(key, data));
+        } catch (IOException e) {
+            onWriteFailed(e);
+        }
+    }
+
+    private void appendRemove(int op, String iccId, String aid, int efid) {
+        try {
+            append(encodeRemove(op, iccId, (aid == null) ? "" : aid, efid));
+        } catch (IOException e) {
+            onWriteFailed(e);
+        }
+    }
+
+    private void append(byte[] record) throws IOException {
+        DataOutputStream out = openLog();
+        mLogBytes += writeRecord(out, record);
+        out.flush();
+        if (!mSyncPending) {
+            // Runs after the writes queued so far, so a burst is synced once
+            mSyncPending = true;
+            mWriter.post(mSyncLog);
+        }
+        maybeCompact();
+    }
+
+    private DataOutputStream openLog() throws IOException {
+        if (mOut == null) {
+            boolean empty = !mFile.exists() || mFile.length() == 0;
+            mOutFile = new FileOutputStream(mFile, true);
+            mOut = new DataOutputStream(new BufferedOutputStream(mOutFile));
+            if (empty) {
+                mOut.writeInt(MAGIC);
+                mOut.writeInt(VERSION);
+                mLogBytes = 8;
+            }
+        }
+        return mOut;
+    }
+
+    private void syncLog() {
+        if (mOut != null) {
+            try {
+                mOut.flush();
+                mOutFile.getFD().sync();
+            } catch (IOException e) {
+                onWriteFailed(e);
+            }
+        }
+    }
+
+    private void closeLog() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            mOut = null;
+            mOutFile = null;
+        }
+    }
+
+    private void onWriteFailed(IOException e) {
+        // The tail of the log may now be torn; start over from memory
+        loge("Failed to append to cache: " + e);
+        compact();
+    }
+
+    private void maybeCompact() {
+        int live;
+        synchronized (this) {
+            live = mLiveBytes;
+        }
+        if (mLogBytes > MIN_COMPACT_BYTES && mLogBytes > COMPACT_RATIO * live) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the log from memory. The new log is synced before it
+     * replaces the old one, so a crash leaves one or the other.
+     */
+    private void compact() {
+        closeLog();
+
+        ArrayList<Key> keys;
+        ArrayList<byte[]> values;
+        synchronized (this) {
+            keys = new ArrayList<Key>(mEntries.keySet());
+            values = new ArrayList<byte[]>(keys.size());
+            for (Key key : keys) {
+                values.add(mEntries.get(key));
+            }
+        }
+
+        FileOutputStream fos = null;
+        boolean written = false;
+        int size = 8;
+        try {
+            fos = new FileOutputStream(mNewFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (int i = 0; i < keys.size(); i++) {
+                size += writeRecord(out, encodePut(keys.get(i), values.get(i)));
+            }
+            out.flush();
+            fos.getFD().sync();
+            written = true;
+        } catch (IOException e) {
+            loge("Failed to rewrite cache: " + e);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    written = false;
+                }
+            }
+        }
+
+        if (written && mNewFile.renameTo(mFile)) {
+            mLogBytes = size;
+            if (DBG) log("Compacted cache to " + size + " bytes");
+        } else {
+            // Appends carry on in the old log
+            mNewFile.delete();
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (this) {
+            pw.println(" IccFileCache: entries=" + mEntries.size() + " liveBytes=" + mLiveBytes
+                    + " hits=" + mHits + " misses=" + mMisses);
+        }
+    }
+
+    private static void log(String s) {
+        Rlog.d(LOG_TAG, s);
+    }
+
+    private static void loge(String s) {
+        Rlog.e(LOG_TAG, s);
+    }
+}
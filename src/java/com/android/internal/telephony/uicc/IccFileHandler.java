@@ -20,6 +20,7 @@ import android.os.*;
 import com.android.internal.telephony.CommandsInterface;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * {@hide}
@@ -91,11 +92,24 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     static protected final int EVENT_READ_ICON_DONE = 10;
     /** Finished retrieving size of record for EFimg now. */
     static protected final int EVENT_GET_RECORD_SIZE_IMG_DONE = 11;
+    /** Finished reading an EF kept in the IccFileCache; update the cache. */
+    static protected final int EVENT_CACHED_READ_DONE = 12;
+
+    /**
+     * Number of READ RECORD commands kept outstanding by
+     * {@link #loadEFLinearFixedAll}. 1 reads the records one at a time.
+     */
+    static final String PROPERTY_READ_RECORD_WINDOW = "persist.radio.icc_read_window";
+    static final int DEFAULT_READ_RECORD_WINDOW = 4;
 
      // member variables
     protected final CommandsInterface mCi;
     protected final UiccCardApplication mParentApp;
     protected final String mAid;
+    protected int mReadRecordWindow;
+    // ICCID of the card, used to key IccFileCache entries; null until known
+    protected String mCacheIccId;
+    protected RegistrantList mCachedFileChangedRegistrants = new RegistrantList();
 
     static class LoadLinearFixedContext {
 
@@ -103,6 +117,10 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         int mRecordNum, mRecordSize, mCountRecords;
         boolean mLoadAll;
 
+        // For mLoadAll: records loaded so far, and whether a read failed
+        int mRecordsLoaded;
+        boolean mFailed;
+
         Message mOnLoaded;
 
         ArrayList<byte[]> results;
@@ -122,6 +140,24 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         }
     }
 
+    static class CachedReadContext {
+        final String mIccId;
+        final int mEfid;
+        final int mRecordNum;
+        // Null if the cached contents were already sent and this read verifies them
+        final Message mOnLoaded;
+        final byte[] mCached;
+
+        CachedReadContext(String iccId, int efid, int recordNum, Message onLoaded,
+                byte[] cached) {
+            mIccId = iccId;
+            mEfid = efid;
+            mRecordNum = recordNum;
+            mOnLoaded = onLoaded;
+            mCached = cached;
+        }
+    }
+
     /**
      * Default constructor
      */
@@ -129,6 +165,67 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         mParentApp = app;
         mAid = aid;
         mCi = ci;
+        mReadRecordWindow = Math.max(1, SystemProperties.getInt(PROPERTY_READ_RECORD_WINDOW,
+                DEFAULT_READ_RECORD_WINDOW));
+    }
+
+    /**
+     * Sets how many records {@link #loadEFLinearFixedAll} reads concurrently.
+     *
+     * @param window number of outstanding READ RECORD commands, at least 1
+     */
+    public void setReadRecordWindow(int window) {
+        mReadRecordWindow = Math.max(1, window);
+    }
+
+    /**
+     * Sets the ICCID of the card, which enables {@link IccFileCache} for
+     * {@link #loadEFTransparent(int, Message)} and
+     * {@link #loadEFLinearFixed(int, int, Message)}.
+     *
+     * With the cache enabled a cached EF is returned without reading the
+     * card. The card is still read in the background; if its contents
+     * differ, the cache is updated and {@link #registerForCachedFileChanged}
+     * registrants are notified with the EF id so the file can be reloaded.
+     *
+     * @param iccId ICCID of the card, or null to stop using the cache
+     */
+    public void setCacheIccId(String iccId) {
+        mCacheIccId = iccId;
+    }
+
+    /**
+     * Drops the cached copy of an EF, e.g. on a REFRESH FILE_UPDATE.
+     * If the ICCID is not known yet, the EF is dropped for every card.
+     */
+    public void invalidateCachedFile(int efid) {
+        IccFileCache cache = IccFileCache.getInstance();
+        if (cache != null) {
+            cache.remove(mCacheIccId, mAid, efid);
+        }
+    }
+
+    /**
+     * Drops the cached copies of all EFs of this application, e.g. on a
+     * REFRESH INIT or RESET.
+     */
+    public void invalidateCachedFiles() {
+        IccFileCache cache = IccFileCache.getInstance();
+        if (cache != null) {
+            cache.removeAll(mCacheIccId, mAid);
+        }
+    }
+
+    /**
+     * Notifies when an EF returned from the cache turned out to have
+     * changed on the card. AsyncResult.result is the Integer EF id.
+     */
+    public void registerForCachedFileChanged(Handler h, int what, Object obj) {
+        mCachedFileChangedRegistrants.addUnique(h, what, obj);
+    }
+
+    public void unregisterForCachedFileChanged(Handler h) {
+        mCachedFileChangedRegistrants.remove(h);
     }
 
     public void dispose() {
@@ -147,6 +244,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
      *
      */
     public void loadEFLinearFixed(int fileid, int recordNum, Message onLoaded) {
+        onLoaded = readThroughCache(fileid, recordNum, onLoaded);
         Message response
             = obtainMessage(EVENT_GET_RECORD_SIZE_DONE,
                         new LoadLinearFixedContext(fileid, recordNum, onLoaded));
@@ -200,6 +298,9 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
      *
      * ((AsyncResult)(onLoaded.obj)).result is an ArrayList<byte[]>
      *
+     * Up to {@link #setReadRecordWindow} records are read concurrently; the
+     * results are always in record order.
+     *
      */
     public void loadEFLinearFixedAll(int fileid, Message onLoaded) {
         Message response = obtainMessage(EVENT_GET_RECORD_SIZE_DONE,
@@ -220,6 +321,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
      */
 
     public void loadEFTransparent(int fileid, Message onLoaded) {
+        onLoaded = readThroughCache(fileid, 0, onLoaded);
         Message response = obtainMessage(EVENT_GET_BINARY_SIZE_DONE,
                         fileid, 0, onLoaded);
 
@@ -285,6 +387,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
      */
     public void updateEFLinearFixed(int fileid, int recordNum, byte[] data,
             String pin2, Message onComplete) {
+        invalidateCachedFile(fileid);
         mCi.iccIOForApp(COMMAND_UPDATE_RECORD, fileid, getEFPath(fileid),
                         recordNum, READ_RECORD_MODE_ABSOLUTE, data.length,
                         IccUtils.bytesToHexString(data), pin2, mAid, onComplete);
@@ -296,6 +399,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
      * @param data must be exactly as long as the EF
      */
     public void updateEFTransparent(int fileid, byte[] data, Message onComplete) {
+        invalidateCachedFile(fileid);
         mCi.iccIOForApp(COMMAND_UPDATE_BINARY, fileid, getEFPath(fileid),
                         0, 0, data.length,
                         IccUtils.bytesToHexString(data), null, mAid, onComplete);
@@ -307,6 +411,68 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
 
     //***** Private Methods
 
+    /**
+     * Number of records loadEFLinearFixedAll reads; a file reported as
+     * empty still has its first record read.
+     */
+    private static int getRecordsToLoad(LoadLinearFixedContext lc) {
+        return Math.max(lc.mCountRecords, 1);
+    }
+
+    /**
+     * Issues a READ RECORD for lc.mRecordNum and advances it.
+     */
+    private void readNextRecord(LoadLinearFixedContext lc) {
+        mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, getEFPath(lc.mEfid),
+                lc.mRecordNum,
+                READ_RECORD_MODE_ABSOLUTE,
+                lc.mRecordSize, null, null, mAid,
+                obtainMessage(EVENT_READ_RECORD_DONE, lc.mRecordNum, 0, lc));
+        lc.mRecordNum++;
+    }
+
+    /**
+     * Returns cached EF contents to <code>onLoaded</code> if there are any.
+     *
+     * @param recordNum 1-based record number, or 0 for a transparent EF
+     * @return the message the card read should complete: one that verifies
+     * the cached copy or stores the result before passing it on, or
+     * <code>onLoaded</code> itself if the cache is not used
+     */
+    private Message readThroughCache(int efid, int recordNum, Message onLoaded) {
+        IccFileCache cache = IccFileCache.getInstance();
+        String iccId = mCacheIccId;
+        if (cache == null || iccId == null || !isCacheable(efid)) {
+            return onLoaded;
+        }
+
+        byte[] cached = cache.get(iccId, mAid, efid, recordNum);
+        if (cached != null) {
+            sendResult(onLoaded, cached, null);
+            onLoaded = null;
+        }
+        return obtainMessage(EVENT_CACHED_READ_DONE,
+                new CachedReadContext(iccId, efid, recordNum, onLoaded, cached));
+    }
+
+    /**
+     * @return false for the EFs which identify the subscriber; they are
+     *         always read from the card and never kept on flash
+     */
+    static boolean isCacheable(int efid) {
+        switch (efid) {
+            case EF_ICCID:
+            case EF_MSISDN:
+            case EF_EXT1:
+            case EF_CSIM_MDN:
+            case EF_CSIM_IMSIM:
+            case EF_IMPI:
+                return false;
+            default:
+                return true;
+        }
+    }
+
     private void sendResult(Message response, Object result, Throwable ex) {
         if (response == null) {
             return;
@@ -348,6 +514,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         int size;
         int fileid;
         int recordSize[];
+        CachedReadContext cc;
 
         try {
             switch (msg.what) {
@@ -406,7 +573,19 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                 lc.mCountRecords = size / lc.mRecordSize;
 
                  if (lc.mLoadAll) {
-                     lc.results = new ArrayList<byte[]>(lc.mCountRecords);
+                     int count = getRecordsToLoad(lc);
+                     lc.results = new ArrayList<byte[]>(count);
+                     for (int i = 0; i < count; i++) {
+                         lc.results.add(null);
+                     }
+
+                     // Keep a window of reads outstanding instead of one
+                     // round trip per record
+                     int window = Math.min(mReadRecordWindow, count);
+                     for (int i = 0; i < window; i++) {
+                         readNextRecord(lc);
+                     }
+                     break;
                  }
 
                  mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, getEFPath(lc.mEfid),
@@ -451,27 +630,30 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                 ar = (AsyncResult)msg.obj;
                 lc = (LoadLinearFixedContext) ar.userObj;
                 result = (IccIoResult) ar.result;
+
+                if (lc.mFailed) {
+                    // Result already reported; drop reads still in the window
+                    break;
+                }
+
                 response = lc.mOnLoaded;
 
                 if (processException(response, (AsyncResult) msg.obj)) {
+                    lc.mFailed = true;
                     break;
                 }
 
                 if (!lc.mLoadAll) {
                     sendResult(response, result.payload, null);
                 } else {
-                    lc.results.add(result.payload);
-
-                    lc.mRecordNum++;
+                    // arg1 is the 1-based record number this read was for
+                    lc.results.set(msg.arg1 - 1, result.payload);
+                    lc.mRecordsLoaded++;
 
-                    if (lc.mRecordNum > lc.mCountRecords) {
+                    if (lc.mRecordsLoaded >= lc.results.size()) {
                         sendResult(response, lc.results, null);
-                    } else {
-                        mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, getEFPath(lc.mEfid),
-                                    lc.mRecordNum,
-                                    READ_RECORD_MODE_ABSOLUTE,
-                                    lc.mRecordSize, null, null, mAid,
-                                    obtainMessage(EVENT_READ_RECORD_DONE, lc));
+                    } else if (lc.mRecordNum <= lc.results.size()) {
+                        readNextRecord(lc);
                     }
                 }
 
@@ -490,7 +672,36 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                 sendResult(response, result.payload, null);
             break;
 
+            case EVENT_CACHED_READ_DONE:
+                ar = (AsyncResult)msg.obj;
+                cc = (CachedReadContext) ar.userObj;
+                IccFileCache cache = IccFileCache.getInstance();
+
+                if (ar.exception != null) {
+                    if (cc.mCached != null && ar.exception instanceof IccException) {
+                        // The card no longer has the file we returned
+                        cache.remove(cc.mIccId, mAid, cc.mEfid);
+                        mCachedFileChangedRegistrants.notifyResult(cc.mEfid);
+                    }
+                    sendResult(cc.mOnLoaded, null, ar.exception);
+                    break;
+                }
+
+                data = (byte[]) ar.result;
+                cache.put(cc.mIccId, mAid, cc.mEfid, cc.mRecordNum, data);
+                if (cc.mCached == null) {
+                    sendResult(cc.mOnLoaded, data, null);
+                } else if (!Arrays.equals(cc.mCached, data)) {
+                    logd("Cached EF " + Integer.toHexString(cc.mEfid) + " changed on card");
+                    mCachedFileChangedRegistrants.notifyResult(cc.mEfid);
+                }
+            break;
+
         }} catch (Exception exc) {
+            if (msg.obj instanceof AsyncResult
+                    && ((AsyncResult) msg.obj).userObj instanceof LoadLinearFixedContext) {
+                ((LoadLinearFixedContext) ((AsyncResult) msg.obj).userObj).mFailed = true;
+            }
             if (response != null) {
                 sendResult(response, null, exc);
             } else {
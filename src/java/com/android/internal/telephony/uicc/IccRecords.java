@@ -46,6 +46,7 @@ public abstract class IccRecords extends Handler implements IccConstants {
     protected TelephonyManager mTelephonyManager;
 
     protected RegistrantList mRecordsLoadedRegistrants = new RegistrantList();
+    protected RegistrantList mCriticalRecordsLoadedRegistrants = new RegistrantList();
     protected RegistrantList mImsiReadyRegistrants = new RegistrantList();
     protected RegistrantList mRecordsEventsRegistrants = new RegistrantList();
     protected RegistrantList mNewSmsRegistrants = new RegistrantList();
@@ -58,6 +59,7 @@ public abstract class IccRecords extends Handler implements IccConstants {
     // ***** Cached SIM State; cleared on channel close
 
     protected boolean mRecordsRequested = false; // true if we've made requests for the sim records
+    protected boolean mCriticalRecordsLoaded = false;
 
     protected String mIccId;
     protected String mMsisdn = null;  // My mobile number
@@ -100,6 +102,7 @@ public abstract class IccRecords extends Handler implements IccConstants {
     public static final int EVENT_GET_ICC_RECORD_DONE = 100;
     protected static final int EVENT_APP_READY = 1;
     private static final int EVENT_AKA_AUTHENTICATE_DONE          = 90;
+    private static final int EVENT_CACHED_FILE_CHANGED            = 91;
 
     @Override
     public String toString() {
@@ -155,6 +158,9 @@ public abstract class IccRecords extends Handler implements IccConstants {
         mParentApp = app;
         mTelephonyManager = (TelephonyManager) mContext.getSystemService(
                 Context.TELEPHONY_SERVICE);
+        if (mFh != null) {
+            mFh.registerForCachedFileChanged(this, EVENT_CACHED_FILE_CHANGED, null);
+        }
     }
 
     /**
@@ -162,6 +168,9 @@ public abstract class IccRecords extends Handler implements IccConstants {
      */
     public void dispose() {
         mDestroyed.set(true);
+        if (mFh != null) {
+            mFh.unregisterForCachedFileChanged(this);
+        }
         mParentApp = null;
         mFh = null;
         mCi = null;
@@ -195,6 +204,28 @@ public abstract class IccRecords extends Handler implements IccConstants {
         mRecordsLoadedRegistrants.remove(h);
     }
 
+    /**
+     * Registers for the records needed to identify the subscription (such as
+     * IMSI, MNC length and SPN) having loaded. This is notified before the
+     * remaining records have loaded; implementations that do not load a
+     * critical subset notify it together with records loaded.
+     */
+    public void registerForCriticalRecordsLoaded(Handler h, int what, Object obj) {
+        if (mDestroyed.get()) {
+            return;
+        }
+
+        Registrant r = new Registrant(h, what, obj);
+        mCriticalRecordsLoadedRegistrants.add(r);
+
+        if (mCriticalRecordsLoaded) {
+            r.notifyRegistrant(new AsyncResult(null, null, null));
+        }
+    }
+    public void unregisterForCriticalRecordsLoaded(Handler h) {
+        mCriticalRecordsLoadedRegistrants.remove(h);
+    }
+
     public void registerForImsiReady(Handler h, int what, Object obj) {
         if (mDestroyed.get()) {
             return;
@@ -422,6 +453,55 @@ public abstract class IccRecords extends Handler implements IccConstants {
         }
     }
 
+    /**
+     * Drops the cached copies of the files a REFRESH reports as changed,
+     * before subclasses reload them.
+     */
+    protected void invalidateCachedFiles(IccRefreshResponse refreshResponse) {
+        if (mFh == null) {
+            return;
+        }
+        if (refreshResponse.refreshResult == IccRefreshResponse.REFRESH_RESULT_FILE_UPDATE) {
+            mFh.invalidateCachedFile(refreshResponse.efId);
+        } else {
+            mFh.invalidateCachedFiles();
+        }
+    }
+
+    /**
+     * Keys the {@link IccFileCache} by the ICCID another application on the
+     * card has already read, so this application's files can be served from
+     * the cache before its own ICCID read completes.
+     */
+    protected void setCacheIccIdFromCard() {
+        UiccCardApplication parentApp = mParentApp;
+        UiccCard card = (parentApp == null) ? null : parentApp.getUiccCard();
+        String iccId = (card == null) ? null : card.getIccId();
+        if (mFh != null && iccId != null) {
+            mFh.setCacheIccId(iccId);
+        }
+    }
+
+    /**
+     * Called when a file returned from the {@link IccFileCache} turned out
+     * to have changed on the card; the cache already holds the new contents.
+     * Subclasses reload the file as they would on a REFRESH FILE_UPDATE.
+     */
+    protected void onCachedFileChanged(int efid) {
+    }
+
+    /**
+     * Notifies {@link #registerForCriticalRecordsLoaded} registrants, once per
+     * load of the records.
+     */
+    protected void onCriticalRecordsLoaded() {
+        if (mCriticalRecordsLoaded) {
+            return;
+        }
+        mCriticalRecordsLoaded = true;
+        mCriticalRecordsLoadedRegistrants.notifyRegistrants(new AsyncResult(null, null, null));
+    }
+
     public boolean getRecordsLoaded() {
         if (mRecordsToLoad == 0 && mRecordsRequested == true) {
             return true;
@@ -476,6 +556,11 @@ public abstract class IccRecords extends Handler implements IccConstants {
 
                 break;
 
+            case EVENT_CACHED_FILE_CHANGED:
+                ar = (AsyncResult) msg.obj;
+                onCachedFileChanged((Integer) ar.result);
+                break;
+
             default:
                 super.handleMessage(msg);
         }
@@ -631,6 +716,8 @@ public abstract class IccRecords extends Handler implements IccConstants {
             pw.println("  recordsLoadedRegistrants[" + i + "]="
                     + ((Registrant)mRecordsLoadedRegistrants.get(i)).getHandler());
         }
+        pw.println(" mCriticalRecordsLoadedRegistrants: size="
+                + mCriticalRecordsLoadedRegistrants.size());
         pw.println(" mImsiReadyRegistrants: size=" + mImsiReadyRegistrants.size());
         for (int i = 0; i < mImsiReadyRegistrants.size(); i++) {
             pw.println("  mImsiReadyRegistrants[" + i + "]="
@@ -654,6 +741,7 @@ public abstract class IccRecords extends Handler implements IccConstants {
         }
         pw.println(" mRecordsRequested=" + mRecordsRequested);
         pw.println(" mRecordsToLoad=" + mRecordsToLoad);
+        pw.println(" mCriticalRecordsLoaded=" + mCriticalRecordsLoaded);
         pw.println(" mRdnCache=" + mAdnCache);
         pw.println(" iccid=" + mIccId);
         pw.println(" mMsisdn=" + mMsisdn);
@@ -160,6 +160,10 @@ public final class IsimUiccRecords extends IccRecords implements IsimRecords {
 
     protected void fetchIsimRecords() {
         mRecordsRequested = true;
+        mCriticalRecordsLoaded = false;
+
+        // ISIM has no EF_ICCID of its own; use the one read by another application
+        setCacheIccIdFromCard();
 
         mFh.loadEFTransparent(EF_IMPI, obtainMessage(
                 IccRecords.EVENT_GET_ICC_RECORD_DONE, new EfIsimImpiLoaded()));
@@ -298,6 +302,7 @@ public final class IsimUiccRecords extends IccRecords implements IsimRecords {
     @Override
     protected void onAllRecordsLoaded() {
        if (DBG) log("record load complete");
+        onCriticalRecordsLoaded();
         mRecordsLoadedRegistrants.notifyRegistrants(
                 new AsyncResult(null, null, null));
     }
@@ -339,6 +344,12 @@ public final class IsimUiccRecords extends IccRecords implements IsimRecords {
         }
     }
 
+    @Override
+    protected void onCachedFileChanged(int efid) {
+        if (DBG) log("onCachedFileChanged efid=" + Integer.toHexString(efid));
+        handleFileUpdate(efid);
+    }
+
     private void handleIsimRefresh(IccRefreshResponse refreshResponse) {
         if (refreshResponse == null) {
             if (DBG) log("handleIsimRefresh received without input");
@@ -352,6 +363,8 @@ public final class IsimUiccRecords extends IccRecords implements IsimRecords {
             return;
         }
 
+        invalidateCachedFiles(refreshResponse);
+
         switch (refreshResponse.refreshResult) {
             case IccRefreshResponse.REFRESH_RESULT_FILE_UPDATE:
                 if (DBG) log("handleIsimRefresh with REFRESH_RESULT_FILE_UPDATE");
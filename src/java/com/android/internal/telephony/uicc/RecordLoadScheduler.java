@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Issues the record loads of an {@link IccRecords} in dependency and
+ * priority order while keeping at most a fixed number outstanding.
+ *
+ * Each issued load is given a token, which its response carries back, so a
+ * response the scheduler did not ask for never advances it. Critical loads
+ * are issued before all others; once every critical load has completed the
+ * {@link Callback} is told, without waiting for the remaining records.
+ * Per-load timings are kept for dump.
+ *
+ * Not thread safe; all calls must be made on the owning handler's thread.
+ *
+ * {@hide}
+ */
+public class RecordLoadScheduler {
+    /** Starts loads and receives scheduler milestones. */
+    public interface Callback {
+        /**
+         * Starts the load with the given id. Its response must later be
+         * reported with {@link RecordLoadScheduler#onLoaded} and the token.
+         */
+        void onIssueLoad(int id, Object token);
+
+        /** Called once all loads added as critical have completed. */
+        void onCriticalRecordsLoaded();
+    }
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_ISSUED = 1;
+    private static final int STATE_DONE = 2;
+
+    private static class Load {
+        final int mId;
+        final String mName;
+        final boolean mCritical;
+        final int[] mDependsOn;
+        int mState = STATE_PENDING;
+        long mIssueTime;
+        long mDoneTime;
+
+        Load(int id, String name, boolean critical, int[] dependsOn) {
+            mId = id;
+            mName = name;
+            mCritical = critical;
+            mDependsOn = dependsOn;
+        }
+    }
+
+    private final Callback mCallback;
+    private final int mMaxOutstanding;
+    private final ArrayList<Load> mLoads = new ArrayList<Load>();
+    private int mOutstanding;
+    private boolean mCriticalNotified;
+    private long mStartTime;
+    private long mCriticalTime;
+
+    /**
+     * @param maxOutstanding most loads in flight at once, at least 1
+     */
+    public RecordLoadScheduler(Callback callback, int maxOutstanding) {
+        mCallback = callback;
+        mMaxOutstanding = Math.max(1, maxOutstanding);
+    }
+
+    /**
+     * Drops all loads, including their timings, ahead of building a new set.
+     * Responses to loads issued before the reset no longer match any load
+     * and are ignored.
+     */
+    public void reset() {
+        mLoads.clear();
+        mOutstanding = 0;
+        mCriticalNotified = false;
+        mStartTime = 0;
+        mCriticalTime = 0;
+    }
+
+    /**
+     * Adds a load. Loads are issued in the order added, critical ones first,
+     * each only after the loads it depends on have completed.
+     *
+     * @param id load to issue through {@link Callback#onIssueLoad}
+     * @param name EF name for dump
+     * @param critical true if the load is needed for the early milestone
+     * @param dependsOn ids of loads that must complete first
+     */
+    public void add(int id, String name, boolean critical, int... dependsOn) {
+        mLoads.add(new Load(id, name, critical, dependsOn));
+    }
+
+    /** Issues as many loads as dependencies and the outstanding limit allow. */
+    public void start() {
+        mStartTime = SystemClock.elapsedRealtime();
+        issueReady();
+        checkCritical();
+    }
+
+    /**
+     * Marks the issued load the token was given to as complete and issues the
+     * loads that were waiting for it. Must be called before the response is
+     * counted against the records still to load, so the count never drops to
+     * zero while loads are waiting to be issued.
+     *
+     * @param token as passed to {@link Callback#onIssueLoad}, or null
+     * @return false if the token is not that of a load in flight
+     */
+    public boolean onLoaded(Object token) {
+        Load load = find(token);
+        if (load == null || load.mState != STATE_ISSUED) {
+            return false;
+        }
+        load.mState = STATE_DONE;
+        load.mDoneTime = SystemClock.elapsedRealtime();
+        mOutstanding--;
+
+        issueReady();
+        checkCritical();
+        return true;
+    }
+
+    private Load find(Object token) {
+        for (Load load : mLoads) {
+            if (load == token) {
+                return load;
+            }
+        }
+        return null;
+    }
+
+    private void issueReady() {
+        // Critical loads first, then everything else, each in the order added
+        for (int pass = 0; pass < 2; pass++) {
+            boolean critical = (pass == 0);
+            for (int i = 0; i < mLoads.size() && mOutstanding < mMaxOutstanding; i++) {
+                Load load = mLoads.get(i);
+                if (load.mState == STATE_PENDING && load.mCritical == critical
+                        && dependenciesDone(load)) {
+                    load.mState = STATE_ISSUED;
+                    load.mIssueTime = SystemClock.elapsedRealtime();
+                    mOutstanding++;
+                    mCallback.onIssueLoad(load.mId, load);
+                }
+            }
+        }
+    }
+
+    private boolean dependenciesDone(Load load) {
+        for (int dep : load.mDependsOn) {
+            for (Load other : mLoads) {
+                if (other.mId == dep && other.mState != STATE_DONE) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void checkCritical() {
+        if (mCriticalNotified || mLoads.isEmpty()) {
+            return;
+        }
+        for (Load load : mLoads) {
+            if (load.mCritical && load.mState != STATE_DONE) {
+                return;
+            }
+        }
+        mCriticalNotified = true;
+        mCriticalTime = SystemClock.elapsedRealtime();
+        mCallback.onCriticalRecordsLoaded();
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println(" RecordLoadScheduler: maxOutstanding=" + mMaxOutstanding
+                + " outstanding=" + mOutstanding
+                + " critical loaded "
+                + (mCriticalNotified ? "after " + (mCriticalTime - mStartTime) + "ms" : "no"));
+        for (Load load : mLoads) {
+            StringBuilder sb = new StringBuilder("  ");
+            sb.append(load.mName);
+            if (load.mCritical) sb.append(" (critical)");
+            switch (load.mState) {
+                case STATE_PENDING:
+                    sb.append(" pending");
+                    break;
+                case STATE_ISSUED:
+                    sb.append(" issued at +").append(load.mIssueTime - mStartTime).append("ms");
+                    break;
+                default:
+                    sb.append(" issued at +").append(load.mIssueTime - mStartTime)
+                            .append("ms took ").append(load.mDoneTime - load.mIssueTime)
+                            .append("ms");
+                    break;
+            }
+            pw.println(sb.toString());
+        }
+    }
+}
@@ -670,6 +670,7 @@ public final class RuimRecords extends IccRecords {
                 }
 
                 mIccId = IccUtils.bcdToString(data, 0, data.length);
+                mFh.setCacheIccId(mIccId);
 
                 log("iccid: " + mIccId);
 
@@ -834,6 +835,7 @@ public final class RuimRecords extends IccRecords {
         }
 
         setLocaleFromCsim();
+        onCriticalRecordsLoaded();
         mRecordsLoadedRegistrants.notifyRegistrants(
             new AsyncResult(null, null, null));
 
@@ -859,9 +861,12 @@ public final class RuimRecords extends IccRecords {
 
     private void fetchRuimRecords() {
         mRecordsRequested = true;
+        mCriticalRecordsLoaded = false;
 
         if (DBG) log("fetchRuimRecords " + mRecordsToLoad);
 
+        setCacheIccIdFromCard();
+
         mCi.getIMSIForApp(mParentApp.getAid(), obtainMessage(EVENT_GET_IMSI_DONE));
         mRecordsToLoad++;
 
@@ -959,6 +964,13 @@ public final class RuimRecords extends IccRecords {
         return 0;
     }
 
+    @Override
+    protected void onCachedFileChanged(int efid) {
+        if (DBG) log("onCachedFileChanged efid=" + Integer.toHexString(efid));
+        mAdnCache.reset();
+        fetchRuimRecords();
+    }
+
     private void handleRuimRefresh(IccRefreshResponse refreshResponse) {
         if (refreshResponse == null) {
             if (DBG) log("handleRuimRefresh received without input");
@@ -971,6 +983,8 @@ public final class RuimRecords extends IccRecords {
             return;
         }
 
+        invalidateCachedFiles(refreshResponse);
+
         switch (refreshResponse.refreshResult) {
             case IccRefreshResponse.REFRESH_RESULT_FILE_UPDATE:
                 if (DBG) log("handleRuimRefresh with SIM_REFRESH_FILE_UPDATED");
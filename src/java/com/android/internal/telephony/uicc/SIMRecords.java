@@ -65,6 +65,18 @@ public class SIMRecords extends IccRecords {
      */
     private GetSpnFsmState mSpnState;
 
+    /**
+     * Most EF reads fetchSimRecords keeps outstanding at once; the rest wait
+     * in mLoadScheduler so the critical ones are not queued behind them.
+     */
+    static final String PROPERTY_MAX_OUTSTANDING_LOADS = "persist.radio.sim_max_loads";
+    static final int DEFAULT_MAX_OUTSTANDING_LOADS = 6;
+
+    private final RecordLoadScheduler mLoadScheduler;
+
+    /** mLoadScheduler token of the SPN load while its FSM runs */
+    private Object mSpnLoadToken;
+
     /** CPHS service information (See CPHS 4.2 B.3.1.1)
      *  It will be set in onSimReady if reading GET_CPHS_INFO successfully
      *  mCphsInfo[0] is CPHS Phase
@@ -198,6 +210,10 @@ public class SIMRecords extends IccRecords {
 
         mRecordsRequested = false;  // No load request is made till SIM ready
 
+        mLoadScheduler = new RecordLoadScheduler(new SimRecordLoads(),
+                SystemProperties.getInt(PROPERTY_MAX_OUTSTANDING_LOADS,
+                        DEFAULT_MAX_OUTSTANDING_LOADS));
+
         // recordsToLoad is set to 0 because no requests are made yet
         mRecordsToLoad = 0;
 
@@ -245,6 +261,12 @@ public class SIMRecords extends IccRecords {
 
         mAdnCache.reset();
 
+        // Loads not yet issued are for the old card, and responses to those
+        // in flight no longer advance the scheduler
+        mLoadScheduler.reset();
+        mSpnLoadToken = null;
+        mCriticalRecordsLoaded = false;
+
         log("SIMRecords: onRadioOffOrNotAvailable set 'gsm.sim.operator.numeric' to operator=null");
         log("update icc_operator_numeric=" + null);
         mTelephonyManager.setSimOperatorNumericForPhone(mParentApp.getPhoneId(), "");
@@ -843,6 +865,7 @@ public class SIMRecords extends IccRecords {
                 }
 
                 mIccId = IccUtils.bcdToString(data, 0, data.length);
+                mFh.setCacheIccId(mIccId);
 
                 log("iccid: " + mIccId);
 
@@ -1205,11 +1228,111 @@ public class SIMRecords extends IccRecords {
         } finally {
             // Count up record load responses even if they are fails
             if (isRecordLoadResponse) {
+                // Issue loads waiting on this one before counting it, so the
+                // count cannot reach zero while loads are still to be issued.
+                // The SPN load is only complete once its FSM has finished;
+                // the FSM's own reads do not carry the token.
+                if (msg.what == EVENT_GET_SPN_DONE) {
+                    if (mSpnState == GetSpnFsmState.IDLE && mSpnLoadToken != null) {
+                        mLoadScheduler.onLoaded(mSpnLoadToken);
+                        mSpnLoadToken = null;
+                    }
+                } else if (msg.obj instanceof AsyncResult) {
+                    // Reads not issued by the scheduler carry no token
+                    mLoadScheduler.onLoaded(((AsyncResult) msg.obj).userObj);
+                }
                 onRecordLoaded();
             }
         }
     }
 
+    /**
+     * Issues the EF reads scheduled by fetchSimRecords.
+     */
+    private class SimRecordLoads implements RecordLoadScheduler.Callback {
+        @Override
+        public void onIssueLoad(int id, Object token) {
+            switch (id) {
+                case EVENT_GET_IMSI_DONE:
+                    mCi.getIMSIForApp(mParentApp.getAid(),
+                            obtainMessage(EVENT_GET_IMSI_DONE, token));
+                    break;
+                case EVENT_GET_ICCID_DONE:
+                    mFh.loadEFTransparent(EF_ICCID, obtainMessage(EVENT_GET_ICCID_DONE, token));
+                    break;
+                case EVENT_GET_MSISDN_DONE:
+                    // FIXME should examine EF[MSISDN]'s capability configuration
+                    // to determine which is the voice/data/fax line
+                    new AdnRecordLoader(mFh).loadFromEF(EF_MSISDN, EF_EXT1, 1,
+                                obtainMessage(EVENT_GET_MSISDN_DONE, token));
+                    break;
+                case EVENT_GET_MBI_DONE:
+                    // Record number is subscriber profile
+                    mFh.loadEFLinearFixed(EF_MBI, 1, obtainMessage(EVENT_GET_MBI_DONE, token));
+                    break;
+                case EVENT_GET_AD_DONE:
+                    mFh.loadEFTransparent(EF_AD, obtainMessage(EVENT_GET_AD_DONE, token));
+                    break;
+                case EVENT_GET_MWIS_DONE:
+                    // Record number is subscriber profile
+                    mFh.loadEFLinearFixed(EF_MWIS, 1,
+                            obtainMessage(EVENT_GET_MWIS_DONE, token));
+                    break;
+                case EVENT_GET_VOICE_MAIL_INDICATOR_CPHS_DONE:
+                    mFh.loadEFTransparent(
+                            EF_VOICE_MAIL_INDICATOR_CPHS,
+                            obtainMessage(EVENT_GET_VOICE_MAIL_INDICATOR_CPHS_DONE, token));
+                    break;
+                case EVENT_GET_CFIS_DONE:
+                    mFh.loadEFLinearFixed(EF_CFIS, 1,
+                            obtainMessage(EVENT_GET_CFIS_DONE, token));
+                    break;
+                case EVENT_GET_CFF_DONE:
+                    mFh.loadEFTransparent(EF_CFF_CPHS,
+                            obtainMessage(EVENT_GET_CFF_DONE, token));
+                    break;
+                case EVENT_GET_SPN_DONE:
+                    // The FSM counts the EFs it reads itself
+                    mSpnLoadToken = token;
+                    getSpnFsm(true, null);
+                    return;
+                case EVENT_GET_SPDI_DONE:
+                    mFh.loadEFTransparent(EF_SPDI, obtainMessage(EVENT_GET_SPDI_DONE, token));
+                    break;
+                case EVENT_GET_PNN_DONE:
+                    mFh.loadEFLinearFixed(EF_PNN, 1, obtainMessage(EVENT_GET_PNN_DONE, token));
+                    break;
+                case EVENT_GET_SST_DONE:
+                    mFh.loadEFTransparent(EF_SST, obtainMessage(EVENT_GET_SST_DONE, token));
+                    break;
+                case EVENT_GET_INFO_CPHS_DONE:
+                    mFh.loadEFTransparent(EF_INFO_CPHS,
+                            obtainMessage(EVENT_GET_INFO_CPHS_DONE, token));
+                    break;
+                case EVENT_GET_CSP_CPHS_DONE:
+                    mFh.loadEFTransparent(EF_CSP_CPHS,
+                            obtainMessage(EVENT_GET_CSP_CPHS_DONE, token));
+                    break;
+                case EVENT_GET_GID1_DONE:
+                    mFh.loadEFTransparent(EF_GID1, obtainMessage(EVENT_GET_GID1_DONE, token));
+                    break;
+                default:
+                    loge("onIssueLoad: unknown load " + id);
+                    return;
+            }
+            mRecordsToLoad++;
+        }
+
+        @Override
+        public void onCriticalRecordsLoaded() {
+            if (DBG) log("critical records loaded");
+
+            // IMSI and EF_AD are enough for IccCardProxy to publish the
+            // operator ahead of onAllRecordsLoaded
+            SIMRecords.this.onCriticalRecordsLoaded();
+        }
+    }
+
     private class EfPlLoaded implements IccRecordLoaded {
         public String getEfName() {
             return "EF_PL";
@@ -1232,6 +1355,12 @@ public class SIMRecords extends IccRecords {
         }
     }
 
+    @Override
+    protected void onCachedFileChanged(int efid) {
+        if (DBG) log("onCachedFileChanged efid=" + Integer.toHexString(efid));
+        handleFileUpdate(efid);
+    }
+
     private void handleFileUpdate(int efid) {
         switch(efid) {
             case EF_MBDN:
@@ -1276,6 +1405,8 @@ public class SIMRecords extends IccRecords {
             return;
         }
 
+        invalidateCachedFiles(refreshResponse);
+
         switch (refreshResponse.refreshResult) {
             case IccRefreshResponse.REFRESH_RESULT_FILE_UPDATE:
                 if (DBG) log("handleSimRefresh with SIM_FILE_UPDATED");
@@ -1468,6 +1599,7 @@ public class SIMRecords extends IccRecords {
         setVoiceMailByCountry(operator);
         setSpnFromConfig(operator);
 
+        onCriticalRecordsLoaded();
         mRecordsLoadedRegistrants.notifyRegistrants(
             new AsyncResult(null, null, null));
     }
@@ -1525,66 +1657,49 @@ public class SIMRecords extends IccRecords {
 
         if (DBG) log("fetchSimRecords " + mRecordsToLoad);
 
-        mCi.getIMSIForApp(mParentApp.getAid(), obtainMessage(EVENT_GET_IMSI_DONE));
-        mRecordsToLoad++;
-
-        mFh.loadEFTransparent(EF_ICCID, obtainMessage(EVENT_GET_ICCID_DONE));
-        mRecordsToLoad++;
-
-        // FIXME should examine EF[MSISDN]'s capability configuration
-        // to determine which is the voice/data/fax line
-        new AdnRecordLoader(mFh).loadFromEF(EF_MSISDN, EF_EXT1, 1,
-                    obtainMessage(EVENT_GET_MSISDN_DONE));
-        mRecordsToLoad++;
-
-        // Record number is subscriber profile
-        mFh.loadEFLinearFixed(EF_MBI, 1, obtainMessage(EVENT_GET_MBI_DONE));
-        mRecordsToLoad++;
+        mCriticalRecordsLoaded = false;
+        mLoadScheduler.reset();
+        mSpnLoadToken = null;
 
-        mFh.loadEFTransparent(EF_AD, obtainMessage(EVENT_GET_AD_DONE));
-        mRecordsToLoad++;
+        // IMSI, EF_AD and the SPN identify the subscription and are read
+        // first; see SimRecordLoads.onCriticalRecordsLoaded. They don't wait
+        // for the ICCID, so on a cold start they come from the card at once
+        // unless another application on the card has read the ICCID already.
+        mLoadScheduler.add(EVENT_GET_IMSI_DONE, "IMSI", true);
+        mLoadScheduler.add(EVENT_GET_AD_DONE, "EF_AD", true);
+        mLoadScheduler.add(EVENT_GET_SPN_DONE, "EF_SPN", true);
 
-        // Record number is subscriber profile
-        mFh.loadEFLinearFixed(EF_MWIS, 1, obtainMessage(EVENT_GET_MWIS_DONE));
-        mRecordsToLoad++;
+        // With the IccFileCache enabled the ICCID is issued alongside them and
+        // the other EFs wait for it, so they can be served from the cache
+        boolean cached = (IccFileCache.getInstance() != null);
+        int[] afterIccId = cached ? new int[] { EVENT_GET_ICCID_DONE } : new int[0];
+        mLoadScheduler.add(EVENT_GET_ICCID_DONE, "EF_ICCID", false);
 
+        // Never cached, see IccFileHandler.isCacheable
+        mLoadScheduler.add(EVENT_GET_MSISDN_DONE, "EF_MSISDN", false);
+        mLoadScheduler.add(EVENT_GET_MBI_DONE, "EF_MBI", false, afterIccId);
 
         // Also load CPHS-style voice mail indicator, which stores
         // the same info as EF[MWIS]. If both exist, both are updated
         // but the EF[MWIS] data is preferred
         // Please note this must be loaded after EF[MWIS]
-        mFh.loadEFTransparent(
-                EF_VOICE_MAIL_INDICATOR_CPHS,
-                obtainMessage(EVENT_GET_VOICE_MAIL_INDICATOR_CPHS_DONE));
-        mRecordsToLoad++;
+        mLoadScheduler.add(EVENT_GET_MWIS_DONE, "EF_MWIS", false, afterIccId);
+        mLoadScheduler.add(EVENT_GET_VOICE_MAIL_INDICATOR_CPHS_DONE, "EF_VOICE_MAIL_INDICATOR_CPHS",
+                false, EVENT_GET_MWIS_DONE);
 
         // Same goes for Call Forward Status indicator: fetch both
         // EF[CFIS] and CPHS-EF, with EF[CFIS] preferred.
-        mFh.loadEFLinearFixed(EF_CFIS, 1, obtainMessage(EVENT_GET_CFIS_DONE));
-        mRecordsToLoad++;
-        mFh.loadEFTransparent(EF_CFF_CPHS, obtainMessage(EVENT_GET_CFF_DONE));
-        mRecordsToLoad++;
-
-
-        getSpnFsm(true, null);
-
-        mFh.loadEFTransparent(EF_SPDI, obtainMessage(EVENT_GET_SPDI_DONE));
-        mRecordsToLoad++;
-
-        mFh.loadEFLinearFixed(EF_PNN, 1, obtainMessage(EVENT_GET_PNN_DONE));
-        mRecordsToLoad++;
-
-        mFh.loadEFTransparent(EF_SST, obtainMessage(EVENT_GET_SST_DONE));
-        mRecordsToLoad++;
-
-        mFh.loadEFTransparent(EF_INFO_CPHS, obtainMessage(EVENT_GET_INFO_CPHS_DONE));
-        mRecordsToLoad++;
+        mLoadScheduler.add(EVENT_GET_CFIS_DONE, "EF_CFIS", false, afterIccId);
+        mLoadScheduler.add(EVENT_GET_CFF_DONE, "EF_CFF_CPHS", false, EVENT_GET_CFIS_DONE);
 
-        mFh.loadEFTransparent(EF_CSP_CPHS,obtainMessage(EVENT_GET_CSP_CPHS_DONE));
-        mRecordsToLoad++;
+        mLoadScheduler.add(EVENT_GET_SPDI_DONE, "EF_SPDI", false, afterIccId);
+        mLoadScheduler.add(EVENT_GET_PNN_DONE, "EF_PNN", false, afterIccId);
+        mLoadScheduler.add(EVENT_GET_SST_DONE, "EF_SST", false, afterIccId);
+        mLoadScheduler.add(EVENT_GET_INFO_CPHS_DONE, "EF_INFO_CPHS", false, afterIccId);
+        mLoadScheduler.add(EVENT_GET_CSP_CPHS_DONE, "EF_CSP_CPHS", false, afterIccId);
+        mLoadScheduler.add(EVENT_GET_GID1_DONE, "EF_GID1", false, afterIccId);
 
-        mFh.loadEFTransparent(EF_GID1, obtainMessage(EVENT_GET_GID1_DONE));
-        mRecordsToLoad++;
+        mLoadScheduler.start();
 
         loadEfLiAndEfPl();
 
@@ -1920,6 +2035,7 @@ public class SIMRecords extends IccRecords {
         pw.println(" mPnnHomeName=" + mPnnHomeName);
         pw.println(" mUsimServiceTable=" + mUsimServiceTable);
         pw.println(" mGid1=" + mGid1);
+        mLoadScheduler.dump(pw);
         pw.flush();
     }
 }
@@ -122,6 +122,9 @@ public class UiccCard {
             }
             mCatService = null;
             mUiccApplications = null;
+            if (mCarrierPrivilegeRules != null) {
+                mCarrierPrivilegeRules.dispose();
+            }
             mCarrierPrivilegeRules = null;
         }
     }
@@ -161,9 +164,10 @@ public class UiccCard {
             // Reload the carrier privilege rules if necessary.
             log("Before privilege rules: " + mCarrierPrivilegeRules + " : " + mCardState);
             if (mCarrierPrivilegeRules == null && mCardState == CardState.CARDSTATE_PRESENT) {
-                mCarrierPrivilegeRules = new UiccCarrierPrivilegeRules(this,
+                mCarrierPrivilegeRules = new UiccCarrierPrivilegeRules(this, mContext,
                         mHandler.obtainMessage(EVENT_CARRIER_PRIVILIGES_LOADED));
             } else if (mCarrierPrivilegeRules != null && mCardState != CardState.CARDSTATE_PRESENT) {
+                mCarrierPrivilegeRules.dispose();
                 mCarrierPrivilegeRules = null;
             }
 
@@ -17,11 +17,15 @@
 package com.android.internal.telephony.uicc;
 
 import android.annotation.Nullable;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.Signature;
+import android.net.Uri;
 import android.os.AsyncResult;
 import android.os.Binder;
 import android.os.Handler;
@@ -33,6 +37,7 @@ import com.android.internal.telephony.CommandsInterface;
 import com.android.internal.telephony.uicc.IccUtils;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.lang.IllegalArgumentException;
@@ -45,8 +50,9 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -100,13 +106,13 @@ public class UiccCarrierPrivilegeRules extends Handler {
      *       DB
      */
     // Values from the data standard.
-    private static final String TAG_ALL_REF_AR_DO = "FF40";
-    private static final String TAG_REF_AR_DO = "E2";
-    private static final String TAG_REF_DO = "E1";
-    private static final String TAG_DEVICE_APP_ID_REF_DO = "C1";
-    private static final String TAG_PKG_REF_DO = "CA";
-    private static final String TAG_AR_DO = "E3";
-    private static final String TAG_PERM_AR_DO = "DB";
+    private static final int TAG_ALL_REF_AR_DO = 0xFF40;
+    private static final int TAG_REF_AR_DO = 0xE2;
+    private static final int TAG_REF_DO = 0xE1;
+    private static final int TAG_DEVICE_APP_ID_REF_DO = 0xC1;
+    private static final int TAG_PKG_REF_DO = 0xCA;
+    private static final int TAG_AR_DO = 0xE3;
+    private static final int TAG_PERM_AR_DO = 0xDB;
 
     private static final int EVENT_OPEN_LOGICAL_CHANNEL_DONE = 1;
     private static final int EVENT_TRANSMIT_LOGICAL_CHANNEL_DONE = 2;
@@ -117,6 +123,13 @@ public class UiccCarrierPrivilegeRules extends Handler {
     private static final int STATE_LOADED   = 1;
     private static final int STATE_ERROR    = 2;
 
+    // Lengths of the certificate hashes in the rules.
+    private static final int SHA1_HASH_LENGTH = 20;
+    private static final int SHA256_HASH_LENGTH = 32;
+
+    // Most entries kept in each of the decision caches.
+    private static final int MAX_CACHE_SIZE = 256;
+
     // Describes a single rule.
     private static class AccessRule {
         public byte[] certificateHash;
@@ -144,85 +157,193 @@ public class UiccCarrierPrivilegeRules extends Handler {
     // Used for parsing the data from the UICC.
     private static class TLV {
         private static final int SINGLE_BYTE_MAX_LENGTH = 0x80;
-        private String tag;
+        private int tag;
         // Length encoding is in GPC_Specification_2.2.1: 11.1.5 APDU Message and Data Length.
         // Length field could be either 1 byte if length < 128, or multiple bytes with first byte
         // specifying how many bytes are used for length, followed by length bytes.
-        // Bytes for the length field, in ASCII HEX string form.
-        private String lengthBytes;
+        // Number of bytes of the tag and the length field.
+        private int headerLength;
         // Decoded length as integer.
-        private Integer length;
-        private String value;
+        private int length;
+        // Offset of the value in the data.
+        private int valueOffset;
 
-        public TLV(String tag) {
+        public TLV(int tag) {
             this.tag = tag;
         }
 
-        public String parseLength(String data) {
-            int offset = tag.length();
-            int firstByte = Integer.parseInt(data.substring(offset, offset + 2), 16);
+        private int getTagLength() {
+            return tag > 0xFF ? 2 : 1;
+        }
+
+        /**
+         * Returns true if the data at offset starts with the tag.
+         */
+        public boolean isAt(byte[] data, int offset, int end) {
+            int tagLength = getTagLength();
+            if (offset + tagLength > end) {
+                return false;
+            }
+            int value = 0;
+            for (int i = 0; i < tagLength; i++) {
+                value = (value << 8) | (data[offset + i] & 0xFF);
+            }
+            return value == tag;
+        }
+
+        /**
+         * Decodes the length field following the tag at offset.
+         *
+         * @return the number of bytes of the tag and the length field.
+         */
+        public int parseLength(byte[] data, int offset, int end) {
+            int index = offset + getTagLength();
+            if (index >= end) {
+                throw new IllegalArgumentException("No length.");
+            }
+            int firstByte = data[index] & 0xFF;
             if (firstByte < SINGLE_BYTE_MAX_LENGTH) {
-                length = firstByte * 2;
-                lengthBytes = data.substring(offset, offset + 2);
+                length = firstByte;
+                index++;
             } else {
                 int numBytes = firstByte - SINGLE_BYTE_MAX_LENGTH;
-                length = Integer.parseInt(data.substring(offset + 2, offset + 2 + numBytes * 2), 16) * 2;
-                lengthBytes = data.substring(offset, offset + 2 + numBytes * 2);
+                if (numBytes > 3 || index + 1 + numBytes > end) {
+                    throw new IllegalArgumentException("Invalid length.");
+                }
+                length = 0;
+                for (int i = 1; i <= numBytes; i++) {
+                    length = (length << 8) | (data[index + i] & 0xFF);
+                }
+                index += 1 + numBytes;
             }
-            Rlog.d(LOG_TAG, "TLV parseLength length=" + length + "lenghtBytes: " + lengthBytes);
-            return lengthBytes;
+            headerLength = index - offset;
+            return headerLength;
         }
 
-        public String parse(String data, boolean shouldConsumeAll) {
-            Rlog.d(LOG_TAG, "Parse TLV: " + tag);
-            if (!data.startsWith(tag)) {
+        /**
+         * Parses the TLV at offset.
+         *
+         * @return the offset following the TLV.
+         */
+        public int parse(byte[] data, int offset, int end, boolean shouldConsumeAll) {
+            if (!isAt(data, offset, end)) {
                 throw new IllegalArgumentException("Tags don't match.");
             }
-            int index = tag.length();
-            if (index + 2 > data.length()) {
-                throw new IllegalArgumentException("No length.");
-            }
 
-            parseLength(data);
-            index += lengthBytes.length();
+            parseLength(data, offset, end);
+            valueOffset = offset + headerLength;
 
-            Rlog.d(LOG_TAG, "index="+index+" length="+length+"data.length="+data.length());
-            int remainingLength = data.length() - (index + length);
+            int remainingLength = end - (valueOffset + length);
             if (remainingLength < 0) {
                 throw new IllegalArgumentException("Not enough data.");
             }
             if (shouldConsumeAll && (remainingLength != 0)) {
                 throw new IllegalArgumentException("Did not consume all.");
             }
-            value = data.substring(index, index + length);
+            return valueOffset + length;
+        }
+
+        public int getValueEnd() {
+            return valueOffset + length;
+        }
+    }
 
-            Rlog.d(LOG_TAG, "Got TLV: " + tag + "," + length + "," + value);
+    // Key of the decision cache.
+    private static class PackageSignature {
+        final String packageName;
+        final Signature signature;
 
-            return data.substring(index + length);
+        PackageSignature(String packageName, Signature signature) {
+            this.packageName = packageName;
+            this.signature = signature;
+        }
+
+        @Override
+        public int hashCode() {
+            return signature.hashCode() * 31
+                    + (packageName != null ? packageName.hashCode() : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PackageSignature)) {
+                return false;
+            }
+            PackageSignature other = (PackageSignature) o;
+            return signature.equals(other.signature) && (packageName == null
+                    ? other.packageName == null : packageName.equals(other.packageName));
         }
     }
 
     private UiccCard mUiccCard;  // Parent
+    private final Context mContext;
     private AtomicInteger mState;
     private List<AccessRule> mAccessRules;
-    private String mRules;
+    // mAccessRules indexed by the hex string of the certificate hash.
+    private HashMap<String, List<AccessRule>> mAccessRulesByCertHash;
+    // Whether any rule uses a SHA-1 or a SHA-256 hash, so the other digest can be skipped.
+    private boolean mHasSha1Rules;
+    private boolean mHasSha256Rules;
+    private ByteArrayOutputStream mRules;
     private Message mLoadedCallback;
     private String mStatusMessage;  // Only used for debugging.
     private int mChannelId; // Channel Id for communicating with UICC.
 
-    public UiccCarrierPrivilegeRules(UiccCard uiccCard, Message loadedCallback) {
+    // Decisions per package and signature, and per package for the PackageManager lookups.
+    // Only filled once the rules are loaded; guarded by mCacheLock.
+    private final Object mCacheLock = new Object();
+    private final HashMap<PackageSignature, Boolean> mDecisionCache =
+            new HashMap<PackageSignature, Boolean>();
+    private final HashMap<String, Integer> mPackageStatusCache = new HashMap<String, Integer>();
+    // Bumped whenever the caches are invalidated, so lookups racing with it aren't stored.
+    private int mCacheGeneration;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            onPackageChanged(data != null ? data.getSchemeSpecificPart() : null);
+        }
+    };
+
+    public UiccCarrierPrivilegeRules(UiccCard uiccCard, Context context, Message loadedCallback) {
         Rlog.d(LOG_TAG, "Creating UiccCarrierPrivilegeRules");
         mUiccCard = uiccCard;
+        mContext = context;
         mState = new AtomicInteger(STATE_LOADING);
         mStatusMessage = "Not loaded.";
         mLoadedCallback = loadedCallback;
-        mRules = "";
+        mRules = new ByteArrayOutputStream();
+
+        // Signatures of a package only change when it is reinstalled or updated.
+        if (mContext != null) {
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+            filter.addDataScheme("package");
+            mContext.registerReceiver(mPackageReceiver, filter, null, this);
+
+            filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+            filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+            mContext.registerReceiver(mPackageReceiver, filter, null, this);
+        }
 
         // Start loading the rules.
         mUiccCard.iccOpenLogicalChannel(AID,
             obtainMessage(EVENT_OPEN_LOGICAL_CHANNEL_DONE, null));
     }
 
+    /**
+     * Stops listening for package changes. Called when the card no longer uses these rules.
+     */
+    public void dispose() {
+        if (mContext != null) {
+            mContext.unregisterReceiver(mPackageReceiver);
+        }
+    }
+
     /**
      * Returns true if the carrier privilege rules have finished loading.
      */
@@ -238,7 +359,6 @@ public class UiccCarrierPrivilegeRules extends Handler {
      * @return Access status.
      */
     public int getCarrierPrivilegeStatus(Signature signature, String packageName) {
-        Rlog.d(LOG_TAG, "hasCarrierPrivileges: " + signature + " : " + packageName);
         int state = mState.get();
         if (state == STATE_LOADING) {
             Rlog.d(LOG_TAG, "Rules not loaded.");
@@ -248,20 +368,54 @@ public class UiccCarrierPrivilegeRules extends Handler {
             return TelephonyManager.CARRIER_PRIVILEGE_STATUS_ERROR_LOADING_RULES;
         }
 
-        // SHA-1 is for backward compatible support only, strongly discouraged for new use.
-        byte[] certHash = getCertHash(signature, "SHA-1");
-        byte[] certHash256 = getCertHash(signature, "SHA-256");
-        Rlog.d(LOG_TAG, "Checking SHA1: " + IccUtils.bytesToHexString(certHash) + " : " + packageName);
-        Rlog.d(LOG_TAG, "Checking SHA256: " + IccUtils.bytesToHexString(certHash256) + " : " + packageName);
-        for (AccessRule ar : mAccessRules) {
-            if (ar.matches(certHash, packageName) || ar.matches(certHash256, packageName)) {
-                Rlog.d(LOG_TAG, "Match found!");
-                return TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS;
+        PackageSignature key = new PackageSignature(packageName, signature);
+        Boolean hasAccess;
+        synchronized (mCacheLock) {
+            hasAccess = mDecisionCache.get(key);
+        }
+        if (hasAccess == null) {
+            hasAccess = matchesRule(signature, packageName);
+            synchronized (mCacheLock) {
+                if (mDecisionCache.size() >= MAX_CACHE_SIZE) {
+                    mDecisionCache.clear();
+                }
+                mDecisionCache.put(key, hasAccess);
             }
         }
+        return hasAccess ? TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS
+                : TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+    }
 
+    /*
+     * Looks up the rules for the hashes of the certificate.
+     */
+    private boolean matchesRule(Signature signature, String packageName) {
+        Rlog.d(LOG_TAG, "hasCarrierPrivileges: " + signature + " : " + packageName);
+        // SHA-1 is for backward compatible support only, strongly discouraged for new use.
+        if (mHasSha1Rules && matchesRule(getCertHash(signature, "SHA-1"), packageName)) {
+            return true;
+        }
+        if (mHasSha256Rules && matchesRule(getCertHash(signature, "SHA-256"), packageName)) {
+            return true;
+        }
         Rlog.d(LOG_TAG, "No matching rule found. Returning false.");
-        return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+        return false;
+    }
+
+    private boolean matchesRule(byte[] certHash, String packageName) {
+        if (certHash == null) {
+            return false;
+        }
+        List<AccessRule> rules = mAccessRulesByCertHash.get(IccUtils.bytesToHexString(certHash));
+        if (rules != null) {
+            for (AccessRule ar : rules) {
+                if (ar.matches(certHash, packageName)) {
+                    Rlog.d(LOG_TAG, "Match found!");
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /**
@@ -272,6 +426,17 @@ public class UiccCarrierPrivilegeRules extends Handler {
      * @return Access status.
      */
     public int getCarrierPrivilegeStatus(PackageManager packageManager, String packageName) {
+        Integer cachedStatus;
+        int generation;
+        synchronized (mCacheLock) {
+            cachedStatus = mPackageStatusCache.get(packageName);
+            generation = mCacheGeneration;
+        }
+        if (cachedStatus != null) {
+            return cachedStatus;
+        }
+
+        int status = TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
         try {
             PackageInfo pInfo = packageManager.getPackageInfo(packageName,
                 PackageManager.GET_SIGNATURES);
@@ -279,13 +444,29 @@ public class UiccCarrierPrivilegeRules extends Handler {
             for (Signature sig : signatures) {
                 int accessStatus = getCarrierPrivilegeStatus(sig, pInfo.packageName);
                 if (accessStatus != TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS) {
-                    return accessStatus;
+                    status = accessStatus;
+                    break;
                 }
             }
         } catch (PackageManager.NameNotFoundException ex) {
             Rlog.e(LOG_TAG, "NameNotFoundException", ex);
+            return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
         }
-        return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+
+        // Only final decisions are kept; the rules may still be loading. Without a receiver
+        // for package changes the signatures may change unnoticed, so nothing is kept either.
+        if (mContext != null && (status == TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS
+                || status == TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS)) {
+            synchronized (mCacheLock) {
+                if (generation == mCacheGeneration) {
+                    if (mPackageStatusCache.size() >= MAX_CACHE_SIZE) {
+                        mPackageStatusCache.clear();
+                    }
+                    mPackageStatusCache.put(packageName, status);
+                }
+            }
+        }
+        return status;
     }
 
     /**
@@ -380,9 +561,11 @@ public class UiccCarrierPrivilegeRules extends Handler {
                   if (response.sw1 == 0x90 && response.sw2 == 0x00 &&
                       response.payload != null && response.payload.length > 0) {
                       try {
-                          mRules += IccUtils.bytesToHexString(response.payload).toUpperCase(Locale.US);
-                          if (isDataComplete()) {
-                              mAccessRules = parseRules(mRules);
+                          mRules.write(response.payload, 0, response.payload.length);
+                          byte[] rules = mRules.toByteArray();
+                          if (isDataComplete(rules)) {
+                              setAccessRules(parseRules(rules));
+                              mRules = null;
                               updateState(STATE_LOADED, "Success!");
                           } else {
                               mUiccCard.iccTransmitApduLogicalChannel(mChannelId, CLA, COMMAND, P1, P2_EXTENDED_DATA, P3, DATA,
@@ -421,110 +604,126 @@ public class UiccCarrierPrivilegeRules extends Handler {
      * Check if all rule bytes have been read from UICC.
      * For long payload, we need to fetch it repeatly before start parsing it.
      */
-    private boolean isDataComplete() {
-        Rlog.d(LOG_TAG, "isDataComplete mRules:" + mRules);
-        if (mRules.startsWith(TAG_ALL_REF_AR_DO)) {
-            TLV allRules = new TLV(TAG_ALL_REF_AR_DO);
-            String lengthBytes = allRules.parseLength(mRules);
-            Rlog.d(LOG_TAG, "isDataComplete lengthBytes: " + lengthBytes);
-            if (mRules.length() == TAG_ALL_REF_AR_DO.length() + lengthBytes.length() +
-                                   allRules.length) {
-                Rlog.d(LOG_TAG, "isDataComplete yes");
-                return true;
-            } else {
-                Rlog.d(LOG_TAG, "isDataComplete no");
-                return false;
-            }
+    private static boolean isDataComplete(byte[] rules) {
+        TLV allRules = new TLV(TAG_ALL_REF_AR_DO);
+        if (allRules.isAt(rules, 0, rules.length)) {
+            int headerLength = allRules.parseLength(rules, 0, rules.length);
+            Rlog.d(LOG_TAG, "isDataComplete read " + rules.length + " of "
+                    + (headerLength + allRules.length));
+            return rules.length == headerLength + allRules.length;
         } else {
             throw new IllegalArgumentException("Tags don't match.");
         }
     }
 
     /*
-     * Parses the rules from the input string.
+     * Parses the rules from the response bytes.
      */
-    private static List<AccessRule> parseRules(String rules) {
-        Rlog.d(LOG_TAG, "Got rules: " + rules);
+    private static List<AccessRule> parseRules(byte[] rules) {
+        Rlog.d(LOG_TAG, "Got rules: " + IccUtils.bytesToHexString(rules));
 
         TLV allRefArDo = new TLV(TAG_ALL_REF_AR_DO); //FF40
-        allRefArDo.parse(rules, true);
+        allRefArDo.parse(rules, 0, rules.length, true);
 
-        String arDos = allRefArDo.value;
+        int offset = allRefArDo.valueOffset;
+        int end = allRefArDo.getValueEnd();
         List<AccessRule> accessRules = new ArrayList<AccessRule>();
-        while (!arDos.isEmpty()) {
+        while (offset < end) {
             TLV refArDo = new TLV(TAG_REF_AR_DO); //E2
-            arDos = refArDo.parse(arDos, false);
-            AccessRule accessRule = parseRefArdo(refArDo.value);
+            offset = refArDo.parse(rules, offset, end, false);
+            AccessRule accessRule = parseRefArdo(rules, refArDo.valueOffset,
+                    refArDo.getValueEnd());
             if (accessRule != null) {
                 accessRules.add(accessRule);
             } else {
-              Rlog.e(LOG_TAG, "Skip unrecognized rule." + refArDo.value);
+              Rlog.e(LOG_TAG, "Skip unrecognized rule." + IccUtils.bytesToHexString(
+                      Arrays.copyOfRange(rules, refArDo.valueOffset, refArDo.getValueEnd())));
             }
         }
         return accessRules;
     }
 
     /*
-     * Parses a single rule.
+     * Parses a single rule held in data between offset and end.
      */
-    private static AccessRule parseRefArdo(String rule) {
-        Rlog.d(LOG_TAG, "Got rule: " + rule);
-
-        String certificateHash = null;
+    private static AccessRule parseRefArdo(byte[] data, int offset, int end) {
+        byte[] certificateHash = null;
         String packageName = null;
-        String tmp = null;
         long accessType = 0;
 
-        while (!rule.isEmpty()) {
-            if (rule.startsWith(TAG_REF_DO)) {
-                TLV refDo = new TLV(TAG_REF_DO); //E1
-                rule = refDo.parse(rule, false);
+        while (offset < end) {
+            TLV refDo = new TLV(TAG_REF_DO); //E1
+            TLV arDo = new TLV(TAG_AR_DO); //E3
+            if (refDo.isAt(data, offset, end)) {
+                offset = refDo.parse(data, offset, end, false);
 
                 // Skip unrelated rules.
-                if (!refDo.value.startsWith(TAG_DEVICE_APP_ID_REF_DO)) {
+                TLV deviceDo = new TLV(TAG_DEVICE_APP_ID_REF_DO); //C1
+                if (!deviceDo.isAt(data, refDo.valueOffset, refDo.getValueEnd())) {
                     return null;
                 }
 
-                TLV deviceDo = new TLV(TAG_DEVICE_APP_ID_REF_DO); //C1
-                tmp = deviceDo.parse(refDo.value, false);
-                certificateHash = deviceDo.value;
+                int tmp = deviceDo.parse(data, refDo.valueOffset, refDo.getValueEnd(), false);
+                certificateHash = Arrays.copyOfRange(data, deviceDo.valueOffset,
+                        deviceDo.getValueEnd());
 
-                if (!tmp.isEmpty()) {
-                  if (!tmp.startsWith(TAG_PKG_REF_DO)) {
+                if (tmp < refDo.getValueEnd()) {
+                  TLV pkgDo = new TLV(TAG_PKG_REF_DO); //CA
+                  if (!pkgDo.isAt(data, tmp, refDo.getValueEnd())) {
                       return null;
                   }
-                  TLV pkgDo = new TLV(TAG_PKG_REF_DO); //CA
-                  pkgDo.parse(tmp, true);
-                  packageName = new String(IccUtils.hexStringToBytes(pkgDo.value));
+                  pkgDo.parse(data, tmp, refDo.getValueEnd(), true);
+                  packageName = new String(data, pkgDo.valueOffset, pkgDo.length);
                 } else {
                   packageName = null;
                 }
-            } else if (rule.startsWith(TAG_AR_DO)) {
-                TLV arDo = new TLV(TAG_AR_DO); //E3
-                rule = arDo.parse(rule, false);
+            } else if (arDo.isAt(data, offset, end)) {
+                offset = arDo.parse(data, offset, end, false);
 
                 // Skip unrelated rules.
-                if (!arDo.value.startsWith(TAG_PERM_AR_DO)) {
+                TLV permDo = new TLV(TAG_PERM_AR_DO); //DB
+                if (!permDo.isAt(data, arDo.valueOffset, arDo.getValueEnd())) {
                     return null;
                 }
 
-                TLV permDo = new TLV(TAG_PERM_AR_DO); //DB
-                permDo.parse(arDo.value, true);
-                Rlog.e(LOG_TAG, permDo.value);
+                permDo.parse(data, arDo.valueOffset, arDo.getValueEnd(), true);
             } else  {
                 // Spec requires it must be either TAG_REF_DO or TAG_AR_DO.
                 throw new RuntimeException("Invalid Rule type");
             }
         }
 
-        Rlog.e(LOG_TAG, "Adding: " + certificateHash + " : " + packageName + " : " + accessType);
-
-        AccessRule accessRule = new AccessRule(IccUtils.hexStringToBytes(certificateHash),
-            packageName, accessType);
+        AccessRule accessRule = new AccessRule(certificateHash, packageName, accessType);
         Rlog.e(LOG_TAG, "Parsed rule: " + accessRule);
         return accessRule;
     }
 
+    /*
+     * Stores the rules, indexed by certificate hash.
+     */
+    private void setAccessRules(List<AccessRule> accessRules) {
+        HashMap<String, List<AccessRule>> byCertHash = new HashMap<String, List<AccessRule>>();
+        for (AccessRule ar : accessRules) {
+            if (ar.certificateHash == null) {
+                continue;
+            }
+            if (ar.certificateHash.length == SHA1_HASH_LENGTH) {
+                mHasSha1Rules = true;
+            } else if (ar.certificateHash.length == SHA256_HASH_LENGTH) {
+                mHasSha256Rules = true;
+            }
+            String key = IccUtils.bytesToHexString(ar.certificateHash);
+            List<AccessRule> rules = byCertHash.get(key);
+            if (rules == null) {
+                rules = new ArrayList<AccessRule>(1);
+                byCertHash.put(key, rules);
+            }
+            rules.add(ar);
+        }
+        mAccessRules = accessRules;
+        mAccessRulesByCertHash = byCertHash;
+    }
+
     /*
      * Converts a Signature into a Certificate hash usable for comparison.
      */
@@ -542,6 +741,7 @@ public class UiccCarrierPrivilegeRules extends Handler {
      * Updates the state and notifies the UiccCard that the rules have finished loading.
      */
     private void updateState(int newState, String statusMessage) {
+        invalidateCaches();
         mState.set(newState);
         if (mLoadedCallback != null) {
             mLoadedCallback.sendToTarget();
@@ -551,6 +751,37 @@ public class UiccCarrierPrivilegeRules extends Handler {
         Rlog.e(LOG_TAG, mStatusMessage);
     }
 
+    /**
+     * Drops the cached decisions for a package whose signatures may have changed.
+     *
+     * @param packageName name of the package, or null if any package may have changed.
+     */
+    public void onPackageChanged(String packageName) {
+        Rlog.d(LOG_TAG, "onPackageChanged: " + packageName);
+        if (packageName == null) {
+            invalidateCaches();
+            return;
+        }
+        synchronized (mCacheLock) {
+            mCacheGeneration++;
+            mPackageStatusCache.remove(packageName);
+            Iterator<PackageSignature> it = mDecisionCache.keySet().iterator();
+            while (it.hasNext()) {
+                if (packageName.equals(it.next().packageName)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private void invalidateCaches() {
+        synchronized (mCacheLock) {
+            mCacheGeneration++;
+            mPackageStatusCache.clear();
+            mDecisionCache.clear();
+        }
+    }
+
     /**
      * Dumps info to Dumpsys - useful for debugging.
      */
@@ -566,6 +797,10 @@ public class UiccCarrierPrivilegeRules extends Handler {
         } else {
             pw.println(" mAccessRules: null");
         }
+        synchronized (mCacheLock) {
+            pw.println(" mDecisionCache size=" + mDecisionCache.size()
+                    + " mPackageStatusCache size=" + mPackageStatusCache.size());
+        }
         pw.flush();
     }
 
@@ -103,6 +103,7 @@ public class UiccController extends Handler {
             if (mInstance != null) {
                 throw new RuntimeException("MSimUiccController.make() should only be called once");
             }
+            IccFileCache.make(c);
             mInstance = new UiccController(c, ci);
             return (UiccController)mInstance;
         }
@@ -362,5 +363,9 @@ public class UiccController extends Handler {
                 mUiccCards[i].dump(fd, pw, args);
             }
         }
+        IccFileCache cache = IccFileCache.getInstance();
+        if (cache != null) {
+            cache.dump(pw);
+        }
     }
 }
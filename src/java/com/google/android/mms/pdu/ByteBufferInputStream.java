@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A ByteArrayInputStream that reads from a ByteBuffer instead of an array.
+ *
+ * This lets the ByteArrayInputStream based methods of {@link PduParser}
+ * parse a PDU held in a heap, direct or memory mapped buffer, and lets the
+ * parser take views of part data with {@link #slice} instead of copying it.
+ */
+class ByteBufferInputStream extends ByteArrayInputStream {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final ByteBuffer mBuffer;
+    private int mMark;
+
+    /**
+     * @param buffer the bytes between its position and limit are read; the
+     *        buffer itself is not modified
+     */
+    ByteBufferInputStream(ByteBuffer buffer) {
+        super(EMPTY);
+        mBuffer = buffer.slice();
+    }
+
+    /**
+     * Returns a view of the next <code>length</code> bytes, or of all
+     * remaining bytes if there are fewer, and skips past them.
+     */
+    ByteBuffer slice(int length) {
+        length = Math.min(Math.max(length, 0), mBuffer.remaining());
+        ByteBuffer slice = mBuffer.duplicate();
+        slice.limit(slice.position() + length);
+        mBuffer.position(mBuffer.position() + length);
+        return slice.slice();
+    }
+
+    @Override
+    public int read() {
+        return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        len = Math.min(len, mBuffer.remaining());
+        mBuffer.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public long skip(long n) {
+        int skipped = (int) Math.min(Math.max(n, 0), mBuffer.remaining());
+        mBuffer.position(mBuffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) {
+        mMark = mBuffer.position();
+    }
+
+    @Override
+    public void reset() {
+        mBuffer.position(mMark);
+    }
+}
@@ -19,13 +19,17 @@ package com.google.android.mms.pdu;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
 import android.util.Log;
 import android.text.TextUtils;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -83,9 +87,10 @@ public class PduComposer {
     static private final int PDU_COMPOSER_BLOCK_SIZE = 1024;
 
     /**
-     * The output message.
+     * The stream the message is written to, or null while only the size of
+     * the message is being computed.
      */
-    protected ByteArrayOutputStream mMessage = null;
+    private OutputStream mOutput = null;
 
     /**
      * The PDU.
@@ -93,14 +98,15 @@ public class PduComposer {
     private GenericPdu mPdu = null;
 
     /**
-     * Current visiting position of the mMessage.
+     * Number of bytes of the message composed so far.
      */
     protected int mPosition = 0;
 
     /**
-     * Message compose buffer stack.
+     * Data length of each part of the body, found while computing the size
+     * of the message and written ahead of the data.
      */
-    private BufferStack mStack = null;
+    private long[] mPartDataLengths = null;
 
     /**
      * Content resolver.
@@ -136,8 +142,6 @@ public class PduComposer {
         mPdu = pdu;
         mResolver = context.getContentResolver();
         mPduHeader = pdu.getPduHeaders();
-        mStack = new BufferStack();
-        mMessage = new ByteArrayOutputStream();
         mPosition = 0;
     }
 
@@ -149,56 +153,137 @@ public class PduComposer {
      *         the PDU is invalid.
      */
     public byte[] make() {
-        // Get Message-type.
-        int type = mPdu.getMessageType();
-
-        /* make the message */
-        switch (type) {
-            case PduHeaders.MESSAGE_TYPE_SEND_REQ:
-                if (makeSendReqPdu() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
-            case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
-                if (makeNotifyResp() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
-            case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
-                if (makeAckInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
-            case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
-                if (makeReadRecInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
-            default:
-                return null;
+        long size = computeMessageSize();
+        if ((size < 0) || (size > Integer.MAX_VALUE)) {
+            return null;
+        }
+
+        // The size is exact, so the message is written once and never copied.
+        byte[] message = new byte[(int) size];
+        if (compose(new ByteBufferOutputStream(ByteBuffer.wrap(message)))
+                != PDU_COMPOSE_SUCCESS) {
+            return null;
+        }
+        return message;
+    }
+
+    /**
+     * Make the message into a stream. Part data held as a Uri is streamed
+     * from the content resolver rather than loaded into memory.
+     *
+     * @param out the stream to write the message to
+     * @return true if the message was written, false if the PDU is invalid,
+     *         in which case part of the message may have been written
+     * @throws IOException if writing to <code>out</code> fails
+     */
+    public boolean make(OutputStream out) throws IOException {
+        if (computeMessageSize() < 0) {
+            return false;
+        }
+
+        try {
+            return compose(out) == PDU_COMPOSE_SUCCESS;
+        } catch (ComposeIOException e) {
+            throw e.getIOException();
+        }
+    }
+
+    /**
+     * Make the message into a buffer, e.g. a direct buffer handed to the
+     * network stack, starting at its position.
+     *
+     * @param out the buffer to write the message to
+     * @return true if the message was written, false if the PDU is invalid
+     * @throws BufferOverflowException if the message does not fit in the
+     *         remaining space of <code>out</code>
+     */
+    public boolean make(ByteBuffer out) {
+        long size = computeMessageSize();
+        if (size < 0) {
+            return false;
+        }
+        if (size > out.remaining()) {
+            throw new BufferOverflowException();
+        }
+
+        return compose(new ByteBufferOutputStream(out)) == PDU_COMPOSE_SUCCESS;
+    }
+
+    /**
+     * Compute the size of the message without composing it.
+     *
+     * @return the size in bytes of the message make() produces, or -1 if
+     *         the PDU is invalid
+     */
+    public long computeMessageSize() {
+        mPartDataLengths = null;
+        if (compose(null) != PDU_COMPOSE_SUCCESS) {
+            return -1;
         }
+        return mPosition;
+    }
+
+    /**
+     * Compose the message into <code>out</code>, or only count its bytes
+     * when <code>out</code> is null. The part data lengths found while
+     * counting are used when the message is written.
+     */
+    private int compose(OutputStream out) {
+        mOutput = out;
+        mPosition = 0;
 
-        return mMessage.toByteArray();
+        try {
+            // Get Message-type.
+            int type = mPdu.getMessageType();
+
+            /* make the message */
+            switch (type) {
+                case PduHeaders.MESSAGE_TYPE_SEND_REQ:
+                    return makeSendReqPdu();
+                case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
+                    return makeNotifyResp();
+                case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
+                    return makeAckInd();
+                case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
+                    return makeReadRecInd();
+                default:
+                    return PDU_COMPOSE_FIELD_NOT_SUPPORTED;
+            }
+        } finally {
+            mOutput = null;
+        }
     }
 
     /**
-     *  Copy buf to mMessage.
+     *  Copy buf to the message.
      */
     protected void arraycopy(byte[] buf, int pos, int length) {
-        mMessage.write(buf, pos, length);
+        if (mOutput != null) {
+            try {
+                mOutput.write(buf, pos, length);
+            } catch (IOException e) {
+                throw new ComposeIOException(e);
+            }
+        }
         mPosition = mPosition + length;
     }
 
     /**
-     * Append a byte to mMessage.
+     * Append a byte to the message.
      */
     protected void append(int value) {
-        mMessage.write(value);
+        if (mOutput != null) {
+            try {
+                mOutput.write(value);
+            } catch (IOException e) {
+                throw new ComposeIOException(e);
+            }
+        }
         mPosition ++;
     }
 
     /**
-     * Append short integer value to mMessage.
+     * Append short integer value to the message.
      * This implementation doesn't check the validity of parameter, since it
      * assumes that the values are validated in the GenericPdu setter methods.
      */
@@ -216,7 +301,7 @@ public class PduComposer {
     }
 
     /**
-     * Append an octet number between 128 and 255 into mMessage.
+     * Append an octet number between 128 and 255 into the message.
      * NOTE:
      * A value between 0 and 127 should be appended by using appendShortInteger.
      * This implementation doesn't check the validity of parameter, since it
@@ -227,7 +312,7 @@ public class PduComposer {
     }
 
     /**
-     * Append a short length into mMessage.
+     * Append a short length into the message.
      * This implementation doesn't check the validity of parameter, since it
      * assumes that the values are validated in the GenericPdu setter methods.
      */
@@ -240,7 +325,7 @@ public class PduComposer {
     }
 
     /**
-     * Append long integer into mMessage. it's used for really long integers.
+     * Append long integer into the message. it's used for really long integers.
      * This implementation doesn't check the validity of parameter, since it
      * assumes that the values are validated in the GenericPdu setter methods.
      */
@@ -276,7 +361,7 @@ public class PduComposer {
     }
 
     /**
-     * Append text string into mMessage.
+     * Append text string into the message.
      * This implementation doesn't check the validity of parameter, since it
      * assumes that the values are validated in the GenericPdu setter methods.
      */
@@ -297,7 +382,7 @@ public class PduComposer {
     }
 
     /**
-     * Append text string into mMessage.
+     * Append text string into the message.
      * This implementation doesn't check the validity of parameter, since it
      * assumes that the values are validated in the GenericPdu setter methods.
      */
@@ -313,7 +398,7 @@ public class PduComposer {
     }
 
     /**
-     * Append encoded string value to mMessage.
+     * Append encoded string value to the message.
      * This implementation doesn't check the validity of parameter, since it
      * assumes that the values are validated in the GenericPdu setter methods.
      */
@@ -335,20 +420,13 @@ public class PduComposer {
          * never be 0. It will always be composed as
          * Encoded-string-value = Value-length Char-set Text-string
          */
-        mStack.newbuf();
-        PositionMarker start = mStack.mark();
-
+        appendValueLength(1 + textStringLength(textString));
         appendShortInteger(charset);
         appendTextString(textString);
-
-        int len = start.getLength();
-        mStack.pop();
-        appendValueLength(len);
-        mStack.copy();
     }
 
     /**
-     * Append uintvar integer into mMessage.
+     * Append uintvar integer into the message.
      * This implementation doesn't check the validity of parameter, since it
      * assumes that the values are validated in the GenericPdu setter methods.
      */
@@ -385,7 +463,7 @@ public class PduComposer {
     }
 
     /**
-     * Append date value into mMessage.
+     * Append date value into the message.
      * This implementation doesn't check the validity of parameter, since it
      * assumes that the values are validated in the GenericPdu setter methods.
      */
@@ -398,7 +476,7 @@ public class PduComposer {
     }
 
     /**
-     * Append value length to mMessage.
+     * Append value length to the message.
      * This implementation doesn't check the validity of parameter, since it
      * assumes that the values are validated in the GenericPdu setter methods.
      */
@@ -421,7 +499,7 @@ public class PduComposer {
     }
 
     /**
-     * Append quoted string to mMessage.
+     * Append quoted string to the message.
      * This implementation doesn't check the validity of parameter, since it
      * assumes that the values are validated in the GenericPdu setter methods.
      */
@@ -438,7 +516,7 @@ public class PduComposer {
     }
 
     /**
-     * Append quoted string to mMessage.
+     * Append quoted string to the message.
      * This implementation doesn't check the validity of parameter, since it
      * assumes that the values are validated in the GenericPdu setter methods.
      */
@@ -476,7 +554,7 @@ public class PduComposer {
     }
 
     /**
-     * Append header to mMessage.
+     * Append header to the message.
      */
     private int appendHeader(int field) {
         switch (field) {
@@ -538,23 +616,17 @@ public class PduComposer {
                     // Insert-address-token = <Octet 129>
                     append(PduHeaders.FROM_INSERT_ADDRESS_TOKEN);
                 } else {
-                    mStack.newbuf();
-                    PositionMarker fstart = mStack.mark();
-
-                    // Address-present-token = <Octet 128>
-                    append(PduHeaders.FROM_ADDRESS_PRESENT_TOKEN);
-
                     temp = appendAddressType(from);
                     if (temp == null) {
                         return PDU_COMPOSE_CONTENT_ERROR;
                     }
 
-                    appendEncodedString(temp);
+                    appendValueLength(1 + encodedStringLength(temp));
 
-                    int flen = fstart.getLength();
-                    mStack.pop();
-                    appendValueLength(flen);
-                    mStack.copy();
+                    // Address-present-token = <Octet 128>
+                    append(PduHeaders.FROM_ADDRESS_PRESENT_TOKEN);
+
+                    appendEncodedString(temp);
                 }
                 break;
 
@@ -626,16 +698,9 @@ public class PduComposer {
 
                 appendOctet(field);
 
-                mStack.newbuf();
-                PositionMarker expiryStart = mStack.mark();
-
+                appendValueLength(1 + longIntegerLength(expiry));
                 append(PduHeaders.VALUE_RELATIVE_TOKEN);
                 appendLongInteger(expiry);
-
-                int expiryLength = expiryStart.getLength();
-                mStack.pop();
-                appendValueLength(expiryLength);
-                mStack.copy();
                 break;
 
             default:
@@ -649,11 +714,6 @@ public class PduComposer {
      * Make ReadRec.Ind.
      */
     private int makeReadRecInd() {
-        if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
-
         // X-Mms-Message-Type
         appendOctet(PduHeaders.MESSAGE_TYPE);
         appendOctet(PduHeaders.MESSAGE_TYPE_READ_REC_IND);
@@ -697,11 +757,6 @@ public class PduComposer {
      * Make NotifyResp.Ind.
      */
     private int makeNotifyResp() {
-        if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
-
         //    X-Mms-Message-Type
         appendOctet(PduHeaders.MESSAGE_TYPE);
         appendOctet(PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND);
@@ -729,11 +784,6 @@ public class PduComposer {
      * Make Acknowledge.Ind.
      */
     private int makeAckInd() {
-        if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
-
         //    X-Mms-Message-Type
         appendOctet(PduHeaders.MESSAGE_TYPE);
         appendOctet(PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND);
@@ -758,11 +808,6 @@ public class PduComposer {
      * Make Send.req.
      */
     private int makeSendReqPdu() {
-        if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
-
         // X-Mms-Message-Type
         appendOctet(PduHeaders.MESSAGE_TYPE);
         appendOctet(PduHeaders.MESSAGE_TYPE_SEND_REQ);
@@ -843,10 +888,6 @@ public class PduComposer {
      */
     private int makeMessageBody() {
         // 1. add body informations
-        mStack.newbuf();  // Switching buffer because we need to
-
-        PositionMarker ctStart = mStack.mark();
-
         // This contentTypeIdentifier should be used for type of attachment...
         String contentType = new String(mPduHeader.getTextString(PduHeaders.CONTENT_TYPE));
         Integer contentTypeIdentifier = mContentTypeMap.get(contentType);
@@ -855,55 +896,51 @@ public class PduComposer {
             return PDU_COMPOSE_CONTENT_ERROR;
         }
 
-        appendShortInteger(contentTypeIdentifier.intValue());
-
-        // content-type parameter: start
         PduBody body = ((SendReq) mPdu).getBody();
         if (null == body || body.getPartsNum() == 0) {
             // empty message
+            appendShortInteger(contentTypeIdentifier.intValue());
             appendUintvarInteger(0);
-            mStack.pop();
-            mStack.copy();
             return PDU_COMPOSE_SUCCESS;
         }
 
-        PduPart part;
-        try {
-            part = body.getPart(0);
-
-            byte[] start = part.getContentId();
-            if (start != null) {
-                appendOctet(PduPart.P_DEP_START);
-                if (('<' == start[0]) && ('>' == start[start.length - 1])) {
-                    appendTextString(start);
-                } else {
-                    appendTextString("<" + new String(start) + ">");
-                }
-            }
-
-            // content-type parameter: type
-            appendOctet(PduPart.P_CT_MR_TYPE);
-            appendTextString(part.getContentType());
+        // content-type parameters: start and type
+        PduPart part = body.getPart(0);
+        byte[] start = part.getContentId();
+        if (start != null) {
+            start = toAngleBracketed(start);
         }
-        catch (ArrayIndexOutOfBoundsException e){
-            e.printStackTrace();
+        byte[] type = part.getContentType();
+        if (type == null) {
+            // content type is mandatory
+            return PDU_COMPOSE_CONTENT_ERROR;
         }
 
-        int ctLength = ctStart.getLength();
-        mStack.pop();
+        int ctLength = 1 + 1 + textStringLength(type);
+        if (start != null) {
+            ctLength += 1 + textStringLength(start);
+        }
         appendValueLength(ctLength);
-        mStack.copy();
+        appendShortInteger(contentTypeIdentifier.intValue());
+        if (start != null) {
+            appendOctet(PduPart.P_DEP_START);
+            appendTextString(start);
+        }
+        appendOctet(PduPart.P_CT_MR_TYPE);
+        appendTextString(type);
 
         // 3. add content
         int partNum = body.getPartsNum();
+        boolean sizing = (mOutput == null);
+        if (sizing) {
+            mPartDataLengths = new long[partNum];
+        } else if ((mPartDataLengths == null) || (mPartDataLengths.length != partNum)) {
+            throw new RuntimeException("BUG: Parts changed after computing the size");
+        }
+
         appendUintvarInteger(partNum);
         for (int i = 0; i < partNum; i++) {
             part = body.getPart(i);
-            mStack.newbuf();  // Leaving space for header lengh and data length
-            PositionMarker attachment = mStack.mark();
-
-            mStack.newbuf();  // Leaving space for Content-Type length
-            PositionMarker contentTypeBegin = mStack.mark();
 
             byte[] partContentType = part.getContentType();
 
@@ -912,14 +949,8 @@ public class PduComposer {
                 return PDU_COMPOSE_CONTENT_ERROR;
             }
 
-            // content-type value
             Integer partContentTypeIdentifier =
                 mContentTypeMap.get(new String(partContentType));
-            if (partContentTypeIdentifier == null) {
-                appendTextString(partContentType);
-            } else {
-                appendShortInteger(partContentTypeIdentifier.intValue());
-            }
 
             /* Content-type parameter : name.
              * The value of name, filename, content-location is the same.
@@ -941,194 +972,321 @@ public class PduComposer {
                     }
                 }
             }
+
+            int charset = part.getCharset();
+            byte[] contentId = part.getContentId();
+            if (null != contentId) {
+                contentId = toAngleBracketed(contentId);
+            }
+            byte[] contentLocation = part.getContentLocation();
+
+            // Work out the header length before writing anything
+            int contentTypeLength = (partContentTypeIdentifier == null)
+                    ? textStringLength(partContentType) : 1;
+            contentTypeLength += 1 + textStringLength(name);
+            if (charset != 0) {
+                contentTypeLength += 2;
+            }
+
+            int headerLength = valueLengthLength(contentTypeLength) + contentTypeLength;
+            if (null != contentId) {
+                headerLength += 1 + quotedStringLength(contentId);
+            }
+            if (null != contentLocation) {
+                headerLength += 1 + textStringLength(contentLocation);
+            }
+
+            long dataLength;
+            if (sizing) {
+                dataLength = getPartDataLength(part);
+                if (dataLength < 0) {
+                    return PDU_COMPOSE_CONTENT_ERROR;
+                }
+                mPartDataLengths[i] = dataLength;
+            } else {
+                dataLength = mPartDataLengths[i];
+            }
+
+            appendUintvarInteger(headerLength);
+            appendUintvarInteger(dataLength);
+            int headerStart = mPosition;
+
+            // content-type value
+            appendValueLength(contentTypeLength);
+            if (partContentTypeIdentifier == null) {
+                appendTextString(partContentType);
+            } else {
+                appendShortInteger(partContentTypeIdentifier.intValue());
+            }
+
             appendOctet(PduPart.P_DEP_NAME);
             appendTextString(name);
 
             // content-type parameter : charset
-            int charset = part.getCharset();
             if (charset != 0) {
                 appendOctet(PduPart.P_CHARSET);
                 appendShortInteger(charset);
             }
 
-            int contentTypeLength = contentTypeBegin.getLength();
-            mStack.pop();
-            appendValueLength(contentTypeLength);
-            mStack.copy();
-
             // content id
-            byte[] contentId = part.getContentId();
-
             if (null != contentId) {
                 appendOctet(PduPart.P_CONTENT_ID);
-                if (('<' == contentId[0]) && ('>' == contentId[contentId.length - 1])) {
-                    appendQuotedString(contentId);
-                } else {
-                    appendQuotedString("<" + new String(contentId) + ">");
-                }
+                appendQuotedString(contentId);
             }
 
             // content-location
-            byte[] contentLocation = part.getContentLocation();
             if (null != contentLocation) {
-            	appendOctet(PduPart.P_CONTENT_LOCATION);
-            	appendTextString(contentLocation);
+                appendOctet(PduPart.P_CONTENT_LOCATION);
+                appendTextString(contentLocation);
+            }
+
+            if (headerLength != (mPosition - headerStart)) {
+                throw new RuntimeException("BUG: Length sanity check failed");
             }
 
             // content
-            int headerLength = attachment.getLength();
+            if (sizing) {
+                mPosition += dataLength;
+            } else if (appendPartData(part, dataLength) != PDU_COMPOSE_SUCCESS) {
+                return PDU_COMPOSE_CONTENT_ERROR;
+            }
+        }
 
-            int dataLength = 0; // Just for safety...
-            byte[] partData = part.getData();
+        return PDU_COMPOSE_SUCCESS;
+    }
 
-            if (partData != null) {
-                arraycopy(partData, 0, partData.length);
-                dataLength = partData.length;
-            } else {
-                InputStream cr = null;
-                try {
-                    byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
-                    cr = mResolver.openInputStream(part.getDataUri());
-                    int len = 0;
-                    while ((len = cr.read(buffer)) != -1) {
-                        mMessage.write(buffer, 0, len);
-                        mPosition += len;
-                        dataLength += len;
-                    }
-                } catch (FileNotFoundException e) {
-                    return PDU_COMPOSE_CONTENT_ERROR;
-                } catch (IOException e) {
-                    return PDU_COMPOSE_CONTENT_ERROR;
-                } catch (RuntimeException e) {
+    /**
+     * Append the data of a part, streaming it from its Uri if the part does
+     * not hold the data itself.
+     *
+     * @param dataLength the data length already written for the part
+     */
+    private int appendPartData(PduPart part, long dataLength) {
+        if (part.hasData()) {
+            if (part.getDataLength() != dataLength) {
+                return PDU_COMPOSE_CONTENT_ERROR;
+            }
+            try {
+                part.writeData(mOutput);
+            } catch (IOException e) {
+                throw new ComposeIOException(e);
+            }
+            mPosition += dataLength;
+            return PDU_COMPOSE_SUCCESS;
+        }
+
+        InputStream cr = null;
+        try {
+            byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+            cr = mResolver.openInputStream(part.getDataUri());
+            long remaining = dataLength;
+            int len = 0;
+            while ((len = cr.read(buffer)) != -1) {
+                if (len > remaining) {
+                    // The data grew since its length was written
                     return PDU_COMPOSE_CONTENT_ERROR;
-                } finally {
-                    if (cr != null) {
-                        try {
-                            cr.close();
-                        } catch (IOException e) {
-                        }
-                    }
                 }
+                arraycopy(buffer, 0, len);
+                remaining -= len;
             }
-
-            if (dataLength != (attachment.getLength() - headerLength)) {
-                throw new RuntimeException("BUG: Length sanity check failed");
+            if (remaining != 0) {
+                return PDU_COMPOSE_CONTENT_ERROR;
+            }
+        } catch (FileNotFoundException e) {
+            return PDU_COMPOSE_CONTENT_ERROR;
+        } catch (IOException e) {
+            return PDU_COMPOSE_CONTENT_ERROR;
+        } catch (RuntimeException e) {
+            if (e instanceof ComposeIOException) {
+                throw e;
+            }
+            return PDU_COMPOSE_CONTENT_ERROR;
+        } finally {
+            if (cr != null) {
+                try {
+                    cr.close();
+                } catch (IOException e) {
+                }
             }
-
-            mStack.pop();
-            appendUintvarInteger(headerLength);
-            appendUintvarInteger(dataLength);
-            mStack.copy();
         }
-
         return PDU_COMPOSE_SUCCESS;
     }
 
     /**
-     *  Record current message informations.
+     * Get the length of the data of a part without loading it.
+     *
+     * @return the data length, or -1 if the data can't be read
      */
-    static private class LengthRecordNode {
-        ByteArrayOutputStream currentMessage = null;
-        public int currentPosition = 0;
+    private long getPartDataLength(PduPart part) {
+        if (part.hasData()) {
+            return part.getDataLength();
+        }
+
+        Uri uri = part.getDataUri();
+        if (uri == null) {
+            return -1;
+        }
+
+        AssetFileDescriptor afd = null;
+        try {
+            afd = mResolver.openAssetFileDescriptor(uri, "r");
+            if ((afd != null) && (afd.getLength() != AssetFileDescriptor.UNKNOWN_LENGTH)) {
+                return afd.getLength();
+            }
+        } catch (FileNotFoundException e) {
+            return -1;
+        } catch (RuntimeException e) {
+            return -1;
+        } finally {
+            if (afd != null) {
+                try {
+                    afd.close();
+                } catch (IOException e) {
+                }
+            }
+        }
 
-        public LengthRecordNode next = null;
+        // The provider doesn't know the length; count the bytes instead.
+        InputStream cr = null;
+        try {
+            byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+            cr = mResolver.openInputStream(uri);
+            long length = 0;
+            int len = 0;
+            while ((len = cr.read(buffer)) != -1) {
+                length += len;
+            }
+            return length;
+        } catch (IOException e) {
+            return -1;
+        } catch (RuntimeException e) {
+            return -1;
+        } finally {
+            if (cr != null) {
+                try {
+                    cr.close();
+                } catch (IOException e) {
+                }
+            }
+        }
     }
 
     /**
-     * Mark current message position and stact size.
+     * Return <code>id</code> enclosed in angle brackets, as used for
+     * Content-ID and the start parameter.
      */
-    private class PositionMarker {
-        private int c_pos;   // Current position
-        private int currentStackSize;  // Current stack size
-
-        int getLength() {
-            // If these assert fails, likely that you are finding the
-            // size of buffer that is deep in BufferStack you can only
-            // find the length of the buffer that is on top
-            if (currentStackSize != mStack.stackSize) {
-                throw new RuntimeException("BUG: Invalid call to getLength()");
-            }
+    private static byte[] toAngleBracketed(byte[] id) {
+        if ((id.length > 0) && ('<' == id[0]) && ('>' == id[id.length - 1])) {
+            return id;
+        }
+        return ("<" + new String(id) + ">").getBytes();
+    }
 
-            return mPosition - c_pos;
+    /**
+     * Length of the text string appendTextString(text) appends.
+     */
+    private static int textStringLength(byte[] text) {
+        int length = text.length + 1;
+        if (((text[0])&0xff) > TEXT_MAX) {
+            length++;
         }
+        return length;
     }
 
     /**
-     * This implementation can be OPTIMIZED to use only
-     * 2 buffers. This optimization involves changing BufferStack
-     * only... Its usage (interface) will not change.
+     * Length of the quoted string appendQuotedString(text) appends.
      */
-    private class BufferStack {
-        private LengthRecordNode stack = null;
-        private LengthRecordNode toCopy = null;
+    private static int quotedStringLength(byte[] text) {
+        return text.length + 2;
+    }
 
-        int stackSize = 0;
+    /**
+     * Length of the encoded string value appendEncodedString(enStr) appends.
+     */
+    private static int encodedStringLength(EncodedStringValue enStr) {
+        byte[] textString = enStr.getTextString();
+        if (null == textString) {
+            return 0;
+        }
 
-        /**
-         *  Create a new message buffer and push it into the stack.
-         */
-        void newbuf() {
-            // You can't create a new buff when toCopy != null
-            // That is after calling pop() and before calling copy()
-            // If you do, it is a bug
-            if (toCopy != null) {
-                throw new RuntimeException("BUG: Invalid newbuf() before copy()");
-            }
+        int length = 1 + textStringLength(textString);
+        return valueLengthLength(length) + length;
+    }
 
-            LengthRecordNode temp = new LengthRecordNode();
+    /**
+     * Length of the long integer appendLongInteger(longInt) appends.
+     */
+    private static int longIntegerLength(long longInt) {
+        int size;
+        long temp = longInt;
 
-            temp.currentMessage = mMessage;
-            temp.currentPosition = mPosition;
+        for(size = 0; (temp != 0) && (size < LONG_INTEGER_LENGTH_MAX); size++) {
+            temp = (temp >>> 8);
+        }
 
-            temp.next = stack;
-            stack = temp;
+        return 1 + size;
+    }
 
-            stackSize = stackSize + 1;
+    /**
+     * Length of the uintvar integer appendUintvarInteger(value) appends.
+     */
+    private static int uintvarLength(long value) {
+        int i;
+        long max = SHORT_INTEGER_MAX;
 
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
+        for (i = 0; i < 5; i++) {
+            if (value < max) {
+                break;
+            }
 
-        /**
-         *  Pop the message before and record current message in the stack.
-         */
-        void pop() {
-            ByteArrayOutputStream currentMessage = mMessage;
-            int currentPosition = mPosition;
+            max = (max << 7) | 0x7fl;
+        }
 
-            mMessage = stack.currentMessage;
-            mPosition = stack.currentPosition;
+        return i + 1;
+    }
 
-            toCopy = stack;
-            // Re using the top element of the stack to avoid memory allocation
+    /**
+     * Length of the value length appendValueLength(value) appends.
+     */
+    private static int valueLengthLength(long value) {
+        if (value < LENGTH_QUOTE) {
+            return 1;
+        }
+        return 1 + uintvarLength(value);
+    }
 
-            stack = stack.next;
-            stackSize = stackSize - 1;
+    /**
+     * OutputStream writing into a ByteBuffer.
+     */
+    private static class ByteBufferOutputStream extends OutputStream {
+        private final ByteBuffer mBuffer;
 
-            toCopy.currentMessage = currentMessage;
-            toCopy.currentPosition = currentPosition;
+        ByteBufferOutputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
         }
 
-        /**
-         *  Append current message to the message before.
-         */
-        void copy() {
-            arraycopy(toCopy.currentMessage.toByteArray(), 0,
-                    toCopy.currentPosition);
-
-            toCopy = null;
+        @Override
+        public void write(int b) {
+            mBuffer.put((byte) b);
         }
 
-        /**
-         *  Mark current message position
-         */
-        PositionMarker mark() {
-            PositionMarker m = new PositionMarker();
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mBuffer.put(b, off, len);
+        }
+    }
 
-            m.c_pos = mPosition;
-            m.currentStackSize = stackSize;
+    /**
+     * Carries an IOException of the output stream out of the append methods,
+     * which can't throw it.
+     */
+    private static class ComposeIOException extends RuntimeException {
+        ComposeIOException(IOException cause) {
+            super(cause);
+        }
 
-            return m;
+        IOException getIOException() {
+            return (IOException) getCause();
         }
     }
 
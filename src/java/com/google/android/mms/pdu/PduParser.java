@@ -25,6 +25,7 @@ import com.google.android.mms.InvalidHeaderValueException;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -93,11 +94,28 @@ public class PduParser {
     /**
      * Constructor.
      *
+     * The array is copied, so the parts of the parsed PDU stay valid if the
+     * caller reuses it.
+     *
      * @param pduDataStream pdu data to be parsed
      * @param parseContentDisposition whether to parse the Content-Disposition part header
      */
     public PduParser(byte[] pduDataStream, boolean parseContentDisposition) {
-        mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        this(ByteBuffer.wrap(pduDataStream.clone()), parseContentDisposition);
+    }
+
+    /**
+     * Constructor for a PDU held in a buffer, e.g. a memory mapped file.
+     *
+     * Part data is not copied: the parts of the parsed PDU refer to the
+     * buffer, except for parts whose transfer encoding had to be decoded.
+     * The buffer must therefore not be changed while the PDU is in use.
+     *
+     * @param pdu pdu data to be parsed, between its position and limit
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     */
+    public PduParser(ByteBuffer pdu, boolean parseContentDisposition) {
+        mPduDataStream = new ByteBufferInputStream(pdu);
         mParseContentDisposition = parseContentDisposition;
     }
 
@@ -897,12 +915,19 @@ public class PduParser {
 
             /* get part's data */
             if (dataLength > 0) {
-                byte[] partData = new byte[dataLength];
+                ByteBuffer partData;
+                if (pduDataStream instanceof ByteBufferInputStream) {
+                    // A view into the PDU; nothing is copied
+                    partData = ((ByteBufferInputStream) pduDataStream).slice(dataLength);
+                } else {
+                    byte[] data = new byte[dataLength];
+                    pduDataStream.read(data, 0, dataLength);
+                    partData = ByteBuffer.wrap(data);
+                }
                 String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
                 if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
                     // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
+                    PduBody childBody = parseParts(new ByteBufferInputStream(partData));
                     // take the first part of children.
                     part = childBody.getPart(0);
                 } else {
@@ -910,12 +935,16 @@ public class PduParser {
                     byte[] partDataEncoding = part.getContentTransferEncoding();
                     if (null != partDataEncoding) {
                         String encoding = new String(partDataEncoding);
+                        byte[] decoded = null;
                         if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
                             // Decode "base64" into "binary".
-                            partData = Base64.decodeBase64(partData);
+                            decoded = Base64.decodeBase64(toByteArray(partData));
+                            partData = (decoded == null) ? null : ByteBuffer.wrap(decoded);
                         } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
                             // Decode "quoted-printable" into "binary".
-                            partData = QuotedPrintable.decodeQuotedPrintable(partData);
+                            decoded = QuotedPrintable.decodeQuotedPrintable(
+                                    toByteArray(partData));
+                            partData = (decoded == null) ? null : ByteBuffer.wrap(decoded);
                         } else {
                             // "binary" is the default encoding.
                         }
@@ -941,6 +970,16 @@ public class PduParser {
         return body;
     }
 
+    /**
+     * Copy the remaining bytes of a buffer into an array, for the decoders
+     * that only work on arrays.
+     */
+    private static byte[] toByteArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
     /**
      * Log status.
      *
@@ -19,6 +19,9 @@ package com.google.android.mms.pdu;
 
 import android.net.Uri;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -119,6 +122,11 @@ public class PduPart {
       */
      private byte[] mPartData = null;
 
+     /**
+      * Part data as a view into a parsed PDU, used instead of mPartData.
+      */
+     private ByteBuffer mPartDataBuffer = null;
+
      private static final String TAG = "PduPart";
 
      /**
@@ -140,6 +148,56 @@ public class PduPart {
 
          mPartData = new byte[data.length];
          System.arraycopy(data, 0, mPartData, 0, data.length);
+         mPartDataBuffer = null;
+     }
+
+     /**
+      * Set part data without copying it. The bytes between the position and
+      * the limit of <code>data</code> are used; they must not be changed
+      * afterwards.
+      *
+      * @param data the data, e.g. a view into the PDU the part was parsed from
+      */
+     public void setData(ByteBuffer data) {
+         if (data == null) {
+             return;
+         }
+
+         mPartDataBuffer = data.slice();
+         mPartData = null;
+     }
+
+     /**
+      * @return true if the part data is stored in this object rather than
+      *         as a Uri.
+      */
+     public boolean hasData() {
+         return (mPartData != null) || (mPartDataBuffer != null);
+     }
+
+     /**
+      * Write the part data to a stream without making a copy of it first.
+      *
+      * @param os the stream to write to
+      * @throws IOException if writing fails
+      */
+     public void writeData(OutputStream os) throws IOException {
+         if (mPartData != null) {
+             os.write(mPartData);
+         } else if (mPartDataBuffer != null) {
+             ByteBuffer data = mPartDataBuffer.duplicate();
+             if (data.hasArray()) {
+                 os.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+             } else {
+                 // Direct or memory mapped buffer; go through a small chunk
+                 byte[] chunk = new byte[Math.min(8192, data.remaining())];
+                 while (data.hasRemaining()) {
+                     int len = Math.min(chunk.length, data.remaining());
+                     data.get(chunk, 0, len);
+                     os.write(chunk, 0, len);
+                 }
+             }
+         }
      }
 
      /**
@@ -148,6 +206,12 @@ public class PduPart {
       * @see #getDataUri
       */
      public byte[] getData() {
+         if (mPartDataBuffer != null) {
+             byte[] byteArray = new byte[mPartDataBuffer.remaining()];
+             mPartDataBuffer.duplicate().get(byteArray);
+             return byteArray;
+         }
+
          if(mPartData == null) {
             return null;
          }
@@ -163,6 +227,8 @@ public class PduPart {
      public int getDataLength() {
          if(mPartData != null){
              return mPartData.length;
+         } else if (mPartDataBuffer != null) {
+             return mPartDataBuffer.remaining();
          } else {
              return 0;
          }
@@ -790,10 +790,10 @@ public class PduPersister {
         String path = null;
 
         try {
-            byte[] data = part.getData();
             if (ContentType.TEXT_PLAIN.equals(contentType)
                     || ContentType.APP_SMIL.equals(contentType)
                     || ContentType.TEXT_HTML.equals(contentType)) {
+                byte[] data = part.getData();
                 ContentValues cv = new ContentValues();
                 if (data == null) {
                     data = new String("").getBytes(CharacterSets.DEFAULT_CHARSET_NAME);
@@ -835,7 +835,7 @@ public class PduPersister {
                 // uri can look like:
                 // content://mms/part/98
                 os = mContentResolver.openOutputStream(uri);
-                if (data == null) {
+                if (!part.hasData()) {
                     dataUri = part.getDataUri();
                     if ((dataUri == null) || (dataUri == uri)) {
                         Log.w(TAG, "Can't find data for this part.");
@@ -872,9 +872,11 @@ public class PduPersister {
                         Log.v(TAG, "Saving data to: " + uri);
                     }
                     if (!isDrm) {
-                        os.write(data);
+                        // Written straight from the parsed PDU without a copy
+                        part.writeData(os);
                     } else {
                         dataUri = uri;
+                        byte[] data = part.getData();
                         byte[] convertedData = drmConvertSession.convert(data, data.length);
                         if (convertedData != null) {
                             os.write(convertedData, 0, convertedData.length);
@@ -1136,7 +1138,7 @@ public class PduPersister {
         // Only update the data when:
         // 1. New binary data supplied or
         // 2. The Uri of the part is different from the current one.
-        if ((part.getData() != null)
+        if (part.hasData()
                 || (uri != part.getDataUri())) {
             persistData(part, uri, contentType, preOpenedFiles);
         }
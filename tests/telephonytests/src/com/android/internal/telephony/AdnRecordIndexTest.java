@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.uicc.AdnRecord;
+import com.android.internal.telephony.uicc.AdnRecordIndex;
+
+import java.util.ArrayList;
+
+public class AdnRecordIndexTest extends TestCase {
+
+    private static ArrayList<AdnRecord> records(String... tagsAndNumbers) {
+        ArrayList<AdnRecord> records = new ArrayList<AdnRecord>();
+        for (int i = 0; i < tagsAndNumbers.length; i += 2) {
+            records.add(new AdnRecord(tagsAndNumbers[i], tagsAndNumbers[i + 1]));
+        }
+        return records;
+    }
+
+    /** Position {@link AdnRecordIndex#find} must return, found by a scan. */
+    private static int scan(ArrayList<AdnRecord> records, AdnRecord adn) {
+        for (int i = 0; i < records.size(); i++) {
+            if (adn.isEqual(records.get(i))) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    @SmallTest
+    public void testFind() throws Exception {
+        ArrayList<AdnRecord> records = records(
+                "Alice", "5551234",
+                "", "",
+                "Bob", "555-1234",
+                "Bob", "5551234",
+                "", "",
+                "Carol", "");
+        AdnRecordIndex index = new AdnRecordIndex(records);
+
+        AdnRecord[] queries = {
+            new AdnRecord("Alice", "5551234"),
+            new AdnRecord("Bob", "5551234"),
+            new AdnRecord("Bob", "555-1234"),
+            new AdnRecord("Bob", "555 1234"),
+            new AdnRecord("Carol", ""),
+            new AdnRecord("Carol", null),
+            new AdnRecord("", ""),
+            new AdnRecord("Dave", "1"),
+        };
+        for (AdnRecord query : queries) {
+            assertEquals(query.toString(), scan(records, query), index.find(query));
+        }
+        assertEquals(2, index.getFreeCount());
+    }
+
+    @SmallTest
+    public void testSetKeepsIndexInSync() throws Exception {
+        ArrayList<AdnRecord> records = records(
+                "Alice", "5551234",
+                "", "",
+                "", "");
+        AdnRecordIndex index = new AdnRecordIndex(records);
+
+        // Insert into the first free record
+        AdnRecord empty = new AdnRecord("", "");
+        assertEquals(2, index.find(empty));
+        index.set(2, new AdnRecord("Bob", "5550000"));
+        assertEquals(3, index.find(empty));
+        assertEquals(2, index.find(new AdnRecord("Bob", "5550000")));
+        assertEquals("Bob", records.get(1).getAlphaTag());
+
+        // Delete the first record
+        index.set(1, empty);
+        assertEquals(-1, index.find(new AdnRecord("Alice", "5551234")));
+        assertEquals(1, index.find(empty));
+        assertEquals(2, index.getFreeCount());
+
+        // Fill everything
+        index.set(1, new AdnRecord("Carol", "1"));
+        index.set(3, new AdnRecord("Carol", "2"));
+        assertEquals(-1, index.find(empty));
+        assertEquals(0, index.getFreeCount());
+    }
+
+    @SmallTest
+    public void testSearch() throws Exception {
+        ArrayList<AdnRecord> records = records(
+                "Alice", "5551234",
+                "", "",
+                "Bob", "555-1234",
+                "Alice", "999");
+        AdnRecordIndex index = new AdnRecordIndex(records);
+
+        ArrayList<AdnRecord> result = index.search("Alice", null);
+        assertEquals(2, result.size());
+        assertEquals("5551234", result.get(0).getNumber());
+        assertEquals("999", result.get(1).getNumber());
+
+        result = index.search(null, "555 1234");
+        assertEquals(2, result.size());
+        assertEquals("Alice", result.get(0).getAlphaTag());
+        assertEquals("Bob", result.get(1).getAlphaTag());
+
+        result = index.search("Bob", "5551234");
+        assertEquals(1, result.size());
+
+        assertEquals(3, index.search(null, null).size());
+        assertEquals(0, index.search("Dave", null).size());
+    }
+}
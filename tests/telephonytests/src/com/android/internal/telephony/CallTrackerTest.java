@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+
+public class CallTrackerTest extends TestCase {
+
+    /** Keeps the polls sent instead of answering them. */
+    private static class PollRecorder implements InvocationHandler {
+        final ArrayList<Message> mPolls = new ArrayList<Message>();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getCurrentCalls")) {
+                mPolls.add((Message) args[0]);
+            }
+            return null;
+        }
+    }
+
+    /** Handles poll results the way the GSM and CDMA trackers do. */
+    private static class TestCallTracker extends CallTracker {
+        int mHandledPolls;
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == EVENT_POLL_CALLS_RESULT && msg == mLastRelevantPoll) {
+                mNeedsPoll = false;
+                mLastRelevantPoll = null;
+                if (onRelevantPollResult()) {
+                    handlePollCalls((AsyncResult) msg.obj);
+                }
+            }
+        }
+
+        @Override
+        protected void handlePollCalls(AsyncResult ar) {
+            mHandledPolls++;
+        }
+
+        @Override
+        public void registerForVoiceCallStarted(Handler h, int what, Object obj) {
+        }
+
+        @Override
+        public void unregisterForVoiceCallStarted(Handler h) {
+        }
+
+        @Override
+        public void registerForVoiceCallEnded(Handler h, int what, Object obj) {
+        }
+
+        @Override
+        public void unregisterForVoiceCallEnded(Handler h) {
+        }
+
+        @Override
+        public PhoneConstants.State getState() {
+            return PhoneConstants.State.IDLE;
+        }
+
+        @Override
+        protected void log(String msg) {
+        }
+    }
+
+    private PollRecorder mRecorder;
+    private TestCallTracker mTracker;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        mRecorder = new PollRecorder();
+        mTracker = new TestCallTracker();
+        mTracker.mCi = (CommandsInterface) Proxy.newProxyInstance(
+                CommandsInterface.class.getClassLoader(),
+                new Class<?>[] {CommandsInterface.class}, mRecorder);
+    }
+
+    private void answer(Message poll) {
+        poll.obj = new AsyncResult(null, new ArrayList<DriverCall>(), null);
+        mTracker.handleMessage(poll);
+    }
+
+    @SmallTest
+    public void testCoalescedPoll() throws Exception {
+        mTracker.pollCallsWhenSafe();
+        mTracker.pollCallsWhenSafe();
+        mTracker.pollCallsWhenSafe();
+        assertEquals(1, mRecorder.mPolls.size());
+
+        // The first answer may predate the later changes: poll once more
+        answer(mRecorder.mPolls.get(0));
+        assertEquals(0, mTracker.mHandledPolls);
+        assertEquals(2, mRecorder.mPolls.size());
+
+        answer(mRecorder.mPolls.get(1));
+        assertEquals(1, mTracker.mHandledPolls);
+        assertEquals(2, mRecorder.mPolls.size());
+    }
+
+    @SmallTest
+    public void testLostPollResponse() throws Exception {
+        mTracker.pollCallsWhenSafe();
+        mTracker.pollCallsWhenSafe();
+        assertEquals(1, mRecorder.mPolls.size());
+
+        // The response never comes: the changes are polled for when the poll times out
+        mTracker.onPollTimeout();
+        assertEquals(2, mRecorder.mPolls.size());
+
+        // The lost response turning up late is ignored
+        answer(mRecorder.mPolls.get(0));
+        assertEquals(0, mTracker.mHandledPolls);
+        assertEquals(2, mRecorder.mPolls.size());
+
+        answer(mRecorder.mPolls.get(1));
+        assertEquals(1, mTracker.mHandledPolls);
+
+        // Nothing to do once the poll has been answered
+        mTracker.onPollTimeout();
+        assertEquals(2, mRecorder.mPolls.size());
+        assertEquals(1, mTracker.mHandledPolls);
+    }
+}
@@ -1134,4 +1134,95 @@ public class IntRangeManagerTest extends AndroidTestCase {
                 testManager.flags);
         assertEquals("configlist size", 0, testManager.mConfigList.size());
     }
+
+    public void testBatch() {
+        TestIntRangeManager testManager = new TestIntRangeManager();
+        testManager.startBatch();
+        for (int i = 4370; i <= 4399; i += 2) {
+            assertTrue("enabling range", testManager.enableRange(i, i, "client1"));
+        }
+        assertTrue("enabling range", testManager.enableRange(4371, 4397, "client2"));
+        assertTrue("disabling range", testManager.disableRange(4398, 4398, "client1"));
+        assertEquals("flags before finishing batch", 0, testManager.flags);
+        assertTrue("finishing batch", testManager.finishBatch());
+        assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 4370, 4397, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+
+        // no radio update if the batch leaves the enabled ranges as they were
+        testManager.reset();
+        testManager.startBatch();
+        assertTrue("enabling range", testManager.enableRange(4380, 4390, "client3"));
+        assertTrue("disabling range", testManager.disableRange(4371, 4397, "client2"));
+        assertTrue("disabling range", testManager.disableRange(4380, 4390, "client3"));
+        assertTrue("enabling range", testManager.enableRange(4371, 4397, "client2"));
+        assertTrue("finishing batch", testManager.finishBatch());
+        assertEquals("flags after test", 0, testManager.flags);
+    }
+
+    public void testBatchFailure() {
+        TestIntRangeManager testManager = new TestIntRangeManager();
+        assertTrue("enabling range", testManager.enableRange(1, 5, "client1"));
+        testManager.reset();
+        testManager.finishUpdateReturnValue = false;
+        testManager.startBatch();
+        assertTrue("enabling range", testManager.enableRange(10, 20, "client2"));
+        assertTrue("disabling range", testManager.disableRange(1, 5, "client1"));
+        assertFalse("finishing batch", testManager.finishBatch());
+
+        // the batch was undone
+        testManager.reset();
+        testManager.finishUpdateReturnValue = true;
+        assertTrue("updating ranges", testManager.updateRanges());
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 1, 5, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+        assertFalse("disabling range", testManager.disableRange(10, 20, "client2"));
+    }
+
+    public void testExtremeIds() {
+        TestIntRangeManager testManager = new TestIntRangeManager();
+        assertTrue("enabling range",
+                testManager.enableRange(Integer.MAX_VALUE - 1, Integer.MAX_VALUE, "client1"));
+        testManager.reset();
+        assertTrue("enabling range",
+                testManager.enableRange(Integer.MAX_VALUE, Integer.MAX_VALUE, "client2"));
+        assertEquals("flags after test", 0, testManager.flags);
+
+        assertTrue("enabling range",
+                testManager.enableRange(Integer.MIN_VALUE, Integer.MIN_VALUE, "client1"));
+        testManager.reset();
+        assertTrue("enabling range", testManager.enableRange(Integer.MIN_VALUE, 5, "client2"));
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), Integer.MIN_VALUE + 1, 5,
+                SMS_CB_CODE_SCHEME_MIN, SMS_CB_CODE_SCHEME_MAX, true);
+
+        testManager.reset();
+        assertTrue("updating ranges", testManager.updateRanges());
+        assertEquals("configlist size", 2, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), Integer.MIN_VALUE, 5,
+                SMS_CB_CODE_SCHEME_MIN, SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(1), Integer.MAX_VALUE - 1,
+                Integer.MAX_VALUE, SMS_CB_CODE_SCHEME_MIN, SMS_CB_CODE_SCHEME_MAX, true);
+
+        // every id, joining both ranges
+        testManager.reset();
+        assertTrue("enabling range",
+                testManager.enableRange(Integer.MIN_VALUE, Integer.MAX_VALUE, "client3"));
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 6, Integer.MAX_VALUE - 2,
+                SMS_CB_CODE_SCHEME_MIN, SMS_CB_CODE_SCHEME_MAX, true);
+        testManager.reset();
+        assertTrue("updating ranges", testManager.updateRanges());
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), Integer.MIN_VALUE, Integer.MAX_VALUE,
+                SMS_CB_CODE_SCHEME_MIN, SMS_CB_CODE_SCHEME_MAX, true);
+
+        assertTrue("disabling range",
+                testManager.disableRange(Integer.MIN_VALUE, Integer.MAX_VALUE, "client3"));
+        testManager.reset();
+        assertTrue("updating ranges", testManager.updateRanges());
+        assertEquals("configlist size", 2, testManager.mConfigList.size());
+    }
 }
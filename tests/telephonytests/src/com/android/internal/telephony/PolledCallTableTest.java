@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+public class PolledCallTableTest extends TestCase {
+
+    private static DriverCall newCall(int index, DriverCall.State state) {
+        DriverCall dc = new DriverCall();
+        dc.index = index;
+        dc.state = state;
+        dc.isMT = true;
+        dc.isVoice = true;
+        dc.number = "+18005551212";
+        dc.TOA = 145;
+        dc.numberPresentation = PhoneConstants.PRESENTATION_ALLOWED;
+        dc.name = "Name";
+        return dc;
+    }
+
+    @SmallTest
+    public void testDriverCallIsSameAs() throws Exception {
+        DriverCall dc = newCall(1, DriverCall.State.ACTIVE);
+        assertTrue(dc.isSameAs(newCall(1, DriverCall.State.ACTIVE)));
+        assertFalse(dc.isSameAs(null));
+        assertFalse(dc.isSameAs(newCall(2, DriverCall.State.ACTIVE)));
+        assertFalse(dc.isSameAs(newCall(1, DriverCall.State.HOLDING)));
+
+        DriverCall other = newCall(1, DriverCall.State.ACTIVE);
+        other.isMpty = true;
+        assertFalse(dc.isSameAs(other));
+
+        other = newCall(1, DriverCall.State.ACTIVE);
+        other.number = new String("+18005551212");
+        assertTrue(dc.isSameAs(other));
+        other.number = null;
+        assertFalse(dc.isSameAs(other));
+
+        other = newCall(1, DriverCall.State.ACTIVE);
+        other.name = "Other";
+        assertFalse(dc.isSameAs(other));
+
+        other = newCall(1, DriverCall.State.ACTIVE);
+        other.namePresentation = PhoneConstants.PRESENTATION_RESTRICTED;
+        assertFalse(dc.isSameAs(other));
+
+        // Calls with user-to-user signalling are never taken as unchanged
+        other = newCall(1, DriverCall.State.ACTIVE);
+        other.uusInfo = new UUSInfo();
+        assertFalse(dc.isSameAs(other));
+        assertFalse(other.isSameAs(other));
+    }
+
+    @SmallTest
+    public void testNothingRememberedIsChanged() throws Exception {
+        PolledCallTable table = new PolledCallTable(7);
+        DriverCall dc = newCall(1, DriverCall.State.ACTIVE);
+        assertFalse(table.isUnchanged(0, dc, null));
+
+        // No connection to remember it on
+        table.put(0, dc, null);
+        assertFalse(table.isUnchanged(0, newCall(1, DriverCall.State.ACTIVE), null));
+
+        table.clear();
+        assertFalse(table.isUnchanged(6, newCall(7, DriverCall.State.HOLDING), null));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class RILFrameReaderTest extends TestCase {
+    private static final int MAX_BYTES = 64;
+
+    /** Returns at most <code>chunk</code> bytes per read, like a slow socket. */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+        private final int mChunk;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            super(data);
+            mChunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, mChunk));
+        }
+    }
+
+    private static byte[] frames(byte[]... messages) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] m : messages) {
+            out.write(0);
+            out.write(0);
+            out.write((m.length >> 8) & 0xff);
+            out.write(m.length & 0xff);
+            out.write(m, 0, m.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] message(int length, int seed) {
+        byte[] m = new byte[length];
+        for (int i = 0; i < length; i++) {
+            m[i] = (byte) (seed + i);
+        }
+        return m;
+    }
+
+    private static void assertMessage(byte[] expected, RILFrameReader reader) {
+        assertEquals(expected.length, reader.getMessageLength());
+        byte[] actual = Arrays.copyOfRange(reader.getBuffer(), reader.getMessageOffset(),
+                reader.getMessageOffset() + reader.getMessageLength());
+        assertTrue(Arrays.equals(expected, actual));
+    }
+
+    @SmallTest
+    public void testBatchedMessages() throws Exception {
+        byte[] a = message(10, 1);
+        byte[] b = message(0, 2);
+        byte[] c = message(MAX_BYTES, 3);
+        RILFrameReader reader = new RILFrameReader(
+                new ByteArrayInputStream(frames(a, b, c)), MAX_BYTES);
+
+        assertTrue(reader.next());
+        assertMessage(a, reader);
+        assertTrue(reader.next());
+        assertMessage(b, reader);
+        assertTrue(reader.next());
+        assertMessage(c, reader);
+        assertFalse(reader.next());
+    }
+
+    @SmallTest
+    public void testFragmentedReadsAndCompaction() throws Exception {
+        byte[][] messages = new byte[20][];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = message((i * 7) % (MAX_BYTES + 1), i);
+        }
+        for (int chunk = 1; chunk < 3 * MAX_BYTES; chunk += 13) {
+            InputStream is = new ChunkedInputStream(frames(messages), chunk);
+            RILFrameReader reader = new RILFrameReader(is, MAX_BYTES);
+            for (byte[] m : messages) {
+                assertTrue(reader.next());
+                assertMessage(m, reader);
+            }
+            assertFalse(reader.next());
+        }
+    }
+
+    @SmallTest
+    public void testTruncatedMessage() throws Exception {
+        byte[] data = frames(message(20, 0));
+        RILFrameReader reader = new RILFrameReader(
+                new ByteArrayInputStream(Arrays.copyOf(data, data.length - 1)), MAX_BYTES);
+        assertFalse(reader.next());
+    }
+
+    @SmallTest
+    public void testOversizedMessage() throws Exception {
+        RILFrameReader reader = new RILFrameReader(
+                new ByteArrayInputStream(frames(message(MAX_BYTES + 1, 0))), MAX_BYTES);
+        try {
+            reader.next();
+            fail("IOException expected");
+        } catch (IOException ex) {
+            // test pass
+        }
+    }
+}
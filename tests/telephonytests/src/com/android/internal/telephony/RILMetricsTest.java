@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_GET_CURRENT_CALLS;
+
+public class RILMetricsTest extends TestCase {
+    private static final long TIMEOUT = 60000;
+
+    @SmallTest
+    public void testLateAndUnanswered() throws Exception {
+        RILMetrics metrics = new RILMetrics();
+        metrics.record(RIL_REQUEST_GET_CURRENT_CALLS, 100, 110, 150, 200, 0);
+        metrics.record(RIL_REQUEST_GET_CURRENT_CALLS, 100, 110, 250, 200, 0);
+        metrics.recordUnanswered(RIL_REQUEST_GET_CURRENT_CALLS);
+
+        RILMetrics.RequestStats stats = metrics.getStats(RIL_REQUEST_GET_CURRENT_CALLS);
+        assertEquals(2, stats.getQueueLatency().getCount());
+        assertEquals(10, stats.getQueueLatency().getMax());
+        assertEquals(140, stats.getRadioLatency().getMax());
+        assertEquals(1, stats.getLateResponses());
+        assertEquals(1, stats.getUnanswered());
+    }
+
+    /**
+     * The receiver thread may read the response before the sender's socket write returns:
+     * the send time has to be there as soon as the request can be found.
+     */
+    @SmallTest
+    public void testResponseBeforeWriteReturns() throws Exception {
+        RILRequestTable<RILRequest> table = new RILRequestTable<RILRequest>(8);
+        final RILMetrics metrics = new RILMetrics();
+
+        final RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_CURRENT_CALLS, null);
+        long now = SystemClock.elapsedRealtime();
+        rr.mEnqueueTime = now;
+        rr.track(table, now, TIMEOUT);
+
+        // Answered before the sender gets past the write
+        RILRequest found = table.remove(rr.mSerial);
+        assertSame(rr, found);
+        long responseTime = SystemClock.elapsedRealtime();
+        metrics.record(found.mRequest, found.mEnqueueTime, found.mSendTime, responseTime,
+                found.mDeadline, 0);
+
+        RILMetrics.RequestStats stats = metrics.getStats(RIL_REQUEST_GET_CURRENT_CALLS);
+        assertEquals(now, found.mSendTime);
+        assertEquals(now + TIMEOUT, found.mDeadline);
+        assertTrue(stats.getRadioLatency().getMax() <= responseTime - now);
+        assertEquals(0, stats.getLateResponses());
+        rr.release();
+    }
+
+    @SmallTest
+    public void testObtainResetsTimes() throws Exception {
+        RILRequestTable<RILRequest> table = new RILRequestTable<RILRequest>(8);
+        RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_CURRENT_CALLS, null);
+        rr.mEnqueueTime = 1;
+        rr.track(table, 2, TIMEOUT);
+        table.remove(rr.mSerial);
+        rr.release();
+
+        RILRequest reused = RILRequest.obtain(RIL_REQUEST_GET_CURRENT_CALLS, null);
+        assertEquals(0, reused.mEnqueueTime);
+        assertEquals(0, reused.mSendTime);
+        assertEquals(0, reused.mDeadline);
+        reused.release();
+    }
+}
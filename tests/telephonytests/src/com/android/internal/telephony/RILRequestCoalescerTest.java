@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.telephony.SignalStrength;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+public class RILRequestCoalescerTest extends TestCase {
+    private Handler mHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        // Results are only inspected, never dispatched
+        mHandler = new Handler();
+    }
+
+    @SmallTest
+    public void testCoalescedRequestsProperty() throws Exception {
+        RILRequestCoalescer coalescer = new RILRequestCoalescer("");
+        assertTrue(coalescer.isCoalescable(RIL_REQUEST_GET_CURRENT_CALLS));
+        assertTrue(coalescer.isCoalescable(RIL_REQUEST_SIGNAL_STRENGTH));
+        assertFalse(coalescer.isCoalescable(RIL_REQUEST_DIAL));
+
+        coalescer = new RILRequestCoalescer("none");
+        assertFalse(coalescer.isCoalescable(RIL_REQUEST_GET_CURRENT_CALLS));
+        assertFalse(coalescer.isCoalescable(RIL_REQUEST_SIGNAL_STRENGTH));
+
+        // Invalid entries are skipped
+        coalescer = new RILRequestCoalescer(RIL_REQUEST_OPERATOR + ", x,"
+                + RIL_REQUEST_DATA_CALL_LIST + " ,");
+        assertTrue(coalescer.isCoalescable(RIL_REQUEST_OPERATOR));
+        assertTrue(coalescer.isCoalescable(RIL_REQUEST_DATA_CALL_LIST));
+        assertFalse(coalescer.isCoalescable(RIL_REQUEST_GET_CURRENT_CALLS));
+    }
+
+    @SmallTest
+    public void testJoinUntilSealed() throws Exception {
+        RILRequestCoalescer coalescer = new RILRequestCoalescer("");
+        assertFalse(coalescer.join(RIL_REQUEST_OPERATOR, mHandler.obtainMessage()));
+
+        RILRequest leader = RILRequest.obtain(RIL_REQUEST_OPERATOR, mHandler.obtainMessage());
+        coalescer.register(leader);
+        Message follower1 = mHandler.obtainMessage();
+        Message follower2 = mHandler.obtainMessage();
+        assertTrue(coalescer.join(RIL_REQUEST_OPERATOR, follower1));
+        assertTrue(coalescer.join(RIL_REQUEST_OPERATOR, follower2));
+        assertFalse(coalescer.join(RIL_REQUEST_SIGNAL_STRENGTH, mHandler.obtainMessage()));
+
+        // Written to the socket: later callers need an answer of their own
+        coalescer.seal(leader);
+        assertFalse(coalescer.join(RIL_REQUEST_OPERATOR, mHandler.obtainMessage()));
+
+        ArrayList<Message> coalesced = coalescer.complete(leader);
+        assertEquals(2, coalesced.size());
+        assertSame(follower1, coalesced.get(0));
+        assertSame(follower2, coalesced.get(1));
+        assertNull(leader.mCoalesced);
+        assertNull(leader.mCoalescer);
+        assertNull(coalescer.complete(leader));
+        leader.release();
+    }
+
+    @SmallTest
+    public void testNotCoalescable() throws Exception {
+        RILRequestCoalescer coalescer = new RILRequestCoalescer("none");
+        RILRequest rr = RILRequest.obtain(RIL_REQUEST_OPERATOR, mHandler.obtainMessage());
+        coalescer.register(rr);
+        assertNull(rr.mCoalescer);
+        assertFalse(coalescer.join(RIL_REQUEST_OPERATOR, mHandler.obtainMessage()));
+        rr.release();
+    }
+
+    @SmallTest
+    public void testErrorReachesEveryFollower() throws Exception {
+        RILRequestCoalescer coalescer = new RILRequestCoalescer("");
+        Message result = mHandler.obtainMessage();
+        RILRequest leader = RILRequest.obtain(RIL_REQUEST_GET_CURRENT_CALLS, result);
+        coalescer.register(leader);
+        Message follower1 = mHandler.obtainMessage();
+        Message follower2 = mHandler.obtainMessage();
+        coalescer.join(RIL_REQUEST_GET_CURRENT_CALLS, follower1);
+        coalescer.join(RIL_REQUEST_GET_CURRENT_CALLS, follower2);
+
+        CommandException ex = CommandException.fromRilErrno(RILConstants.RADIO_NOT_AVAILABLE);
+        leader.onError(RILConstants.RADIO_NOT_AVAILABLE, null);
+        for (Message msg : new Message[] {result, follower1, follower2}) {
+            AsyncResult ar = (AsyncResult) msg.obj;
+            assertNotNull(ar);
+            assertTrue(ar.exception instanceof CommandException);
+            assertEquals(ex.getCommandError(),
+                    ((CommandException) ar.exception).getCommandError());
+        }
+        leader.release();
+    }
+
+    @SmallTest
+    public void testFollowersGetCopies() throws Exception {
+        RILRequestCoalescer coalescer = new RILRequestCoalescer("");
+        Message result = mHandler.obtainMessage();
+        RILRequest leader = RILRequest.obtain(RIL_REQUEST_SIGNAL_STRENGTH, result);
+        coalescer.register(leader);
+        Message follower = mHandler.obtainMessage();
+        coalescer.join(RIL_REQUEST_SIGNAL_STRENGTH, follower);
+
+        SignalStrength ss = new SignalStrength(true);
+        leader.sendResult(ss, null);
+        SignalStrength leaderResult = (SignalStrength) ((AsyncResult) result.obj).result;
+        SignalStrength followerResult = (SignalStrength) ((AsyncResult) follower.obj).result;
+        assertSame(ss, leaderResult);
+        assertNotSame(ss, followerResult);
+        assertEquals(ss, followerResult);
+
+        // The leader's caller may change its result without the follower seeing it
+        leaderResult.setGsm(false);
+        assertTrue(followerResult.isGsm());
+        leader.release();
+    }
+
+    @SmallTest
+    public void testCopyResult() throws Exception {
+        String[] strings = {"a", "b"};
+        String[] stringsCopy = (String[]) RILRequestCoalescer.copyResult(strings);
+        assertNotSame(strings, stringsCopy);
+        assertEquals("b", stringsCopy[1]);
+
+        int[] ints = {1, 2};
+        int[] intsCopy = (int[]) RILRequestCoalescer.copyResult(ints);
+        assertNotSame(ints, intsCopy);
+        assertEquals(2, intsCopy[1]);
+
+        ArrayList<DriverCall> calls = new ArrayList<DriverCall>();
+        calls.add(new DriverCall());
+        ArrayList<?> callsCopy = (ArrayList<?>) RILRequestCoalescer.copyResult(calls);
+        assertNotSame(calls, callsCopy);
+        assertSame(calls.get(0), callsCopy.get(0));
+
+        assertNull(RILRequestCoalescer.copyResult(null));
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RILRequestTableTest extends TestCase {
+
+    private static class TestEntry implements RILRequestTable.Entry {
+        final int mSerial;
+        final long mDeadline;
+        final AtomicInteger mCompletions = new AtomicInteger();
+
+        TestEntry(int serial, long deadline) {
+            mSerial = serial;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public int getSerial() {
+            return mSerial;
+        }
+
+        @Override
+        public long getDeadline() {
+            return mDeadline;
+        }
+    }
+
+    @SmallTest
+    public void testPutRemove() throws Exception {
+        RILRequestTable<TestEntry> table = new RILRequestTable<TestEntry>(4);
+        TestEntry a = new TestEntry(1, 0);
+        TestEntry b = new TestEntry(5, 0);  // same home slot as a
+        TestEntry c = new TestEntry(-7, 0);
+
+        table.put(a);
+        table.put(b);
+        table.put(c);
+        assertEquals(3, table.size());
+
+        assertNull(table.remove(9));
+        assertSame(a, table.remove(1));
+        assertNull(table.remove(1));
+        // b is still reachable past the tombstone left by a
+        assertSame(b, table.remove(5));
+        assertSame(c, table.remove(-7));
+        assertEquals(0, table.size());
+    }
+
+    @SmallTest
+    public void testFull() throws Exception {
+        RILRequestTable<TestEntry> table = new RILRequestTable<TestEntry>(4);
+        assertEquals(4, table.capacity());
+        TestEntry[] entries = new TestEntry[7];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new TestEntry(i * 3, i * 100);
+            table.put(entries[i]);
+        }
+        // Entries beyond the slots are still held
+        assertEquals(7, table.size());
+
+        ArrayList<TestEntry> out = new ArrayList<TestEntry>();
+        table.snapshot(out);
+        assertEquals(7, out.size());
+        out.clear();
+        table.collectExpired(550, out);
+        assertEquals(6, out.size());
+
+        assertSame(entries[5], table.remove(15));
+        assertNull(table.remove(15));
+        assertSame(entries[1], table.remove(3));
+        table.put(new TestEntry(100, 0));
+        assertNotNull(table.remove(100));
+        assertEquals(5, table.size());
+
+        out.clear();
+        table.removeAll(out);
+        assertEquals(5, out.size());
+        assertEquals(0, table.size());
+        assertNull(table.remove(18));
+    }
+
+    @SmallTest
+    public void testTombstonesPurged() throws Exception {
+        RILRequestTable<TestEntry> table = new RILRequestTable<TestEntry>(8);
+        TestEntry b = new TestEntry(9, 0);
+        table.put(new TestEntry(1, 0));
+        table.put(b);  // same home slot as 1, so stored one further along
+        table.put(new TestEntry(17, 0));
+        assertNotNull(table.remove(1));
+        assertNotNull(table.remove(17));
+        assertEquals(2, table.tombstones());
+
+        // A quarter of the slots are tombstones, so the next put empties
+        // those that no entry has to be probed past
+        table.put(new TestEntry(4, 0));
+        assertEquals(1, table.tombstones());
+        assertSame(b, table.remove(9));
+        assertNotNull(table.remove(4));
+
+        // Sequential traffic never leaves more than a quarter behind
+        for (int serial = 100; serial < 1000; serial++) {
+            table.put(new TestEntry(serial, 0));
+            assertTrue(table.tombstones() <= table.capacity() / 4);
+            assertNotNull(table.remove(serial));
+        }
+        assertEquals(0, table.size());
+    }
+
+    @SmallTest
+    public void testExpiredAndRemoveAll() throws Exception {
+        RILRequestTable<TestEntry> table = new RILRequestTable<TestEntry>(16);
+        for (int i = 0; i < 10; i++) {
+            table.put(new TestEntry(i, i * 100));
+        }
+
+        ArrayList<TestEntry> out = new ArrayList<TestEntry>();
+        table.collectExpired(450, out);
+        assertEquals(5, out.size());
+        assertEquals(10, table.size());
+
+        out.clear();
+        table.snapshot(out);
+        assertEquals(10, out.size());
+
+        out.clear();
+        table.removeAll(out);
+        assertEquals(10, out.size());
+        assertEquals(0, table.size());
+        assertNull(table.remove(3));
+    }
+
+    @LargeTest
+    public void testConcurrentTraffic() throws Exception {
+        runConcurrentTraffic(256);
+    }
+
+    /**
+     * More requests are in flight than the table has slots for.
+     */
+    @LargeTest
+    public void testConcurrentTrafficOverflow() throws Exception {
+        runConcurrentTraffic(64);
+    }
+
+    /**
+     * Drives the table the way RIL does: one sender thread adding requests,
+     * several receiver threads completing them in arbitrary order, and a
+     * sweeper scanning for timed out requests. Every request must be
+     * completed exactly once.
+     */
+    private void runConcurrentTraffic(int slots) throws Exception {
+        final int requests = 200000;
+        final int receivers = 4;
+        final RILRequestTable<TestEntry> table = new RILRequestTable<TestEntry>(slots);
+        final BlockingQueue<TestEntry> inFlight = new ArrayBlockingQueue<TestEntry>(200);
+        final TestEntry[] all = new TestEntry[requests];
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicInteger sweeps = new AtomicInteger();
+        final TestEntry done = new TestEntry(0, 0);
+
+        Thread sender = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    int serial = Integer.MAX_VALUE - requests / 2;
+                    for (int i = 0; i < requests; i++, serial++) {
+                        TestEntry e = new TestEntry(serial, i);
+                        all[i] = e;
+                        table.put(e);
+                        inFlight.put(e);
+                    }
+                    for (int i = 0; i < receivers; i++) {
+                        inFlight.put(done);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        };
+
+        Thread[] receiverThreads = new Thread[receivers];
+        for (int r = 0; r < receivers; r++) {
+            receiverThreads[r] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (;;) {
+                            TestEntry e = inFlight.take();
+                            if (e == done) {
+                                return;
+                            }
+                            TestEntry removed = table.remove(e.getSerial());
+                            if (removed != e) {
+                                throw new AssertionError("lost serial " + e.getSerial());
+                            }
+                            e.mCompletions.incrementAndGet();
+                            // A duplicate response must not match anything
+                            if (table.remove(e.getSerial()) != null) {
+                                throw new AssertionError("duplicate serial " + e.getSerial());
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+        }
+
+        Thread sweeper = new Thread() {
+            @Override
+            public void run() {
+                ArrayList<TestEntry> out = new ArrayList<TestEntry>();
+                while (!isInterrupted()) {
+                    out.clear();
+                    table.collectExpired(requests / 2, out);
+                    sweeps.incrementAndGet();
+                }
+            }
+        };
+
+        long start = System.nanoTime();
+        sweeper.start();
+        for (Thread t : receiverThreads) {
+            t.start();
+        }
+        sender.start();
+        sender.join();
+        for (Thread t : receiverThreads) {
+            t.join();
+        }
+        sweeper.interrupt();
+        sweeper.join();
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        for (TestEntry e : all) {
+            assertEquals(1, e.mCompletions.get());
+        }
+        assertEquals(0, table.size());
+        assertTrue(sweeps.get() > 0);
+        // Far beyond any real RIL traffic, but catches pathological probing
+        assertTrue("took " + elapsedMs + "ms", elapsedMs < 60000);
+    }
+}
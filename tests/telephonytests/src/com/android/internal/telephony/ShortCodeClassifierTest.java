@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+public class ShortCodeClassifierTest extends TestCase {
+
+    private static final String[] SUPPORTED = {
+        "\\d{4,5}",
+        "\\d{1,5}|1\\d{6}",
+        "19(?:0\\d{3}|\\d{6})",
+        "[2-46-9]\\d{4}",
+        "(?:1|3)\\d{3}|55[56]00",
+        "0900\\d{6}|0901\\d{3}",
+        "1(?:1[246]|30)1|3024",
+        "[1-9]\\d?(?:\\d{2})*",
+        "(1)+2?",
+        "[\\d]{3}",
+        "",
+    };
+
+    private static final String[] UNSUPPORTED = {
+        "^\\d{4}$",
+        "[^0]\\d{3}",
+        "\\d{2}+",
+        "(?=1)\\d{3}",
+        "1\\d{4,}?",
+        "\\w{3}",
+        "(1",
+        "1)",
+        "[9-1]",
+        "\\d{40}",
+    };
+
+    private static int classifyByRegex(String[] regexes, String number) {
+        // same precedence as SmsUsageMonitor: free, standard, premium, short code
+        int[] categories = { SmsUsageMonitor.CATEGORY_FREE_SHORT_CODE,
+                SmsUsageMonitor.CATEGORY_STANDARD_SHORT_CODE,
+                SmsUsageMonitor.CATEGORY_PREMIUM_SHORT_CODE,
+                SmsUsageMonitor.CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE };
+        for (int i = 0; i < regexes.length; i++) {
+            if (regexes[i] != null && Pattern.matches(regexes[i], number)) {
+                return categories[i];
+            }
+        }
+        return SmsUsageMonitor.CATEGORY_NOT_SHORT_CODE;
+    }
+
+    private static void assertSameAsRegex(String shortCode, String premium, String free,
+            String standard, String number) {
+        ShortCodeClassifier classifier =
+                ShortCodeClassifier.compile(shortCode, premium, free, standard);
+        assertNotNull(classifier);
+        assertEquals("number: " + number,
+                classifyByRegex(new String[] { free, standard, premium, shortCode }, number),
+                classifier.getNumberCategory(number));
+    }
+
+    @SmallTest
+    public void testSupportedPatterns() throws Exception {
+        for (String regex : SUPPORTED) {
+            ShortCodeClassifier classifier = ShortCodeClassifier.compile(regex, null, null, null);
+            assertNotNull(regex, classifier);
+            Pattern pattern = Pattern.compile(regex);
+            // every number of up to 5 digits, and some longer ones
+            for (int length = 0; length <= 5; length++) {
+                int count = (int) Math.pow(10, length);
+                for (int n = 0; n < count; n++) {
+                    String number = length == 0 ? "" : String.format("%0" + length + "d", n);
+                    int expected = pattern.matcher(number).matches()
+                            ? SmsUsageMonitor.CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE
+                            : SmsUsageMonitor.CATEGORY_NOT_SHORT_CODE;
+                    assertEquals(regex + " " + number, expected,
+                            classifier.getNumberCategory(number));
+                }
+            }
+            Random random = new Random(regex.hashCode());
+            for (int i = 0; i < 2000; i++) {
+                StringBuilder number = new StringBuilder();
+                for (int length = 6 + random.nextInt(6); length > 0; length--) {
+                    number.append((char) ('0' + random.nextInt(10)));
+                }
+                int expected = pattern.matcher(number).matches()
+                        ? SmsUsageMonitor.CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE
+                        : SmsUsageMonitor.CATEGORY_NOT_SHORT_CODE;
+                assertEquals(regex + " " + number, expected,
+                        classifier.getNumberCategory(number.toString()));
+            }
+        }
+    }
+
+    @SmallTest
+    public void testUnsupportedPatterns() throws Exception {
+        for (String regex : UNSUPPORTED) {
+            assertNull(regex, ShortCodeClassifier.compile(regex, null, null, null));
+        }
+    }
+
+    @SmallTest
+    public void testPrecedence() throws Exception {
+        String shortCode = "\\d{1,5}";
+        String premium = "1\\d{3}|55[56]00";
+        String free = "10[1-3]|1141";
+        String standard = "11[0-4]\\d";
+        for (String number : new String[] { "101", "1141", "1121", "1151", "55500", "55600",
+                "55700", "999999", "", "12a4", "+1234" }) {
+            assertSameAsRegex(shortCode, premium, free, standard, number);
+        }
+        assertSameAsRegex(null, null, null, null, "1234");
+    }
+}
@@ -26,6 +26,7 @@ import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.internal.telephony.SmsConstants;
 
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -548,6 +549,156 @@ public class SmsMessageBodyTest extends AndroidTestCase {
         GsmAlphabet.setEnabledSingleShiftTables(origSingleShiftTables);
     }
 
+    private interface EncodingOp {
+        /** Count or encode a message, returning some of the result for the sink. */
+        int run(String msg) throws Exception;
+    }
+
+    private static final int BENCHMARK_WARMUP_ITERATIONS = 20;
+    private static final int BENCHMARK_ITERATIONS = 50;
+
+    /**
+     * Run an operation over the messages, JMH style: untimed warm-up iterations so the code
+     * is compiled, then timed iterations whose mean and best times per message are logged.
+     * The results are summed into a sink that is logged as well, so nothing is optimized out.
+     * @return the mean time per message in ns
+     */
+    private static long runBenchmark(String name, EncodingOp op, String[] msgs)
+            throws Exception {
+        int sink = 0;
+        for (int i = 0; i < BENCHMARK_WARMUP_ITERATIONS; i++) {
+            for (String msg : msgs) {
+                sink += op.run(msg);
+            }
+        }
+        long total = 0;
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            for (String msg : msgs) {
+                sink += op.run(msg);
+            }
+            long elapsed = System.nanoTime() - start;
+            total += elapsed;
+            best = Math.min(best, elapsed);
+        }
+        long mean = total / ((long) BENCHMARK_ITERATIONS * msgs.length);
+        Rlog.d(TAG, name + ": " + mean + " ns/msg mean, " + (best / msgs.length)
+                + " ns/msg best (sink " + sink + ")");
+        return mean;
+    }
+
+    private static int encode7bitWithGsmAlphabet(String msg, byte[] header) {
+        try {
+            return GsmAlphabet.stringToGsm7BitPackedWithHeader(msg, header, 0, 0).length;
+        } catch (EncodeException e) {
+            return -1;
+        }
+    }
+
+    /** The 7 bit encoding of gsm.SmsMessage.getSubmitPdu, writing to a buffer if it can. */
+    private static int encode7bitWithEncoder(String msg, byte[] header, byte[] buffer) {
+        int length = SmsTextEncoder.encode7BitPacked(msg, 0, msg.length(), header, buffer, 0);
+        return (length >= 0) ? length : encode7bitWithGsmAlphabet(msg, header);
+    }
+
+    /**
+     * Make random single part messages, drawn from the character classes the same way as
+     * testCalcLengthMixed7bit, or from ASCII only.
+     */
+    private static String[] makeBenchmarkMessages(Random r, boolean asciiOnly) {
+        String[] msgs = new String[500];
+        StringBuilder sb = new StringBuilder(SmsConstants.MAX_USER_DATA_SEPTETS);
+        for (int i = 0; i < msgs.length; i++) {
+            sb.setLength(0);
+            int length = 1 + r.nextInt(SmsConstants.MAX_USER_DATA_SEPTETS_WITH_HEADER);
+            for (int j = 0; j < length; j++) {
+                // 1% chance to add from each special character class, else add an ASCII char
+                int charClass = asciiOnly ? sNumCharacterClasses - 1 : r.nextInt(100);
+                if (charClass >= sNumCharacterClasses) {
+                    charClass = sNumCharacterClasses - 1;   // last class is ASCII
+                }
+                int classLength = sCharacterClasses[charClass].length();
+                sb.append(sCharacterClasses[charClass].charAt(r.nextInt(classLength)));
+            }
+            msgs[i] = sb.toString();
+        }
+        return msgs;
+    }
+
+    /**
+     * Compare the cost of counting and encoding single part messages through GsmAlphabet and
+     * String.getBytes with SmsTextEncoder, after checking the results match. Plain ASCII
+     * messages take the fast paths throughout; most of the mixed ones fall back to
+     * GsmAlphabet for 7 bit, which shows what the extra scan costs.
+     */
+    @LargeTest
+    public void testEncodingBenchmark() throws Exception {
+        Random r = new Random(0x4321);  // use the same seed for reproducibility
+        runEncodingBenchmark("ascii", makeBenchmarkMessages(r, true));
+        runEncodingBenchmark("mixed", makeBenchmarkMessages(r, false));
+    }
+
+    private void runEncodingBenchmark(String corpus, String[] msgs) throws Exception {
+        final byte[] header = { 0x00, 0x03, 0x2a, 0x02, 0x01 };  // concatenated message ref
+        final byte[] buffer = new byte[1024];
+
+        for (String msg : msgs) {
+            GsmAlphabet.TextEncodingDetails expected = GsmAlphabet.countGsmSeptets(msg, false);
+            int septets = SmsTextEncoder.countSeptets(msg, 0, msg.length());
+            if (septets >= 0 && expected.languageTable == 0
+                    && expected.languageShiftTable == 0) {
+                assertEquals(expected.codeUnitCount, septets);
+                byte[] packed = GsmAlphabet.stringToGsm7BitPackedWithHeader(msg, header, 0, 0);
+                assertEquals(packed.length, SmsTextEncoder.encode7BitPacked(msg, 0,
+                        msg.length(), header, buffer, 0));
+                assertTrue(Arrays.equals(packed, Arrays.copyOf(buffer, packed.length)));
+            }
+            byte[] ucs2 = msg.getBytes("utf-16be");
+            assertEquals(ucs2.length + 1,
+                    SmsTextEncoder.encodeUcs2(msg, 0, msg.length(), null, buffer, 0));
+            assertTrue(Arrays.equals(ucs2, Arrays.copyOfRange(buffer, 1, ucs2.length + 1)));
+        }
+
+        runBenchmark(corpus + " countGsmSeptets", new EncodingOp() {
+            public int run(String msg) {
+                GsmAlphabet.TextEncodingDetails ted = GsmAlphabet.countGsmSeptets(msg, false);
+                return (ted != null) ? ted.codeUnitCount : 0;
+            }
+        }, msgs);
+        runBenchmark(corpus + " SmsTextEncoder.countSeptets", new EncodingOp() {
+            public int run(String msg) {
+                int septets = SmsTextEncoder.countSeptets(msg, 0, msg.length());
+                if (septets < 0) {
+                    GsmAlphabet.TextEncodingDetails ted =
+                            GsmAlphabet.countGsmSeptets(msg, false);
+                    septets = (ted != null) ? ted.codeUnitCount : 0;
+                }
+                return septets;
+            }
+        }, msgs);
+        runBenchmark(corpus + " stringToGsm7BitPackedWithHeader", new EncodingOp() {
+            public int run(String msg) {
+                return encode7bitWithGsmAlphabet(msg, header);
+            }
+        }, msgs);
+        runBenchmark(corpus + " SmsTextEncoder.encode7BitPacked", new EncodingOp() {
+            public int run(String msg) {
+                return encode7bitWithEncoder(msg, header, buffer);
+            }
+        }, msgs);
+        runBenchmark(corpus + " getBytes(utf-16be)", new EncodingOp() {
+            public int run(String msg) throws Exception {
+                return msg.getBytes("utf-16be").length;
+            }
+        }, msgs);
+        runBenchmark(corpus + " SmsTextEncoder.encodeUcs2", new EncodingOp() {
+            public int run(String msg) {
+                return SmsTextEncoder.encodeUcs2(msg, 0, msg.length(), null, buffer, 0);
+            }
+        }, msgs);
+    }
+
     private void callGsmLengthMethods(CharSequence msgBody, boolean use7bitOnly,
             int[] expectedValues)
     {
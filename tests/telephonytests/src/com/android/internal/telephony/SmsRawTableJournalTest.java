@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.net.Uri;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+public class SmsRawTableJournalTest extends TestCase {
+    private static final String AUTHORITY = "sms";
+    private static final Uri RAW_URI = Uri.parse("content://sms/raw");
+
+    /** A raw table which only understands deletes by reference. */
+    private static class RawTableProvider extends MockContentProvider {
+        final ArrayList<ContentValues> mRows = new ArrayList<ContentValues>();
+        int mNextId = 1;
+        int mDeletes;
+        boolean mFailDeletes;
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            mRows.add(values);
+            return ContentUris.withAppendedId(uri, mNextId++);
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            mDeletes++;
+            if (mFailDeletes) {
+                throw new SQLException("database is locked");
+            }
+            int count = 0;
+            // Each SELECT_BY_REFERENCE in the combined selection takes three arguments
+            for (int i = 0; i + 2 < selectionArgs.length; i += 3) {
+                Iterator<ContentValues> it = mRows.iterator();
+                while (it.hasNext()) {
+                    ContentValues row = it.next();
+                    if (selectionArgs[i].equals(row.getAsString("address"))
+                            && selectionArgs[i + 1].equals(row.getAsString("reference_number"))
+                            && selectionArgs[i + 2].equals(row.getAsString("count"))) {
+                        it.remove();
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    private RawTableProvider mProvider;
+    private MockContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new RawTableProvider();
+        mProvider.attachInfo(null, null);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(AUTHORITY, mProvider);
+    }
+
+    private static ContentValues segment(String address, int ref, int seq, int count) {
+        ContentValues values = new ContentValues();
+        values.put("address", address);
+        values.put("reference_number", ref);
+        values.put("sequence", seq);
+        values.put("count", count);
+        return values;
+    }
+
+    private static String[] byReference(String address, int ref, int count) {
+        return new String[] {address, Integer.toString(ref), Integer.toString(count)};
+    }
+
+    private static void delete(SmsRawTableJournal journal, String address, int ref,
+            int count) {
+        journal.delete(InboundSmsHandler.SELECT_BY_REFERENCE, byReference(address, ref, count));
+    }
+
+    @SmallTest
+    public void testDeleteCommittedAtOnce() throws Exception {
+        SmsRawTableJournal journal = new SmsRawTableJournal(mResolver, RAW_URI);
+        journal.insert(segment("123", 1, 1, 2));
+        journal.insert(segment("123", 1, 2, 2));
+        journal.insert(segment("456", 2, 1, 2));
+
+        delete(journal, "123", 1, 2);
+        assertEquals(0, journal.getPendingCount());
+        assertEquals(1, mProvider.mRows.size());
+        assertEquals(1, mProvider.mDeletes);
+    }
+
+    @SmallTest
+    public void testFailedDeleteRetriedBeforeInsert() throws Exception {
+        SmsRawTableJournal journal = new SmsRawTableJournal(mResolver, RAW_URI);
+        journal.insert(segment("123", 1, 1, 2));
+        journal.insert(segment("123", 1, 2, 2));
+
+        mProvider.mFailDeletes = true;
+        delete(journal, "123", 1, 2);
+        assertEquals(1, journal.getPendingCount());
+        assertEquals(2, mProvider.mRows.size());
+
+        // Nothing is inserted while the delete keeps failing
+        assertNull(journal.insert(segment("456", 2, 1, 2)));
+        assertEquals(2, mProvider.mRows.size());
+
+        mProvider.mFailDeletes = false;
+        assertNotNull(journal.insert(segment("456", 2, 1, 2)));
+        assertEquals(0, journal.getPendingCount());
+        assertEquals(1, mProvider.mRows.size());
+        assertEquals("456", mProvider.mRows.get(0).getAsString("address"));
+    }
+
+    @SmallTest
+    public void testOneJournalForAllHandlers() throws Exception {
+        assertSame(SmsRawTableJournal.getInstance(mResolver, RAW_URI),
+                SmsRawTableJournal.getInstance(new MockContentResolver(), RAW_URI));
+    }
+
+    /**
+     * A message delivered by one phone's handler must not take with it a new segment with the
+     * same reference that the other phone's handler inserts while the delete is failing.
+     */
+    @SmallTest
+    public void testDeleteByOneHandlerKeepsInsertByOther() throws Exception {
+        // The handlers share the journal, as each gets it from getInstance()
+        SmsRawTableJournal journal = new SmsRawTableJournal(mResolver, RAW_URI);
+        SmsRawTableJournal handlerA = journal;
+        SmsRawTableJournal handlerB = journal;
+
+        handlerA.insert(segment("123", 1, 1, 2));
+        handlerA.insert(segment("123", 1, 2, 2));
+        mProvider.mFailDeletes = true;
+        delete(handlerA, "123", 1, 2);
+        mProvider.mFailDeletes = false;
+
+        // The sender reuses the reference for a new message, received on the other phone
+        assertNotNull(handlerB.insert(segment("123", 1, 1, 2)));
+        assertEquals(1, mProvider.mRows.size());
+
+        // Nothing is left to retry
+        handlerA.flush();
+        assertEquals(1, mProvider.mRows.size());
+        assertEquals(Integer.valueOf(1), mProvider.mRows.get(0).getAsInteger("sequence"));
+    }
+
+    @SmallTest
+    public void testFailedDeletesCombined() throws Exception {
+        SmsRawTableJournal journal = new SmsRawTableJournal(mResolver, RAW_URI);
+        int messages = SmsRawTableJournal.MAX_PENDING_DELETES + 1;
+        for (int i = 0; i < messages; i++) {
+            journal.insert(segment("123", i, 1, 2));
+        }
+
+        mProvider.mFailDeletes = true;
+        for (int i = 0; i < messages; i++) {
+            delete(journal, "123", i, 2);
+        }
+        assertEquals(messages, journal.getPendingCount());
+        assertEquals(messages, mProvider.mRows.size());
+        assertEquals(messages, mProvider.mDeletes);
+
+        // Retried in as few statements as the argument limit allows
+        mProvider.mFailDeletes = false;
+        journal.flush();
+        assertEquals(0, journal.getPendingCount());
+        assertEquals(0, mProvider.mRows.size());
+        assertEquals(messages + 2, mProvider.mDeletes);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class SmsReassemblyIndexTest extends TestCase {
+
+    private static InboundSmsTracker segment(String address, int ref, int seq, int count) {
+        return new InboundSmsTracker(new byte[] {(byte) ref, (byte) seq}, 0, -1, false,
+                address, ref, seq, count, false);
+    }
+
+    private static SmsReassemblyIndex.Key key(String address, int ref, int count) {
+        return new SmsReassemblyIndex.Key(address, ref, count);
+    }
+
+    @SmallTest
+    public void testUnknownUntilSeeded() throws Exception {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        assertNull(index.get(key("123", 1, 2)));
+
+        // Segments added before seeding are not tracked
+        index.addSegment(segment("123", 1, 1, 2));
+        assertNull(index.get(key("123", 1, 2)));
+
+        // Rows loaded from the raw table are
+        SmsReassemblyIndex.Segments loaded = new SmsReassemblyIndex.Segments(2);
+        loaded.add(0, new byte[] {1, 1}, 2948);
+        index.put(key("123", 1, 2), loaded);
+        SmsReassemblyIndex.Segments segments = index.get(key("123", 1, 2));
+        assertEquals(1, segments.getReceivedCount());
+        assertEquals(2948, segments.mFirstDestPort);
+        assertNull(index.get(key("123", 2, 2)));
+    }
+
+    @SmallTest
+    public void testSeedAndComplete() throws Exception {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        ArrayList<InboundSmsTracker> rows = new ArrayList<InboundSmsTracker>();
+        rows.add(segment("123", 7, 2, 3));
+        assertTrue(index.seed(rows, index.getGeneration()));
+
+        // Messages not in the raw table are known to have no segments
+        SmsReassemblyIndex.Segments segments = index.get(key("456", 7, 3));
+        assertEquals(0, segments.getReceivedCount());
+
+        segments = index.get(key("123", 7, 3));
+        assertEquals(1, segments.getReceivedCount());
+        assertNull(segments.getPdu(0));
+        assertTrue(Arrays.equals(new byte[] {7, 2}, segments.getPdu(1)));
+        assertFalse(segments.isComplete());
+
+        index.addSegment(segment("123", 7, 1, 3));
+        index.addSegment(segment("123", 7, 3, 3));
+        segments = index.get(key("123", 7, 3));
+        assertTrue(segments.isComplete());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, segments.mPdus[i][1]);
+        }
+
+        // A second seed must not replace what the index has learned since
+        index.seed(new ArrayList<InboundSmsTracker>(), index.getGeneration());
+        assertTrue(index.get(key("123", 7, 3)).isComplete());
+
+        index.remove(key("123", 7, 3));
+        assertEquals(0, index.get(key("123", 7, 3)).getReceivedCount());
+    }
+
+    @SmallTest
+    public void testDroppedMessagesAreUnknown() throws Exception {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        index.seed(new ArrayList<InboundSmsTracker>(), index.getGeneration());
+        for (int ref = 0; ref < 200; ref++) {
+            index.addSegment(segment("123", ref, 1, 2));
+        }
+
+        // The oldest messages were dropped and must be loaded from the raw table again
+        assertNull(index.get(key("123", 0, 2)));
+        assertEquals(1, index.get(key("123", 199, 2)).getReceivedCount());
+        index.addSegment(segment("123", 0, 2, 2));
+        assertNull(index.get(key("123", 0, 2)));
+
+        // Once the rows of a dropped message are deleted it is known again
+        index.remove(key("123", 0, 2));
+        assertEquals(0, index.get(key("123", 0, 2)).getReceivedCount());
+    }
+
+    @SmallTest
+    public void testStaleSeedIgnored() throws Exception {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        int generation = index.getGeneration();
+        ArrayList<InboundSmsTracker> rows = new ArrayList<InboundSmsTracker>();
+        rows.add(segment("123", 7, 1, 2));
+
+        // While the raw table was read, a handler delivered the message and deleted its rows
+        index.remove(key("123", 7, 2));
+        assertFalse(index.seed(rows, generation));
+
+        // Nothing is known, so everything is loaded from the raw table
+        assertNull(index.get(key("123", 7, 2)));
+        assertNull(index.get(key("456", 1, 2)));
+
+        // A later scan that reads the table afresh can seed it
+        assertTrue(index.seed(new ArrayList<InboundSmsTracker>(), index.getGeneration()));
+        assertEquals(0, index.get(key("123", 7, 2)).getReceivedCount());
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.SmsManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SmsSendQueueTest extends TestCase {
+
+    /** Records the messages submitted to the radio. */
+    private static class TestSender implements SmsSendQueue.Sender {
+        final ArrayList<SmsTracker> mSent = new ArrayList<SmsTracker>();
+
+        @Override
+        public void sendSms(SmsTracker tracker) {
+            mSent.add(tracker);
+        }
+    }
+
+    private TestSender mSender;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSender = new TestSender();
+    }
+
+    /** A data message, which isn't persisted when it completes. */
+    private static SmsTracker newTracker(String destAddr) {
+        return new SmsTracker(new HashMap<String, Object>(), null, null, null, destAddr, "3gpp",
+                null, null, null, null, false, null, 1, false);
+    }
+
+    private static SmsTracker[] newMultipart(String destAddr, int parts) {
+        AtomicInteger unsentPartCount = new AtomicInteger(parts);
+        AtomicBoolean anyPartFailed = new AtomicBoolean(false);
+        SmsTracker[] trackers = new SmsTracker[parts];
+        for (int i = 0; i < parts; i++) {
+            trackers[i] = new SmsTracker(new HashMap<String, Object>(), null, null, null,
+                    destAddr, "3gpp", unsentPartCount, anyPartFailed, null, null,
+                    i < parts - 1, null, 1, false);
+        }
+        return trackers;
+    }
+
+    @SmallTest
+    public void testInFlightLimit() throws Exception {
+        SmsSendQueue queue = new SmsSendQueue(mSender, 2, 10);
+        SmsTracker a = newTracker("1");
+        SmsTracker b = newTracker("2");
+        SmsTracker c = newTracker("3");
+        assertTrue(queue.enqueue(a, SmsSendQueue.PRIORITY_NORMAL));
+        assertTrue(queue.enqueue(b, SmsSendQueue.PRIORITY_NORMAL));
+        assertTrue(queue.enqueue(c, SmsSendQueue.PRIORITY_NORMAL));
+
+        assertEquals(2, mSender.mSent.size());
+        assertSame(a, mSender.mSent.get(0));
+        assertSame(b, mSender.mSent.get(1));
+        assertEquals(2, queue.getInFlightCount());
+        assertEquals(1, queue.getQueuedCount());
+    }
+
+    @SmallTest
+    public void testSlotReleasedOnSentAndFailed() throws Exception {
+        SmsSendQueue queue = new SmsSendQueue(mSender, 1, 10);
+        SmsTracker a = newTracker("1");
+        SmsTracker b = newTracker("2");
+        SmsTracker c = newTracker("3");
+        queue.enqueue(a, SmsSendQueue.PRIORITY_NORMAL);
+        queue.enqueue(b, SmsSendQueue.PRIORITY_NORMAL);
+        queue.enqueue(c, SmsSendQueue.PRIORITY_NORMAL);
+        assertEquals(1, mSender.mSent.size());
+
+        a.onSent(null);
+        assertEquals(2, mSender.mSent.size());
+        assertSame(b, mSender.mSent.get(1));
+
+        b.onFailed(null, SmsManager.RESULT_ERROR_GENERIC_FAILURE, 0);
+        assertEquals(3, mSender.mSent.size());
+        assertSame(c, mSender.mSent.get(2));
+
+        // A message completes once; completing it again must not free another slot
+        b.onFailed(null, SmsManager.RESULT_ERROR_GENERIC_FAILURE, 0);
+        assertEquals(1, queue.getInFlightCount());
+
+        c.onSent(null);
+        assertEquals(0, queue.getInFlightCount());
+        assertEquals(0, queue.getQueuedCount());
+    }
+
+    @SmallTest
+    public void testPriority() throws Exception {
+        SmsSendQueue queue = new SmsSendQueue(mSender, 1, 10);
+        SmsTracker first = newTracker("1");
+        SmsTracker normal1 = newTracker("2");
+        SmsTracker normal2 = newTracker("3");
+        SmsTracker high = newTracker("4");
+        queue.enqueue(first, SmsSendQueue.PRIORITY_NORMAL);
+        queue.enqueue(normal1, SmsSendQueue.PRIORITY_NORMAL);
+        queue.enqueue(normal2, SmsSendQueue.PRIORITY_NORMAL);
+        queue.enqueue(high, SmsSendQueue.PRIORITY_HIGH);
+
+        first.onSent(null);
+        assertSame(high, mSender.mSent.get(1));
+        high.onSent(null);
+        assertSame(normal1, mSender.mSent.get(2));
+        normal1.onSent(null);
+        assertSame(normal2, mSender.mSent.get(3));
+    }
+
+    @SmallTest
+    public void testMultipartBackToBack() throws Exception {
+        SmsSendQueue queue = new SmsSendQueue(mSender, 1, 10);
+        SmsTracker first = newTracker("1");
+        SmsTracker[] parts = newMultipart("2", 3);
+        SmsTracker other = newTracker("3");
+        queue.enqueue(first, SmsSendQueue.PRIORITY_NORMAL);
+        queue.enqueue(parts[0], SmsSendQueue.PRIORITY_NORMAL);
+        queue.enqueue(other, SmsSendQueue.PRIORITY_NORMAL);
+        queue.enqueue(parts[1], SmsSendQueue.PRIORITY_NORMAL);
+        queue.enqueue(parts[2], SmsSendQueue.PRIORITY_NORMAL);
+
+        first.onSent(null);
+        parts[0].onSent(null);
+        parts[1].onSent(null);
+        parts[2].onSent(null);
+        assertEquals(5, mSender.mSent.size());
+        assertSame(parts[0], mSender.mSent.get(1));
+        assertSame(parts[1], mSender.mSent.get(2));
+        assertSame(parts[2], mSender.mSent.get(3));
+        assertSame(other, mSender.mSent.get(4));
+    }
+
+    @SmallTest
+    public void testExpectMore() throws Exception {
+        SmsSendQueue queue = new SmsSendQueue(mSender, 1, 10);
+        SmsTracker a = newTracker("1");
+        SmsTracker b = newTracker("2");
+        SmsTracker c = newTracker("3");
+
+        // Nothing else waiting
+        queue.enqueue(a, SmsSendQueue.PRIORITY_NORMAL);
+        assertFalse(a.mExpectMore);
+
+        queue.enqueue(b, SmsSendQueue.PRIORITY_NORMAL);
+        queue.enqueue(c, SmsSendQueue.PRIORITY_NORMAL);
+        a.onSent(null);
+        assertTrue(b.mExpectMore);
+        b.onSent(null);
+        assertFalse(c.mExpectMore);
+    }
+
+    @SmallTest
+    public void testQueueLimit() throws Exception {
+        SmsSendQueue queue = new SmsSendQueue(mSender, 1, 2);
+        SmsTracker a = newTracker("1");
+        assertTrue(queue.enqueue(a, SmsSendQueue.PRIORITY_NORMAL));
+        assertTrue(queue.enqueue(newTracker("2"), SmsSendQueue.PRIORITY_NORMAL));
+        assertTrue(queue.enqueue(newTracker("3"), SmsSendQueue.PRIORITY_NORMAL));
+        assertFalse(queue.enqueue(newTracker("4"), SmsSendQueue.PRIORITY_HIGH));
+        assertEquals(2, queue.getQueuedCount());
+
+        // Room again once a message completes
+        a.onSent(null);
+        assertTrue(queue.enqueue(newTracker("5"), SmsSendQueue.PRIORITY_NORMAL));
+
+        SmsTracker[] cleared = queue.clear();
+        assertEquals(2, cleared.length);
+        assertEquals(0, queue.getQueuedCount());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class SmsSendWindowTest extends TestCase {
+
+    private static final long PERIOD = 60000;
+
+    private static boolean tryAdd(SmsSendWindow window, long now, int smsWaiting) {
+        return window.tryAdd(now, now - PERIOD, smsWaiting);
+    }
+
+    @SmallTest
+    public void testLimit() throws Exception {
+        SmsSendWindow window = new SmsSendWindow(3);
+        assertTrue(tryAdd(window, 1000, 2));
+        assertFalse(tryAdd(window, 2000, 2));
+        assertTrue(tryAdd(window, 3000, 1));
+        assertFalse(tryAdd(window, 4000, 1));
+        assertTrue(tryAdd(window, 4000, 0));
+        assertEquals(3, window.size());
+        assertEquals(3000, window.getNewest());
+
+        // the first two expire together
+        assertFalse(tryAdd(window, 1000 + PERIOD - 1, 1));
+        assertTrue(tryAdd(window, 1000 + PERIOD + 1, 2));
+        assertEquals(3, window.size());
+        assertEquals(3000, window.get(0));
+        assertEquals(1000 + PERIOD + 1, window.get(2));
+    }
+
+    @SmallTest
+    public void testWrapAround() throws Exception {
+        SmsSendWindow window = new SmsSendWindow(4);
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            now += PERIOD / 3;
+            assertTrue(tryAdd(window, now, 1));
+            assertTrue(window.size() <= 4);
+            assertEquals(now, window.getNewest());
+        }
+        window.expire(now + 1);
+        assertEquals(0, window.size());
+        assertEquals(Long.MIN_VALUE, window.getNewest());
+    }
+
+    @SmallTest
+    public void testAddDropsOldest() throws Exception {
+        SmsSendWindow window = new SmsSendWindow(2);
+        window.add(1);
+        window.add(2);
+        window.add(3);
+        assertEquals(2, window.size());
+        assertEquals(2, window.get(0));
+        assertEquals(3, window.get(1));
+
+        SmsSendWindow none = new SmsSendWindow(0);
+        assertFalse(tryAdd(none, 1000, 1));
+        assertTrue(tryAdd(none, 1000, 0));
+    }
+
+    @SmallTest
+    public void testHugeLimit() throws Exception {
+        // Set this high to do away with the limit; only what is sent takes memory
+        SmsSendWindow window = new SmsSendWindow(Integer.MAX_VALUE);
+        assertTrue(tryAdd(window, 1000, 1));
+        assertTrue(tryAdd(window, 2000, 30));
+        assertEquals(31, window.size());
+        assertEquals(1000, window.get(0));
+        assertEquals(2000, window.get(30));
+
+        // Still in order once grown past a wrapped ring
+        window.expire(1001);
+        for (int i = 0; i < 40; i++) {
+            assertTrue(tryAdd(window, 3000 + i, 1));
+        }
+        assertEquals(70, window.size());
+        assertEquals(2000, window.get(0));
+        assertEquals(3039, window.getNewest());
+        for (int i = 1; i < window.size(); i++) {
+            assertTrue(window.get(i - 1) <= window.get(i));
+        }
+    }
+
+    @SmallTest
+    public void testGrowsToLimit() throws Exception {
+        SmsSendWindow window = new SmsSendWindow(20);
+        assertTrue(tryAdd(window, 1000, 20));
+        assertFalse(tryAdd(window, 1000, 1));
+        window.add(2000);
+        assertEquals(20, window.size());
+        assertEquals(1000, window.get(0));
+        assertEquals(2000, window.getNewest());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that SmsTextEncoder produces the same counts, fragments and encodings as
+ * GsmAlphabet and String.getBytes, for text it handles, and declines other text.
+ */
+public class SmsTextEncoderTest extends TestCase {
+    // Chars of the GSM 7 bit default alphabet basic table
+    private static final String sBasicChars = "@$_ !\"#%&'()*+,-./0123456789" +
+            ":;<=>?ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz\n\r" +
+            "\u00a3\u00a5\u00e8\u00e9\u00f9\u00ec\u00f2\u00c7\u00d8\u00f8\u00c5\u00e5" +
+            "\u0394\u03a6\u0393\u039b\u03a9\u03a0\u03a8\u03a3\u0398\u039e\u00c6\u00e6" +
+            "\u00df\u00c9\u00a4\u00a1\u00c4\u00d6\u00d1\u00dc\u00a7\u00bf\u00e4\u00f6" +
+            "\u00f1\u00fc\u00e0";
+
+    // Concatenated message information element, with its length octet excluded
+    private static final byte[] sConcatHeader = { 0x00, 0x03, 0x2a, 0x02, 0x01 };
+
+    private static final int[] sLengths = { 0, 1, 7, 8, 9, 152, 153, 154, 160, 161, 200, 255 };
+
+    private final Random mRandom = new Random(0x5eed);
+
+    private String randomString(String chars, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(chars.charAt(mRandom.nextInt(chars.length())));
+        }
+        return sb.toString();
+    }
+
+    @SmallTest
+    public void testCountSeptets() throws Exception {
+        assertEquals(0, SmsTextEncoder.countSeptets("", 0, 0));
+        assertEquals(sBasicChars.length(),
+                SmsTextEncoder.countSeptets(sBasicChars, 0, sBasicChars.length()));
+        assertEquals(3, SmsTextEncoder.countSeptets("a{bcd", 2, 5));
+        // Extension table, national language table and unknown chars
+        assertEquals(-1, SmsTextEncoder.countSeptets("abc{", 0, 4));
+        assertEquals(-1, SmsTextEncoder.countSeptets("\u20ac", 0, 1));
+        assertEquals(-1, SmsTextEncoder.countSeptets("\u00e7", 0, 1));
+        assertEquals(-1, SmsTextEncoder.countSeptets("\u4e00", 0, 1));
+        assertEquals(-1, SmsTextEncoder.countSeptets("`", 0, 1));
+    }
+
+    @SmallTest
+    public void testFill7BitDetails() throws Exception {
+        int[] lengths = { 0, 1, 159, 160, 161, 306, 307, 1000 };
+        for (int length : lengths) {
+            String msg = randomString(sBasicChars, length);
+            TextEncodingDetails expected = GsmAlphabet.countGsmSeptets(msg, false);
+            TextEncodingDetails ted = new TextEncodingDetails();
+            SmsTextEncoder.fill7BitDetails(ted, length);
+            assertEquals(expected.codeUnitSize, ted.codeUnitSize);
+            assertEquals(expected.codeUnitCount, ted.codeUnitCount);
+            assertEquals(expected.msgCount, ted.msgCount);
+            assertEquals(expected.codeUnitsRemaining, ted.codeUnitsRemaining);
+            assertEquals(0, ted.languageTable);
+            assertEquals(0, ted.languageShiftTable);
+        }
+    }
+
+    @SmallTest
+    public void testEncode7BitPacked() throws Exception {
+        byte[] out = new byte[300];
+        for (int length : sLengths) {
+            for (byte[] header : new byte[][] { null, sConcatHeader }) {
+                String msg = randomString(sBasicChars, length);
+                int septets = length + (header == null ? 0 : 7);
+                if (septets > 255) {
+                    assertEquals(-1, SmsTextEncoder.encode7BitPacked(msg, 0, length, header,
+                            out, 0));
+                    continue;
+                }
+                byte[] expected = GsmAlphabet.stringToGsm7BitPackedWithHeader(msg, header,
+                        0, 0);
+                assertEquals(expected.length,
+                        SmsTextEncoder.get7BitPackedLength(length, header));
+                // Write into a dirty buffer at an offset
+                Arrays.fill(out, (byte) 0xff);
+                assertEquals(expected.length,
+                        SmsTextEncoder.encode7BitPacked(msg, 0, length, header, out, 3));
+                assertTrue(Arrays.equals(expected,
+                        Arrays.copyOfRange(out, 3, 3 + expected.length)));
+            }
+        }
+        assertEquals(-1, SmsTextEncoder.encode7BitPacked("ab~c", 0, 4, null, out, 0));
+    }
+
+    @SmallTest
+    public void testPackSeptets() throws Exception {
+        byte[] out = new byte[300];
+        for (int offset = 0; offset < 8; offset++) {
+            String msg = randomString(sBasicChars, 100);
+            byte[] expected = GsmAlphabet.stringToGsm7BitPacked(msg, offset, true, 0, 0);
+            Arrays.fill(out, (byte) 0xff);
+            assertEquals(offset + 100, SmsTextEncoder.packSeptets(msg, 0, 100, offset, out, 0));
+            // Ignore the fill bits of the offset, which GsmAlphabet leaves clear as well
+            assertTrue(Arrays.equals(Arrays.copyOfRange(expected, 1, expected.length),
+                    Arrays.copyOf(out, expected.length - 1)));
+        }
+    }
+
+    @SmallTest
+    public void testEncodeUcs2() throws Exception {
+        String msg = "\u4e00\u4e01abc\u00e7\u20ac\ud83d\ude00\u0400";
+        byte[] text = msg.getBytes("utf-16be");
+        byte[] out = new byte[64];
+
+        int length = SmsTextEncoder.encodeUcs2(msg, 0, msg.length(), null, out, 1);
+        assertEquals(SmsTextEncoder.getUcs2Length(msg.length(), null), length);
+        assertEquals(text.length, out[1]);
+        assertTrue(Arrays.equals(text, Arrays.copyOfRange(out, 2, 2 + text.length)));
+
+        length = SmsTextEncoder.encodeUcs2(msg, 0, msg.length(), sConcatHeader, out, 0);
+        assertEquals(SmsTextEncoder.getUcs2Length(msg.length(), sConcatHeader), length);
+        assertEquals(1 + sConcatHeader.length + text.length, out[0]);
+        assertEquals(sConcatHeader.length, out[1]);
+        assertTrue(Arrays.equals(sConcatHeader,
+                Arrays.copyOfRange(out, 2, 2 + sConcatHeader.length)));
+        int start = 2 + sConcatHeader.length;
+        assertTrue(Arrays.equals(text, Arrays.copyOfRange(out, start, start + text.length)));
+    }
+
+    @SmallTest
+    public void testFindSeptetLimitIndex() throws Exception {
+        String msg = randomString(sBasicChars, 500);
+        for (int limit : new int[] { 1, 134, 153, 160 }) {
+            for (int start = 0; start < msg.length(); start += limit) {
+                assertEquals(GsmAlphabet.findGsmSeptetLimitIndex(msg, start, limit, 0, 0),
+                        SmsTextEncoder.findSeptetLimitIndex(msg, start, limit));
+            }
+        }
+        assertEquals(-1, SmsTextEncoder.findSeptetLimitIndex("abc[def", 0, 153));
+        // Chars past the limit are not looked at
+        assertEquals(3, SmsTextEncoder.findSeptetLimitIndex("abc[def", 0, 3));
+    }
+}
@@ -16,9 +16,13 @@
 
 package com.android.internal.telephony;
 
+import android.telephony.Rlog;
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import java.util.ArrayList;
+
 import static com.android.internal.telephony.SmsUsageMonitor.CATEGORY_FREE_SHORT_CODE;
 import static com.android.internal.telephony.SmsUsageMonitor.CATEGORY_NOT_SHORT_CODE;
 import static com.android.internal.telephony.SmsUsageMonitor.CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
@@ -29,6 +33,7 @@ import static com.android.internal.telephony.SmsUsageMonitor.CATEGORY_STANDARD_S
  * Test cases for SMS short code pattern matching in SmsUsageMonitor.
  */
 public class SmsUsageMonitorShortCodeTest extends AndroidTestCase {
+    private static final String TAG = "SmsUsageMonitorShortCodeTest";
 
     private static final class ShortCodeTest {
         final String countryIso;
@@ -463,4 +468,113 @@ public class SmsUsageMonitorShortCodeTest extends AndroidTestCase {
                     test.category, monitor.checkDestination(test.address, test.countryIso));
         }
     }
+
+    /**
+     * Compare the compiled short code classifier with regex matching on the test cases above.
+     */
+    @SmallTest
+    public void testCompiledMatchesRegex() {
+        SmsUsageMonitor monitor = new SmsUsageMonitor(getContext());
+        for (ShortCodeTest test : sShortCodeTests) {
+            SmsUsageMonitor.ShortCodePatternMatcher matcher =
+                    monitor.getPatternMatcher(test.countryIso);
+            if (matcher == null) {
+                continue;
+            }
+            assertTrue("country: " + test.countryIso, matcher.isCompiled());
+            assertEquals("country: " + test.countryIso + " number: " + test.address,
+                    matcher.getNumberCategoryByRegex(test.address),
+                    matcher.getNumberCategory(test.address));
+        }
+    }
+
+    @SmallTest
+    public void testUnknownCountry() {
+        SmsUsageMonitor monitor = new SmsUsageMonitor(getContext());
+        // No country checked yet: generic rule
+        assertEquals(CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE,
+                monitor.checkDestination("20433", null));
+
+        // The patterns of the last country checked are used while the country is unknown
+        assertEquals(CATEGORY_PREMIUM_SHORT_CODE, monitor.checkDestination("20433", "us"));
+        assertEquals(CATEGORY_PREMIUM_SHORT_CODE, monitor.checkDestination("20433", null));
+        assertEquals(CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE,
+                monitor.checkDestination("200000", null));
+    }
+
+    private interface MatchOp {
+        /** Classify a number with a matcher, returning the category for the sink. */
+        int run(SmsUsageMonitor.ShortCodePatternMatcher matcher, String address);
+    }
+
+    private static final int BENCHMARK_WARMUP_ITERATIONS = 200;
+    private static final int BENCHMARK_ITERATIONS = 500;
+
+    /**
+     * Run an operation over the test cases, JMH style: untimed warm-up iterations so the code
+     * is compiled, then timed iterations whose mean and best times per lookup are logged.
+     * The results are summed into a sink that is logged as well, so nothing is optimized out.
+     * @return the mean time per lookup in ns
+     */
+    private static long runBenchmark(String name, MatchOp op,
+            ArrayList<SmsUsageMonitor.ShortCodePatternMatcher> matchers,
+            ArrayList<String> addresses) {
+        int size = matchers.size();
+        int sink = 0;
+        for (int i = 0; i < BENCHMARK_WARMUP_ITERATIONS; i++) {
+            for (int j = 0; j < size; j++) {
+                sink += op.run(matchers.get(j), addresses.get(j));
+            }
+        }
+        long total = 0;
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            for (int j = 0; j < size; j++) {
+                sink += op.run(matchers.get(j), addresses.get(j));
+            }
+            long elapsed = System.nanoTime() - start;
+            total += elapsed;
+            best = Math.min(best, elapsed);
+        }
+        long mean = total / ((long) BENCHMARK_ITERATIONS * size);
+        Rlog.d(TAG, name + ": " + mean + " ns/lookup mean, " + (best / size)
+                + " ns/lookup best (sink " + sink + ")");
+        return mean;
+    }
+
+    /**
+     * Compare the cost of classifying the test cases above with the compiled short code
+     * classifier and with regex matching, after checking the results match.
+     */
+    @LargeTest
+    public void testPatternMatcherBenchmark() {
+        SmsUsageMonitor monitor = new SmsUsageMonitor(getContext());
+        ArrayList<SmsUsageMonitor.ShortCodePatternMatcher> matchers =
+                new ArrayList<SmsUsageMonitor.ShortCodePatternMatcher>();
+        ArrayList<String> addresses = new ArrayList<String>();
+        for (ShortCodeTest test : sShortCodeTests) {
+            SmsUsageMonitor.ShortCodePatternMatcher matcher =
+                    monitor.getPatternMatcher(test.countryIso);
+            if (matcher == null) {
+                continue;
+            }
+            assertEquals("country: " + test.countryIso + " number: " + test.address,
+                    matcher.getNumberCategoryByRegex(test.address),
+                    matcher.getNumberCategory(test.address));
+            matchers.add(matcher);
+            addresses.add(test.address);
+        }
+
+        runBenchmark("regex", new MatchOp() {
+            public int run(SmsUsageMonitor.ShortCodePatternMatcher matcher, String address) {
+                return matcher.getNumberCategoryByRegex(address);
+            }
+        }, matchers, addresses);
+        runBenchmark("compiled", new MatchOp() {
+            public int run(SmsUsageMonitor.ShortCodePatternMatcher matcher, String address) {
+                return matcher.getNumberCategory(address);
+            }
+        }, matchers, addresses);
+    }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.SubscriptionManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class SubscriptionIndexTest extends TestCase {
+
+    @SmallTest
+    public void testEmpty() throws Exception {
+        SubscriptionIndex index = SubscriptionIndex.EMPTY;
+        assertEquals(0, index.size());
+        assertEquals(SubscriptionManager.INVALID_SUBSCRIPTION_ID, index.getSubId(0));
+        assertNull(index.getSubIds(0));
+        assertEquals(SubscriptionManager.INVALID_SIM_SLOT_INDEX, index.getSlotId(1));
+        assertFalse(index.containsSubId(1));
+        assertEquals(0, index.getSubIdList().length);
+        assertEquals(SubscriptionManager.INVALID_SUBSCRIPTION_ID, index.mDefaultVoiceSubId);
+        assertEquals(SubscriptionManager.INVALID_SUBSCRIPTION_ID, index.mDefaultFallbackSubId);
+    }
+
+    @SmallTest
+    public void testSlots() throws Exception {
+        SubscriptionIndex index = SubscriptionIndex.EMPTY.withSlot(1, 7).withSlot(0, 5);
+        assertEquals(2, index.size());
+        assertEquals(5, index.getSubId(0));
+        assertEquals(7, index.getSubId(1));
+        assertTrue(Arrays.equals(new int[] { 7 }, index.getSubIds(1)));
+        assertNull(index.getSubIds(2));
+        assertEquals(0, index.getSlotId(5));
+        assertEquals(1, index.getSlotId(7));
+        assertTrue(index.containsSubId(7));
+        assertFalse(index.containsSubId(6));
+        // In slot order whatever the order they were added in
+        assertTrue(Arrays.equals(new int[] { 5, 7 }, index.getSubIdList()));
+
+        // Replacing the subId of a slot
+        SubscriptionIndex replaced = index.withSlot(1, 9);
+        assertEquals(9, replaced.getSubId(1));
+        assertFalse(replaced.containsSubId(7));
+        assertTrue(Arrays.equals(new int[] { 5, 9 }, replaced.getSubIdList()));
+    }
+
+    @SmallTest
+    public void testCopyOnWrite() throws Exception {
+        SubscriptionIndex index = SubscriptionIndex.EMPTY.withSlot(0, 5)
+                .withDefaults(5, 5, 5, 5);
+        SubscriptionIndex changed = index.withSlot(0, 6).withSlot(1, 7);
+        SubscriptionIndex cleared = changed.withoutSlots();
+
+        // Earlier instances are untouched
+        assertEquals(0, SubscriptionIndex.EMPTY.size());
+        assertEquals(1, index.size());
+        assertEquals(5, index.getSubId(0));
+        assertTrue(Arrays.equals(new int[] { 5 }, index.getSubIds(0)));
+        assertEquals(2, changed.size());
+
+        // Defaults are kept across slot changes
+        assertEquals(0, cleared.size());
+        assertEquals(5, cleared.mDefaultVoiceSubId);
+        assertEquals(5, cleared.mDefaultDataSubId);
+        assertEquals(5, cleared.mDefaultSmsSubId);
+        assertEquals(5, cleared.mDefaultFallbackSubId);
+
+        SubscriptionIndex defaults = changed.withDefaults(6, 7, 6, 7);
+        assertEquals(6, defaults.mDefaultVoiceSubId);
+        assertEquals(7, defaults.mDefaultDataSubId);
+        assertEquals(6, defaults.mDefaultSmsSubId);
+        assertEquals(7, defaults.mDefaultFallbackSubId);
+        assertTrue(Arrays.equals(changed.getSubIdList(), defaults.getSubIdList()));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.SubscriptionInfo;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SubscriptionInfoSnapshotTest extends TestCase {
+
+    private static SubscriptionInfo newInfo(int id, String iccId, int slot) {
+        return new SubscriptionInfo(id, iccId, slot, "CARD " + id, "", 0, 0, "", 0, null,
+                310, 260, "us");
+    }
+
+    @SmallTest
+    public void testEmpty() throws Exception {
+        SubscriptionInfoSnapshot snapshot = new SubscriptionInfoSnapshot(3, null);
+        assertEquals(3, snapshot.getGeneration());
+        assertEquals(0, snapshot.size());
+        assertNull(snapshot.getList());
+        assertNull(snapshot.getBySubId(1));
+        assertNull(snapshot.getByIccId("8901"));
+        assertNull(snapshot.getByIccId(null));
+        assertNull(snapshot.getBySimSlotIndex(0));
+    }
+
+    @SmallTest
+    public void testOrderAndLookups() throws Exception {
+        SubscriptionInfo sub3 = newInfo(3, "8903", 1);
+        SubscriptionInfo sub2 = newInfo(2, "8902", 0);
+        SubscriptionInfo sub1 = newInfo(1, "8901", 1);
+        SubscriptionInfoSnapshot snapshot = new SubscriptionInfoSnapshot(1,
+                Arrays.asList(sub3, sub2, sub1));
+
+        List<SubscriptionInfo> list = snapshot.getList();
+        assertEquals(3, snapshot.size());
+        assertSame(sub2, list.get(0));
+        assertSame(sub1, list.get(1));
+        assertSame(sub3, list.get(2));
+
+        assertSame(sub3, snapshot.getBySubId(3));
+        assertNull(snapshot.getBySubId(4));
+        // Looked up by value, not by reference
+        assertSame(sub2, snapshot.getByIccId(new String("8902")));
+        assertNull(snapshot.getByIccId("8904"));
+        // The lowest subscription id of a slot, as a scan of the list finds
+        assertSame(sub1, snapshot.getBySimSlotIndex(1));
+        assertSame(sub2, snapshot.getBySimSlotIndex(0));
+        assertNull(snapshot.getBySimSlotIndex(2));
+    }
+
+    @SmallTest
+    public void testImmutable() throws Exception {
+        ArrayList<SubscriptionInfo> records = new ArrayList<SubscriptionInfo>();
+        records.add(newInfo(1, "8901", 0));
+        SubscriptionInfoSnapshot snapshot = new SubscriptionInfoSnapshot(1, records);
+
+        // Neither the source list nor a returned list changes the snapshot
+        records.add(newInfo(2, "8902", 1));
+        snapshot.getList().clear();
+        assertEquals(1, snapshot.size());
+        assertEquals(1, snapshot.getList().size());
+        assertNull(snapshot.getBySubId(2));
+    }
+}
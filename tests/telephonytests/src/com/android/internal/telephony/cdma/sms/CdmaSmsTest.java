@@ -861,6 +861,40 @@ public class CdmaSmsTest extends AndroidTestCase {
         assertNull(revBearerData);
     }
 
+    @SmallTest
+    public void testUserData7bitAsciiAlignments() throws Exception {
+        // Every bit alignment of the 7 bit chars, with and without a header
+        String text = "The quick brown fox\r\njumps over the lazy dog!";
+        for (int length = 1; length <= text.length(); length++) {
+            encodeDecodeAssertEquals(text.substring(0, length), null,
+                    UserData.ENCODING_7BIT_ASCII);
+        }
+        encodeDecodeAssertEquals(text, getConcatUserDataHeader(1, 2), -1);
+    }
+
+    @SmallTest
+    public void testDecodeSubparamMask() throws Exception {
+        // message id, user data, callback number
+        String pdu = "00031040900112488ea794e070d436cb638bc5e035ce2f97900e06910431323334";
+        byte[] smsData = HexDump.hexStringToByteArray(pdu);
+        BearerData full = BearerData.decode(smsData);
+        BearerData scpt = BearerData.decode(smsData, 0, BearerData.SUBPARAMS_SCPT);
+        assertEquals(full.messageType, scpt.messageType);
+        assertEquals(full.messageId, scpt.messageId);
+        assertNotNull(full.userData);
+        assertNotNull(full.callbackNumber);
+        assertNull(scpt.userData);
+        assertNull(scpt.callbackNumber);
+
+        // Skipped subparameters are still checked
+        byte[] duplicate = Arrays.copyOf(smsData, smsData.length + 4);
+        System.arraycopy(smsData, smsData.length - 8, duplicate, smsData.length, 4);
+        duplicate[smsData.length + 1] = 2;
+        assertNull(BearerData.decode(duplicate, 0, BearerData.SUBPARAMS_SCPT));
+        byte[] truncated = Arrays.copyOf(smsData, smsData.length - 1);
+        assertNull(BearerData.decode(truncated, 0, BearerData.SUBPARAMS_SCPT));
+    }
+
     // Return a user data header for a concatenated message
     private static SmsHeader getConcatUserDataHeader(int index, int total) {
         SmsHeader smsHeader = new SmsHeader();
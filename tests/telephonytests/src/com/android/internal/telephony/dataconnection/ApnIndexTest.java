@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.PhoneConstants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ApnIndexTest extends TestCase {
+
+    private static final List<String> TYPES = Arrays.asList(PhoneConstants.APN_TYPE_DEFAULT,
+            PhoneConstants.APN_TYPE_MMS, PhoneConstants.APN_TYPE_HIPRI,
+            PhoneConstants.APN_TYPE_DUN);
+
+    private static ApnSetting newApn(int id, String types, boolean carrierEnabled, int bearer) {
+        return new ApnSetting(id, "12345", "Name" + id, "apn" + id, "", "", "", "", "", "", "",
+                0, types.split("\\|"), "IP", "IP", carrierEnabled, bearer, 0, false, 0, 0, 0, 0,
+                "", "");
+    }
+
+    /** The APNs buildWaitingApns used to find by scanning the whole list. */
+    private static ArrayList<ApnSetting> scan(List<ApnSetting> apns, String type, int radioTech) {
+        ArrayList<ApnSetting> result = new ArrayList<ApnSetting>();
+        for (ApnSetting apn : apns) {
+            if (apn.canHandleType(type) && (apn.bearer == 0 || apn.bearer == radioTech)) {
+                result.add(apn);
+            }
+        }
+        return result;
+    }
+
+    @SmallTest
+    public void testEmpty() throws Exception {
+        assertEquals(0, ApnIndex.EMPTY.size());
+        assertFalse(ApnIndex.EMPTY.canHandleType(PhoneConstants.APN_TYPE_DEFAULT));
+        assertTrue(ApnIndex.EMPTY.getApns(PhoneConstants.APN_TYPE_DEFAULT, 14).isEmpty());
+    }
+
+    @SmallTest
+    public void testSameAsScan() throws Exception {
+        List<ApnSetting> apns = Arrays.asList(
+                newApn(1, "default", true, 14),
+                newApn(2, "mms", true, 0),
+                newApn(3, "default|supl", true, 0),
+                newApn(4, "*", true, 13),
+                newApn(5, "default", false, 0),
+                newApn(6, "ims", true, 14),
+                newApn(7, "default|mms", true, 14));
+        ApnIndex index = new ApnIndex(apns, TYPES);
+        assertEquals(7, index.size());
+
+        // The types indexed, and others that are found by a scan
+        String[] types = { "default", "mms", "hipri", "dun", "supl", "ims", "fota" };
+        for (String type : types) {
+            for (int radioTech = 0; radioTech <= 14; radioTech++) {
+                assertEquals(type + " " + radioTech, scan(apns, type, radioTech),
+                        index.getApns(type, radioTech));
+            }
+            assertEquals(type, !scan(apns, type, 13).isEmpty() || !scan(apns, type, 14).isEmpty(),
+                    index.canHandleType(type));
+        }
+        assertEquals(Arrays.asList(apns.get(0), apns.get(2), apns.get(6)),
+                index.getApns(PhoneConstants.APN_TYPE_HIPRI, 14));
+
+        // Nothing can handle fota on any radio technology but 13
+        assertTrue(index.canHandleType("fota"));
+        assertTrue(index.getApns("fota", 14).isEmpty());
+    }
+
+    @SmallTest
+    public void testListsAreCopies() throws Exception {
+        ArrayList<ApnSetting> apns = new ArrayList<ApnSetting>();
+        apns.add(newApn(1, "default", true, 0));
+        ApnIndex index = new ApnIndex(apns, TYPES);
+        apns.add(newApn(2, "default", true, 0));
+
+        ArrayList<ApnSetting> result = index.getApns(PhoneConstants.APN_TYPE_DEFAULT, 14);
+        assertEquals(1, result.size());
+        result.clear();
+        assertEquals(1, index.getApns(PhoneConstants.APN_TYPE_DEFAULT, 14).size());
+        assertEquals(1, index.size());
+    }
+
+    @SmallTest
+    public void testSplit() throws Exception {
+        String[] cases = { "", ",", "a", " a , b ", "a,,b,,", ",a", "a\t|\tb |", " ; a;b ; " };
+        for (String data : cases) {
+            assertTrue(data, Arrays.equals(data.split("\\s*,\\s*"), ApnSetting.split(data, ',')));
+            assertTrue(data, Arrays.equals(data.split("\\s*\\|\\s*"),
+                    ApnSetting.split(data, '|')));
+            assertTrue(data, Arrays.equals(data.split("\\s*;\\s*"), ApnSetting.split(data, ';')));
+        }
+    }
+}
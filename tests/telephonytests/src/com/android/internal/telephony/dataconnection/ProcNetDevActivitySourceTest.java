@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import junit.framework.TestCase;
+
+public class ProcNetDevActivitySourceTest extends TestCase {
+
+    private static final String PROC_NET_DEV =
+            "Inter-|   Receive                                                |  Transmit\n"
+            + " face |bytes    packets errs drop fifo frame compressed multicast|bytes    packets"
+            + " errs drop fifo colls carrier compressed\n"
+            + "    lo:    5120      40    0    0    0     0          0         0     5120      40"
+            + "    0    0    0     0       0          0\n"
+            + "rmnet0: 1987654     1234    0    0    0     0          0         0   654321     "
+            + "987    0    0    0     0       0          0\n"
+            + "rmnet1:100 7 0 0 0 0 0 0 200 5 0 0 0 0 0 0\n"
+            + "rmnet10: 1 99 0 0 0 0 0 0 1 99 0 0 0 0 0 0\n"
+            + " wlan0: 300 3 0 0 0 0 0 0 400 4 0 0 0 0 0 0\n";
+
+    private static boolean parse(String contents, String[] ifaces, long[] counts) {
+        byte[] buf = contents.getBytes();
+        return ProcNetDevActivitySource.parse(buf, buf.length, ifaces, counts);
+    }
+
+    @SmallTest
+    public void testParse() throws Exception {
+        long[] counts = new long[2];
+        assertTrue(parse(PROC_NET_DEV, new String[] { "rmnet0" }, counts));
+        assertEquals(987, counts[0]);
+        assertEquals(1234, counts[1]);
+
+        // Summed over the interfaces, with no space after the colon
+        assertTrue(parse(PROC_NET_DEV, new String[] { "rmnet0", "rmnet1" }, counts));
+        assertEquals(992, counts[0]);
+        assertEquals(1241, counts[1]);
+
+        // Whole names only
+        counts[0] = counts[1] = -1;
+        assertFalse(parse(PROC_NET_DEV, new String[] { "rmnet", "rmnet00", "face" }, counts));
+        assertFalse(parse(PROC_NET_DEV, new String[0], counts));
+        assertFalse(parse("", new String[] { "rmnet0" }, counts));
+        assertEquals(-1, counts[0]);
+        assertEquals(-1, counts[1]);
+
+        // A line cut short before the transmit packets is not counted
+        assertFalse(parse("rmnet0: 100 7 0 0 0 0 0 0 200\n", new String[] { "rmnet0" }, counts));
+    }
+
+    @SmallTest
+    public void testUpdate() throws Exception {
+        File file = File.createTempFile("net_dev", null);
+        try {
+            ProcNetDevActivitySource source = new ProcNetDevActivitySource(file.getPath());
+            assertFalse(source.update());
+            source.setInterfaces(new String[] { "rmnet0" });
+            assertFalse(source.update());
+            assertEquals(-1, source.getTxPackets());
+
+            // Larger than the initial buffer
+            StringBuilder contents = new StringBuilder();
+            while (contents.length() < 10000) {
+                contents.append(PROC_NET_DEV.replace("rmnet0", "rmnet9"));
+            }
+            contents.append(PROC_NET_DEV);
+            write(file, contents.toString());
+            assertTrue(source.update());
+            assertEquals(987, source.getTxPackets());
+            assertEquals(1234, source.getRxPackets());
+
+            // Read again from the start
+            write(file, "rmnet0: 5 6 0 0 0 0 0 0 7 8 0 0 0 0 0 0\n");
+            assertTrue(source.update());
+            assertEquals(8, source.getTxPackets());
+            assertEquals(6, source.getRxPackets());
+
+            source.close();
+            file.delete();
+            assertFalse(source.update());
+            assertEquals(8, source.getTxPackets());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void write(File file, String contents) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes());
+        } finally {
+            out.close();
+        }
+    }
+}
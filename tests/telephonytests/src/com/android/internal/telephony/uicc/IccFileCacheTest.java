@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class IccFileCacheTest extends TestCase {
+    private static final long TIMEOUT_MS = 5000;
+
+    private static final String ICCID_1 = "89014103211118510720";
+    private static final String ICCID_2 = "89310410106543789301";
+    private static final String AID = "a0000000871002ff33ff018900000100";
+
+    private static final int EF_SPN = 0x6f46;
+    private static final int EF_PNN = 0x6fc5;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile(IccFileCache.FILE_NAME, null);
+        assertTrue(mFile.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        new File(mFile.getPath() + ".new").delete();
+        super.tearDown();
+    }
+
+    private IccFileCache open() throws Exception {
+        IccFileCache cache = new IccFileCache(mFile);
+        assertTrue(cache.waitForWrites(TIMEOUT_MS));
+        return cache;
+    }
+
+    private void close(IccFileCache cache) throws Exception {
+        assertTrue(cache.waitForWrites(TIMEOUT_MS));
+        cache.close();
+    }
+
+    private static void assertData(byte[] expected, byte[] actual) {
+        assertTrue(Arrays.toString(actual), Arrays.equals(expected, actual));
+    }
+
+    @SmallTest
+    public void testRoundTrip() throws Exception {
+        byte[] spn = {0x01, 'S', 'P', 'N'};
+        byte[] pnn1 = {0x10, 0x11};
+        byte[] pnn2 = {0x20, 0x21};
+
+        IccFileCache cache = open();
+        assertNull(cache.get(ICCID_1, AID, EF_SPN, 0));
+        cache.put(ICCID_1, AID, EF_SPN, 0, spn);
+        cache.put(ICCID_1, AID, EF_PNN, 1, pnn1);
+        cache.put(ICCID_1, AID, EF_PNN, 2, pnn2);
+        cache.put(ICCID_1, AID, EF_PNN, 2, pnn1);
+        assertData(spn, cache.get(ICCID_1, AID, EF_SPN, 0));
+
+        // The cache holds a copy
+        spn[1] = 'X';
+        assertEquals('S', cache.get(ICCID_1, AID, EF_SPN, 0)[1]);
+        close(cache);
+
+        cache = open();
+        assertData(new byte[] {0x01, 'S', 'P', 'N'}, cache.get(ICCID_1, AID, EF_SPN, 0));
+        assertData(pnn1, cache.get(ICCID_1, AID, EF_PNN, 1));
+        assertData(pnn1, cache.get(ICCID_1, AID, EF_PNN, 2));
+        assertNull(cache.get(ICCID_1, AID, EF_PNN, 3));
+
+        cache.remove(ICCID_1, AID, EF_PNN);
+        assertNull(cache.get(ICCID_1, AID, EF_PNN, 1));
+        close(cache);
+
+        cache = open();
+        assertNull(cache.get(ICCID_1, AID, EF_PNN, 1));
+        assertNotNull(cache.get(ICCID_1, AID, EF_SPN, 0));
+        close(cache);
+    }
+
+    @SmallTest
+    public void testIccIdChange() throws Exception {
+        byte[] spn1 = {0x01, 'O', 'N', 'E'};
+        byte[] spn2 = {0x01, 'T', 'W', 'O'};
+
+        IccFileCache cache = open();
+        cache.put(ICCID_1, AID, EF_SPN, 0, spn1);
+
+        // Another card is a different key
+        assertNull(cache.get(ICCID_2, AID, EF_SPN, 0));
+        cache.put(ICCID_2, AID, EF_SPN, 0, spn2);
+        assertData(spn1, cache.get(ICCID_1, AID, EF_SPN, 0));
+        assertData(spn2, cache.get(ICCID_2, AID, EF_SPN, 0));
+
+        // Dropping an application of one card leaves the other alone
+        cache.removeAll(ICCID_1, AID);
+        assertNull(cache.get(ICCID_1, AID, EF_SPN, 0));
+        assertData(spn2, cache.get(ICCID_2, AID, EF_SPN, 0));
+
+        // Before the ICCID is known, a REFRESH drops the EF for every card
+        cache.put(ICCID_1, AID, EF_SPN, 0, spn1);
+        cache.remove(null, AID, EF_SPN);
+        assertNull(cache.get(ICCID_1, AID, EF_SPN, 0));
+        assertNull(cache.get(ICCID_2, AID, EF_SPN, 0));
+        close(cache);
+
+        cache = open();
+        assertNull(cache.get(ICCID_1, AID, EF_SPN, 0));
+        assertNull(cache.get(ICCID_2, AID, EF_SPN, 0));
+        close(cache);
+    }
+
+    @SmallTest
+    public void testChangesWhileLoading() throws Exception {
+        byte[] spn = {0x01, 'S', 'P', 'N'};
+        byte[] pnn = {0x10, 0x11};
+        IccFileCache cache = open();
+        cache.put(ICCID_1, AID, EF_SPN, 0, spn);
+        cache.put(ICCID_1, AID, EF_PNN, 1, pnn);
+        close(cache);
+
+        // Whether or not the log has been loaded yet, these win over it
+        cache = new IccFileCache(mFile);
+        cache.remove(ICCID_1, AID, EF_SPN);
+        cache.put(ICCID_1, AID, EF_PNN, 1, spn);
+        assertTrue(cache.waitForWrites(TIMEOUT_MS));
+        assertNull(cache.get(ICCID_1, AID, EF_SPN, 0));
+        assertData(spn, cache.get(ICCID_1, AID, EF_PNN, 1));
+        close(cache);
+
+        cache = open();
+        assertNull(cache.get(ICCID_1, AID, EF_SPN, 0));
+        assertData(spn, cache.get(ICCID_1, AID, EF_PNN, 1));
+        close(cache);
+    }
+
+    @SmallTest
+    public void testUnknownFormat() throws Exception {
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[] {'n', 'o', 't', ' ', 'a', ' ', 'c', 'a', 'c', 'h', 'e'});
+        out.close();
+
+        IccFileCache cache = open();
+        assertNull(cache.get(ICCID_1, AID, EF_SPN, 0));
+        byte[] spn = {0x01, 'S', 'P', 'N'};
+        cache.put(ICCID_1, AID, EF_SPN, 0, spn);
+        close(cache);
+
+        cache = open();
+        assertData(spn, cache.get(ICCID_1, AID, EF_SPN, 0));
+        close(cache);
+    }
+
+    @SmallTest
+    public void testTruncatedRecord() throws Exception {
+        byte[] spn = {0x01, 'S', 'P', 'N'};
+        byte[] pnn = {0x10, 0x11, 0x12, 0x13};
+        IccFileCache cache = open();
+        cache.put(ICCID_1, AID, EF_SPN, 0, spn);
+        cache.put(ICCID_1, AID, EF_PNN, 1, pnn);
+        close(cache);
+
+        // A crash cut the last record short
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        cache = open();
+        assertData(spn, cache.get(ICCID_1, AID, EF_SPN, 0));
+        assertNull(cache.get(ICCID_1, AID, EF_PNN, 1));
+
+        // The log was rewritten, so records appended now are read back
+        cache.put(ICCID_1, AID, EF_PNN, 1, pnn);
+        close(cache);
+
+        cache = open();
+        assertData(spn, cache.get(ICCID_1, AID, EF_SPN, 0));
+        assertData(pnn, cache.get(ICCID_1, AID, EF_PNN, 1));
+        close(cache);
+    }
+
+    @SmallTest
+    public void testCorruptRecord() throws Exception {
+        byte[] spn = {0x01, 'S', 'P', 'N'};
+        byte[] pnn = {0x10, 0x11, 0x12, 0x13};
+        IccFileCache cache = open();
+        cache.put(ICCID_1, AID, EF_SPN, 0, spn);
+        cache.put(ICCID_1, AID, EF_PNN, 1, pnn);
+        close(cache);
+
+        // The last data byte of the last record, ahead of its CRC, no longer matches
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(file.length() - 5);
+        file.write(0x77);
+        file.close();
+
+        cache = open();
+        assertData(spn, cache.get(ICCID_1, AID, EF_SPN, 0));
+        assertNull(cache.get(ICCID_1, AID, EF_PNN, 1));
+
+        cache.put(ICCID_1, AID, EF_PNN, 1, pnn);
+        close(cache);
+
+        cache = open();
+        assertData(pnn, cache.get(ICCID_1, AID, EF_PNN, 1));
+        close(cache);
+    }
+
+    @SmallTest
+    public void testInterruptedRewrite() throws Exception {
+        byte[] spn = {0x01, 'S', 'P', 'N'};
+        byte[] pnn = {0x10, 0x11};
+        IccFileCache cache = open();
+        cache.put(ICCID_1, AID, EF_SPN, 0, spn);
+        close(cache);
+
+        // A crash while rewriting the log left the new one incomplete
+        File newFile = new File(mFile.getPath() + ".new");
+        FileOutputStream out = new FileOutputStream(newFile);
+        out.write(new byte[] {'I', 'C', 'C'});
+        out.close();
+
+        cache = open();
+        assertFalse(newFile.exists());
+        assertData(spn, cache.get(ICCID_1, AID, EF_SPN, 0));
+        cache.put(ICCID_1, AID, EF_PNN, 1, pnn);
+        close(cache);
+
+        // Appends made since are still there
+        cache = open();
+        assertData(spn, cache.get(ICCID_1, AID, EF_SPN, 0));
+        assertData(pnn, cache.get(ICCID_1, AID, EF_PNN, 1));
+        close(cache);
+    }
+
+    @SmallTest
+    public void testIccIdNotStored() throws Exception {
+        IccFileCache cache = open();
+        cache.put(ICCID_1, AID, EF_SPN, 0, new byte[] {0x01, 'S', 'P', 'N'});
+        cache.remove(ICCID_2, AID, EF_SPN);
+        close(cache);
+
+        byte[] log = new byte[(int) mFile.length()];
+        FileInputStream in = new FileInputStream(mFile);
+        assertEquals(log.length, in.read(log));
+        in.close();
+        String contents = new String(log, "ISO-8859-1");
+        assertEquals(-1, contents.indexOf(ICCID_1));
+        assertEquals(-1, contents.indexOf(ICCID_2));
+        assertTrue(contents.indexOf(AID) != -1);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class RecordLoadSchedulerTest extends TestCase {
+    private static final int IMSI = 1;
+    private static final int AD = 2;
+    private static final int ICCID = 3;
+    private static final int MWIS = 4;
+    private static final int CPHS_MWI = 5;
+    private static final int PNN = 6;
+
+    /** Keeps the loads issued instead of starting them. */
+    private static class TestCallback implements RecordLoadScheduler.Callback {
+        final ArrayList<Integer> mIssued = new ArrayList<Integer>();
+        final HashMap<Integer, Object> mTokens = new HashMap<Integer, Object>();
+        int mCriticalLoaded;
+
+        @Override
+        public void onIssueLoad(int id, Object token) {
+            mIssued.add(id);
+            mTokens.put(id, token);
+        }
+
+        @Override
+        public void onCriticalRecordsLoaded() {
+            mCriticalLoaded++;
+        }
+    }
+
+    private TestCallback mCallback;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCallback = new TestCallback();
+    }
+
+    private void assertIssued(int... ids) {
+        assertEquals(ids.length, mCallback.mIssued.size());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], (int) mCallback.mIssued.get(i));
+        }
+    }
+
+    private boolean loaded(RecordLoadScheduler scheduler, int id) {
+        return scheduler.onLoaded(mCallback.mTokens.get(id));
+    }
+
+    @SmallTest
+    public void testCriticalFirst() throws Exception {
+        RecordLoadScheduler scheduler = new RecordLoadScheduler(mCallback, 2);
+        scheduler.add(ICCID, "EF_ICCID", false);
+        scheduler.add(PNN, "EF_PNN", false);
+        scheduler.add(IMSI, "IMSI", true);
+        scheduler.add(AD, "EF_AD", true);
+        scheduler.start();
+
+        // Critical loads take the two slots though they were added last
+        assertIssued(IMSI, AD);
+        assertEquals(0, mCallback.mCriticalLoaded);
+
+        assertTrue(loaded(scheduler, AD));
+        assertIssued(IMSI, AD, ICCID);
+        assertEquals(0, mCallback.mCriticalLoaded);
+
+        // Told once, without waiting for the others
+        assertTrue(loaded(scheduler, IMSI));
+        assertIssued(IMSI, AD, ICCID, PNN);
+        assertEquals(1, mCallback.mCriticalLoaded);
+
+        assertTrue(loaded(scheduler, ICCID));
+        assertTrue(loaded(scheduler, PNN));
+        assertEquals(1, mCallback.mCriticalLoaded);
+    }
+
+    @SmallTest
+    public void testDependencies() throws Exception {
+        RecordLoadScheduler scheduler = new RecordLoadScheduler(mCallback, 6);
+        scheduler.add(IMSI, "IMSI", true);
+        scheduler.add(ICCID, "EF_ICCID", false);
+        scheduler.add(MWIS, "EF_MWIS", false, ICCID);
+        scheduler.add(CPHS_MWI, "EF_VOICE_MAIL_INDICATOR_CPHS", false, MWIS);
+        scheduler.add(PNN, "EF_PNN", false, ICCID);
+        scheduler.start();
+
+        // Free slots are not used by loads whose dependencies are pending
+        assertIssued(IMSI, ICCID);
+
+        assertTrue(loaded(scheduler, ICCID));
+        assertIssued(IMSI, ICCID, MWIS, PNN);
+
+        assertTrue(loaded(scheduler, PNN));
+        assertIssued(IMSI, ICCID, MWIS, PNN);
+
+        assertTrue(loaded(scheduler, MWIS));
+        assertIssued(IMSI, ICCID, MWIS, PNN, CPHS_MWI);
+    }
+
+    @SmallTest
+    public void testStrayResponses() throws Exception {
+        RecordLoadScheduler scheduler = new RecordLoadScheduler(mCallback, 1);
+        scheduler.add(IMSI, "IMSI", true);
+        scheduler.add(AD, "EF_AD", true);
+        scheduler.start();
+        assertIssued(IMSI);
+
+        // Responses to reads the scheduler did not issue
+        assertFalse(scheduler.onLoaded(null));
+        assertFalse(scheduler.onLoaded(new Object()));
+        assertFalse(scheduler.onLoaded(IMSI));
+        assertIssued(IMSI);
+
+        assertTrue(loaded(scheduler, IMSI));
+        assertIssued(IMSI, AD);
+
+        // The same response twice
+        Object imsi = mCallback.mTokens.get(IMSI);
+        assertFalse(scheduler.onLoaded(imsi));
+        assertIssued(IMSI, AD);
+        assertEquals(0, mCallback.mCriticalLoaded);
+    }
+
+    @SmallTest
+    public void testReset() throws Exception {
+        RecordLoadScheduler scheduler = new RecordLoadScheduler(mCallback, 1);
+        scheduler.add(IMSI, "IMSI", true);
+        scheduler.add(AD, "EF_AD", true);
+        scheduler.start();
+        assertIssued(IMSI);
+        Object oldImsi = mCallback.mTokens.get(IMSI);
+
+        // The SIM is removed; nothing more is issued for it
+        scheduler.reset();
+        assertFalse(scheduler.onLoaded(oldImsi));
+        assertIssued(IMSI);
+        assertEquals(0, mCallback.mCriticalLoaded);
+
+        // Another SIM is inserted
+        scheduler.add(IMSI, "IMSI", true);
+        scheduler.add(AD, "EF_AD", true);
+        scheduler.start();
+        assertIssued(IMSI, IMSI);
+        assertTrue(oldImsi != mCallback.mTokens.get(IMSI));
+
+        // The response for the old SIM does not complete the new load
+        assertFalse(scheduler.onLoaded(oldImsi));
+        assertIssued(IMSI, IMSI);
+
+        assertTrue(loaded(scheduler, IMSI));
+        assertIssued(IMSI, IMSI, AD);
+        assertTrue(loaded(scheduler, AD));
+        assertEquals(1, mCallback.mCriticalLoaded);
+    }
+}
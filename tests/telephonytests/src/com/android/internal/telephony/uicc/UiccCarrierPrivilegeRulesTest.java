@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.content.pm.Signature;
+import android.os.AsyncResult;
+import android.os.Looper;
+import android.os.Message;
+import android.telephony.TelephonyManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class UiccCarrierPrivilegeRulesTest extends TestCase {
+    private static final int CHANNEL = 2;
+
+    private static final String PKG_B = "com.example.b";
+
+    private static final Signature SIG_A = new Signature(new byte[] {0x0a, 0x0a, 0x0a});
+    private static final Signature SIG_B = new Signature(new byte[] {0x0b, 0x0b, 0x0b});
+    private static final Signature SIG_C = new Signature(new byte[] {0x0c, 0x0c, 0x0c});
+
+    // E3 0A DB 08 <8 bytes>
+    private static final byte[] AR_DO = hex("e3 0a db 08 00 00 00 00 00 00 00 01");
+
+    /** Keeps the requests sent to the card instead of answering them. */
+    private static class TestCard extends UiccCard {
+        Message mOpen;
+        final ArrayList<Message> mTransmits = new ArrayList<Message>();
+        final ArrayList<Integer> mTransmitP2s = new ArrayList<Integer>();
+        boolean mClosed;
+
+        @Override
+        public void iccOpenLogicalChannel(String aid, Message response) {
+            mOpen = response;
+        }
+
+        @Override
+        public void iccCloseLogicalChannel(int channel, Message response) {
+            assertEquals(CHANNEL, channel);
+            mClosed = true;
+        }
+
+        @Override
+        public void iccTransmitApduLogicalChannel(int channel, int cla, int command,
+                int p1, int p2, int p3, String data, Message response) {
+            assertEquals(CHANNEL, channel);
+            mTransmits.add(response);
+            mTransmitP2s.add(p2);
+        }
+    }
+
+    private TestCard mCard;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        mCard = new TestCard();
+    }
+
+    private static byte[] hex(String s) {
+        String[] octets = s.split(" ");
+        byte[] bytes = new byte[octets.length];
+        for (int i = 0; i < octets.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(octets[i], 16);
+        }
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] hash(Signature signature, String algo) throws Exception {
+        return MessageDigest.getInstance(algo).digest(signature.toByteArray());
+    }
+
+    /** A rule for SIG_A by its SHA-256 hash, for any package. 50 bytes. */
+    private static byte[] ruleA() throws Exception {
+        return concat(hex("e2 30 e1 22 c1 20"), hash(SIG_A, "SHA-256"), AR_DO);
+    }
+
+    /** A rule for SIG_B by its SHA-1 hash, for PKG_B only. 53 bytes. */
+    private static byte[] ruleB() throws Exception {
+        return concat(hex("e2 33 e1 25 c1 14"), hash(SIG_B, "SHA-1"), hex("ca 0d"),
+                PKG_B.getBytes(), AR_DO);
+    }
+
+    /**
+     * Opens the channel and answers each transmit with the next response.
+     */
+    private UiccCarrierPrivilegeRules load(byte[]... responses) {
+        UiccCarrierPrivilegeRules rules = new UiccCarrierPrivilegeRules(mCard, null, null);
+        assertFalse(rules.areCarrierPriviligeRulesLoaded());
+
+        Message msg = mCard.mOpen;
+        msg.obj = new AsyncResult(null, new int[] {CHANNEL}, null);
+        rules.handleMessage(msg);
+
+        for (int i = 0; i < responses.length; i++) {
+            assertEquals(i + 1, mCard.mTransmits.size());
+            msg = mCard.mTransmits.get(i);
+            msg.obj = new AsyncResult(null, new IccIoResult(0x90, 0x00, responses[i]), null);
+            rules.handleMessage(msg);
+        }
+        assertEquals(responses.length, mCard.mTransmits.size());
+        assertTrue(rules.areCarrierPriviligeRulesLoaded());
+        assertTrue(mCard.mClosed);
+        return rules;
+    }
+
+    private static void assertStatus(int expected, UiccCarrierPrivilegeRules rules,
+            Signature signature, String packageName) {
+        assertEquals(expected, rules.getCarrierPrivilegeStatus(signature, packageName));
+    }
+
+    private static void assertAccess(UiccCarrierPrivilegeRules rules, Signature signature,
+            String packageName) {
+        assertStatus(TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS, rules, signature,
+                packageName);
+    }
+
+    private static void assertNoAccess(UiccCarrierPrivilegeRules rules, Signature signature,
+            String packageName) {
+        assertStatus(TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS, rules, signature,
+                packageName);
+    }
+
+    private static void assertErrorLoading(UiccCarrierPrivilegeRules rules) {
+        assertStatus(TelephonyManager.CARRIER_PRIVILEGE_STATUS_ERROR_LOADING_RULES, rules,
+                SIG_A, "com.example.a");
+    }
+
+    @SmallTest
+    public void testNestedRules() throws Exception {
+        UiccCarrierPrivilegeRules rules = load(concat(hex("ff 40 67"), ruleA(), ruleB()));
+
+        // No package name in the rule: any package signed with the certificate
+        assertAccess(rules, SIG_A, "com.example.a");
+        assertAccess(rules, SIG_A, PKG_B);
+        assertAccess(rules, SIG_A, null);
+
+        // The package name must match as well
+        assertAccess(rules, SIG_B, PKG_B);
+        assertNoAccess(rules, SIG_B, "com.example.a");
+        assertNoAccess(rules, SIG_B, null);
+
+        assertNoAccess(rules, SIG_C, PKG_B);
+
+        // Decisions come from the cache the second time round
+        assertAccess(rules, SIG_B, PKG_B);
+        assertNoAccess(rules, SIG_B, "com.example.a");
+    }
+
+    @SmallTest
+    public void testEmptyRules() throws Exception {
+        UiccCarrierPrivilegeRules rules = load(hex("ff 40 00"));
+        assertNoAccess(rules, SIG_A, "com.example.a");
+    }
+
+    @SmallTest
+    public void testUnrelatedRuleSkipped() throws Exception {
+        // A REF-DO without a DEVICE-APP-ID-REF-DO
+        byte[] unrelated = hex("e2 10 e1 02 4f 00 e3 0a db 08 00 00 00 00 00 00 00 01");
+        UiccCarrierPrivilegeRules rules = load(concat(hex("ff 40 44"), unrelated, ruleA()));
+        assertAccess(rules, SIG_A, "com.example.a");
+    }
+
+    /**
+     * Lengths of 128 bytes or more take a length byte 0x81 or 0x82 followed by the length.
+     */
+    @SmallTest
+    public void testMultiByteLengths() throws Exception {
+        char[] longName = new char[130];
+        Arrays.fill(longName, 'p');
+        String pkg = new String(longName);
+
+        // CA: 3 + 130, E1: 34 + 133 = 167, E2: 3 + 167 + 12 = 182, FF40: 4 + 182 = 186
+        byte[] rule = concat(hex("e2 82 00 b6 e1 81 a7 c1 20"), hash(SIG_A, "SHA-256"),
+                hex("ca 81 82"), pkg.getBytes(), AR_DO);
+        assertEquals(186, rule.length);
+        UiccCarrierPrivilegeRules rules = load(concat(hex("ff 40 81 ba"), rule));
+
+        assertAccess(rules, SIG_A, pkg);
+        assertNoAccess(rules, SIG_A, pkg.substring(1));
+        assertNoAccess(rules, SIG_A, null);
+    }
+
+    @SmallTest
+    public void testRulesOverSeveralResponses() throws Exception {
+        byte[] all = concat(hex("ff 40 67"), ruleA(), ruleB());
+        UiccCarrierPrivilegeRules rules = load(Arrays.copyOfRange(all, 0, 40),
+                Arrays.copyOfRange(all, 40, 80), Arrays.copyOfRange(all, 80, all.length));
+
+        // Later parts are fetched with the extended data P2
+        assertEquals(Integer.valueOf(0x40), mCard.mTransmitP2s.get(0));
+        assertEquals(Integer.valueOf(0x60), mCard.mTransmitP2s.get(1));
+        assertEquals(Integer.valueOf(0x60), mCard.mTransmitP2s.get(2));
+
+        assertAccess(rules, SIG_A, "com.example.a");
+        assertAccess(rules, SIG_B, PKG_B);
+    }
+
+    @SmallTest
+    public void testTruncatedLength() throws Exception {
+        // Two length bytes announced, one present
+        assertErrorLoading(load(hex("ff 40 82 01")));
+    }
+
+    @SmallTest
+    public void testTruncatedRefArDo() throws Exception {
+        // The REF-AR-DO claims more than the ALL-REF-AR-DO holds
+        assertErrorLoading(load(hex("ff 40 06 e2 10 e1 02 c1 00")));
+    }
+
+    @SmallTest
+    public void testTruncatedRefDo() throws Exception {
+        // The REF-DO claims more than its REF-AR-DO holds
+        byte[] rule = ruleA();
+        rule[3] = 0x30;
+        assertErrorLoading(load(concat(hex("ff 40 32"), rule)));
+    }
+
+    @SmallTest
+    public void testTruncatedPkgRefDo() throws Exception {
+        // The package name runs past the end of the REF-DO
+        byte[] rule = ruleB();
+        rule[27] = 0x0e;
+        assertErrorLoading(load(concat(hex("ff 40 35"), rule)));
+    }
+
+    @SmallTest
+    public void testTrailingData() throws Exception {
+        // The ALL-REF-AR-DO holds something other than a REF-AR-DO after the rule
+        assertErrorLoading(load(concat(hex("ff 40 33"), ruleA(), hex("00"))));
+    }
+}
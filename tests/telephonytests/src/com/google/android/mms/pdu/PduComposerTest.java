@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The expected PDUs were composed by the composer which built each value-length prefixed
+ * field in a temporary buffer, and must not change.
+ */
+public class PduComposerTest extends AndroidTestCase {
+
+    private static final String RELATED = "application/vnd.wap.multipart.related";
+
+    private static final byte[] SEND_REQ = hex(
+            // Message-Type, Transaction-ID, MMS-Version, Date
+            "8c 80 98 54 31 00 8d 92 85 04 5f 00 00 00"
+            // From
+            + " 89 1a 80 18 ea 2b 31 35 35 35 30 30 30 31 31 31 31 2f 54 59 50 45 3d 50 4c 4d"
+            + " 4e 00"
+            // To
+            + " 97 18 ea 2b 31 35 35 35 31 32 33 34 35 36 37 2f 54 59 50 45 3d 50 4c 4d 4e 00"
+            // Subject, Message-Class, Expiry, Priority, Delivery-Report
+            + " 96 04 ea 48 69 00 8a 80 88 05 81 03 09 3a 80 8f 82 86 80"
+            // Content-Type with start and type parameters, part count
+            + " 84 1b b3 8a 3c 73 6d 69 6c 3e 00 89 61 70 70 6c 69 63 61 74 69 6f 6e 2f 73 6d"
+            + " 69 6c 00 02"
+            // SMIL part
+            + " 2f 07 1b 61 70 70 6c 69 63 61 74 69 6f 6e 2f 73 6d 69 6c 00 85 73 6d 69 6c 2e"
+            + " 78 6d 6c 00 c0 22 3c 73 6d 69 6c 3e 00 8e 73 6d 69 6c 2e 78 6d 6c 00 3c 73 6d"
+            + " 69 6c 2f 3e"
+            // Text part
+            + " 27 05 0f 83 85 74 65 78 74 5f 30 2e 74 78 74 00 81 ea c0 22 3c 74 65 78 74 5f"
+            + " 30 3e 00 8e 74 65 78 74 5f 30 2e 74 78 74 00 48 65 6c 6c 6f");
+
+    private static final byte[] NOTIFY_RESP_IND = hex("8c 83 98 54 33 00 8d 92 95 81");
+
+    private static final byte[] ACKNOWLEDGE_IND = hex("8c 85 98 54 34 00 8d 92 91 80");
+
+    private static final byte[] READ_REC_IND = hex(
+            // Message-Type, MMS-Version, Message-ID
+            "8c 87 8d 92 8b 4d 35 00"
+            // To
+            + " 97 18 ea 2b 31 35 35 35 31 32 33 34 35 36 37 2f 54 59 50 45 3d 50 4c 4d 4e 00"
+            // From
+            + " 89 1a 80 18 ea 2b 31 35 35 35 30 30 30 31 31 31 31 2f 54 59 50 45 3d 50 4c 4d"
+            + " 4e 00"
+            // Date, Read-Status
+            + " 85 04 5f 00 00 00 9b 80");
+
+    private static byte[] hex(String s) {
+        String[] octets = s.split(" ");
+        byte[] bytes = new byte[octets.length];
+        for (int i = 0; i < octets.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(octets[i], 16);
+        }
+        return bytes;
+    }
+
+    private static byte[] repeat(char c, int count) {
+        byte[] bytes = new byte[count];
+        Arrays.fill(bytes, (byte) c);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] partData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    private static PduPart newPart(String contentType, String contentId, String location,
+            String name, int charset, byte[] data) {
+        PduPart part = new PduPart();
+        part.setContentType(contentType.getBytes());
+        if (contentId != null) {
+            part.setContentId(contentId.getBytes());
+        }
+        if (location != null) {
+            part.setContentLocation(location.getBytes());
+        }
+        if (name != null) {
+            part.setName(name.getBytes());
+        }
+        if (charset != 0) {
+            part.setCharset(charset);
+        }
+        part.setData(data);
+        return part;
+    }
+
+    private void assertComposes(byte[] expected, GenericPdu pdu) throws Exception {
+        PduComposer composer = new PduComposer(getContext(), pdu);
+        assertEquals(expected.length, composer.computeMessageSize());
+
+        byte[] message = composer.make();
+        assertTrue(Arrays.toString(message), Arrays.equals(expected, message));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(composer.make(out));
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(expected.length + 2);
+        buffer.put((byte) 0x55);
+        assertTrue(composer.make(buffer));
+        assertEquals(expected.length + 1, buffer.position());
+        byte[] written = new byte[expected.length];
+        buffer.position(1);
+        buffer.get(written);
+        assertTrue(Arrays.equals(expected, written));
+
+        try {
+            composer.make(ByteBuffer.allocate(expected.length - 1));
+            fail("Expected BufferOverflowException");
+        } catch (BufferOverflowException e) {
+            // expected
+        }
+    }
+
+    @SmallTest
+    public void testSendReq() throws Exception {
+        SendReq req = new SendReq(RELATED.getBytes(), new EncodedStringValue("+15550001111"),
+                PduHeaders.MMS_VERSION_1_2, "T1".getBytes());
+        req.addTo(new EncodedStringValue("+15551234567"));
+        req.setDate(0x5f000000L);
+        req.setSubject(new EncodedStringValue(CharacterSets.UTF_8, "Hi".getBytes()));
+        req.setMessageClass(PduHeaders.MESSAGE_CLASS_PERSONAL_STR.getBytes());
+        req.setExpiry(604800);
+        req.setPriority(PduHeaders.PRIORITY_HIGH);
+        req.setDeliveryReport(PduHeaders.VALUE_YES);
+
+        PduBody body = new PduBody();
+        body.addPart(newPart("application/smil", "smil", "smil.xml", null, 0,
+                "<smil/>".getBytes()));
+        body.addPart(newPart("text/plain", "text_0", "text_0.txt", null, CharacterSets.UTF_8,
+                "Hello".getBytes()));
+        req.setBody(body);
+
+        assertComposes(SEND_REQ, req);
+    }
+
+    /**
+     * Values of 128 bytes or more take a multi-octet uintvar, both as a Value-length after
+     * the Length-quote and as the header and data lengths of a part.
+     */
+    @SmallTest
+    public void testSendReqLongValues() throws Exception {
+        SendReq req = new SendReq(RELATED.getBytes(),
+                new EncodedStringValue(PduHeaders.FROM_INSERT_ADDRESS_TOKEN_STR.getBytes()),
+                PduHeaders.MMS_VERSION_1_2, "T2".getBytes());
+        req.addTo(new EncodedStringValue(new String(repeat('1', 40))));
+        req.setSubject(new EncodedStringValue(CharacterSets.UTF_8, repeat('s', 200)));
+
+        PduBody body = new PduBody();
+        body.addPart(newPart("image/jpeg", null, null, new String(repeat('n', 150)), 0,
+                partData(300)));
+        req.setBody(body);
+
+        byte[] expected = concat(
+                // Message-Type, Transaction-ID, MMS-Version, From with Insert-address-token
+                hex("8c 80 98 54 32 00 8d 92 89 01 81"),
+                // To: Length-quote, length 52
+                hex("97 1f 34 ea"), repeat('1', 40), "/TYPE=PLMN".getBytes(), hex("00"),
+                // Subject: Length-quote, length 202
+                hex("96 1f 81 4a ea"), repeat('s', 200), hex("00"),
+                // Content-Type with type parameter, part count
+                hex("84 0d b3 89"), "image/jpeg".getBytes(), hex("00 01"),
+                // Header length 156, data length 300
+                hex("81 1c 82 2c"),
+                // Content-type value of length 153 with name parameter
+                hex("1f 81 19 9e 85"), repeat('n', 150), hex("00"),
+                partData(300));
+        assertEquals(748, expected.length);
+
+        assertComposes(expected, req);
+    }
+
+    @SmallTest
+    public void testNotifyRespInd() throws Exception {
+        NotifyRespInd ind = new NotifyRespInd(PduHeaders.MMS_VERSION_1_2, "T3".getBytes(),
+                PduHeaders.STATUS_RETRIEVED);
+        // X-Mms-Report-Allowed is not composed
+        ind.setReportAllowed(PduHeaders.VALUE_YES);
+
+        assertComposes(NOTIFY_RESP_IND, ind);
+    }
+
+    @SmallTest
+    public void testAcknowledgeInd() throws Exception {
+        AcknowledgeInd ind = new AcknowledgeInd(PduHeaders.MMS_VERSION_1_2, "T4".getBytes());
+        ind.setReportAllowed(PduHeaders.VALUE_YES);
+
+        assertComposes(ACKNOWLEDGE_IND, ind);
+    }
+
+    @SmallTest
+    public void testReadRecInd() throws Exception {
+        ReadRecInd ind = new ReadRecInd(new EncodedStringValue("+15550001111"), "M5".getBytes(),
+                PduHeaders.MMS_VERSION_1_2, PduHeaders.READ_STATUS_READ,
+                new EncodedStringValue[] {new EncodedStringValue("+15551234567")});
+        ind.setDate(0x5f000000L);
+
+        assertComposes(READ_REC_IND, ind);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class PduParserTest extends TestCase {
+
+    private static final byte[] SEND_REQ = hex(
+            // Message-Type, Transaction-ID, MMS-Version, Date
+            "8c 80 98 54 31 00 8d 92 85 04 5f 00 00 00"
+            // From
+            + " 89 1a 80 18 ea 2b 31 35 35 35 30 30 30 31 31 31 31 2f 54 59 50 45 3d 50 4c 4d"
+            + " 4e 00"
+            // To
+            + " 97 18 ea 2b 31 35 35 35 31 32 33 34 35 36 37 2f 54 59 50 45 3d 50 4c 4d 4e 00"
+            // Subject, Message-Class, Expiry, Priority, Delivery-Report
+            + " 96 04 ea 48 69 00 8a 80 88 05 81 03 09 3a 80 8f 82 86 80"
+            // Content-Type with start and type parameters, part count
+            + " 84 1b b3 8a 3c 73 6d 69 6c 3e 00 89 61 70 70 6c 69 63 61 74 69 6f 6e 2f 73 6d"
+            + " 69 6c 00 02"
+            // SMIL part
+            + " 2f 07 1b 61 70 70 6c 69 63 61 74 69 6f 6e 2f 73 6d 69 6c 00 85 73 6d 69 6c 2e"
+            + " 78 6d 6c 00 c0 22 3c 73 6d 69 6c 3e 00 8e 73 6d 69 6c 2e 78 6d 6c 00 3c 73 6d"
+            + " 69 6c 2f 3e"
+            // Text part
+            + " 27 05 0f 83 85 74 65 78 74 5f 30 2e 74 78 74 00 81 ea c0 22 3c 74 65 78 74 5f"
+            + " 30 3e 00 8e 74 65 78 74 5f 30 2e 74 78 74 00 48 65 6c 6c 6f");
+
+    /** A SEND_REQ whose parts are in the binary, base64 and quoted-printable encodings. */
+    private static final byte[] ENCODED_SEND_REQ = concat(
+            // Message-Type, Transaction-ID, MMS-Version, From with Insert-address-token
+            hex("8c 80 98 54 35 00 8d 92 89 01 81"),
+            // Content-Type multipart/mixed, part count
+            hex("84 a3 03"),
+            part("a.txt", null, "Hello".getBytes()),
+            part("b.txt", PduPart.P_BASE64, "SGVsbG8=".getBytes()),
+            part("c.txt", PduPart.P_QUOTED_PRINTABLE, "H=65llo".getBytes()));
+
+    private static byte[] hex(String s) {
+        String[] octets = s.split(" ");
+        byte[] bytes = new byte[octets.length];
+        for (int i = 0; i < octets.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(octets[i], 16);
+        }
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] textString(String s) {
+        return concat(s.getBytes(), hex("00"));
+    }
+
+    /**
+     * A text/plain part with a Content-Location and, unless the encoding is null, a
+     * Content-Transfer-Encoding header. Both lengths must fit in one uintvar octet.
+     */
+    private static byte[] part(String location, String encoding, byte[] data) {
+        byte[] headers = concat(hex("83 8e"), textString(location));
+        if (encoding != null) {
+            // The parser takes the first octet of a textual header name as the Quote
+            headers = concat(headers, hex("7f"), textString(PduPart.CONTENT_TRANSFER_ENCODING),
+                    textString(encoding));
+        }
+        assertTrue(headers.length < 0x80 && data.length < 0x80);
+        return concat(new byte[] {(byte) headers.length, (byte) data.length}, headers, data);
+    }
+
+    private static PduBody parse(PduParser parser) {
+        GenericPdu pdu = parser.parse();
+        assertNotNull(pdu);
+        assertEquals(PduHeaders.MESSAGE_TYPE_SEND_REQ, pdu.getMessageType());
+        return ((SendReq) pdu).getBody();
+    }
+
+    private static void assertBytes(byte[] expected, byte[] actual) {
+        assertTrue(Arrays.toString(actual), Arrays.equals(expected, actual));
+    }
+
+    private static void assertSameBody(PduBody expected, PduBody actual) {
+        assertEquals(expected.getPartsNum(), actual.getPartsNum());
+        for (int i = 0; i < expected.getPartsNum(); i++) {
+            PduPart e = expected.getPart(i);
+            PduPart a = actual.getPart(i);
+            assertBytes(e.getContentType(), a.getContentType());
+            assertBytes(e.getContentLocation(), a.getContentLocation());
+            assertBytes(e.getContentId(), a.getContentId());
+            assertEquals(e.getCharset(), a.getCharset());
+            assertEquals(e.getDataLength(), a.getDataLength());
+            assertBytes(e.getData(), a.getData());
+        }
+    }
+
+    /**
+     * Parses the PDU from the array and from heap and direct buffers that hold it between
+     * other bytes, and checks each gives the same parts.
+     */
+    private static PduBody assertParsesAlike(byte[] pdu) {
+        PduBody fromArray = parse(new PduParser(pdu, true));
+
+        ByteBuffer heap = ByteBuffer.allocate(pdu.length + 3);
+        heap.put((byte) 0x55).put(pdu).put((byte) 0x55);
+        heap.position(1);
+        heap.limit(pdu.length + 1);
+        assertSameBody(fromArray, parse(new PduParser(heap, true)));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(pdu.length + 3);
+        direct.put((byte) 0x55).put(pdu).put((byte) 0x55);
+        direct.position(1);
+        direct.limit(pdu.length + 1);
+        assertSameBody(fromArray, parse(new PduParser(direct, true)));
+
+        // The parser reads the buffer without moving it
+        assertEquals(1, direct.position());
+        assertEquals(pdu.length + 1, direct.limit());
+        return fromArray;
+    }
+
+    @SmallTest
+    public void testSendReq() throws Exception {
+        PduBody body = assertParsesAlike(SEND_REQ);
+        assertEquals(2, body.getPartsNum());
+        assertBytes("<smil/>".getBytes(), body.getPartByContentId("<smil>").getData());
+        assertBytes("Hello".getBytes(), body.getPartByContentLocation("text_0.txt").getData());
+    }
+
+    @SmallTest
+    public void testEncodedParts() throws Exception {
+        PduBody body = assertParsesAlike(ENCODED_SEND_REQ);
+        assertEquals(3, body.getPartsNum());
+        for (String location : new String[] {"a.txt", "b.txt", "c.txt"}) {
+            PduPart part = body.getPartByContentLocation(location);
+            assertNotNull(location, part);
+            assertBytes("Hello".getBytes(), part.getData());
+        }
+    }
+
+    @SmallTest
+    public void testArrayCopied() throws Exception {
+        byte[] pdu = SEND_REQ.clone();
+        PduBody body = parse(new PduParser(pdu, true));
+
+        // Reusing the array does not change the parsed parts
+        Arrays.fill(pdu, (byte) 0);
+        assertBytes("<smil/>".getBytes(), body.getPartByContentId("<smil>").getData());
+        assertBytes("Hello".getBytes(), body.getPartByContentLocation("text_0.txt").getData());
+    }
+
+    @SmallTest
+    public void testTruncatedPartData() throws Exception {
+        // The last part claims more data than there is
+        byte[] pdu = Arrays.copyOf(ENCODED_SEND_REQ, ENCODED_SEND_REQ.length - 2);
+        PduBody fromArray = parse(new PduParser(pdu, true));
+        assertSameBody(fromArray, parse(new PduParser(ByteBuffer.wrap(pdu), true)));
+    }
+
+    @SmallTest
+    public void testZeroLengthRead() throws Exception {
+        ByteBufferInputStream in = new ByteBufferInputStream(ByteBuffer.wrap(hex("01 02")));
+        byte[] b = new byte[2];
+        assertEquals(0, in.read(b, 0, 0));
+        assertEquals(2, in.read(b, 0, 2));
+
+        // At the end, a read of nothing still reads nothing rather than signalling the end
+        assertEquals(0, in.read(b, 0, 0));
+        assertEquals(0, in.read(b, 2, 0));
+        assertEquals(-1, in.read(b, 0, 1));
+        assertEquals(-1, in.read());
+
+        try {
+            in.read(b, 1, 2);
+            fail("Expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+}